@@ -0,0 +1,84 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elsevier.spark_xml_utils.common.BinaryDocumentReader;
+import com.elsevier.spark_xml_utils.common.BinaryDocumentWriter;
+import com.elsevier.spark_xml_utils.common.ContentSource;
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+
+/**
+ * Cost of building a tree from xml (parse) and from the binary encoding of the same
+ * document (decode), and of converting xml to the binary encoding (encode, paid once
+ * per document of a corpus).
+ *
+ * @author Darin McBeath
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BinaryDocumentBenchmark {
+
+	@Param({Documents.SMALL, Documents.MEDIUM, Documents.LARGE})
+	public String size;
+
+	private String content;
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() throws SaxonApiException {
+		content = Documents.get(size);
+		encoded = BinaryDocumentWriter.toBytes(ContentSource.fromCharSequence(content), null);
+	}
+
+	@Benchmark
+	public ParsedDocument parse() throws SaxonApiException {
+		return ParsedDocument.parse(content);
+	}
+
+	@Benchmark
+	public ParsedDocument decode() throws SaxonApiException {
+		return BinaryDocumentReader.read(encoded);
+	}
+
+	@Benchmark
+	public byte[] encode() throws SaxonApiException {
+		return BinaryDocumentWriter.toBytes(ContentSource.fromCharSequence(content), null);
+	}
+
+}
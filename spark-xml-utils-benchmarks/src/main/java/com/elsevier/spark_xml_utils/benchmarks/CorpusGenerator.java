@@ -0,0 +1,295 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Reproducible generator of xocs/ja/ce articles.  Document sizes follow a log-normal
+ * distribution (a median and a sigma), sections nest up to a maximum depth, and the
+ * namespace density is the share of paragraphs that carry inline markup from another
+ * namespace (MathML or the structured bibliography namespace) declared locally.
+ * <p>
+ * Each document is generated from the seed and its index alone, so document i is the
+ * same whatever order (or thread) it is generated in.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class CorpusGenerator {
+
+	/** Defaults */
+	public static final long DEFAULT_SEED = 42L;
+	public static final int DEFAULT_MEDIAN_SIZE = 40 * 1024;
+	public static final double DEFAULT_SIZE_SIGMA = 1.0;
+	public static final int DEFAULT_MAXIMUM_DEPTH = 4;
+	public static final double DEFAULT_NAMESPACE_DENSITY = 0.2;
+
+	// Smallest and largest document generated (bytes, approximately)
+	private static final int MINIMUM_SIZE = 2 * 1024;
+	private static final int MAXIMUM_SIZE = 32 * 1024 * 1024;
+
+	private static final String[] DOCUMENT_TYPES = { "article", "review", "short-communication", "editorial", "erratum" };
+	private static final String[] SURNAMES = { "Brodie", "Manning", "Hu", "McBeath", "Smith", "Garcia", "Chen", "Novak", "Okafor", "Larsen" };
+	private static final String[] WORDS = { "cells", "binding", "receptor", "transcription", "factor", "differentiation", "oligomer",
+			"sequence", "increased", "treatment", "nuclear", "expression", "protein", "analysis", "samples", "observed", "within",
+			"following", "significant", "results", "the", "of", "and", "to", "in", "was", "with", "by" };
+
+	// Member variables
+	private final long seed;
+	private int medianSize = DEFAULT_MEDIAN_SIZE;
+	private double sizeSigma = DEFAULT_SIZE_SIGMA;
+	private int maximumDepth = DEFAULT_MAXIMUM_DEPTH;
+	private double namespaceDensity = DEFAULT_NAMESPACE_DENSITY;
+
+
+	/**
+	 * Create an instance of CorpusGenerator.
+	 *
+	 * @param seed seed of the corpus
+	 */
+	private CorpusGenerator(long seed) {
+
+		this.seed = seed;
+
+	}
+
+
+	/**
+	 * Create an instance of CorpusGenerator.
+	 *
+	 * @param seed seed of the corpus
+	 * @return CorpusGenerator
+	 */
+	public static CorpusGenerator getInstance(long seed) {
+
+		return new CorpusGenerator(seed);
+
+	}
+
+
+	/**
+	 * @param bytes median document size
+	 */
+	public void setMedianSize(int bytes) {
+		this.medianSize = bytes;
+	}
+
+
+	/**
+	 * @param sigma sigma of the log-normal size distribution (0 gives every document the median size)
+	 */
+	public void setSizeSigma(double sigma) {
+		this.sizeSigma = sigma;
+	}
+
+
+	/**
+	 * @param depth maximum nesting of ce:section elements (at least 1)
+	 */
+	public void setMaximumDepth(int depth) {
+		this.maximumDepth = Math.max(1, depth);
+	}
+
+
+	/**
+	 * @param density share (0 to 1) of paragraphs with inline markup from another namespace
+	 */
+	public void setNamespaceDensity(double density) {
+		this.namespaceDensity = Math.min(1.0, Math.max(0.0, density));
+	}
+
+
+	/**
+	 * @return description of the corpus settings (as a JSON object)
+	 */
+	public String toJson() {
+		return "{\"seed\":" + seed + ",\"medianSize\":" + medianSize + ",\"sizeSigma\":" + sizeSigma
+				+ ",\"maximumDepth\":" + maximumDepth + ",\"namespaceDensity\":" + namespaceDensity + "}";
+	}
+
+
+	/**
+	 * Generate the documents 0 to count - 1.
+	 *
+	 * @param count number of documents
+	 * @return documents
+	 */
+	public List<String> generate(int count) {
+
+		List<String> documents = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			documents.add(generate((long) i));
+		}
+		return documents;
+
+	}
+
+
+	/**
+	 * Generate one document.
+	 *
+	 * @param index index of the document in the corpus
+	 * @return document
+	 */
+	public String generate(long index) {
+
+		Random random = new Random(seed * 0x9E3779B97F4A7C15L + index);
+		int target = (int) Math.min(MAXIMUM_SIZE, Math.max(MINIMUM_SIZE, Math.exp(Math.log(medianSize) + sizeSigma * random.nextGaussian())));
+
+		StringBuilder xml = new StringBuilder(target + 1024);
+		String eid = String.format("1-s2.0-S%010d%07d", seed & 0x3FFFFFFFL, index);
+		int year = 1990 + random.nextInt(35);
+		xml.append("<xocs:doc xmlns:xocs=\"http://www.elsevier.com/xml/xocs/dtd\" xmlns=\"http://www.elsevier.com/xml/ja/dtd\" ")
+			.append("xmlns:ja=\"http://www.elsevier.com/xml/ja/dtd\" xmlns:ce=\"http://www.elsevier.com/xml/common/dtd\">")
+			.append("<xocs:meta><xocs:content-family>serial</xocs:content-family>")
+			.append("<xocs:content-type>").append(random.nextInt(4) == 0 ? "BK" : "JL").append("</xocs:content-type>")
+			.append("<xocs:cid>").append(270000 + random.nextInt(10000)).append("</xocs:cid>")
+			.append("<xocs:eid>").append(eid).append("</xocs:eid>")
+			.append("<xocs:doi>10.1016/j.corpus.").append(index).append("</xocs:doi>")
+			.append("<xocs:cover-date-year>").append(year).append("</xocs:cover-date-year>")
+			.append("<xocs:document-type>").append(DOCUMENT_TYPES[random.nextInt(DOCUMENT_TYPES.length)]).append("</xocs:document-type>")
+			.append("</xocs:meta>")
+			.append("<xocs:serial-item><article version=\"5.6\" xml:lang=\"en\">")
+			.append("<head><ce:title>");
+		appendWords(xml, random, 6 + random.nextInt(10));
+		xml.append("</ce:title><ce:author-group>");
+		int authors = 1 + random.nextInt(6);
+		for (int i = 0; i < authors; i++) {
+			xml.append("<ce:author><ce:given-name>").append((char) ('A' + random.nextInt(26))).append(".</ce:given-name>")
+				.append("<ce:surname>").append(SURNAMES[random.nextInt(SURNAMES.length)]).append("</ce:surname></ce:author>");
+		}
+		xml.append("</ce:author-group><ce:abstract><ce:abstract-sec><ce:simple-para>");
+		appendWords(xml, random, 40 + random.nextInt(80));
+		xml.append("</ce:simple-para></ce:abstract-sec></ce:abstract></head><body><ce:sections>");
+
+		// Sections until the target size is reached, nesting at random up to the maximum depth
+		int depth = 0;
+		int section = 0;
+		while (xml.length() < target) {
+			if (depth < maximumDepth && (depth == 0 || random.nextInt(3) == 0)) {
+				depth++;
+				section++;
+				xml.append("<ce:section id=\"s").append(section).append("\"><ce:section-title>");
+				appendWords(xml, random, 2 + random.nextInt(5));
+				xml.append("</ce:section-title>");
+			}
+			appendPara(xml, random, section);
+			if (random.nextInt(4) == 0) {
+				xml.append("</ce:section>");
+				depth--;
+			}
+		}
+		for (; depth > 0; depth--) {
+			xml.append("</ce:section>");
+		}
+
+		xml.append("</ce:sections></body></article></xocs:serial-item></xocs:doc>");
+		return xml.toString();
+
+	}
+
+
+	/**
+	 * Append a paragraph, with inline markup from another namespace for the share of
+	 * paragraphs set by the namespace density.
+	 *
+	 * @param xml document
+	 * @param random random numbers of the document
+	 * @param section current section
+	 */
+	private void appendPara(StringBuilder xml, Random random, int section) {
+
+		xml.append("<ce:para>");
+		appendWords(xml, random, 30 + random.nextInt(60));
+		if (random.nextDouble() < namespaceDensity) {
+			if (random.nextBoolean()) {
+				xml.append(" <mml:math xmlns:mml=\"http://www.w3.org/1998/Math/MathML\"><mml:mi>x</mml:mi><mml:mo>=</mml:mo><mml:mn>")
+					.append(random.nextInt(1000)).append("</mml:mn></mml:math> ");
+			} else {
+				xml.append(" <sb:reference xmlns:sb=\"http://www.elsevier.com/xml/common/struct-bib/dtd\"><sb:title><sb:maintitle>");
+				appendWords(xml, random, 4);
+				xml.append("</sb:maintitle></sb:title></sb:reference> ");
+			}
+		}
+		xml.append(" <ce:cross-ref refid=\"bib").append(section).append("\">[").append(section).append("]</ce:cross-ref>.");
+		xml.append("</ce:para>");
+
+	}
+
+
+	/**
+	 * Append words of text.
+	 *
+	 * @param xml document
+	 * @param random random numbers of the document
+	 * @param count number of words
+	 */
+	private static void appendWords(StringBuilder xml, Random random, int count) {
+
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				xml.append(' ');
+			}
+			xml.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+
+	}
+
+
+	/**
+	 * Write a corpus as a file of records, one document per line.
+	 * <p>
+	 * Arguments: output file, number of documents and (optionally) seed, median size,
+	 * size sigma, maximum depth and namespace density.
+	 *
+	 * @param args arguments
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.err.println("Usage: CorpusGenerator <output file> <documents> [seed] [median size] [size sigma] [maximum depth] [namespace density]");
+			System.exit(1);
+		}
+		Path output = Paths.get(args[0]);
+		int count = Integer.parseInt(args[1]);
+		CorpusGenerator generator = getInstance(args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED);
+		if (args.length > 3) generator.setMedianSize(Integer.parseInt(args[3]));
+		if (args.length > 4) generator.setSizeSigma(Double.parseDouble(args[4]));
+		if (args.length > 5) generator.setMaximumDepth(Integer.parseInt(args[5]));
+		if (args.length > 6) generator.setNamespaceDensity(Double.parseDouble(args[6]));
+
+		try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+			for (long i = 0; i < count; i++) {
+				writer.write(generator.generate(i));
+				writer.write('\n');
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.benchmarks;
+
+import java.util.HashMap;
+
+
+/**
+ * Benchmark documents modeled on the xocs article used by the unit tests: the same
+ * xocs:meta header followed by a body whose number of sections sets the size.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class Documents {
+
+	/** Document sizes (the @Param values of the benchmarks) */
+	public static final String SMALL = "small";
+	public static final String MEDIUM = "medium";
+	public static final String LARGE = "large";
+
+	// Namespaces used by the benchmark expressions
+	private static final HashMap<String,String> namespaces = new HashMap<String,String>();
+	static {
+		namespaces.put("xocs", "http://www.elsevier.com/xml/xocs/dtd");
+		namespaces.put("ja", "http://www.elsevier.com/xml/ja/dtd");
+		namespaces.put("ce", "http://www.elsevier.com/xml/common/dtd");
+	}
+
+	private static final String HEADER = "<xocs:doc xmlns:xocs=\"http://www.elsevier.com/xml/xocs/dtd\" xmlns=\"http://www.elsevier.com/xml/ja/dtd\" "
+			+ "xmlns:ja=\"http://www.elsevier.com/xml/ja/dtd\" xmlns:ce=\"http://www.elsevier.com/xml/common/dtd\">"
+			+ "<xocs:meta><xocs:content-family>serial</xocs:content-family><xocs:content-type>JL</xocs:content-type><xocs:cid>272308</xocs:cid>"
+			+ "<xocs:srctitle>Biochemical and Biophysical Research Communications</xocs:srctitle>"
+			+ "<xocs:normalized-srctitle>BIOCHEMICALBIOPHYSICALRESEARCHCOMMUNICATIONS</xocs:normalized-srctitle>"
+			+ "<xocs:orig-load-date yyyymmdd=\"20020419\">2002-04-19</xocs:orig-load-date><xocs:eid>1-s2.0-S0006291X96917131</xocs:eid>"
+			+ "<xocs:pii-formatted>S0006-291X(96)91713-1</xocs:pii-formatted><xocs:doi>10.1006/bbrc.1996.1713</xocs:doi>"
+			+ "<xocs:item-stage>S300</xocs:item-stage><xocs:item-weight>HEAD-ONLY</xocs:item-weight><xocs:dco>0</xocs:dco><xocs:tomb>0</xocs:tomb>"
+			+ "<xocs:year-nav>1996</xocs:year-nav><xocs:vol-first>228</xocs:vol-first><xocs:iss-first>3</xocs:iss-first>"
+			+ "<xocs:cover-date-text>21 November 1996</xocs:cover-date-text><xocs:cover-date-year>1996</xocs:cover-date-year>"
+			+ "<xocs:document-type>converted-article</xocs:document-type><xocs:document-subtype>fla</xocs:document-subtype>"
+			+ "<xocs:copyright-line>Copyright © 1996 Academic Press. All rights reserved.</xocs:copyright-line>"
+			+ "<xocs:normalized-first-auth-surname>BRODIE</xocs:normalized-first-auth-surname></xocs:meta>"
+			+ "<xocs:serial-item><converted-article version=\"4.5.2\" docsubtype=\"fla\" xml:lang=\"en\">"
+			+ "<item-info><jid>YBBRC</jid><aid>91713</aid><ce:pii>S0006-291X(96)91713-1</ce:pii><ce:doi>10.1006/bbrc.1996.1713</ce:doi></item-info>"
+			+ "<head><ce:title>Inhibitors of Preadipocyte Differentiation Induce COUP-TF Binding to a PPAR/RXR Binding Sequence</ce:title>"
+			+ "<ce:author-group><ce:author><ce:given-name>A.E.</ce:given-name><ce:surname>Brodie</ce:surname></ce:author>"
+			+ "<ce:author><ce:given-name>V.A.</ce:given-name><ce:surname>Manning</ce:surname></ce:author>"
+			+ "<ce:author><ce:given-name>C.Y.</ce:given-name><ce:surname>Hu</ce:surname></ce:author></ce:author-group>"
+			+ "<ce:abstract class=\"author\"><ce:section-title>Abstract</ce:section-title><ce:abstract-sec><ce:simple-para view=\"all\">"
+			+ "Inhibition of preadipocyte differentiation by 2,3,7,8 tetrachlorodibenzo-p-dioxin (TCDD) or retinoic acid (RA) identified "
+			+ "another transcription factor which appears to be important for preadipocyte differentiation.</ce:simple-para></ce:abstract-sec></ce:abstract></head>"
+			+ "<body><ce:sections>";
+
+	private static final String SECTION = "<ce:section id=\"s%d\"><ce:section-title>Section %d</ce:section-title>"
+			+ "<ce:para>Within 15 min of treating 3T3-L1 cells with TCDD, the aryl hydrocarbon receptor (AhR) is present within the cell nucleus, "
+			+ "and increased binding of COUP-TF to an oligomer of the PPARγ2/RXR binding sequence (ARE7) occurs <ce:cross-ref refid=\"bib%d\">[%d]</ce:cross-ref>.</ce:para>"
+			+ "<ce:para>Following 2 days of RA treatment, increased binding of COUP-TF to the ARE7 oligomer also occurs. In untreated preadipocytes, "
+			+ "COUP-TF mRNA increased at confluence and then decreased after induction.</ce:para></ce:section>";
+
+	private static final String FOOTER = "</ce:sections></body></converted-article></xocs:serial-item></xocs:doc>";
+
+
+	private Documents() {
+	}
+
+
+	/**
+	 * @param size SMALL (about 4 KB), MEDIUM (about 100 KB) or LARGE (about 2 MB)
+	 * @return the document
+	 */
+	public static String get(String size) {
+
+		int sections;
+		if (SMALL.equals(size)) {
+			sections = 2;
+		} else if (MEDIUM.equals(size)) {
+			sections = 180;
+		} else if (LARGE.equals(size)) {
+			sections = 3600;
+		} else {
+			throw new IllegalArgumentException("Unknown document size: " + size);
+		}
+
+		StringBuilder xml = new StringBuilder(HEADER.length() + sections * 600 + FOOTER.length());
+		xml.append(HEADER);
+		for (int i = 1; i <= sections; i++) {
+			xml.append(String.format(SECTION, i, i, i, i));
+		}
+		xml.append(FOOTER);
+		return xml.toString();
+
+	}
+
+
+	/**
+	 * @return Namespace prefix to Namespace uri mappings for the benchmark expressions
+	 */
+	public static HashMap<String,String> getNamespaces() {
+		return new HashMap<String,String>(namespaces);
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.common.SharedConfiguration;
+
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+
+
+/**
+ * Parse and serialize costs on their own: building the tree from a String and from
+ * bytes, and serializing an already built tree.  The evaluate and transform
+ * benchmarks subtract these from their String based entry points.
+ *
+ * @author Darin McBeath
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+	@Param({Documents.SMALL, Documents.MEDIUM, Documents.LARGE})
+	public String size;
+
+	private String content;
+	private byte[] bytes;
+	private DocumentBuilder builder;
+	private XdmNode node;
+	private Serializer serializer;
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setUp() throws SaxonApiException {
+		content = Documents.get(size);
+		bytes = content.getBytes(StandardCharsets.UTF_8);
+		builder = SharedConfiguration.getProcessor(null).newDocumentBuilder();
+		node = ParsedDocument.parse(content).getNode();
+		out = new ByteArrayOutputStream(bytes.length);
+		serializer = SharedConfiguration.getProcessor(null).newSerializer(out);
+		serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+		serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+	}
+
+	@Benchmark
+	public ParsedDocument parseString() throws SaxonApiException {
+		return ParsedDocument.parse(content);
+	}
+
+	@Benchmark
+	public XdmNode parseBytes() throws SaxonApiException {
+		return builder.build(new StreamSource(new ByteArrayInputStream(bytes)));
+	}
+
+	@Benchmark
+	public int serialize() throws SaxonApiException {
+		out.reset();
+		serializer.serializeNode(node);
+		return out.size();
+	}
+
+}
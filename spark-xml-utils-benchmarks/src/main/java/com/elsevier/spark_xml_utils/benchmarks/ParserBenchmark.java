@@ -0,0 +1,86 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.common.ParserPool;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+
+/**
+ * Parse cost for each parser implementation, with and without the ParserPool.  The
+ * factory parameter is the class name of a SAXParserFactory (jdk for the parser built
+ * into the JDK); others can be compared by putting them on the classpath, for example
+ * -p factory=jdk,org.apache.xerces.jaxp.SAXParserFactoryImpl with Xerces.
+ *
+ * @author Darin McBeath
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({Documents.SMALL, Documents.MEDIUM})
+	public String size;
+
+	@Param({"jdk"})
+	public String factory;
+
+	@Param({"true", "false"})
+	public boolean pooled;
+
+	private String content;
+
+	@Setup
+	public void setUp() {
+		content = Documents.get(size);
+		ParserPool.setFactoryClass(factory.equals("jdk") ? "com.sun.org.apache.xerces.internal.jaxp.SAXParserFactoryImpl" : factory);
+		ParserPool.setMaximumSize(pooled ? ParserPool.DEFAULT_MAXIMUM_SIZE : 0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		ParserPool.setFactoryClass(null);
+		ParserPool.setMaximumSize(ParserPool.DEFAULT_MAXIMUM_SIZE);
+	}
+
+	@Benchmark
+	public ParsedDocument parse() throws SaxonApiException {
+		return ParsedDocument.parse(content);
+	}
+
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+import com.elsevier.spark_xml_utils.xslt.XSLTProcessor;
+
+
+/**
+ * Throughput harness over a generated corpus.  Each workload (an XPath filter, an
+ * XQuery extraction and an XSLT transform) is run over the whole corpus at each
+ * thread count, with one processor per thread as a Spark executor would have, and
+ * the results are written as JSON: documents per second, p50/p99/max latency and
+ * the heap high-water mark.
+ * <p>
+ * The heap high-water mark is the sum of the peak usage of the heap memory pools
+ * (reset before each run), so it is an upper bound of the heap actually in use.
+ * The corpus is never held in memory: each thread generates a document (the
+ * generator is deterministic per index) just before processing it.  Generating is
+ * excluded from the latencies, and its time (per thread, on average) is reported
+ * and taken out of the time used for documents per second.  The processors are
+ * created before the clock starts.
+ * <p>
+ * Options (all optional): --documents 10000 --threads 1,2,4,8 --workloads
+ * xpath-filter,xquery-extract,xslt-transform --warmup 1000 --seed 42 --median-size
+ * 40960 --size-sigma 1.0 --maximum-depth 4 --namespace-density 0.2 --output file.json
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ThroughputHarness {
+
+	// Namespaces used by the workloads
+	private static final HashMap<String,String> namespaces = new HashMap<String,String>();
+	static {
+		namespaces.put("xocs", "http://www.elsevier.com/xml/xocs/dtd");
+		namespaces.put("ja", "http://www.elsevier.com/xml/ja/dtd");
+		namespaces.put("ce", "http://www.elsevier.com/xml/common/dtd");
+		namespaces.put("mml", "http://www.w3.org/1998/Math/MathML");
+	}
+
+	private static final String XPATH_FILTER = "/xocs:doc/xocs:meta[xocs:content-type='JL' and xocs:cover-date-year > 2000]";
+
+	private static final String XQUERY_EXTRACT = "for $doc in /xocs:doc "
+			+ "return <record eid='{$doc/xocs:meta/xocs:eid}' year='{$doc/xocs:meta/xocs:cover-date-year}' "
+			+ "sections='{count($doc//ce:section)}' formulas='{count($doc//mml:math)}'>"
+			+ "<title>{string($doc//ja:head/ce:title)}</title>"
+			+ "{for $author in $doc//ce:author return <author>{string($author/ce:surname)}</author>}"
+			+ "</record>";
+
+	private static final String XSLT_TRANSFORM = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform' "
+			+ "xmlns:xocs='http://www.elsevier.com/xml/xocs/dtd' xmlns:ce='http://www.elsevier.com/xml/common/dtd' exclude-result-prefixes='xocs ce'>"
+			+ "<xsl:template match='/'><outline eid='{xocs:doc/xocs:meta/xocs:eid}'><xsl:apply-templates select='//ce:sections/ce:section'/></outline></xsl:template>"
+			+ "<xsl:template match='ce:section'><section id='{@id}' paras='{count(ce:para)}'>"
+			+ "<xsl:value-of select='ce:section-title'/><xsl:apply-templates select='ce:section'/></section></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	/**
+	 * Per thread evaluation of a workload.
+	 */
+	private interface Task {
+		Object run(String content) throws Exception;
+	}
+
+	/**
+	 * Creates the per thread evaluation of a workload.
+	 */
+	private interface Workload {
+		Task newTask() throws Exception;
+	}
+
+	private static final Map<String,Workload> workloads = new LinkedHashMap<String,Workload>();
+	static {
+		workloads.put("xpath-filter", () -> {
+			XPathProcessor proc = XPathProcessor.getInstance(XPATH_FILTER, namespaces);
+			return content -> proc.filter(content);
+		});
+		workloads.put("xquery-extract", () -> {
+			XQueryProcessor proc = XQueryProcessor.getInstance(XQUERY_EXTRACT, namespaces);
+			return content -> proc.evaluate(content);
+		});
+		workloads.put("xslt-transform", () -> {
+			XSLTProcessor proc = XSLTProcessor.getInstance(XSLT_TRANSFORM);
+			return content -> proc.transform(content);
+		});
+	}
+
+
+	private ThroughputHarness() {
+	}
+
+
+	/**
+	 * Run the harness.
+	 *
+	 * @param args options
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		Map<String,String> options = new HashMap<String,String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+
+		int documents = Integer.parseInt(option(options, "documents", "10000"));
+		int warmup = Integer.parseInt(option(options, "warmup", "1000"));
+		TreeSet<Integer> threadCounts = new TreeSet<Integer>();
+		for (String threads : option(options, "threads", "1,2,4," + Runtime.getRuntime().availableProcessors()).split(",")) {
+			threadCounts.add(Integer.parseInt(threads.trim()));
+		}
+		List<String> selected = Arrays.asList(option(options, "workloads", String.join(",", workloads.keySet())).split(","));
+
+		CorpusGenerator generator = CorpusGenerator.getInstance(Long.parseLong(option(options, "seed", String.valueOf(CorpusGenerator.DEFAULT_SEED))));
+		generator.setMedianSize(Integer.parseInt(option(options, "median-size", String.valueOf(CorpusGenerator.DEFAULT_MEDIAN_SIZE))));
+		generator.setSizeSigma(Double.parseDouble(option(options, "size-sigma", String.valueOf(CorpusGenerator.DEFAULT_SIZE_SIGMA))));
+		generator.setMaximumDepth(Integer.parseInt(option(options, "maximum-depth", String.valueOf(CorpusGenerator.DEFAULT_MAXIMUM_DEPTH))));
+		generator.setNamespaceDensity(Double.parseDouble(option(options, "namespace-density", String.valueOf(CorpusGenerator.DEFAULT_NAMESPACE_DENSITY))));
+		// The corpus settings, with the document count added
+		String settings = generator.toJson();
+		StringBuilder json = new StringBuilder();
+		json.append("{\"version\":\"").append(libraryVersion()).append('"')
+			.append(",\"java\":\"").append(System.getProperty("java.version")).append('"')
+			.append(",\"availableProcessors\":").append(Runtime.getRuntime().availableProcessors())
+			.append(",\"maxHeapBytes\":").append(Runtime.getRuntime().maxMemory())
+			.append(",\"corpus\":").append(settings, 0, settings.length() - 1)
+			.append(",\"documents\":").append(documents).append('}')
+			.append(",\"results\":[");
+
+		boolean first = true;
+		for (String name : selected) {
+			Workload workload = workloads.get(name.trim());
+			if (workload == null) {
+				throw new IllegalArgumentException("Unknown workload: " + name);
+			}
+			run(workload, generator, Math.min(warmup, documents), 1);
+			for (int threads : threadCounts) {
+				System.err.println("Running " + name.trim() + " with " + threads + " thread(s)");
+				if (!first) {
+					json.append(',');
+				}
+				first = false;
+				json.append("{\"workload\":\"").append(name.trim()).append("\",\"threads\":").append(threads).append(',')
+					.append(run(workload, generator, documents, threads)).append('}');
+			}
+		}
+		json.append("]}");
+
+		String output = options.get("output");
+		if (output == null) {
+			System.out.println(json);
+		} else {
+			Files.write(Paths.get(output), json.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+	}
+
+
+	/**
+	 * Run a workload over the corpus.
+	 *
+	 * @param workload workload
+	 * @param generator generates the documents
+	 * @param documents number of documents (the documents 0 to documents - 1)
+	 * @param threads number of threads
+	 * @return measurements (the members of a JSON object)
+	 * @throws Exception
+	 */
+	private static String run(final Workload workload, final CorpusGenerator generator, final int documents, int threads) throws Exception {
+
+		// The processors are created before the clock starts
+		List<Task> tasks = new ArrayList<Task>(threads);
+		for (int t = 0; t < threads; t++) {
+			tasks.add(workload.newTask());
+		}
+
+		System.gc();
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pool.resetPeakUsage();
+				pools.add(pool);
+			}
+		}
+
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicLong characters = new AtomicLong();
+		final AtomicLong generateNanos = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+		long start = System.nanoTime();
+		for (final Task task : tasks) {
+			futures.add(executor.submit(() -> {
+				long[] latencies = new long[documents];
+				int count = 0;
+				long generating = 0;
+				long read = 0;
+				for (int i = next.getAndIncrement(); i < documents; i = next.getAndIncrement()) {
+					long generated = System.nanoTime();
+					String content = generator.generate((long) i);
+					read += content.length();
+					long begin = System.nanoTime();
+					generating += begin - generated;
+					try {
+						task.run(content);
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+					latencies[count++] = System.nanoTime() - begin;
+				}
+				characters.addAndGet(read);
+				generateNanos.addAndGet(generating);
+				return Arrays.copyOf(latencies, count);
+			}));
+		}
+		long[] latencies = new long[documents];
+		int count = 0;
+		for (Future<long[]> future : futures) {
+			long[] part = future.get();
+			System.arraycopy(part, 0, latencies, count, part.length);
+			count += part.length;
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		long heapPeak = 0;
+		for (MemoryPoolMXBean pool : pools) {
+			heapPeak += pool.getPeakUsage().getUsed();
+		}
+
+		Arrays.sort(latencies, 0, count);
+		double seconds = elapsed / 1e9;
+		double generateSeconds = generateNanos.get() / 1e9 / threads;
+		return "\"documents\":" + count
+				+ ",\"characters\":" + characters.get()
+				+ ",\"errors\":" + errors.get()
+				+ ",\"seconds\":" + String.format("%.3f", seconds)
+				+ ",\"generateSeconds\":" + String.format("%.3f", generateSeconds)
+				+ ",\"documentsPerSecond\":" + String.format("%.1f", count / Math.max(seconds - generateSeconds, 1e-9))
+				+ ",\"latencyMicros\":{\"p50\":" + percentile(latencies, count, 0.50) / 1000
+				+ ",\"p99\":" + percentile(latencies, count, 0.99) / 1000
+				+ ",\"max\":" + (count == 0 ? 0 : latencies[count - 1] / 1000) + "}"
+				+ ",\"heapPeakBytes\":" + heapPeak;
+
+	}
+
+
+	/**
+	 * @param sorted sorted values
+	 * @param count number of values
+	 * @param fraction percentile (0 to 1)
+	 * @return the value at the percentile (nearest rank)
+	 */
+	private static long percentile(long[] sorted, int count, double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(fraction * count);
+		return sorted[Math.max(0, Math.min(count, rank) - 1)];
+	}
+
+
+	/**
+	 * @param options options
+	 * @param name option name
+	 * @param defaultValue value when the option is missing
+	 * @return option value
+	 */
+	private static String option(Map<String,String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+
+	/**
+	 * @return version of spark-xml-utils on the class path (from its maven pom.properties)
+	 */
+	private static String libraryVersion() {
+		try (InputStream in = ThroughputHarness.class.getResourceAsStream("/META-INF/maven/com.elsevier/spark-xml-utils/pom.properties")) {
+			if (in != null) {
+				Properties properties = new Properties();
+				properties.load(in);
+				return properties.getProperty("version", "unknown");
+			}
+		} catch (IOException e) {
+			// Reported as unknown
+		}
+		return "unknown";
+	}
+
+}
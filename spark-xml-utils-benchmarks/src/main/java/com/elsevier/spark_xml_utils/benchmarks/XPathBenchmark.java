@@ -0,0 +1,92 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+
+/**
+ * XPathProcessor filter and evaluate.  The String variants measure parse, evaluate
+ * and serialize together; the ParsedDocument variants leave out the parse, and
+ * filter (which serializes nothing) leaves out the serialize.
+ *
+ * @author Darin McBeath
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XPathBenchmark {
+
+	@Param({Documents.SMALL, Documents.MEDIUM, Documents.LARGE})
+	public String size;
+
+	private String content;
+	private ParsedDocument parsed;
+	private XPathProcessor filterProc;
+	private XPathProcessor evaluateProc;
+
+	@Setup
+	public void setUp() throws SaxonApiException, XPathException {
+		content = Documents.get(size);
+		parsed = ParsedDocument.parse(content);
+		filterProc = XPathProcessor.getInstance("/xocs:doc/xocs:meta[xocs:content-type='JL' and xocs:cover-date-year > 1990]", Documents.getNamespaces());
+		evaluateProc = XPathProcessor.getInstance("/xocs:doc//ce:section[ce:section-title]/ce:para[1]", Documents.getNamespaces());
+	}
+
+	@Benchmark
+	public boolean filterString() throws XPathException {
+		return filterProc.filter(content);
+	}
+
+	@Benchmark
+	public boolean filterParsed() throws XPathException {
+		return filterProc.filter(parsed);
+	}
+
+	@Benchmark
+	public String evaluateString() throws XPathException {
+		return evaluateProc.evaluate(content);
+	}
+
+	@Benchmark
+	public String evaluateParsed() throws XPathException {
+		return evaluateProc.evaluate(parsed);
+	}
+
+}
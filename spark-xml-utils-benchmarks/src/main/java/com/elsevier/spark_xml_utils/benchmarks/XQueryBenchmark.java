@@ -0,0 +1,82 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.xquery.XQueryException;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+
+/**
+ * XQueryProcessor evaluate from a String (parse, evaluate and serialize) and from a
+ * ParsedDocument (evaluate and serialize).  The query builds a small record, so
+ * serialization is a minor part of the ParsedDocument cost.
+ *
+ * @author Darin McBeath
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XQueryBenchmark {
+
+	@Param({Documents.SMALL, Documents.MEDIUM, Documents.LARGE})
+	public String size;
+
+	private String content;
+	private ParsedDocument parsed;
+	private XQueryProcessor proc;
+
+	@Setup
+	public void setUp() throws SaxonApiException, XQueryException {
+		content = Documents.get(size);
+		parsed = ParsedDocument.parse(content);
+		proc = XQueryProcessor.getInstance("for $doc in /xocs:doc "
+				+ "return <record eid='{$doc/xocs:meta/xocs:eid}' sections='{count($doc//ce:section)}'>"
+				+ "{string-join($doc//ce:author/ce:surname, ';')}</record>", Documents.getNamespaces());
+	}
+
+	@Benchmark
+	public String evaluateString() throws XQueryException {
+		return proc.evaluate(content);
+	}
+
+	@Benchmark
+	public String evaluateParsed() throws XQueryException {
+		return proc.evaluate(parsed);
+	}
+
+}
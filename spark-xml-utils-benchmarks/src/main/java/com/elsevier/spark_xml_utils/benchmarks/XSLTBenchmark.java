@@ -0,0 +1,90 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.xslt.XSLTException;
+import com.elsevier.spark_xml_utils.xslt.XSLTProcessor;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+
+/**
+ * XSLTProcessor transform from a String (parse, transform and serialize) and from a
+ * ParsedDocument (transform and serialize).  The stylesheet copies the meta and
+ * section titles, so the output grows with the document.
+ *
+ * @author Darin McBeath
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XSLTBenchmark {
+
+	private static final String STYLESHEET = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform' "
+			+ "xmlns:xocs='http://www.elsevier.com/xml/xocs/dtd' xmlns:ce='http://www.elsevier.com/xml/common/dtd' exclude-result-prefixes='xocs ce'>"
+			+ "<xsl:template match='/'>"
+			+ "<article eid='{xocs:doc/xocs:meta/xocs:eid}'>"
+			+ "<xsl:copy-of select='xocs:doc/xocs:meta/xocs:srctitle'/>"
+			+ "<xsl:for-each select='//ce:section'><section id='{@id}'><xsl:value-of select='ce:section-title'/></section></xsl:for-each>"
+			+ "</article>"
+			+ "</xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	@Param({Documents.SMALL, Documents.MEDIUM, Documents.LARGE})
+	public String size;
+
+	private String content;
+	private ParsedDocument parsed;
+	private XSLTProcessor proc;
+
+	@Setup
+	public void setUp() throws SaxonApiException, XSLTException {
+		content = Documents.get(size);
+		parsed = ParsedDocument.parse(content);
+		proc = XSLTProcessor.getInstance(STYLESHEET);
+	}
+
+	@Benchmark
+	public String transformString() throws XSLTException {
+		return proc.transform(content);
+	}
+
+	@Benchmark
+	public String transformParsed() throws XSLTException {
+		return proc.transform(parsed);
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.sql;
+
+import java.io.Serializable;
+
+import org.apache.spark.SparkContext;
+import org.apache.spark.util.LongAccumulator;
+
+
+/**
+ * Accumulators for one SQL function: how many rows it was called for, how many of those
+ * failed (and returned null), and the time spent in it.  The values are only reliable on
+ * the driver once an action has completed.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class FunctionMetrics implements Serializable {
+
+	private static final long serialVersionUID = -2184629061371523907L;
+
+	// Member variables
+	private final String name;
+	private final LongAccumulator calls;
+	private final LongAccumulator errors;
+	private final LongAccumulator nanos;
+
+
+	/**
+	 * Create an instance of FunctionMetrics.
+	 *
+	 * @param name name of the function
+	 * @param sc SparkContext the accumulators are registered with
+	 */
+	FunctionMetrics(String name, SparkContext sc) {
+
+		this.name = name;
+		this.calls = sc.longAccumulator(name + ".calls");
+		this.errors = sc.longAccumulator(name + ".errors");
+		this.nanos = sc.longAccumulator(name + ".nanos");
+
+	}
+
+
+	/**
+	 * Record one call.
+	 *
+	 * @param error true if the call failed
+	 * @param elapsedNanos time spent in the call
+	 */
+	void add(boolean error, long elapsedNanos) {
+
+		calls.add(1);
+		if (error) {
+			errors.add(1);
+		}
+		nanos.add(elapsedNanos);
+
+	}
+
+
+	/**
+	 * @return name of the function
+	 */
+	public String getName() {
+		return name;
+	}
+
+
+	/**
+	 * @return number of non-null rows the function was called for
+	 */
+	public LongAccumulator getCalls() {
+		return calls;
+	}
+
+
+	/**
+	 * @return number of calls that failed (and returned null)
+	 */
+	public LongAccumulator getErrors() {
+		return errors;
+	}
+
+
+	/**
+	 * @return time spent in the function
+	 */
+	public LongAccumulator getNanos() {
+		return nanos;
+	}
+
+
+	@Override
+	public String toString() {
+		return "FunctionMetrics[name=" + name + ", calls=" + calls.value() + ", errors=" + errors.value() + ", ms=" + nanos.value() / 1000000 + "]";
+	}
+
+}
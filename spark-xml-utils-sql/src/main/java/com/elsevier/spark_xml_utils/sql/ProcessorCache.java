@@ -0,0 +1,198 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.sql;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import com.elsevier.spark_xml_utils.common.ConcurrentLruCache;
+import com.elsevier.spark_xml_utils.common.EvaluatorPool;
+import com.elsevier.spark_xml_utils.xpath.ConcurrentXPathProcessor;
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathMultiProcessor;
+import com.elsevier.spark_xml_utils.xquery.ConcurrentXQueryProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryException;
+import com.elsevier.spark_xml_utils.xslt.ConcurrentXSLTProcessor;
+import com.elsevier.spark_xml_utils.xslt.XSLTException;
+
+
+/**
+ * Executor-wide cache of the processors used by the SQL functions.  Every task running in
+ * the executor JVM shares the same processors, so an expression is compiled (and its
+ * evaluator pool created) once per executor instead of once per task.  The processors
+ * are thread-safe, so concurrent tasks can use the same one.  The lookups happen for
+ * every row, so the processors are keyed by the expression (and mappings) themselves
+ * rather than by a digest of them.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ProcessorCache {
+
+	// Default number of processors (of each kind) kept
+	public static final int DEFAULT_MAXIMUM_SIZE = 256;
+
+	// Cached processors
+	private static final ConcurrentLruCache<Key,ConcurrentXPathProcessor> xpathProcessors = new ConcurrentLruCache<Key,ConcurrentXPathProcessor>(DEFAULT_MAXIMUM_SIZE);
+	private static final ConcurrentLruCache<Key,EvaluatorPool<XPathMultiProcessor>> xpathMultiProcessors = new ConcurrentLruCache<Key,EvaluatorPool<XPathMultiProcessor>>(DEFAULT_MAXIMUM_SIZE);
+	private static final ConcurrentLruCache<Key,ConcurrentXQueryProcessor> xqueryProcessors = new ConcurrentLruCache<Key,ConcurrentXQueryProcessor>(DEFAULT_MAXIMUM_SIZE);
+	private static final ConcurrentLruCache<Key,ConcurrentXSLTProcessor> xsltProcessors = new ConcurrentLruCache<Key,ConcurrentXSLTProcessor>(DEFAULT_MAXIMUM_SIZE);
+
+
+	private ProcessorCache() {
+	}
+
+
+	/**
+	 * @param xPathExpression XPath expression
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @return shared ConcurrentXPathProcessor for the expression
+	 * @throws XPathException
+	 */
+	public static ConcurrentXPathProcessor getXPathProcessor(final String xPathExpression, final HashMap<String,String> namespaceMappings) throws XPathException {
+
+		return xpathProcessors.get(new Key(xPathExpression, namespaceMappings), () -> ConcurrentXPathProcessor.getInstance(xPathExpression, namespaceMappings));
+
+	}
+
+
+	/**
+	 * Borrow an XPathMultiProcessor for the expressions.  XPathMultiProcessor is not
+	 * thread-safe, so each expression set has a pool of them.  The processor must be
+	 * returned with releaseXPathMultiProcessor.
+	 *
+	 * @param xPathExpressions XPath expressions (named by their position)
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @return XPathMultiProcessor for the expressions
+	 * @throws XPathException
+	 */
+	public static XPathMultiProcessor borrowXPathMultiProcessor(final String[] xPathExpressions, final HashMap<String,String> namespaceMappings) throws XPathException {
+
+		return getXPathMultiPool(xPathExpressions, namespaceMappings).borrow(() -> {
+			LinkedHashMap<String,String> expressions = new LinkedHashMap<String,String>();
+			for (int i = 0; i < xPathExpressions.length; i++) {
+				expressions.put(Integer.toString(i), xPathExpressions[i]);
+			}
+			return XPathMultiProcessor.getInstance(expressions, namespaceMappings);
+		});
+
+	}
+
+
+	/**
+	 * Return an XPathMultiProcessor borrowed with borrowXPathMultiProcessor.
+	 *
+	 * @param xPathExpressions XPath expressions the processor was borrowed for
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param processor XPathMultiProcessor to return
+	 */
+	public static void releaseXPathMultiProcessor(String[] xPathExpressions, HashMap<String,String> namespaceMappings, XPathMultiProcessor processor) {
+
+		getXPathMultiPool(xPathExpressions, namespaceMappings).release(processor);
+
+	}
+
+
+	/**
+	 * @param xQueryExpression XQuery expression
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @return shared ConcurrentXQueryProcessor for the expression
+	 * @throws XQueryException
+	 */
+	public static ConcurrentXQueryProcessor getXQueryProcessor(final String xQueryExpression, final HashMap<String,String> namespaceMappings) throws XQueryException {
+
+		return xqueryProcessors.get(new Key(xQueryExpression, namespaceMappings), () -> ConcurrentXQueryProcessor.getInstance(xQueryExpression, namespaceMappings));
+
+	}
+
+
+	/**
+	 * @param stylesheet XSLT stylesheet
+	 * @return shared ConcurrentXSLTProcessor for the stylesheet
+	 * @throws XSLTException
+	 */
+	public static ConcurrentXSLTProcessor getXSLTProcessor(final String stylesheet) throws XSLTException {
+
+		return xsltProcessors.get(new Key(stylesheet, null), () -> ConcurrentXSLTProcessor.getInstance(stylesheet));
+
+	}
+
+
+	/**
+	 * Drop every cached processor (for example after changing the resources a stylesheet uses).
+	 */
+	public static void clear() {
+
+		xpathProcessors.clear();
+		xpathMultiProcessors.clear();
+		xqueryProcessors.clear();
+		xsltProcessors.clear();
+
+	}
+
+
+	/**
+	 * @param xPathExpressions XPath expressions
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @return pool of XPathMultiProcessors for the expressions
+	 */
+	private static EvaluatorPool<XPathMultiProcessor> getXPathMultiPool(String[] xPathExpressions, HashMap<String,String> namespaceMappings) {
+
+		// The list compares expression by expression, so no two lists of expressions share a key
+		return xpathMultiProcessors.get(new Key(Arrays.asList(xPathExpressions), namespaceMappings), () -> new EvaluatorPool<XPathMultiProcessor>());
+
+	}
+
+
+	/**
+	 * Cache key made of the source (an expression, a stylesheet or a list of expressions)
+	 * and the namespace mappings, compared as they are (no digest is computed).
+	 */
+	private static final class Key {
+
+		private final Object source;
+		private final HashMap<String,String> namespaceMappings;
+		private final int hash;
+
+		private Key(Object source, HashMap<String,String> namespaceMappings) {
+			this.source = source;
+			this.namespaceMappings = namespaceMappings;
+			this.hash = 31 * source.hashCode() + Objects.hashCode(namespaceMappings);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && source.equals(other.source) && Objects.equals(namespaceMappings, other.namespaceMappings);
+		}
+
+	}
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.sql;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.api.java.UDF2;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.DataTypes;
+
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+import com.elsevier.spark_xml_utils.common.ErrorReporter;
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathMultiProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryException;
+import com.elsevier.spark_xml_utils.xslt.XSLTException;
+
+
+/**
+ * Spark SQL functions backed by the XPath, XQuery and XSLT processors.  Once registered,
+ * the functions can be used from SQL or (through the static Column methods) from the
+ * DataFrame API:
+ * <ul>
+ * <li>xpath_filter(xml, xpath) - boolean</li>
+ * <li>xpath_eval(xml, xpath) - string</li>
+ * <li>xpath_eval_multi(xml, array of xpath) - array&lt;string&gt; (the document is parsed once)</li>
+ * <li>xquery_eval(xml, xquery) - string</li>
+ * <li>xslt_transform(xml, stylesheet) - string</li>
+ * </ul>
+ * The processors come from the executor-wide ProcessorCache, so an expression is compiled
+ * once per executor.  A null argument returns null.  A row that can't be processed returns
+ * null and is counted as an error in the function's metrics.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class XmlFunctions {
+
+	// Logger
+	private static Log log = LogFactory.getLog(XmlFunctions.class);
+
+	// Function names
+	public static final String XPATH_FILTER = "xpath_filter";
+	public static final String XPATH_EVAL = "xpath_eval";
+	public static final String XPATH_EVAL_MULTI = "xpath_eval_multi";
+	public static final String XQUERY_EVAL = "xquery_eval";
+	public static final String XSLT_TRANSFORM = "xslt_transform";
+
+	// Member variables
+	private final LinkedHashMap<String,FunctionMetrics> metrics = new LinkedHashMap<String,FunctionMetrics>();
+
+
+	private XmlFunctions() {
+	}
+
+
+	/**
+	 * Register the functions with the SparkSession.
+	 *
+	 * @param spark SparkSession
+	 * @return the registered functions (for their metrics)
+	 */
+	public static XmlFunctions register(SparkSession spark) {
+
+		return register(spark, null);
+
+	}
+
+
+	/**
+	 * Register the functions with the SparkSession.
+	 *
+	 * @param spark SparkSession
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings used by the XPath and XQuery expressions
+	 * @return the registered functions (for their metrics)
+	 */
+	public static XmlFunctions register(SparkSession spark, final HashMap<String,String> namespaceMappings) {
+
+		XmlFunctions xmlFunctions = new XmlFunctions();
+
+		final FunctionMetrics xpathFilter = xmlFunctions.newMetrics(spark, XPATH_FILTER);
+		spark.udf().register(XPATH_FILTER, new XmlFunction<String,Boolean>(xpathFilter) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected Boolean apply(String xml, String xpath) throws Exception {
+				return ProcessorCache.getXPathProcessor(xpath, namespaceMappings).filter(xml);
+			}
+		}, DataTypes.BooleanType);
+
+		final FunctionMetrics xpathEval = xmlFunctions.newMetrics(spark, XPATH_EVAL);
+		spark.udf().register(XPATH_EVAL, new XmlFunction<String,String>(xpathEval) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected String apply(String xml, String xpath) throws Exception {
+				return ProcessorCache.getXPathProcessor(xpath, namespaceMappings).evaluate(xml);
+			}
+		}, DataTypes.StringType);
+
+		final FunctionMetrics xpathEvalMulti = xmlFunctions.newMetrics(spark, XPATH_EVAL_MULTI);
+		spark.udf().register(XPATH_EVAL_MULTI, new XmlFunction<Seq<String>,String[]>(xpathEvalMulti) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected String[] apply(String xml, Seq<String> xpaths) throws Exception {
+				List<String> list = JavaConverters.seqAsJavaListConverter(xpaths).asJava();
+				String[] expressions = list.toArray(new String[list.size()]);
+				XPathMultiProcessor proc = ProcessorCache.borrowXPathMultiProcessor(expressions, namespaceMappings);
+				try {
+					return proc.evaluateToArray(xml);
+				} finally {
+					ProcessorCache.releaseXPathMultiProcessor(expressions, namespaceMappings, proc);
+				}
+			}
+		}, DataTypes.createArrayType(DataTypes.StringType));
+
+		final FunctionMetrics xqueryEval = xmlFunctions.newMetrics(spark, XQUERY_EVAL);
+		spark.udf().register(XQUERY_EVAL, new XmlFunction<String,String>(xqueryEval) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected String apply(String xml, String xquery) throws Exception {
+				return ProcessorCache.getXQueryProcessor(xquery, namespaceMappings).evaluate(xml);
+			}
+		}, DataTypes.StringType);
+
+		final FunctionMetrics xsltTransform = xmlFunctions.newMetrics(spark, XSLT_TRANSFORM);
+		spark.udf().register(XSLT_TRANSFORM, new XmlFunction<String,String>(xsltTransform) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected String apply(String xml, String stylesheet) throws Exception {
+				return ProcessorCache.getXSLTProcessor(stylesheet).transform(xml);
+			}
+		}, DataTypes.StringType);
+
+		return xmlFunctions;
+
+	}
+
+
+	/**
+	 * @param name function name (for example xpath_filter)
+	 * @return metrics for the function (null if there is no such function)
+	 */
+	public FunctionMetrics getMetrics(String name) {
+		return metrics.get(name);
+	}
+
+
+	/**
+	 * @return metrics for every function (in registration order)
+	 */
+	public Map<String,FunctionMetrics> getMetrics() {
+		return metrics;
+	}
+
+
+	/**
+	 * @param xml column with the xml
+	 * @param xPathExpression XPath expression
+	 * @return boolean column
+	 */
+	public static Column xpathFilter(Column xml, String xPathExpression) {
+		return functions.callUDF(XPATH_FILTER, xml, functions.lit(xPathExpression));
+	}
+
+
+	/**
+	 * @param xml column with the xml
+	 * @param xPathExpression XPath expression
+	 * @return string column
+	 */
+	public static Column xpathEval(Column xml, String xPathExpression) {
+		return functions.callUDF(XPATH_EVAL, xml, functions.lit(xPathExpression));
+	}
+
+
+	/**
+	 * @param xml column with the xml
+	 * @param xPathExpressions XPath expressions
+	 * @return array&lt;string&gt; column (one element per expression)
+	 */
+	public static Column xpathEvalMulti(Column xml, String... xPathExpressions) {
+		Column[] expressions = new Column[xPathExpressions.length];
+		for (int i = 0; i < xPathExpressions.length; i++) {
+			expressions[i] = functions.lit(xPathExpressions[i]);
+		}
+		return functions.callUDF(XPATH_EVAL_MULTI, xml, functions.array(expressions));
+	}
+
+
+	/**
+	 * @param xml column with the xml
+	 * @param xQueryExpression XQuery expression
+	 * @return string column
+	 */
+	public static Column xqueryEval(Column xml, String xQueryExpression) {
+		return functions.callUDF(XQUERY_EVAL, xml, functions.lit(xQueryExpression));
+	}
+
+
+	/**
+	 * @param xml column with the xml
+	 * @param stylesheet XSLT stylesheet
+	 * @return string column
+	 */
+	public static Column xsltTransform(Column xml, String stylesheet) {
+		return functions.callUDF(XSLT_TRANSFORM, xml, functions.lit(stylesheet));
+	}
+
+
+	/**
+	 * @param spark SparkSession
+	 * @param name function name
+	 * @return metrics registered for the function
+	 */
+	private FunctionMetrics newMetrics(SparkSession spark, String name) {
+
+		FunctionMetrics functionMetrics = new FunctionMetrics(name, spark.sparkContext());
+		metrics.put(name, functionMetrics);
+		return functionMetrics;
+
+	}
+
+
+	/**
+	 * A function of the xml and an expression.  Null arguments return null, and failures are
+	 * counted, logged as warnings (see ErrorReporter) and return null.
+	 *
+	 * @param <A> expression type
+	 * @param <R> result type
+	 */
+	private static abstract class XmlFunction<A,R> implements UDF2<String,A,R> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FunctionMetrics metrics;
+		private transient ErrorReporter errors = null;
+
+		private XmlFunction(FunctionMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		private static ErrorCause causeOf(Exception e) {
+			if (e instanceof XPathException) {
+				return ((XPathException) e).getErrorCause();
+			} else if (e instanceof XQueryException) {
+				return ((XQueryException) e).getErrorCause();
+			} else if (e instanceof XSLTException) {
+				return ((XSLTException) e).getErrorCause();
+			}
+			return ErrorCause.classify(e);
+		}
+
+		private ErrorReporter getErrorReporter() {
+			if (errors == null) {
+				errors = ErrorReporter.getWarningInstance(log, metrics.getName(), null);
+			}
+			return errors;
+		}
+
+		protected abstract R apply(String xml, A expression) throws Exception;
+
+		@Override
+		public R call(String xml, A expression) {
+
+			if (xml == null || expression == null) {
+				return null;
+			}
+
+			long start = System.nanoTime();
+			try {
+				R result = apply(xml, expression);
+				metrics.add(false, System.nanoTime() - start);
+				return result;
+			} catch (Exception e) {
+				getErrorReporter().report(e, causeOf(e));
+				metrics.add(true, System.nanoTime() - start);
+				return null;
+			}
+
+		}
+
+	}
+
+}
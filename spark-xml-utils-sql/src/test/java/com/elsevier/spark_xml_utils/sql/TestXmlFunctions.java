@@ -0,0 +1,150 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.sql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.ConcurrentXPathProcessor;
+import com.elsevier.spark_xml_utils.xpath.XPathMultiProcessor;
+
+public class TestXmlFunctions {
+
+	private static SparkSession spark = null;
+	private static XmlFunctions xmlFunctions = null;
+
+	private static String stylesheet = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+			+ "<xsl:output method='text'/>"
+			+ "<xsl:template match='/'><xsl:value-of select='upper-case(/books/book/title)'/></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	@BeforeAll
+	public static void setUp() {
+		spark = SparkSession.builder().master("local[2]").appName("TestXmlFunctions").config("spark.ui.enabled", "false").getOrCreate();
+		xmlFunctions = XmlFunctions.register(spark);
+		List<String> books = Arrays.asList(
+				"<books><book><title>Alpha</title><year>2005</year></book></books>",
+				"<books><book><title>Beta</title><year>2010</year></book></books>",
+				"<books><book><title>Gamma</title><year>2005</year></book></books>",
+				"<books><unclosed>");
+		spark.createDataset(books, Encoders.STRING()).toDF("xml").createOrReplaceTempView("books");
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		spark.stop();
+	}
+
+	@Test
+	public void testSql() {
+		try {
+			Dataset<Row> result = spark.sql("select xpath_eval(xml, 'string(/books/book/title)') as title, "
+					+ "xquery_eval(xml, 'string(/books/book/year)') as year "
+					+ "from books where xpath_filter(xml, '/books/book[year=2005]') order by title");
+			assertEquals(DataTypes.StringType, result.schema().apply("title").dataType(), "Should be a string column.");
+			List<Row> rows = result.collectAsList();
+			assertEquals(2, rows.size(), "Should match two books.");
+			assertEquals("Alpha", rows.get(0).getString(0), "Should match the title.");
+			assertEquals("2005", rows.get(0).getString(1), "Should match the year.");
+			assertEquals("Gamma", rows.get(1).getString(0), "Should match the title.");
+
+			Row multi = spark.sql("select xpath_eval_multi(xml, array('string(/books/book/title)', 'string(/books/book/year)')) as fields "
+					+ "from books where xml like '%Beta%'").first();
+			assertEquals(DataTypes.createArrayType(DataTypes.StringType), multi.schema().apply("fields").dataType(), "Should be an array<string> column.");
+			assertEquals(Arrays.asList("Beta", "2010"), multi.getList(0), "Should match each expression.");
+
+			// The unclosed document returns null and is counted as an error
+			List<Row> failed = spark.sql("select xpath_eval(xml, 'string(/books/book/title)') from books where xml like '%unclosed%'").collectAsList();
+			assertEquals(null, failed.get(0).get(0), "Should return null.");
+			assertTrue(xmlFunctions.getMetrics(XmlFunctions.XPATH_EVAL).getErrors().value() >= 1, "Should count the error.");
+			assertTrue(xmlFunctions.getMetrics(XmlFunctions.XPATH_FILTER).getCalls().value() >= 4, "Should count the calls.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testColumns() {
+		try {
+			Dataset<Row> books = spark.table("books");
+			List<Row> rows = books.filter(XmlFunctions.xpathFilter(books.col("xml"), "/books/book[title='Beta']"))
+					.select(XmlFunctions.xsltTransform(books.col("xml"), stylesheet),
+							XmlFunctions.xpathEvalMulti(books.col("xml"), "string(/books/book/year)", "count(//book)"))
+					.collectAsList();
+			assertEquals(1, rows.size(), "Should match one book.");
+			assertEquals("BETA", rows.get(0).getString(0), "Should match the transformed title.");
+			assertEquals(Arrays.asList("2010", "1"), rows.get(0).getList(1), "Should match each expression.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testMultiProcessorKeys() {
+		try {
+			// One expression that reads like two (in a naive key) must not share their pool
+			String[] one = new String[] { "'a', 1=1" };
+			String[] two = new String[] { "'a'", "1" };
+			XPathMultiProcessor proc = ProcessorCache.borrowXPathMultiProcessor(one, null);
+			ProcessorCache.releaseXPathMultiProcessor(one, null, proc);
+			XPathMultiProcessor other = ProcessorCache.borrowXPathMultiProcessor(two, null);
+			ProcessorCache.releaseXPathMultiProcessor(two, null, other);
+			assertNotSame(proc, other, "Should use a pool for each list of expressions.");
+			assertEquals(2, other.evaluateToArray("<a/>").length, "Should evaluate both expressions.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testProcessorKeys() {
+		try {
+			// Each row brings its own copy of the expression
+			HashMap<String,String> mappings = new HashMap<String,String>();
+			mappings.put("b", "urn:books");
+			ConcurrentXPathProcessor proc = ProcessorCache.getXPathProcessor(new String("count(/b:books)"), mappings);
+			assertSame(proc, ProcessorCache.getXPathProcessor(new String("count(/b:books)"), new HashMap<String,String>(mappings)), "Should reuse the processor for an equal expression.");
+			mappings.put("b", "urn:other");
+			assertNotSame(proc, ProcessorCache.getXPathProcessor("count(/b:books)", mappings), "Should use a processor for each namespace mapping.");
+			assertSame(ProcessorCache.getXSLTProcessor(new String(stylesheet)), ProcessorCache.getXSLTProcessor(new String(stylesheet)), "Should reuse the processor for an equal stylesheet.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.xml.transform.Source;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Lazy iterator over the results of applying a processor to a batch of records (typically
+ * the records of a Spark partition passed to mapPartitions).  Only one record is read ahead
+ * of the one being returned, so the batch is never materialized.  While a record is being
+ * processed on the calling thread the next one is parsed on a helper thread.  The records
+ * themselves are always read on the calling thread, and the next record is only read once
+ * the previous one has been parsed, so a record reader that reuses its buffers (a Hadoop
+ * Text or a byte[]) can be used as is.
+ * <p>
+ * A record that can't be parsed or processed is returned as an error result rather than
+ * ending the batch.  The content of a record can be a String (or other CharSequence), a
+ * byte[], a ByteBuffer, a RecordSplitter.Record or a ParsedDocument.  A byte[] or
+ * ByteBuffer holding a document encoded by BinaryDocumentWriter is decoded rather than
+ * parsed.
+ *
+ * @author Darin McBeath
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public abstract class BatchIterator<K,V> implements Iterator<BatchResult<K,V>> {
+
+	// Logger
+	private static Log log = LogFactory.getLog(BatchIterator.class);
+
+	// Reports the records that couldn't be parsed
+	private static final ErrorReporter errors = ErrorReporter.getInstance(log, "batch", null);
+
+	// Helper threads used to parse the next record (shared by all batches in the JVM)
+	private static final AtomicInteger threadCount = new AtomicInteger();
+	private static final ExecutorService parsers = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "spark-xml-utils-parser-" + threadCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Member variables
+	private final Iterator<? extends Entry<K,?>> records;
+	private final HashMap<String,Object> featureMappings;
+	private final BatchStatistics statistics = new BatchStatistics();
+	private boolean pipelined = true;
+	private Consumer<BatchStatistics> completionListener = null;
+	private boolean started = false;
+	private boolean completed = false;
+	private long startNanos = 0;
+	private K pendingKey = null;
+	private FutureTask<Prepared> pending = null;
+
+
+	/**
+	 * Create an instance of BatchIterator.
+	 *
+	 * @param records key and content of each record
+	 * @param featureMappings Processor feature mappings used to parse the content
+	 */
+	protected BatchIterator(Iterator<? extends Entry<K,?>> records, HashMap<String,Object> featureMappings) {
+
+		this.records = records;
+		this.featureMappings = featureMappings;
+
+	}
+
+
+	/**
+	 * Parse the next record on a helper thread while the current one is processed (the
+	 * default), or parse each record on the calling thread when it is requested.  Must be
+	 * set before the first record is requested.
+	 *
+	 * @param pipelined TRUE to parse the next record on a helper thread
+	 * @return this BatchIterator
+	 */
+	public BatchIterator<K,V> setPipelined(boolean pipelined) {
+
+		if (started) {
+			throw new IllegalStateException("The batch has already started");
+		}
+		this.pipelined = pipelined;
+		return this;
+
+	}
+
+
+	/**
+	 * Set the listener that is given the statistics once the batch is exhausted (for
+	 * example to add them to Spark accumulators).
+	 *
+	 * @param listener called once when hasNext first returns FALSE
+	 * @return this BatchIterator
+	 */
+	public BatchIterator<K,V> onComplete(Consumer<BatchStatistics> listener) {
+
+		this.completionListener = listener;
+		return this;
+
+	}
+
+
+	/**
+	 * @return counts and timings for the records returned so far
+	 */
+	public BatchStatistics getStatistics() {
+		return statistics;
+	}
+
+
+	/**
+	 * Parse the content of a record.  Called on the helper thread when parsing is pipelined.
+	 * A subclass can return null to skip parsing content it already knows the result for.
+	 *
+	 * @param content content of the record
+	 * @return ParsedDocument (or null)
+	 * @throws Exception
+	 */
+	protected ParsedDocument prepare(Object content) throws Exception {
+
+		if (content instanceof ParsedDocument) {
+			return (ParsedDocument) content;
+		}
+		if (BinaryDocumentReader.isBinary(content)) {
+			return content instanceof byte[] ? BinaryDocumentReader.read((byte[]) content) : BinaryDocumentReader.read((ByteBuffer) content);
+		}
+		return ParsedDocument.parse(toSource(content), featureMappings);
+
+	}
+
+
+	/**
+	 * Process a record.  Always called on the calling thread.
+	 *
+	 * @param document the record as returned by prepare
+	 * @return value for the record
+	 * @throws Exception
+	 */
+	protected abstract V process(ParsedDocument document) throws Exception;
+
+
+	@Override
+	public boolean hasNext() {
+
+		if (!started) {
+			started = true;
+			startNanos = System.nanoTime();
+			fetch();
+		}
+		if (pending != null) {
+			return true;
+		}
+		if (!completed) {
+			completed = true;
+			statistics.setElapsedNanos(System.nanoTime() - startNanos);
+			if (completionListener != null) {
+				completionListener.accept(statistics);
+			}
+		}
+		return false;
+
+	}
+
+
+	@Override
+	public BatchResult<K,V> next() {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		K key = pendingKey;
+		FutureTask<Prepared> current = pending;
+
+		long waitStart = System.nanoTime();
+		if (!pipelined) {
+			current.run();
+		}
+		Prepared prepared = await(current);
+		long waitNanos = pipelined ? System.nanoTime() - waitStart : 0;
+
+		// Start on the next record before processing this one (not before this one is
+		// parsed, since reading the next record may overwrite the content of this one)
+		fetch();
+
+		if (prepared.failed) {
+			statistics.add(true, prepared.nanos, waitNanos, 0);
+			return BatchResult.failure(key, prepared.error);
+		}
+
+		long processStart = System.nanoTime();
+		try {
+			V value = process(prepared.document);
+			statistics.add(false, prepared.nanos, waitNanos, System.nanoTime() - processStart);
+			return BatchResult.success(key, value);
+		} catch (Exception e) {
+			statistics.add(true, prepared.nanos, waitNanos, System.nanoTime() - processStart);
+			return BatchResult.failure(key, e.getMessage());
+		}
+
+	}
+
+
+	/**
+	 * Read the next record and (when pipelined) start parsing it.
+	 */
+	private void fetch() {
+
+		if (!records.hasNext()) {
+			pendingKey = null;
+			pending = null;
+			return;
+		}
+
+		Entry<K,?> record = records.next();
+		final Object content = record.getValue();
+		pendingKey = record.getKey();
+		pending = new FutureTask<Prepared>(() -> prepareTimed(content));
+		if (pipelined) {
+			parsers.execute(pending);
+		}
+
+	}
+
+
+	/**
+	 * @param content content of the record
+	 * @return the parsed record (or the reason it couldn't be parsed) and the time it took
+	 */
+	private Prepared prepareTimed(Object content) {
+
+		long start = System.nanoTime();
+		Prepared prepared = new Prepared();
+		try {
+			prepared.document = prepare(content);
+		} catch (Exception e) {
+			errors.report(e);
+			prepared.failed = true;
+			prepared.error = e.getMessage();
+		}
+		prepared.nanos = System.nanoTime() - start;
+		return prepared;
+
+	}
+
+
+	/**
+	 * @param task parse of a record
+	 * @return the result of the parse
+	 */
+	private static Prepared await(FutureTask<Prepared> task) {
+
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Prepared prepared = new Prepared();
+					prepared.failed = true;
+					prepared.error = e.getCause().getMessage();
+					return prepared;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Get a Source for the content of a record.
+	 *
+	 * @param content String (or other CharSequence), byte[], ByteBuffer or RecordSplitter.Record
+	 * @return Source reading the content in place
+	 */
+	public static Source toSource(Object content) {
+
+		if (content instanceof CharSequence) {
+			return ContentSource.fromCharSequence((CharSequence) content);
+		} else if (content instanceof byte[]) {
+			byte[] bytes = (byte[]) content;
+			return ContentSource.fromBytes(bytes, 0, bytes.length);
+		} else if (content instanceof ByteBuffer) {
+			return ContentSource.fromByteBuffer((ByteBuffer) content);
+		} else if (content instanceof RecordSplitter.Record) {
+			return ((RecordSplitter.Record) content).toSource();
+		}
+		throw new IllegalArgumentException("Unsupported content " + (content == null ? "null" : content.getClass().getName()));
+
+	}
+
+
+	/**
+	 * Key each record by its position in the batch (starting at 0).
+	 *
+	 * @param records content of each record
+	 * @return position and content of each record
+	 */
+	public static <T> Iterator<Entry<Long,T>> withPositions(final Iterator<T> records) {
+
+		return new Iterator<Entry<Long,T>>() {
+
+			private long position = 0;
+
+			@Override
+			public boolean hasNext() {
+				return records.hasNext();
+			}
+
+			@Override
+			public Entry<Long,T> next() {
+				return new SimpleImmutableEntry<Long,T>(position++, records.next());
+			}
+
+		};
+
+	}
+
+
+	/**
+	 * Outcome of parsing a record.
+	 */
+	private static class Prepared {
+
+		private ParsedDocument document = null;
+		private boolean failed = false;
+		private String error = null;
+		private long nanos = 0;
+
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.Serializable;
+
+
+/**
+ * Result for one record of a batch: the key of the record and either the value returned
+ * for it or the reason it could not be processed.
+ *
+ * @author Darin McBeath
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BatchResult<K,V> implements Serializable {
+
+	private static final long serialVersionUID = -4713180268924913087L;
+
+	// Member variables
+	private final K key;
+	private final V value;
+	private final String error;
+
+
+	/**
+	 * Create an instance of BatchResult.
+	 *
+	 * @param key key of the record
+	 * @param value value returned for the record
+	 * @param error reason the record could not be processed (null if it was processed)
+	 */
+	private BatchResult(K key, V value, String error) {
+
+		this.key = key;
+		this.value = value;
+		this.error = error;
+
+	}
+
+
+	/**
+	 * @param key key of the record
+	 * @param value value returned for the record
+	 * @return BatchResult for a record that was processed
+	 */
+	public static <K,V> BatchResult<K,V> success(K key, V value) {
+		return new BatchResult<K,V>(key, value, null);
+	}
+
+
+	/**
+	 * @param key key of the record
+	 * @param error reason the record could not be processed
+	 * @return BatchResult for a record that could not be processed
+	 */
+	public static <K,V> BatchResult<K,V> failure(K key, String error) {
+		return new BatchResult<K,V>(key, null, error == null ? "" : error);
+	}
+
+
+	/**
+	 * @return key of the record
+	 */
+	public K getKey() {
+		return key;
+	}
+
+
+	/**
+	 * @return value returned for the record (null if it could not be processed)
+	 */
+	public V getValue() {
+		return value;
+	}
+
+
+	/**
+	 * @return reason the record could not be processed (null if it was processed)
+	 */
+	public String getError() {
+		return error;
+	}
+
+
+	/**
+	 * @return true if the record could not be processed
+	 */
+	public boolean isError() {
+		return error != null;
+	}
+
+
+	@Override
+	public String toString() {
+		return isError() ? "BatchResult[key=" + key + ", error=" + error + "]" : "BatchResult[key=" + key + ", value=" + value + "]";
+	}
+
+}
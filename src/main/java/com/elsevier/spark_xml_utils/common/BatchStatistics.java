@@ -0,0 +1,127 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.Serializable;
+
+
+/**
+ * Counts and timings for one batch (typically one Spark partition).  Parse time is spent
+ * on the helper thread when parsing is pipelined, so the wait time (how long the records
+ * were waited on) is the part of it that was not hidden behind processing.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class BatchStatistics implements Serializable {
+
+	private static final long serialVersionUID = 5083452285190348735L;
+
+	// Member variables
+	private long records = 0;
+	private long errors = 0;
+	private long parseNanos = 0;
+	private long waitNanos = 0;
+	private long processNanos = 0;
+	private long elapsedNanos = 0;
+
+
+	/**
+	 * Record the counts and timings for one record.
+	 *
+	 * @param error true if the record could not be processed
+	 * @param parseNanos time spent parsing the record
+	 * @param waitNanos time spent waiting for the record to be parsed
+	 * @param processNanos time spent processing the parsed record
+	 */
+	void add(boolean error, long parseNanos, long waitNanos, long processNanos) {
+
+		this.records++;
+		if (error) {
+			this.errors++;
+		}
+		this.parseNanos += parseNanos;
+		this.waitNanos += waitNanos;
+		this.processNanos += processNanos;
+
+	}
+
+
+	/**
+	 * @param elapsedNanos time from the first record being requested to the batch being exhausted
+	 */
+	void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+
+	/**
+	 * @return number of records returned
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+
+	/**
+	 * @return number of records that could not be processed
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+
+	/**
+	 * @return time spent parsing
+	 */
+	public long getParseNanos() {
+		return parseNanos;
+	}
+
+
+	/**
+	 * @return time spent waiting for records to be parsed
+	 */
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+
+
+	/**
+	 * @return time spent filtering, evaluating or transforming the parsed records
+	 */
+	public long getProcessNanos() {
+		return processNanos;
+	}
+
+
+	/**
+	 * @return time from the first record being requested to the batch being exhausted (0 until then)
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+
+	@Override
+	public String toString() {
+		return "BatchStatistics[records=" + records + ", errors=" + errors +
+				", parseMs=" + parseNanos / 1000000 + ", waitMs=" + waitNanos / 1000000 +
+				", processMs=" + processNanos / 1000000 + ", elapsedMs=" + elapsedNanos / 1000000 + "]";
+	}
+
+}
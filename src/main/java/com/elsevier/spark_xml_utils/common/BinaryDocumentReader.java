@@ -0,0 +1,459 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.ReceiverOption;
+import net.sf.saxon.expr.parser.Loc;
+import net.sf.saxon.om.AttributeInfo;
+import net.sf.saxon.om.AttributeMap;
+import net.sf.saxon.om.EmptyAttributeMap;
+import net.sf.saxon.om.FingerprintedQName;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.om.NamespaceMap;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.CharSlice;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Untyped;
+
+import org.apache.commons.io.IOUtils;
+
+
+/**
+ * Decodes a document encoded by BinaryDocumentWriter, either into a tree (a
+ * ParsedDocument, built by Saxon's tree builder exactly as if the xml had been parsed)
+ * or as events pushed to a Receiver.  No xml parser is involved: names are decoded once
+ * per document (with their name pool fingerprints) and text is decoded into a reused
+ * buffer that the tree builder copies from.
+ * <p>
+ * Content that isn't a valid encoding fails like malformed xml (error SXXP0003).
+ *
+ * @author Darin McBeath
+ *
+ */
+public class BinaryDocumentReader {
+
+	// Member variables
+	private final byte[] bytes;
+	private int pos;
+	private final int end;
+	private final NamePool namePool;
+	private final List<String> strings = new ArrayList<String>();
+	private final List<NodeName> names = new ArrayList<NodeName>();
+	private char[] chars = new char[256];
+
+
+	/**
+	 * Create an instance of BinaryDocumentReader.
+	 *
+	 * @param bytes encoded document
+	 * @param offset start of the document
+	 * @param length length of the document
+	 * @param namePool NamePool of the receiver
+	 */
+	private BinaryDocumentReader(byte[] bytes, int offset, int length, NamePool namePool) {
+
+		this.bytes = bytes;
+		this.pos = offset;
+		this.end = offset + length;
+		this.namePool = namePool;
+
+	}
+
+
+	/**
+	 * @param content content of a record (byte[], ByteBuffer or anything else)
+	 * @return TRUE if the content is a byte[] or ByteBuffer that starts like an encoded document
+	 */
+	public static boolean isBinary(Object content) {
+
+		if (content instanceof byte[]) {
+			byte[] bytes = (byte[]) content;
+			return startsWithMagic(bytes, 0, bytes.length);
+		}
+		if (content instanceof ByteBuffer) {
+			ByteBuffer buffer = (ByteBuffer) content;
+			if (buffer.remaining() < BinaryDocumentWriter.MAGIC.length) {
+				return false;
+			}
+			for (int i = 0; i < BinaryDocumentWriter.MAGIC.length; i++) {
+				if (buffer.get(buffer.position() + i) != BinaryDocumentWriter.MAGIC[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+
+	}
+
+
+	/**
+	 * Decode a document into a tree.
+	 *
+	 * @param content encoded document
+	 * @return ParsedDocument
+	 * @throws SaxonApiException when the content isn't a valid encoding
+	 */
+	public static ParsedDocument read(byte[] content) throws SaxonApiException {
+
+		return read(content, 0, content.length);
+
+	}
+
+
+	/**
+	 * Decode a document into a tree.
+	 *
+	 * @param content encoded document (from its position to its limit, which is left unchanged)
+	 * @return ParsedDocument
+	 * @throws SaxonApiException when the content isn't a valid encoding
+	 */
+	public static ParsedDocument read(ByteBuffer content) throws SaxonApiException {
+
+		if (content.hasArray()) {
+			return read(content.array(), content.arrayOffset() + content.position(), content.remaining());
+		}
+		byte[] copy = new byte[content.remaining()];
+		content.duplicate().get(copy);
+		return read(copy);
+
+	}
+
+
+	/**
+	 * Decode a document into a tree.
+	 *
+	 * @param content encoded document
+	 * @return ParsedDocument
+	 * @throws SaxonApiException when the content isn't a valid encoding (or can't be read)
+	 */
+	public static ParsedDocument read(InputStream content) throws SaxonApiException {
+
+		try {
+			return read(IOUtils.toByteArray(content));
+		} catch (IOException e) {
+			throw new SaxonApiException(e);
+		}
+
+	}
+
+
+	/**
+	 * Decode a document into a tree.
+	 *
+	 * @param content encoded document
+	 * @param offset start of the document
+	 * @param length length of the document
+	 * @return ParsedDocument
+	 * @throws SaxonApiException when the content isn't a valid encoding
+	 */
+	public static ParsedDocument read(byte[] content, int offset, int length) throws SaxonApiException {
+
+		Configuration config = SharedConfiguration.getProcessor(null).getUnderlyingConfiguration();
+		TinyBuilder builder = new TinyBuilder(config.makePipelineConfiguration());
+		send(content, offset, length, builder);
+		return ParsedDocument.wrap(new XdmNode(builder.getCurrentRoot()));
+
+	}
+
+
+	/**
+	 * Decode a document as events pushed to a Receiver (which is opened and closed).
+	 *
+	 * @param content encoded document
+	 * @param offset start of the document
+	 * @param length length of the document
+	 * @param receiver Receiver of the events
+	 * @throws SaxonApiException when the content isn't a valid encoding (or the receiver fails)
+	 */
+	public static void send(byte[] content, int offset, int length, Receiver receiver) throws SaxonApiException {
+
+		BinaryDocumentReader reader = new BinaryDocumentReader(content, offset, length, receiver.getPipelineConfiguration().getConfiguration().getNamePool());
+		try {
+			reader.send(receiver);
+		} catch (IndexOutOfBoundsException e) {
+			throw malformed("Unexpected end of the binary document");
+		} catch (XPathException e) {
+			throw new SaxonApiException(e);
+		}
+
+	}
+
+
+	/**
+	 * Push the events of the document.
+	 *
+	 * @param receiver Receiver of the events
+	 * @throws XPathException
+	 * @throws SaxonApiException
+	 */
+	private void send(Receiver receiver) throws XPathException, SaxonApiException {
+
+		if (!startsWithMagic(bytes, pos, end - pos)) {
+			throw malformed("Not a binary document");
+		}
+		pos += BinaryDocumentWriter.MAGIC.length;
+		int version = bytes[pos++];
+		if (version < 1 || version > BinaryDocumentWriter.VERSION) {
+			throw malformed("Unsupported binary document version " + version);
+		}
+		boolean flagged = version >= 2;
+
+		NamespaceMap[] namespaces = new NamespaceMap[32];
+		namespaces[0] = NamespaceMap.emptyMap();
+		int depth = 0;
+		boolean ended = false;
+		receiver.open();
+		while (!ended) {
+			if (pos >= end) {
+				throw malformed("Unexpected end of the binary document");
+			}
+			int tag = bytes[pos++];
+			switch (tag) {
+			case BinaryDocumentWriter.DOCUMENT:
+				String systemId = readString();
+				if (!systemId.isEmpty()) {
+					receiver.setSystemId(systemId);
+				}
+				receiver.startDocument(0);
+				break;
+			case BinaryDocumentWriter.END_DOCUMENT:
+				receiver.endDocument();
+				ended = true;
+				break;
+			case BinaryDocumentWriter.ELEMENT:
+				NodeName name = readName();
+				NamespaceMap namespaceMap = namespaces[depth];
+				for (int i = readVarint(); i > 0; i--) {
+					String prefix = readString();
+					String uri = readString();
+					namespaceMap = uri.isEmpty() ? namespaceMap.remove(prefix) : namespaceMap.put(prefix, uri);
+				}
+				if (++depth == namespaces.length) {
+					namespaces = Arrays.copyOf(namespaces, depth * 2);
+				}
+				namespaces[depth] = namespaceMap;
+				receiver.startElement(name, Untyped.getInstance(), readAttributes(flagged), namespaceMap, Loc.NONE, 0);
+				break;
+			case BinaryDocumentWriter.END_ELEMENT:
+				if (depth == 0) {
+					throw malformed("Unbalanced elements in the binary document");
+				}
+				depth--;
+				receiver.endElement();
+				break;
+			case BinaryDocumentWriter.TEXT:
+				receiver.characters(readText(), Loc.NONE, 0);
+				break;
+			case BinaryDocumentWriter.COMMENT:
+				receiver.comment(readText(), Loc.NONE, 0);
+				break;
+			case BinaryDocumentWriter.PI:
+				String target = readString();
+				receiver.processingInstruction(target, readText(), Loc.NONE, 0);
+				break;
+			case BinaryDocumentWriter.ENTITY:
+				String entity = readString();
+				String entitySystemId = readString();
+				String entityPublicId = readString();
+				receiver.setUnparsedEntity(entity, entitySystemId, entityPublicId.isEmpty() ? null : entityPublicId);
+				break;
+			default:
+				throw malformed("Unknown event " + tag + " in the binary document");
+			}
+		}
+		receiver.close();
+
+	}
+
+
+	/**
+	 * @param flagged TRUE if each attribute has flags (version 2 on)
+	 * @return attributes of an element
+	 * @throws SaxonApiException
+	 */
+	private AttributeMap readAttributes(boolean flagged) throws SaxonApiException {
+
+		int count = readVarint();
+		if (count == 0) {
+			return EmptyAttributeMap.getInstance();
+		}
+		List<AttributeInfo> attributes = new ArrayList<AttributeInfo>(count);
+		for (int i = 0; i < count; i++) {
+			NodeName name = readName();
+			int flags = flagged ? readVarint() : 0;
+			int properties = 0;
+			if ((flags & BinaryDocumentWriter.ATTRIBUTE_ID) != 0) {
+				properties |= ReceiverOption.IS_ID;
+			}
+			if ((flags & BinaryDocumentWriter.ATTRIBUTE_IDREF) != 0) {
+				properties |= ReceiverOption.IS_IDREF;
+			}
+			int length = readVarint();
+			String value = new String(bytes, checkLength(length), length, StandardCharsets.UTF_8);
+			pos += length;
+			attributes.add(new AttributeInfo(name, BuiltInAtomicType.UNTYPED_ATOMIC, value, Loc.NONE, properties));
+		}
+		return AttributeMap.fromList(attributes);
+
+	}
+
+
+	private NodeName readName() throws SaxonApiException {
+
+		int index = readVarint();
+		if (index < names.size()) {
+			return names.get(index);
+		}
+		if (index != names.size()) {
+			throw malformed("Unknown name " + index + " in the binary document");
+		}
+		String prefix = readString();
+		String uri = readString();
+		String local = readString();
+		NodeName name = new FingerprintedQName(prefix, uri, local, namePool);
+		names.add(name);
+		return name;
+
+	}
+
+
+	private String readString() throws SaxonApiException {
+
+		int index = readVarint();
+		if (index < strings.size()) {
+			return strings.get(index);
+		}
+		if (index != strings.size()) {
+			throw malformed("Unknown string " + index + " in the binary document");
+		}
+		int length = readVarint();
+		String string = new String(bytes, checkLength(length), length, StandardCharsets.UTF_8);
+		pos += length;
+		strings.add(string);
+		return string;
+
+	}
+
+
+	/**
+	 * Decode text into the reused buffer.
+	 *
+	 * @return the text (valid until the next text is read)
+	 * @throws SaxonApiException
+	 */
+	private CharSequence readText() throws SaxonApiException {
+
+		int length = readVarint();
+		int limit = checkLength(length) + length;
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		char[] buf = chars;
+		int count = 0;
+		byte[] in = bytes;
+		int p = pos;
+		while (p < limit) {
+			int b = in[p++];
+			if (b >= 0) {
+				buf[count++] = (char) b;
+			} else if ((b & 0xE0) == 0xC0) {
+				buf[count++] = (char) (((b & 0x1F) << 6) | (in[p++] & 0x3F));
+			} else if ((b & 0xF0) == 0xE0) {
+				buf[count++] = (char) (((b & 0x0F) << 12) | ((in[p++] & 0x3F) << 6) | (in[p++] & 0x3F));
+			} else {
+				int cp = ((b & 0x07) << 18) | ((in[p++] & 0x3F) << 12) | ((in[p++] & 0x3F) << 6) | (in[p++] & 0x3F);
+				buf[count++] = Character.highSurrogate(cp);
+				buf[count++] = Character.lowSurrogate(cp);
+			}
+		}
+		if (p != limit) {
+			throw malformed("Invalid UTF-8 in the binary document");
+		}
+		pos = limit;
+		return new CharSlice(buf, 0, count);
+
+	}
+
+
+	private int readVarint() throws SaxonApiException {
+
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = bytes[pos++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw malformed("Invalid number in the binary document");
+
+	}
+
+
+	/**
+	 * @param length number of bytes about to be read
+	 * @return the current position
+	 * @throws SaxonApiException when there aren't that many bytes left
+	 */
+	private int checkLength(int length) throws SaxonApiException {
+
+		if (length > end - pos) {
+			throw malformed("Unexpected end of the binary document");
+		}
+		return pos;
+
+	}
+
+
+	private static boolean startsWithMagic(byte[] bytes, int offset, int length) {
+
+		if (length < BinaryDocumentWriter.MAGIC.length + 1) {
+			return false;
+		}
+		for (int i = 0; i < BinaryDocumentWriter.MAGIC.length; i++) {
+			if (bytes[offset + i] != BinaryDocumentWriter.MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+
+	private static SaxonApiException malformed(String message) {
+		return new SaxonApiException(new XPathException(message, "SXXP0003"));
+	}
+
+}
@@ -0,0 +1,650 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import javax.xml.transform.Source;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.ReceiverOption;
+import net.sf.saxon.event.Sender;
+import net.sf.saxon.expr.parser.Loc;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.om.AttributeInfo;
+import net.sf.saxon.om.AttributeMap;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.CopyOptions;
+import net.sf.saxon.om.EmptyAttributeMap;
+import net.sf.saxon.om.NameOfNode;
+import net.sf.saxon.om.NamespaceBinding;
+import net.sf.saxon.om.NamespaceMap;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.Untyped;
+import net.sf.saxon.value.Whitespace;
+
+
+/**
+ * Encodes a document as a compact stream of parse events that BinaryDocumentReader
+ * turns back into a tree without parsing xml.  Converting a corpus once lets every
+ * later job skip the xml parser.  The writer is a Saxon Receiver, so the xml can be
+ * parsed straight into it (see write(Source, ...)) without building a tree first.
+ * <p>
+ * The format is a header (the bytes 0x00 'S' 'X' 'B' and the version) followed by the
+ * events, each a tag byte and its operands:
+ * <pre>
+ * DOCUMENT   string(system id)                      ... END_DOCUMENT
+ * ENTITY     string(name) string(system id) string(public id)
+ * ELEMENT    name  count (string(prefix) string(uri))*  count (name flags text)*  ... END_ELEMENT
+ * TEXT       text
+ * COMMENT    text
+ * PI         string(target) text
+ * </pre>
+ * ENTITY is an unparsed entity declared by the DTD (it follows DOCUMENT), and the flags
+ * of an attribute say whether the DTD declared it an ID (1) or an IDREF or IDREFS (2), so
+ * id() and idref() work on the decoded tree as they do on the parsed one.  Version 1 (no
+ * ENTITY events or attribute flags) can still be read.
+ * Numbers are unsigned LEB128 varints and text is its UTF-8 length followed by the
+ * bytes.  Names and strings are dictionary coded: a reference is the position in the
+ * document's table, and a reference one past the end of the table is followed by the
+ * new entry (a string is coded as text; a name as string(prefix) string(uri)
+ * string(local)).  An element lists only the namespaces it declares (or undeclares,
+ * with an empty uri) relative to its parent.
+ * <p>
+ * The events are buffered and written to the OutputStream when the document ends (or
+ * kept for toByteArray).  A
+ * writer encodes one document and can then be reset for the next.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class BinaryDocumentWriter implements Receiver {
+
+	/** First bytes of an encoded document (no xml starts with a 0x00 followed by 'S') */
+	static final byte[] MAGIC = { 0x00, 'S', 'X', 'B' };
+
+	/** Version of the format */
+	static final int VERSION = 2;
+
+	// Event tags
+	static final int DOCUMENT = 1;
+	static final int END_DOCUMENT = 2;
+	static final int ELEMENT = 3;
+	static final int END_ELEMENT = 4;
+	static final int TEXT = 5;
+	static final int COMMENT = 6;
+	static final int PI = 7;
+	static final int ENTITY = 8;
+
+	// Attribute flags
+	static final int ATTRIBUTE_ID = 1;
+	static final int ATTRIBUTE_IDREF = 2;
+
+	// Member variables
+	private final OutputStream out;
+	private PipelineConfiguration pipe;
+	private String systemId = null;
+	private byte[] buffer = new byte[8192];
+	private int length = 0;
+	private final HashMap<String,Integer> strings = new HashMap<String,Integer>();
+	private final HashMap<NodeName,Integer> names = new HashMap<NodeName,Integer>();
+	private NamespaceMap[] namespaces = new NamespaceMap[32];
+	private int depth = 0;
+	private String[] declared = new String[16];
+
+
+	/**
+	 * Create an instance of BinaryDocumentWriter.
+	 *
+	 * @param out where the encoded document is written (null to keep it in the writer)
+	 * @param config Saxon configuration of the events
+	 */
+	private BinaryDocumentWriter(OutputStream out, Configuration config) {
+
+		this.out = out;
+		this.pipe = config.makePipelineConfiguration();
+		reset();
+
+	}
+
+
+	/**
+	 * Get an instance of BinaryDocumentWriter, for example to parse xml into or to copy a
+	 * tree into.
+	 *
+	 * @param out where the encoded document is written when it ends (null to keep it
+	 * in the writer for toByteArray)
+	 * @return BinaryDocumentWriter
+	 */
+	public static BinaryDocumentWriter getInstance(OutputStream out) {
+
+		return new BinaryDocumentWriter(out, SharedConfiguration.getProcessor(null).getUnderlyingConfiguration());
+
+	}
+
+
+	/**
+	 * Parse the xml and encode it, without building a tree.
+	 *
+	 * @param content xml to encode
+	 * @param featureMappings Processor feature mappings (for example an entity resolver)
+	 * @param out where the encoded document is written
+	 * @throws SaxonApiException when the xml can't be parsed (or written)
+	 */
+	public static void write(Source content, HashMap<String,Object> featureMappings, OutputStream out) throws SaxonApiException {
+
+		encode(content, featureMappings, out);
+
+	}
+
+
+	/**
+	 * Encode a document that has already been parsed.
+	 *
+	 * @param content ParsedDocument
+	 * @param out where the encoded document is written
+	 * @throws SaxonApiException when the document can't be written
+	 */
+	public static void write(ParsedDocument content, OutputStream out) throws SaxonApiException {
+
+		encode(content, out);
+
+	}
+
+
+	/**
+	 * Parse the xml and encode it, without building a tree.
+	 *
+	 * @param content xml to encode
+	 * @param featureMappings Processor feature mappings (for example an entity resolver)
+	 * @return encoded document
+	 * @throws SaxonApiException when the xml can't be parsed
+	 */
+	public static byte[] toBytes(Source content, HashMap<String,Object> featureMappings) throws SaxonApiException {
+
+		return encode(content, featureMappings, null).toByteArray();
+
+	}
+
+
+	/**
+	 * Encode a document that has already been parsed.
+	 *
+	 * @param content ParsedDocument
+	 * @return encoded document
+	 * @throws SaxonApiException
+	 */
+	public static byte[] toBytes(ParsedDocument content) throws SaxonApiException {
+
+		return encode(content, null).toByteArray();
+
+	}
+
+
+	/**
+	 * @param content xml to encode
+	 * @param featureMappings Processor feature mappings
+	 * @param out where the encoded document is written (null to keep it in the writer)
+	 * @return the writer
+	 * @throws SaxonApiException
+	 */
+	private static BinaryDocumentWriter encode(Source content, HashMap<String,Object> featureMappings, OutputStream out) throws SaxonApiException {
+
+		Configuration config = SharedConfiguration.getProcessor(featureMappings).getUnderlyingConfiguration();
+		BinaryDocumentWriter writer = new BinaryDocumentWriter(out, config);
+		try {
+			Sender.send(content, writer, new ParseOptions(config.getParseOptions()));
+		} catch (XPathException e) {
+			throw new SaxonApiException(e);
+		}
+		return writer;
+
+	}
+
+
+	/**
+	 * @param content ParsedDocument
+	 * @param out where the encoded document is written (null to keep it in the writer)
+	 * @return the writer
+	 * @throws SaxonApiException
+	 */
+	private static BinaryDocumentWriter encode(ParsedDocument content, OutputStream out) throws SaxonApiException {
+
+		BinaryDocumentWriter writer = new BinaryDocumentWriter(out, SharedConfiguration.getProcessor(null).getUnderlyingConfiguration());
+		try {
+			writer.open();
+			writer.send(content.getNode().getUnderlyingNode());
+			writer.close();
+		} catch (XPathException e) {
+			throw new SaxonApiException(e);
+		}
+		return writer;
+
+	}
+
+
+	/**
+	 * Write the events of a node and its descendants.  Unlike copying the tree, this keeps
+	 * the document's unparsed entities and which attributes are IDs and IDREFs.
+	 *
+	 * @param node node of a tree
+	 * @throws XPathException
+	 */
+	private void send(NodeInfo node) throws XPathException {
+
+		switch (node.getNodeKind()) {
+		case Type.DOCUMENT:
+			startDocument(0);
+			TreeInfo tree = node.getTreeInfo();
+			for (Iterator<String> entities = tree.getUnparsedEntityNames(); entities.hasNext(); ) {
+				String name = entities.next();
+				String[] entity = tree.getUnparsedEntity(name);
+				setUnparsedEntity(name, entity[0], entity[1]);
+			}
+			for (NodeInfo child : node.children()) {
+				send(child);
+			}
+			endDocument();
+			break;
+		case Type.ELEMENT:
+			AttributeMap attributes = EmptyAttributeMap.getInstance();
+			AxisIterator iterator = node.iterateAxis(AxisInfo.ATTRIBUTE);
+			for (NodeInfo attribute = iterator.next(); attribute != null; attribute = iterator.next()) {
+				int properties = (isId(attribute) ? ReceiverOption.IS_ID : 0) | (attribute.isIdref() ? ReceiverOption.IS_IDREF : 0);
+				attributes = attributes.put(new AttributeInfo(NameOfNode.makeName(attribute), BuiltInAtomicType.UNTYPED_ATOMIC, attribute.getStringValue(), Loc.NONE, properties));
+			}
+			startElement(NameOfNode.makeName(node), Untyped.getInstance(), attributes, node.getAllNamespaces(), Loc.NONE, 0);
+			for (NodeInfo child : node.children()) {
+				send(child);
+			}
+			endElement();
+			break;
+		case Type.TEXT:
+			characters(node.getStringValueCS(), Loc.NONE, 0);
+			break;
+		case Type.COMMENT:
+			comment(node.getStringValueCS(), Loc.NONE, 0);
+			break;
+		case Type.PROCESSING_INSTRUCTION:
+			processingInstruction(node.getLocalPart(), node.getStringValueCS(), Loc.NONE, 0);
+			break;
+		default:
+			node.copy(this, CopyOptions.ALL_NAMESPACES, Loc.NONE);
+			break;
+		}
+
+	}
+
+
+	/**
+	 * Determine whether an attribute is an ID.  A tiny tree only keeps DTD-declared IDs in
+	 * its index of IDs, so also check whether the attribute's value selects its element.
+	 * An xml:id attribute is recognized by its name and needs no flag.
+	 *
+	 * @param attribute attribute node
+	 * @return true if the attribute is an ID
+	 */
+	private static boolean isId(NodeInfo attribute) {
+
+		if (attribute.isId()) {
+			return true;
+		}
+		if (NamespaceConstant.XML.equals(attribute.getURI()) && "id".equals(attribute.getLocalPart())) {
+			return false;
+		}
+		NodeInfo element = attribute.getTreeInfo().selectID(Whitespace.trim(attribute.getStringValueCS()), false);
+		return element != null && element.equals(attribute.getParent());
+
+	}
+
+
+	/**
+	 * @return the encoded document (so far)
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, length);
+	}
+
+
+	/**
+	 * Forget the previous document (and its dictionaries) to encode the next one.
+	 */
+	public void reset() {
+
+		length = 0;
+		strings.clear();
+		names.clear();
+		depth = 0;
+		namespaces[0] = NamespaceMap.emptyMap();
+		write(MAGIC, 0, MAGIC.length);
+		writeByte(VERSION);
+
+	}
+
+
+	@Override
+	public void setPipelineConfiguration(PipelineConfiguration pipe) {
+		this.pipe = pipe;
+	}
+
+
+	@Override
+	public PipelineConfiguration getPipelineConfiguration() {
+		return pipe;
+	}
+
+
+	@Override
+	public void setSystemId(String systemId) {
+		this.systemId = systemId;
+	}
+
+
+	@Override
+	public String getSystemId() {
+		return systemId;
+	}
+
+
+	@Override
+	public void open() {
+	}
+
+
+	@Override
+	public void startDocument(int properties) {
+
+		writeByte(DOCUMENT);
+		writeString(systemId == null ? "" : systemId);
+
+	}
+
+
+	@Override
+	public void endDocument() throws XPathException {
+
+		writeByte(END_DOCUMENT);
+		if (out == null) {
+			return;
+		}
+		try {
+			out.write(buffer, 0, length);
+			out.flush();
+		} catch (IOException e) {
+			throw new XPathException(e);
+		}
+
+	}
+
+
+	@Override
+	public void setUnparsedEntity(String name, String systemID, String publicID) {
+
+		writeByte(ENTITY);
+		writeString(name);
+		writeString(systemID);
+		writeString(publicID == null ? "" : publicID);
+
+	}
+
+
+	@Override
+	public void startElement(NodeName elemName, SchemaType type, AttributeMap attributes, NamespaceMap namespaceMap, Location location, int properties) {
+
+		writeByte(ELEMENT);
+		writeName(elemName);
+
+		// Namespaces declared (or undeclared) relative to the parent
+		NamespaceMap parent = namespaces[depth];
+		int count = 0;
+		if (namespaceMap != parent) {
+			for (NamespaceBinding binding : namespaceMap) {
+				if (!binding.getURI().equals(parent.getURI(binding.getPrefix()))) {
+					count = declare(count, binding.getPrefix(), binding.getURI());
+				}
+			}
+			for (NamespaceBinding binding : parent) {
+				if (namespaceMap.getURI(binding.getPrefix()) == null) {
+					count = declare(count, binding.getPrefix(), "");
+				}
+			}
+		}
+		writeVarint(count / 2);
+		for (int i = 0; i < count; i++) {
+			writeString(declared[i]);
+		}
+		if (++depth == namespaces.length) {
+			namespaces = Arrays.copyOf(namespaces, depth * 2);
+		}
+		namespaces[depth] = namespaceMap;
+
+		writeVarint(attributes.size());
+		for (AttributeInfo attribute : attributes) {
+			writeName(attribute.getNodeName());
+			int flags = 0;
+			if (ReceiverOption.contains(attribute.getProperties(), ReceiverOption.IS_ID)) {
+				flags |= ATTRIBUTE_ID;
+			}
+			if (ReceiverOption.contains(attribute.getProperties(), ReceiverOption.IS_IDREF)) {
+				flags |= ATTRIBUTE_IDREF;
+			}
+			writeVarint(flags);
+			writeText(attribute.getValue());
+		}
+
+	}
+
+
+	@Override
+	public void endElement() {
+
+		writeByte(END_ELEMENT);
+		depth--;
+
+	}
+
+
+	@Override
+	public void characters(CharSequence chars, Location location, int properties) {
+
+		if (chars.length() > 0) {
+			writeByte(TEXT);
+			writeText(chars);
+		}
+
+	}
+
+
+	@Override
+	public void processingInstruction(String name, CharSequence data, Location location, int properties) {
+
+		writeByte(PI);
+		writeString(name);
+		writeText(data);
+
+	}
+
+
+	@Override
+	public void comment(CharSequence content, Location location, int properties) {
+
+		writeByte(COMMENT);
+		writeText(content);
+
+	}
+
+
+	@Override
+	public void close() {
+	}
+
+
+	@Override
+	public boolean usesTypeAnnotations() {
+		return false;
+	}
+
+
+	/**
+	 * @param count number of strings declared so far
+	 * @param prefix prefix
+	 * @param uri uri (empty to undeclare)
+	 * @return number of strings declared
+	 */
+	private int declare(int count, String prefix, String uri) {
+
+		if (count + 2 > declared.length) {
+			declared = Arrays.copyOf(declared, declared.length * 2);
+		}
+		declared[count] = prefix;
+		declared[count + 1] = uri;
+		return count + 2;
+
+	}
+
+
+	private void writeName(NodeName name) {
+
+		Integer index = names.get(name);
+		if (index != null) {
+			writeVarint(index);
+			return;
+		}
+		writeVarint(names.size());
+		names.put(name, names.size());
+		writeString(name.getPrefix());
+		writeString(name.getURI());
+		writeString(name.getLocalPart());
+
+	}
+
+
+	private void writeString(String string) {
+
+		Integer index = strings.get(string);
+		if (index != null) {
+			writeVarint(index);
+			return;
+		}
+		writeVarint(strings.size());
+		strings.put(string, strings.size());
+		writeText(string);
+
+	}
+
+
+	/**
+	 * Write the UTF-8 length and bytes of the text.
+	 *
+	 * @param text text
+	 */
+	private void writeText(CharSequence text) {
+
+		int chars = text.length();
+		int bytes = chars;
+		for (int i = 0; i < chars; i++) {
+			char c = text.charAt(i);
+			if (c >= 0x80) {
+				bytes += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+			}
+		}
+		writeVarint(bytes);
+		ensureCapacity(bytes);
+		byte[] buf = buffer;
+		int pos = length;
+		for (int i = 0; i < chars; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				buf[pos++] = (byte) (0xF0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogates (which can't come from parsed xml) take the 2 bytes counted for them
+				buf[pos++] = (byte) '?';
+				buf[pos++] = (byte) '?';
+			} else {
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		length = pos;
+
+	}
+
+
+	private void writeVarint(int value) {
+
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[length++] = (byte) value;
+
+	}
+
+
+	private void writeByte(int value) {
+
+		ensureCapacity(1);
+		buffer[length++] = (byte) value;
+
+	}
+
+
+	private void write(byte[] bytes, int offset, int count) {
+
+		ensureCapacity(count);
+		System.arraycopy(bytes, offset, buffer, length, count);
+		length += count;
+
+	}
+
+
+	private void ensureCapacity(int count) {
+
+		if (length + count > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(length + count, buffer.length * 2));
+		}
+
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * OutputStream that writes into a caller supplied ByteBuffer (heap or direct), advancing
+ * its position.  Writing past the limit of the buffer fails with an IOException rather
+ * than growing, so a result that doesn't fit is reported as an error by the processor.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+	// Member variables
+	private final ByteBuffer buffer;
+	private final int start;
+
+
+	/**
+	 * Create an instance of ByteBufferOutputStream.
+	 *
+	 * @param buffer buffer to write to (from its position)
+	 */
+	public ByteBufferOutputStream(ByteBuffer buffer) {
+
+		this.buffer = buffer;
+		this.start = buffer.position();
+
+	}
+
+
+	@Override
+	public void write(int b) throws IOException {
+
+		if (!buffer.hasRemaining()) {
+			throw new IOException("The ByteBuffer is full (capacity " + buffer.capacity() + " bytes)");
+		}
+		buffer.put((byte) b);
+
+	}
+
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (len > buffer.remaining()) {
+			throw new IOException("The ByteBuffer is full (capacity " + buffer.capacity() + " bytes)");
+		}
+		buffer.put(b, off, len);
+
+	}
+
+
+	/**
+	 * @return number of bytes written to the buffer
+	 */
+	public int getCount() {
+		return buffer.position() - start;
+	}
+
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URI;
+
+import org.apache.commons.io.output.ProxyOutputStream;
+import org.apache.commons.io.output.ProxyWriter;
+
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.ProxyReceiver;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.om.AttributeMap;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NamespaceMap;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.s9api.Action;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.serialize.SerializationProperties;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.SchemaType;
+
+
+/**
+ * Measurements of one call of a processor, recorded into the ProcessorMetrics of its
+ * kind when the call completes.  Each processor (or pooled evaluator) has its own
+ * CallMetrics and uses it from one thread at a time.
+ * <p>
+ * The processors mark the stages of a call with start and the parsed, evaluated and
+ * serialized methods, which do nothing (and start returns 0) while instrumentation is
+ * disabled.  When Saxon pushes results straight into the serializer (XQuery and XSLT),
+ * wrap separates the serializer's share of the time from the evaluation's.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class CallMetrics {
+
+	// Member variables
+	private final ProcessorMetrics metrics;
+	private boolean active = false;
+	private boolean failed = false;
+	private long parseNanos = 0;
+	private long evaluateNanos = 0;
+	private long serializeNanos = 0;
+	private long inputBytes = 0;
+	private long outputBytes = 0;
+	private long resultItems = 0;
+
+
+	/**
+	 * Create an instance of CallMetrics.
+	 *
+	 * @param metrics where completed calls are recorded
+	 */
+	private CallMetrics(ProcessorMetrics metrics) {
+
+		this.metrics = metrics;
+
+	}
+
+
+	/**
+	 * Get an instance of CallMetrics.
+	 *
+	 * @param processorType kind of processor (xpath, xquery or xslt)
+	 * @return CallMetrics
+	 */
+	public static CallMetrics getInstance(String processorType) {
+
+		return new CallMetrics(ProcessorMetrics.get(processorType));
+
+	}
+
+
+	/**
+	 * @return TRUE if instrumentation is enabled
+	 */
+	public boolean isEnabled() {
+		return ProcessorMetrics.isInstrumenting();
+	}
+
+
+	/**
+	 * Start timing a stage.
+	 *
+	 * @return start time (0 when instrumentation is disabled)
+	 */
+	public long start() {
+
+		if (!ProcessorMetrics.isInstrumenting()) {
+			return 0;
+		}
+		active = true;
+		return System.nanoTime();
+
+	}
+
+
+	/**
+	 * The content was parsed.
+	 *
+	 * @param start value of start
+	 * @return end time (the start of the next stage)
+	 */
+	public long parsed(long start) {
+
+		if (start == 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		parseNanos += now - start;
+		return now;
+
+	}
+
+
+	/**
+	 * The expression was evaluated.
+	 *
+	 * @param start value of start
+	 * @return end time (the start of the next stage)
+	 */
+	public long evaluated(long start) {
+
+		if (start == 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		evaluateNanos += now - start;
+		return now;
+
+	}
+
+
+	/**
+	 * The results were serialized.
+	 *
+	 * @param start value of start
+	 * @return end time
+	 */
+	public long serialized(long start) {
+
+		if (start == 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		serializeNanos += now - start;
+		return now;
+
+	}
+
+
+	/**
+	 * Saxon evaluated and serialized through a Destination from wrap.  The time spent in
+	 * the serializer is serialization and the rest is evaluation.
+	 *
+	 * @param start value of start
+	 * @param destination Destination returned by wrap
+	 * @return end time
+	 */
+	public long evaluatedAndSerialized(long start, Destination destination) {
+
+		if (start == 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		if (destination instanceof TimedDestination) {
+			TimedDestination timed = (TimedDestination) destination;
+			serializeNanos += timed.nanos;
+			evaluateNanos += now - start - timed.nanos;
+			resultItems += timed.items;
+		} else {
+			evaluateNanos += now - start;
+		}
+		return now;
+
+	}
+
+
+	/**
+	 * @param bytes size of the content (bytes, or characters for character content)
+	 */
+	public void input(long bytes) {
+		inputBytes = bytes;
+	}
+
+
+	/**
+	 * @param bytes size of the results (bytes, or characters for a Writer)
+	 */
+	public void output(long bytes) {
+		outputBytes += bytes;
+	}
+
+
+	/**
+	 * @param items number of result items
+	 */
+	public void items(long items) {
+		resultItems += items;
+	}
+
+
+	/**
+	 * The call failed.
+	 */
+	public void failed() {
+		failed = true;
+	}
+
+
+	/**
+	 * Record the call (if a stage was started while instrumentation was enabled) and get
+	 * ready for the next one.  Called by the processors when a call ends.
+	 */
+	public void complete() {
+
+		if (active) {
+			metrics.record(this);
+		}
+		active = false;
+		failed = false;
+		parseNanos = 0;
+		evaluateNanos = 0;
+		serializeNanos = 0;
+		inputBytes = 0;
+		outputBytes = 0;
+		resultItems = 0;
+
+	}
+
+
+	/**
+	 * Get the Destination to evaluate into: the destination itself while instrumentation
+	 * is disabled, otherwise a wrapper that times the destination and counts the items
+	 * it is given.
+	 *
+	 * @param destination Destination (for example a Serializer)
+	 * @return Destination to pass to Saxon
+	 */
+	public Destination wrap(Destination destination) {
+
+		return ProcessorMetrics.isInstrumenting() ? new TimedDestination(destination) : destination;
+
+	}
+
+
+	/**
+	 * @param out OutputStream for the results
+	 * @return the stream itself while instrumentation is disabled, otherwise a wrapper counting the bytes written
+	 */
+	public OutputStream wrap(OutputStream out) {
+
+		if (!ProcessorMetrics.isInstrumenting()) {
+			return out;
+		}
+		return new ProxyOutputStream(out) {
+			@Override
+			protected void afterWrite(int n) {
+				outputBytes += n;
+			}
+		};
+
+	}
+
+
+	/**
+	 * @param out Writer for the results
+	 * @return the writer itself while instrumentation is disabled, otherwise a wrapper counting the characters written
+	 */
+	public Writer wrap(Writer out) {
+
+		if (!ProcessorMetrics.isInstrumenting()) {
+			return out;
+		}
+		return new ProxyWriter(out) {
+			@Override
+			protected void afterWrite(int n) {
+				outputBytes += n;
+			}
+		};
+
+	}
+
+
+	/**
+	 * @return kind of processor
+	 */
+	public String getProcessorType() {
+		return metrics.getProcessorType();
+	}
+
+
+	/**
+	 * @return TRUE if the call failed
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+
+	/**
+	 * @return parse time (nanoseconds, 0 for content that was already parsed)
+	 */
+	public long getParseNanos() {
+		return parseNanos;
+	}
+
+
+	/**
+	 * @return evaluation time (nanoseconds)
+	 */
+	public long getEvaluateNanos() {
+		return evaluateNanos;
+	}
+
+
+	/**
+	 * @return serialization time (nanoseconds)
+	 */
+	public long getSerializeNanos() {
+		return serializeNanos;
+	}
+
+
+	/**
+	 * @return size of the content (bytes, or characters for character content; 0 if unknown)
+	 */
+	public long getInputBytes() {
+		return inputBytes;
+	}
+
+
+	/**
+	 * @return size of the results (bytes, or characters for a Writer)
+	 */
+	public long getOutputBytes() {
+		return outputBytes;
+	}
+
+
+	/**
+	 * @return number of result items
+	 */
+	public long getResultItems() {
+		return resultItems;
+	}
+
+
+	/**
+	 * Destination timing the Receiver of another Destination.
+	 */
+	private static class TimedDestination implements Destination {
+
+		private final Destination destination;
+		private long nanos = 0;
+		private long items = 0;
+
+		private TimedDestination(Destination destination) {
+			this.destination = destination;
+		}
+
+		@Override
+		public void setDestinationBaseURI(URI baseURI) {
+			destination.setDestinationBaseURI(baseURI);
+		}
+
+		@Override
+		public URI getDestinationBaseURI() {
+			return destination.getDestinationBaseURI();
+		}
+
+		@Override
+		public Receiver getReceiver(PipelineConfiguration pipe, SerializationProperties params) throws SaxonApiException {
+			return new TimedReceiver(destination.getReceiver(pipe, params));
+		}
+
+		@Override
+		public void onClose(Action listener) {
+			destination.onClose(listener);
+		}
+
+		@Override
+		public void closeAndNotify() throws SaxonApiException {
+			destination.closeAndNotify();
+		}
+
+		@Override
+		public void close() throws SaxonApiException {
+			destination.close();
+		}
+
+		/**
+		 * Receiver adding the time spent in the next Receiver to the destination's total
+		 * and counting the top level items.
+		 */
+		private class TimedReceiver extends ProxyReceiver {
+
+			private int depth = 0;
+
+			private TimedReceiver(Receiver next) {
+				super(next);
+			}
+
+			private void item() {
+				if (depth == 0) {
+					items++;
+				}
+			}
+
+			@Override
+			public void open() throws XPathException {
+				long start = System.nanoTime();
+				super.open();
+				nanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void close() throws XPathException {
+				long start = System.nanoTime();
+				super.close();
+				nanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void startDocument(int properties) throws XPathException {
+				item();
+				depth++;
+				long start = System.nanoTime();
+				super.startDocument(properties);
+				nanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void endDocument() throws XPathException {
+				depth--;
+				long start = System.nanoTime();
+				super.endDocument();
+				nanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void startElement(NodeName elemName, SchemaType type, AttributeMap attributes, NamespaceMap namespaces, Location location, int properties) throws XPathException {
+				item();
+				depth++;
+				long start = System.nanoTime();
+				super.startElement(elemName, type, attributes, namespaces, location, properties);
+				nanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void endElement() throws XPathException {
+				depth--;
+				long start = System.nanoTime();
+				super.endElement();
+				nanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void characters(CharSequence chars, Location location, int properties) throws XPathException {
+				item();
+				long start = System.nanoTime();
+				super.characters(chars, location, properties);
+				nanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void processingInstruction(String name, CharSequence data, Location location, int properties) throws XPathException {
+				item();
+				long start = System.nanoTime();
+				super.processingInstruction(name, data, location, properties);
+				nanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void comment(CharSequence content, Location location, int properties) throws XPathException {
+				item();
+				long start = System.nanoTime();
+				super.comment(content, location, properties);
+				nanos += System.nanoTime() - start;
+			}
+
+			@Override
+			public void append(Item item, Location location, int properties) throws XPathException {
+				item();
+				long start = System.nanoTime();
+				super.append(item, location, properties);
+				nanos += System.nanoTime() - start;
+			}
+
+		}
+
+	}
+
+}
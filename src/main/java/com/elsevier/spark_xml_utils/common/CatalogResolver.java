@@ -0,0 +1,44 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.IOException;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+
+/**
+ * EntityResolver resolving external DTDs and entities with the JVM-wide EntityCatalog.
+ * Every processor's parser is given one (see SharedConfiguration), so it only needs to
+ * be named in the feature mappings (FeatureKeys.ENTITY_RESOLVER_CLASS) to put it back
+ * after another resolver was set.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class CatalogResolver implements EntityResolver {
+
+	@Override
+	public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+
+		return EntityCatalog.resolve(publicId, systemId);
+
+	}
+
+}
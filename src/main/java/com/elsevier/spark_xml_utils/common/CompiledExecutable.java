@@ -0,0 +1,67 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import net.sf.saxon.s9api.Processor;
+
+
+/**
+ * A compiled XPath expression, XQuery expression or XSLT stylesheet together with
+ * the Processor that compiled it.  Document builders and serializers used with the
+ * executable must be created from the same Processor.
+ *
+ * @author Darin McBeath
+ *
+ * @param <T> XPathExecutable, XQueryExecutable or XsltExecutable
+ */
+public class CompiledExecutable<T> {
+
+	// Member variables
+	private final Processor proc;
+	private final T executable;
+
+
+	/**
+	 * Create an instance of CompiledExecutable.
+	 *
+	 * @param proc Processor used to compile the executable
+	 * @param executable the compiled executable
+	 */
+	public CompiledExecutable(Processor proc, T executable) {
+
+		this.proc = proc;
+		this.executable = executable;
+
+	}
+
+
+	/**
+	 * @return Processor used to compile the executable
+	 */
+	public Processor getProcessor() {
+		return proc;
+	}
+
+
+	/**
+	 * @return the compiled executable
+	 */
+	public T getExecutable() {
+		return executable;
+	}
+
+}
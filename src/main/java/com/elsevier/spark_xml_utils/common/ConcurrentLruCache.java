@@ -0,0 +1,264 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded, thread-safe cache with least recently used eviction.  Values are
+ * loaded on demand and only once per key: concurrent requests for a key that is
+ * still being loaded wait for the first load to complete rather than repeating
+ * the work.  Hit, miss and eviction counts are kept for monitoring.
+ *
+ * @author Darin McBeath
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ConcurrentLruCache<K,V> {
+
+	/**
+	 * Loads the value for a key that is not (yet) in the cache.
+	 *
+	 * @param <V> value type
+	 * @param <E> exception thrown when the value cannot be loaded
+	 */
+	public interface Loader<V, E extends Exception> {
+		V load() throws E;
+	}
+
+
+	/**
+	 * Slot for a single key.  The value is loaded while holding the slot's lock,
+	 * so callers asking for the same key wait for the same load.
+	 */
+	private static class Slot<V> {
+
+		private volatile V value = null;
+
+	}
+
+
+	// Member variables
+	private final LinkedHashMap<K,Slot<V>> slots = new LinkedHashMap<K,Slot<V>>(16, 0.75f, true);
+	private volatile int maximumSize;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+
+	/**
+	 * Create a cache holding at most maximumSize entries.
+	 *
+	 * @param maximumSize maximum number of entries
+	 */
+	public ConcurrentLruCache(int maximumSize) {
+
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be at least 1: " + maximumSize);
+		}
+		this.maximumSize = maximumSize;
+
+	}
+
+
+	/**
+	 * Return the value for the key, loading it with the loader if it is not cached.
+	 * If the load fails, nothing is cached and the exception is passed to the caller.
+	 *
+	 * @param key cache key
+	 * @param loader used to create the value when it is not cached
+	 * @return cached or newly loaded value
+	 * @throws E when the value could not be loaded
+	 */
+	public <E extends Exception> V get(K key, Loader<? extends V,E> loader) throws E {
+
+		Slot<V> slot;
+		synchronized (slots) {
+			slot = slots.get(key);
+			if (slot == null) {
+				slot = new Slot<V>();
+				slots.put(key, slot);
+				evict();
+			}
+		}
+
+		V value = slot.value;
+		if (value != null) {
+			hits.incrementAndGet();
+			return value;
+		}
+
+		synchronized (slot) {
+
+			// Another thread may have completed the load while we waited
+			if (slot.value != null) {
+				hits.incrementAndGet();
+				return slot.value;
+			}
+
+			misses.incrementAndGet();
+			boolean loaded = false;
+			try {
+				value = loader.load();
+				if (value == null) {
+					throw new IllegalStateException("Loader returned null for key " + key);
+				}
+				slot.value = value;
+				loaded = true;
+				return value;
+			} finally {
+				if (!loaded) {
+					synchronized (slots) {
+						if (slots.get(key) == slot) {
+							slots.remove(key);
+						}
+					}
+				}
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Return the cached value for the key (without loading it).
+	 *
+	 * @param key cache key
+	 * @return cached value or null
+	 */
+	public V getIfPresent(K key) {
+
+		Slot<V> slot;
+		synchronized (slots) {
+			slot = slots.get(key);
+		}
+		return slot == null ? null : slot.value;
+
+	}
+
+
+	/**
+	 * Remove the entry for the key.
+	 *
+	 * @param key cache key
+	 */
+	public void remove(K key) {
+
+		synchronized (slots) {
+			slots.remove(key);
+		}
+
+	}
+
+
+	/**
+	 * Remove all entries.  The counters are not reset.
+	 */
+	public void clear() {
+
+		synchronized (slots) {
+			slots.clear();
+		}
+
+	}
+
+
+	/**
+	 * Change the maximum number of entries, evicting the least recently used entries
+	 * if the cache is now too large.
+	 *
+	 * @param maximumSize maximum number of entries
+	 */
+	public void setMaximumSize(int maximumSize) {
+
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Maximum size must be at least 1: " + maximumSize);
+		}
+		synchronized (slots) {
+			this.maximumSize = maximumSize;
+			evict();
+		}
+
+	}
+
+
+	/**
+	 * @return maximum number of entries
+	 */
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+
+	/**
+	 * @return current number of entries
+	 */
+	public int size() {
+
+		synchronized (slots) {
+			return slots.size();
+		}
+
+	}
+
+
+	/**
+	 * @return number of requests satisfied from the cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+
+	/**
+	 * @return number of requests that required a load
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+
+	/**
+	 * @return number of entries evicted because the cache was full
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+
+	/**
+	 * Evict least recently used entries until the size bound holds.  Must be called
+	 * while holding the lock on slots.
+	 */
+	private void evict() {
+
+		Iterator<Map.Entry<K,Slot<V>>> it = slots.entrySet().iterator();
+		while (slots.size() > maximumSize && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+
+	}
+
+}
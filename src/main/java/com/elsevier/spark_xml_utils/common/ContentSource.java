@@ -0,0 +1,146 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.input.CharSequenceReader;
+
+
+/**
+ * Creates the StreamSource handed to the parser for the different forms the content
+ * can arrive in, without copying the content.  Bytes (a slice of an array or a heap
+ * ByteBuffer) are read in place and decoded by the parser.  Characters (a String or
+ * any other CharSequence) are read through a Reader, so they are never encoded to
+ * bytes just to be decoded again.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ContentSource {
+
+	private ContentSource() {
+	}
+
+
+	/**
+	 * @param content xml bytes
+	 * @param offset start of the xml
+	 * @param length length of the xml
+	 * @return StreamSource reading the bytes in place
+	 */
+	public static StreamSource fromBytes(byte[] content, int offset, int length) {
+
+		return new StreamSource(new ByteArrayInputStream(content, offset, length));
+
+	}
+
+
+	/**
+	 * The bytes between the position and the limit are used.  The position of the buffer
+	 * is not changed.
+	 *
+	 * @param content xml bytes (heap or direct)
+	 * @return StreamSource reading the bytes in place
+	 */
+	public static StreamSource fromByteBuffer(ByteBuffer content) {
+
+		if (content.hasArray()) {
+			return fromBytes(content.array(), content.arrayOffset() + content.position(), content.remaining());
+		}
+		return new StreamSource(new ByteBufferInputStream(content.duplicate()));
+
+	}
+
+
+	/**
+	 * @param content xml characters
+	 * @return StreamSource reading the characters in place
+	 */
+	public static StreamSource fromCharSequence(CharSequence content) {
+
+		if (content instanceof String) {
+			return new StreamSource(new StringReader((String) content));
+		}
+		return new StreamSource(new CharSequenceReader(content));
+
+	}
+
+
+	/**
+	 * @param content xml characters
+	 * @return StreamSource reading the characters
+	 */
+	public static StreamSource fromReader(Reader content) {
+
+		return new StreamSource(content);
+
+	}
+
+
+	/**
+	 * InputStream over the remaining bytes of a ByteBuffer.  The parser reads in blocks,
+	 * so a direct buffer is copied a block at a time straight into the parser's buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			((Buffer) buffer).position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+	}
+
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.AxisExpression;
+import net.sf.saxon.expr.ContextItemExpression;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.FunctionCall;
+import net.sf.saxon.expr.GlobalVariableReference;
+import net.sf.saxon.expr.Operand;
+import net.sf.saxon.expr.RootExpression;
+import net.sf.saxon.expr.SystemFunctionCall;
+import net.sf.saxon.expr.parser.PathMap;
+import net.sf.saxon.lib.FeatureKeys;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.FingerprintedQName;
+import net.sf.saxon.pattern.NodeTest;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.type.Untyped;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+
+/**
+ * Builds only the parts of a document an expression can reach.  The paths the compiled
+ * expression follows from the document node (Saxon's PathMap) are turned into a tree of
+ * node tests, and a SAX filter placed between the parser and the tree builder drops every
+ * element that doesn't match a step of one of the paths.  An element whose value is used
+ * (returned, atomized, or the last step of a path) is kept with everything below it; an
+ * element that is only passed through on the way to something else is kept with its
+ * attributes but without the children no path leads to.  Where the text of an element is
+ * kept, a dropped child element is kept as an empty placeholder (and a dropped comment or
+ * processing instruction as it is), so the text on either side of it stays two text nodes.
+ * <p>
+ * The analysis gives up (getInstance returns null, and the full tree is built) whenever it
+ * can't be sure what is reachable: reverse and sibling axes, a descendant axis from the
+ * document node (for example //*), the document node itself being used, functions that
+ * read a whole node without saying so (for example string and deep-equal), and anything
+ * the path map can't see into (user defined, dynamic and higher order functions, global
+ * variables).
+ *
+ * @author Darin McBeath
+ *
+ */
+public class DocumentProjection {
+
+	// Functions (in the fn namespace) that use all of a node without the path map showing it
+	private static final Set<String> WHOLE_NODE_FUNCTIONS = new HashSet<String>(Arrays.asList(
+			"string", "deep-equal", "serialize", "has-children", "copy-of", "snapshot"));
+
+	// Functions (in the fn namespace) that can reach any part of the document
+	private static final Set<String> UNANALYZABLE_FUNCTIONS = new HashSet<String>(Arrays.asList(
+			"id", "idref", "element-with-id", "function-lookup", "transform", "load-xquery-module"));
+
+	// Namespaces of the functions the path map is trusted for
+	private static final Set<String> KNOWN_FUNCTION_NAMESPACES = new HashSet<String>(Arrays.asList(
+			NamespaceConstant.FN, NamespaceConstant.MATH, NamespaceConstant.SCHEMA));
+
+	// Member variables
+	private final Step root;
+
+
+	/**
+	 * Create an instance of DocumentProjection.
+	 *
+	 * @param root what is kept of the document node's children
+	 */
+	private DocumentProjection(Step root) {
+
+		this.root = root;
+
+	}
+
+
+	/**
+	 * Analyze the expression.
+	 *
+	 * @param expression compiled expression (evaluated with the document node as the context item)
+	 * @param featureMappings Processor feature mappings
+	 * @return DocumentProjection, or null if every part of the document may be needed
+	 */
+	public static DocumentProjection getInstance(Expression expression, HashMap<String,Object> featureMappings) {
+
+		// A different parser or XInclude processing changes what the filter would see
+		if (featureMappings != null && (featureMappings.containsKey(FeatureKeys.SOURCE_PARSER_CLASS) ||
+				Boolean.TRUE.equals(featureMappings.get(FeatureKeys.XINCLUDE)))) {
+			return null;
+		}
+
+		List<Expression> wholeNodeArguments = new ArrayList<Expression>();
+		if (!isAnalyzable(expression, wholeNodeArguments)) {
+			return null;
+		}
+
+		// The paths of the expression, and (kept in full) the nodes passed to functions that use all of a node
+		Analyzer analyzer = new Analyzer();
+		Step root = new Step();
+		if (!analyzer.addPaths(root, new PathMap(expression), true)) {
+			return null;
+		}
+		for (Expression argument : wholeNodeArguments) {
+			if (!analyzer.addPaths(root, new PathMap(argument), false)) {
+				return null;
+			}
+		}
+		return analyzer.leavesSubtree() ? null : new DocumentProjection(root);
+
+	}
+
+
+	/**
+	 * Parse the content, keeping only what the expression can reach.  Content that isn't read
+	 * by a parser (for example a tree that has already been built) is built as usual.
+	 *
+	 * @param builder document builder
+	 * @param config configuration supplying the parser
+	 * @param content xml to parse
+	 * @return root of the projected tree
+	 * @throws SaxonApiException
+	 */
+	public XdmNode build(DocumentBuilder builder, Configuration config, Source content) throws SaxonApiException {
+
+		if (!(content instanceof StreamSource)) {
+			return builder.build(content);
+		}
+
+		XMLReader parser = config.getSourceParser();
+		try {
+			return builder.build(new SAXSource(new ProjectionFilter(parser, root), SAXSource.sourceToInputSource(content)));
+		} finally {
+			config.reuseSourceParser(parser);
+		}
+
+	}
+
+
+	/**
+	 * Check for anything the path map can't see into, and collect the arguments of the
+	 * functions that use all of a node.
+	 *
+	 * @param expression compiled expression
+	 * @param wholeNodeArguments arguments of the functions that use all of a node
+	 * @return true if the path map (with the arguments) describes everything the expression reads
+	 */
+	private static boolean isAnalyzable(Expression expression, List<Expression> wholeNodeArguments) {
+
+		if (expression instanceof GlobalVariableReference) {
+			return false;
+		}
+		if (expression.getClass().getName().startsWith("net.sf.saxon.functions.hof.")) {
+			return false;
+		}
+		if (expression instanceof FunctionCall) {
+			if (!(expression instanceof SystemFunctionCall)) {
+				return false;
+			}
+			String uri = ((FunctionCall) expression).getFunctionName().getURI();
+			String local = ((FunctionCall) expression).getFunctionName().getLocalPart();
+			if (!KNOWN_FUNCTION_NAMESPACES.contains(uri)) {
+				return false;
+			}
+			if (NamespaceConstant.FN.equals(uri)) {
+				if (UNANALYZABLE_FUNCTIONS.contains(local)) {
+					return false;
+				}
+				if (WHOLE_NODE_FUNCTIONS.contains(local)) {
+					wholeNodeArguments.addAll(Arrays.asList(((FunctionCall) expression).getArguments()));
+				}
+			}
+		}
+		if (expression instanceof AxisExpression && !isDownward(((AxisExpression) expression).getAxis())) {
+			return false;
+		}
+		for (Operand operand : expression.operands()) {
+			if (!isAnalyzable(operand.getChildExpression(), wholeNodeArguments)) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+
+	/**
+	 * @param axis axis number
+	 * @return true if the axis only reaches the node itself, its attributes or its descendants
+	 */
+	private static boolean isDownward(int axis) {
+
+		return axis == AxisInfo.CHILD || axis == AxisInfo.DESCENDANT || axis == AxisInfo.DESCENDANT_OR_SELF ||
+				axis == AxisInfo.SELF || axis == AxisInfo.ATTRIBUTE;
+
+	}
+
+
+	/**
+	 * What is kept of the children of an element (or of the document node).  An element is kept
+	 * if it matches one of the tests, and what is kept of its own children is then described by
+	 * the corresponding step.  A full step keeps everything.
+	 */
+	private static class Step {
+
+		private boolean full = false;
+		private boolean leaves = false;
+		private final List<NodeTest> tests = new ArrayList<NodeTest>();
+		private final List<Step> targets = new ArrayList<Step>();
+
+	}
+
+
+	/**
+	 * Turns path maps into steps.
+	 */
+	private static class Analyzer {
+
+		// Steps already created for a path map node (the path map can share nodes)
+		private final IdentityHashMap<PathMap.PathMapNode,Step> steps = new IdentityHashMap<PathMap.PathMapNode,Step>();
+
+		/**
+		 * Add the paths of a path map that start in the document.
+		 *
+		 * @param root document step
+		 * @param pathMap path map of an expression
+		 * @param contextIsDocument true if the expression is evaluated with the document node as the context item
+		 * @return false if the whole document may be needed
+		 */
+		private boolean addPaths(Step root, PathMap pathMap, boolean contextIsDocument) {
+
+			for (PathMap.PathMapRoot pathRoot : pathMap.getPathMapRoots()) {
+				Expression rootExpression = pathRoot.getRootExpression();
+				if (rootExpression instanceof ContextItemExpression || rootExpression instanceof RootExpression) {
+					// The document node (or a node that isn't known) being used needs the whole document
+					boolean isDocument = contextIsDocument || rootExpression instanceof RootExpression;
+					if (pathRoot.isReturnable() || pathRoot.isAtomized() || !addDocument(root, pathRoot, isDocument)) {
+						return false;
+					}
+				} else if (!contextIsDocument && (pathRoot.isReturnable() || pathRoot.getArcs().length > 0)) {
+					// Nodes from a variable (for example string($x)) can't be traced back to the document
+					return false;
+				} else if (hasUnknownDependencies(pathRoot)) {
+					return false;
+				}
+			}
+			return true;
+
+		}
+
+		/**
+		 * Add the paths that start at the document node.
+		 *
+		 * @param step document step
+		 * @param node path map node that is (or when not known to be, leads to) the document node
+		 * @param isDocument true if the node is known to be the document node
+		 * @return false if the whole document may be needed
+		 */
+		private boolean addDocument(Step step, PathMap.PathMapNode node, boolean isDocument) {
+
+			if (node.hasUnknownDependencies()) {
+				return false;
+			}
+			for (PathMap.PathMapArc arc : node.getArcs()) {
+				int axis = arc.getAxis();
+				PathMap.PathMapNode target = arc.getTarget();
+				if (axis == AxisInfo.ANCESTOR_OR_SELF || axis == AxisInfo.SELF) {
+					// The document node itself (for example the leading / of a path)
+					boolean targetIsDocument = isDocument || axis == AxisInfo.ANCESTOR_OR_SELF;
+					if (target.isReturnable() || target.isAtomized() || !addDocument(step, target, targetIsDocument)) {
+						return false;
+					}
+				} else if (axis == AxisInfo.CHILD && isDocument) {
+					step.tests.add(arc.getNodeTest());
+					step.targets.add(toStep(arc.getTarget()));
+				} else {
+					return false;
+				}
+			}
+			return true;
+
+		}
+
+		/**
+		 * @param node path map node for an element
+		 * @return what is kept of the element's children
+		 */
+		private Step toStep(PathMap.PathMapNode node) {
+
+			Step step = steps.get(node);
+			if (step != null) {
+				return step;
+			}
+			step = new Step();
+			steps.put(node, step);
+			addArcs(step, node);
+			return step;
+
+		}
+
+		/**
+		 * @param step step for the element
+		 * @param node path map node for the element
+		 */
+		private void addArcs(Step step, PathMap.PathMapNode node) {
+
+			PathMap.PathMapArc[] arcs = node.getArcs();
+			if (node.isReturnable() || node.isAtomized() || node.hasUnknownDependencies() || arcs.length == 0) {
+				step.full = true;
+				return;
+			}
+			for (PathMap.PathMapArc arc : arcs) {
+				int axis = arc.getAxis();
+				if (axis == AxisInfo.CHILD) {
+					step.tests.add(arc.getNodeTest());
+					step.targets.add(toStep(arc.getTarget()));
+				} else if (axis == AxisInfo.SELF) {
+					addArcs(step, arc.getTarget());
+				} else if (axis != AxisInfo.ATTRIBUTE) {
+					// Descendants, or an axis that leaves the subtree: keep all of it (and let the
+					// caller check for axes that leave the subtree)
+					step.full = true;
+					step.leaves |= !isDownward(axis);
+					return;
+				}
+			}
+
+		}
+
+		/**
+		 * @param node path map node
+		 * @return true if any node reachable from it has unknown dependencies
+		 */
+		private boolean hasUnknownDependencies(PathMap.PathMapNode node) {
+
+			if (node.hasUnknownDependencies()) {
+				return true;
+			}
+			for (PathMap.PathMapArc arc : node.getArcs()) {
+				if (hasUnknownDependencies(arc.getTarget())) {
+					return true;
+				}
+			}
+			return false;
+
+		}
+
+		/**
+		 * @return true if some path leaves the subtree of an element (a reverse or sibling axis)
+		 */
+		private boolean leavesSubtree() {
+
+			for (Step step : steps.values()) {
+				if (step.leaves) {
+					return true;
+				}
+			}
+			return false;
+
+		}
+
+	}
+
+
+	/**
+	 * SAX filter that only passes on the events for the nodes the steps keep.
+	 */
+	private static class ProjectionFilter extends XMLFilterImpl implements LexicalHandler {
+
+		private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+		private static final Attributes EMPTY_ATTRIBUTES = new AttributesImpl();
+
+		// Steps for the open elements (null when the element is kept in full)
+		private final List<List<Step>> open = new ArrayList<List<Step>>();
+		private List<Step> current;
+		private boolean currentFull = false;
+		private int skipped = 0;
+		private boolean placeholder = false;
+		private LexicalHandler lexicalHandler = null;
+
+		private ProjectionFilter(XMLReader parent, Step root) {
+			super(parent);
+			current = new ArrayList<Step>();
+			current.add(root);
+		}
+
+		@Override
+		public void setProperty(String name, Object value) throws SAXNotRecognizedException, SAXNotSupportedException {
+			if (LEXICAL_HANDLER.equals(name)) {
+				lexicalHandler = (LexicalHandler) value;
+				super.setProperty(name, this);
+			} else {
+				super.setProperty(name, value);
+			}
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+
+			if (skipped > 0) {
+				skipped++;
+				return;
+			}
+
+			if (!currentFull) {
+				FingerprintedQName name = new FingerprintedQName(prefix(qName), uri, localName);
+				List<Step> matched = null;
+				boolean full = false;
+				for (Step step : current) {
+					for (int i = 0; i < step.tests.size(); i++) {
+						if (step.tests.get(i).matches(Type.ELEMENT, name, Untyped.getInstance())) {
+							Step target = step.targets.get(i);
+							if (matched == null) {
+								matched = new ArrayList<Step>(2);
+							}
+							matched.add(target);
+							full |= target.full;
+						}
+					}
+				}
+				if (matched == null) {
+					// Nothing reaches the element, but it still separates the text around it
+					placeholder = keeps(Type.TEXT, null);
+					skipped = 1;
+					if (placeholder) {
+						super.startElement(uri, localName, qName, EMPTY_ATTRIBUTES);
+					}
+					return;
+				}
+				open.add(current);
+				current = matched;
+				currentFull = full;
+			} else {
+				open.add(null);
+			}
+
+			super.startElement(uri, localName, qName, atts);
+
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+
+			if (skipped > 0) {
+				skipped--;
+				if (skipped == 0 && placeholder) {
+					placeholder = false;
+					super.endElement(uri, localName, qName);
+				}
+				return;
+			}
+
+			List<Step> parent = open.remove(open.size() - 1);
+			if (parent != null) {
+				current = parent;
+				currentFull = false;
+			}
+			super.endElement(uri, localName, qName);
+
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			if (keeps(Type.TEXT, null)) {
+				super.characters(ch, start, length);
+			}
+		}
+
+		@Override
+		public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+			if (keeps(Type.TEXT, null)) {
+				super.ignorableWhitespace(ch, start, length);
+			}
+		}
+
+		@Override
+		public void processingInstruction(String target, String data) throws SAXException {
+			if (keeps(Type.PROCESSING_INSTRUCTION, new FingerprintedQName("", "", target)) || keeps(Type.TEXT, null)) {
+				super.processingInstruction(target, data);
+			}
+		}
+
+		@Override
+		public void comment(char[] ch, int start, int length) throws SAXException {
+			if (lexicalHandler != null && (keeps(Type.COMMENT, null) || keeps(Type.TEXT, null))) {
+				lexicalHandler.comment(ch, start, length);
+			}
+		}
+
+		@Override
+		public void startDTD(String name, String publicId, String systemId) throws SAXException {
+			if (lexicalHandler != null) {
+				lexicalHandler.startDTD(name, publicId, systemId);
+			}
+		}
+
+		@Override
+		public void endDTD() throws SAXException {
+			if (lexicalHandler != null) {
+				lexicalHandler.endDTD();
+			}
+		}
+
+		@Override
+		public void startEntity(String name) throws SAXException {
+			if (lexicalHandler != null) {
+				lexicalHandler.startEntity(name);
+			}
+		}
+
+		@Override
+		public void endEntity(String name) throws SAXException {
+			if (lexicalHandler != null) {
+				lexicalHandler.endEntity(name);
+			}
+		}
+
+		@Override
+		public void startCDATA() throws SAXException {
+			if (lexicalHandler != null) {
+				lexicalHandler.startCDATA();
+			}
+		}
+
+		@Override
+		public void endCDATA() throws SAXException {
+			if (lexicalHandler != null) {
+				lexicalHandler.endCDATA();
+			}
+		}
+
+		/**
+		 * @param kind node kind
+		 * @param name node name (for a processing instruction)
+		 * @return true if a child of the current element of this kind is kept
+		 */
+		private boolean keeps(int kind, FingerprintedQName name) {
+
+			if (skipped > 0) {
+				return false;
+			}
+			if (currentFull) {
+				return true;
+			}
+			for (Step step : current) {
+				for (NodeTest test : step.tests) {
+					if (test.matches(kind, name, Untyped.getInstance())) {
+						return true;
+					}
+				}
+			}
+			return false;
+
+		}
+
+		/**
+		 * @param qName qualified name
+		 * @return prefix of the name
+		 */
+		private static String prefix(String qName) {
+			int colon = qName.indexOf(':');
+			return colon < 0 ? "" : qName.substring(0, colon);
+		}
+
+	}
+
+}
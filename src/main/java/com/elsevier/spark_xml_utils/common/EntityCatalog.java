@@ -0,0 +1,515 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+
+/**
+ * JVM-wide catalog of external DTDs and entities, used by CatalogResolver (which every
+ * processor's parser is given) to resolve the external entities declared by the content.
+ * Without it, a document that declares an external DTD has it retrieved (often over the
+ * network) each time the document is parsed.
+ * <p>
+ * Entries map a public id or system id to a (local) uri, as in an OASIS XML catalog:
+ * system, rewriteSystem, systemSuffix and public entries are supported, either added
+ * here or loaded from catalog files (addCatalog, or the uris in the system property
+ * {@value #CATALOGS_PROPERTY} separated by ';').  The content of resolved entities is
+ * retrieved like the resources in ResourceCache (so classpath: and jar: uris can point
+ * inside the application) and kept in a cache of its own, holding at most
+ * {@value #DEFAULT_MAXIMUM_SIZE} entities unless the system property
+ * {@value #MAXIMUM_SIZE_PROPERTY} says otherwise.
+ * <p>
+ * The Mode (the system property {@value #MODE_PROPERTY} or setMode) says what to do with
+ * an entity the catalog doesn't know.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class EntityCatalog {
+
+	/** System property with the mode (fetch, ignore, local or fail) */
+	public static final String MODE_PROPERTY = "spark_xml_utils.entity.mode";
+
+	/** System property with the uris of the catalog files to load (separated by ';') */
+	public static final String CATALOGS_PROPERTY = "spark_xml_utils.entity.catalogs";
+
+	/** System property with the maximum number of cached entities */
+	public static final String MAXIMUM_SIZE_PROPERTY = "spark_xml_utils.entity.cache.size";
+
+	/** Default maximum number of cached entities */
+	public static final int DEFAULT_MAXIMUM_SIZE = 256;
+
+	// Namespace of OASIS XML catalogs
+	private static final String CATALOG_NAMESPACE = "urn:oasis:names:tc:entity:xmlns:xml:catalog";
+
+	// Content returned for an ignored entity
+	private static final byte[] EMPTY_ENTITY = "<?xml version='1.0' encoding='UTF-8'?>".getBytes();
+
+	/**
+	 * What to do with an external entity.  Entities in the catalog are always resolved
+	 * with the catalog (except when ignoring everything).
+	 */
+	public enum Mode {
+
+		/** Retrieve entities the catalog doesn't know from their system id (the default) */
+		FETCH,
+
+		/** Replace every external entity (DTDs included) with an empty one */
+		IGNORE,
+
+		/** Replace entities the catalog doesn't know with an empty one, never retrieving them */
+		LOCAL,
+
+		/** Fail the parse of content declaring an entity the catalog doesn't know */
+		FAIL
+
+	}
+
+	// Logger
+	private static Log log = LogFactory.getLog(EntityCatalog.class);
+
+	// Catalog entries
+	private static final Map<String,String> publicEntries = new ConcurrentHashMap<String,String>();
+	private static final Map<String,String> systemEntries = new ConcurrentHashMap<String,String>();
+	private static final Map<String,String> rewriteSystemEntries = new ConcurrentHashMap<String,String>();
+	private static final Map<String,String> systemSuffixEntries = new ConcurrentHashMap<String,String>();
+
+	// Cached entities (keyed by uri)
+	private static final ConcurrentLruCache<String,byte[]> cache =
+			new ConcurrentLruCache<String,byte[]>(Integer.getInteger(MAXIMUM_SIZE_PROPERTY, DEFAULT_MAXIMUM_SIZE));
+
+	// Counters
+	private static final LongAdder resolutions = new LongAdder();
+	private static final LongAdder catalogMatches = new LongAdder();
+	private static final LongAdder ignored = new LongAdder();
+	private static final LongAdder failures = new LongAdder();
+
+	// What to do with an entity the catalog doesn't know
+	private static volatile Mode mode = Mode.valueOf(System.getProperty(MODE_PROPERTY, Mode.FETCH.name()).toUpperCase());
+
+	static {
+		String catalogs = System.getProperty(CATALOGS_PROPERTY);
+		if (catalogs != null) {
+			for (String catalog : catalogs.split(";")) {
+				if (!catalog.trim().isEmpty()) {
+					try {
+						addCatalog(catalog.trim());
+					} catch (IOException e) {
+						log.error("Problems loading an entity catalog. URI:" + catalog + " " + e.getMessage(), e);
+					}
+				}
+			}
+		}
+	}
+
+
+	private EntityCatalog() {
+	}
+
+
+	/**
+	 * @param newMode what to do with an entity the catalog doesn't know
+	 */
+	public static void setMode(Mode newMode) {
+		mode = newMode;
+	}
+
+
+	/**
+	 * @return what to do with an entity the catalog doesn't know
+	 */
+	public static Mode getMode() {
+		return mode;
+	}
+
+
+	/**
+	 * Resolve the public id to the uri.
+	 *
+	 * @param publicId public id (for example -//OASIS//DTD DocBook XML V4.5//EN)
+	 * @param uri absolute uri of the entity
+	 */
+	public static void addPublic(String publicId, String uri) {
+		publicEntries.put(normalizePublicId(publicId), uri);
+	}
+
+
+	/**
+	 * Resolve the system id to the uri.
+	 *
+	 * @param systemId system id
+	 * @param uri absolute uri of the entity
+	 */
+	public static void addSystem(String systemId, String uri) {
+		systemEntries.put(systemId, uri);
+	}
+
+
+	/**
+	 * Resolve system ids starting with the prefix by replacing the prefix (the longest
+	 * matching prefix is used).
+	 *
+	 * @param systemIdStart start of the system ids (for example http://www.example.com/dtd/)
+	 * @param rewritePrefix replacement (for example classpath:/dtd/)
+	 */
+	public static void addRewriteSystem(String systemIdStart, String rewritePrefix) {
+		rewriteSystemEntries.put(systemIdStart, rewritePrefix);
+	}
+
+
+	/**
+	 * Resolve system ids ending with the suffix to the uri (the longest matching suffix is
+	 * used).  Useful for relative system ids such as sample.dtd, which the parser makes
+	 * absolute against wherever the content came from.
+	 *
+	 * @param systemIdSuffix end of the system ids
+	 * @param uri absolute uri of the entity
+	 */
+	public static void addSystemSuffix(String systemIdSuffix, String uri) {
+		systemSuffixEntries.put(systemIdSuffix, uri);
+	}
+
+
+	/**
+	 * Add the entries of an OASIS XML catalog (and of the catalogs it names in nextCatalog
+	 * entries).  Relative uris are resolved against the catalog (or its xml:base).
+	 *
+	 * @param uri absolute uri of the catalog (file:, classpath:, http: and so on)
+	 * @throws IOException when the catalog can't be retrieved or parsed
+	 */
+	public static void addCatalog(String uri) throws IOException {
+
+		List<String> next = new ArrayList<String>();
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			InputSource source = new InputSource(new ByteArrayInputStream(ResourceCache.get(uri)));
+			source.setSystemId(uri);
+			factory.newSAXParser().parse(source, new CatalogHandler(uri, next));
+		} catch (SAXException | ParserConfigurationException e) {
+			throw new IOException("Invalid entity catalog: " + uri + " " + e.getMessage(), e);
+		}
+		for (String catalog : next) {
+			addCatalog(catalog);
+		}
+
+	}
+
+
+	/**
+	 * Remove the catalog entries and the cached entities.
+	 */
+	public static void clear() {
+
+		publicEntries.clear();
+		systemEntries.clear();
+		rewriteSystemEntries.clear();
+		systemSuffixEntries.clear();
+		cache.clear();
+
+	}
+
+
+	/**
+	 * Find the uri of an entity in the catalog: a system entry, then the longest
+	 * rewriteSystem and systemSuffix entries, then a public entry.
+	 *
+	 * @param publicId public id of the entity (may be null)
+	 * @param systemId system id of the entity (may be null)
+	 * @return uri (null if the catalog doesn't know the entity)
+	 */
+	public static String lookup(String publicId, String systemId) {
+
+		if (systemId != null) {
+			String uri = systemEntries.get(systemId);
+			if (uri != null) {
+				return uri;
+			}
+			String start = longest(rewriteSystemEntries, systemId, true);
+			if (start != null) {
+				return rewriteSystemEntries.get(start) + systemId.substring(start.length());
+			}
+			String suffix = longest(systemSuffixEntries, systemId, false);
+			if (suffix != null) {
+				return systemSuffixEntries.get(suffix);
+			}
+		}
+		if (publicId != null) {
+			return publicEntries.get(normalizePublicId(publicId));
+		}
+		return null;
+
+	}
+
+
+	/**
+	 * Resolve an external entity according to the catalog and the mode.
+	 *
+	 * @param publicId public id of the entity (may be null)
+	 * @param systemId system id of the entity (absolute, may be null)
+	 * @return InputSource with the entity's content (null to let the parser retrieve it)
+	 * @throws SAXException when the mode is FAIL and the catalog doesn't know the entity
+	 * @throws IOException when the entity can't be retrieved
+	 */
+	public static InputSource resolve(String publicId, String systemId) throws SAXException, IOException {
+
+		resolutions.increment();
+		Mode current = mode;
+		if (current == Mode.IGNORE) {
+			return ignore(systemId);
+		}
+
+		String uri = lookup(publicId, systemId);
+		if (uri != null) {
+			catalogMatches.increment();
+		} else if (current == Mode.LOCAL) {
+			return ignore(systemId);
+		} else if (current == Mode.FAIL) {
+			failures.increment();
+			throw new SAXException("No catalog entry for the external entity. PUBLIC:" + publicId + " SYSTEM:" + systemId);
+		} else if (systemId == null) {
+			return null;
+		} else {
+			uri = systemId;
+		}
+
+		final String entity = uri;
+		InputSource source = new InputSource(new ByteArrayInputStream(cache.get(entity, () -> ResourceCache.retrieve(entity))));
+		source.setPublicId(publicId);
+		source.setSystemId(entity);
+		return source;
+
+	}
+
+
+	/**
+	 * @return number of external entities the parsers asked for
+	 */
+	public static long getResolutionCount() {
+		return resolutions.sum();
+	}
+
+
+	/**
+	 * @return number of external entities found in the catalog
+	 */
+	public static long getCatalogMatchCount() {
+		return catalogMatches.sum();
+	}
+
+
+	/**
+	 * @return number of external entities replaced by an empty one
+	 */
+	public static long getIgnoredCount() {
+		return ignored.sum();
+	}
+
+
+	/**
+	 * @return number of external entities that failed the parse (mode FAIL)
+	 */
+	public static long getFailureCount() {
+		return failures.sum();
+	}
+
+
+	/**
+	 * @return number of external entities served from the cache
+	 */
+	public static long getCacheHitCount() {
+		return cache.getHitCount();
+	}
+
+
+	/**
+	 * @return number of external entities retrieved (not in the cache)
+	 */
+	public static long getCacheMissCount() {
+		return cache.getMissCount();
+	}
+
+
+	/**
+	 * Clear the resolution counters.
+	 */
+	public static void resetCounts() {
+
+		resolutions.reset();
+		catalogMatches.reset();
+		ignored.reset();
+		failures.reset();
+
+	}
+
+
+	/**
+	 * Change the maximum number of cached entities.
+	 *
+	 * @param maximumSize maximum number of entries
+	 */
+	public static void setMaximumSize(int maximumSize) {
+		cache.setMaximumSize(maximumSize);
+	}
+
+
+	/**
+	 * @return number of cached entities
+	 */
+	public static int size() {
+		return cache.size();
+	}
+
+
+	/**
+	 * @param systemId system id of the entity
+	 * @return an empty entity
+	 */
+	private static InputSource ignore(String systemId) {
+
+		ignored.increment();
+		InputSource source = new InputSource(new ByteArrayInputStream(EMPTY_ENTITY));
+		source.setSystemId(systemId);
+		return source;
+
+	}
+
+
+	/**
+	 * @param entries rewriteSystem or systemSuffix entries
+	 * @param systemId system id
+	 * @param prefix TRUE to match the start of the system id, FALSE to match its end
+	 * @return longest key matching the system id (null if none)
+	 */
+	private static String longest(Map<String,String> entries, String systemId, boolean prefix) {
+
+		String match = null;
+		for (String key : entries.keySet()) {
+			if ((prefix ? systemId.startsWith(key) : systemId.endsWith(key)) && (match == null || key.length() > match.length())) {
+				match = key;
+			}
+		}
+		return match;
+
+	}
+
+
+	/**
+	 * @param publicId public id
+	 * @return public id with its white space normalized (as the catalog specification requires)
+	 */
+	private static String normalizePublicId(String publicId) {
+		return publicId.trim().replaceAll("\\s+", " ");
+	}
+
+
+	/**
+	 * Adds the entries of an OASIS XML catalog.
+	 */
+	private static class CatalogHandler extends DefaultHandler {
+
+		private final List<String> next;
+		private final List<URI> bases = new ArrayList<URI>();
+
+		private CatalogHandler(String uri, List<String> next) throws IOException {
+
+			this.next = next;
+			try {
+				bases.add(new URI(uri));
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid catalog uri: " + uri, e);
+			}
+
+		}
+
+		@Override
+		public InputSource resolveEntity(String publicId, String systemId) {
+
+			// Catalogs often declare the catalog DTD, which isn't needed
+			return new InputSource(new ByteArrayInputStream(EMPTY_ENTITY));
+
+		}
+
+		@Override
+		public void startElement(String namespace, String localName, String qName, Attributes attributes) throws SAXException {
+
+			URI base = bases.get(bases.size() - 1);
+			String xmlBase = attributes.getValue("http://www.w3.org/XML/1998/namespace", "base");
+			if (xmlBase != null) {
+				base = base.resolve(xmlBase);
+			}
+			bases.add(base);
+			if (!CATALOG_NAMESPACE.equals(namespace)) {
+				return;
+			}
+
+			if (localName.equals("public")) {
+				addPublic(attributes.getValue("publicId"), resolve(base, attributes.getValue("uri")));
+			} else if (localName.equals("system")) {
+				addSystem(attributes.getValue("systemId"), resolve(base, attributes.getValue("uri")));
+			} else if (localName.equals("rewriteSystem")) {
+				addRewriteSystem(attributes.getValue("systemIdStartString"), resolve(base, attributes.getValue("rewritePrefix")));
+			} else if (localName.equals("systemSuffix")) {
+				addSystemSuffix(attributes.getValue("systemIdSuffix"), resolve(base, attributes.getValue("uri")));
+			} else if (localName.equals("nextCatalog")) {
+				next.add(resolve(base, attributes.getValue("catalog")));
+			}
+
+		}
+
+		@Override
+		public void endElement(String namespace, String localName, String qName) {
+			bases.remove(bases.size() - 1);
+		}
+
+		private String resolve(URI base, String uri) throws SAXException {
+
+			if (uri == null) {
+				throw new SAXException("Catalog entry without a uri");
+			}
+			try {
+				return "classpath".equals(base.getScheme()) && !new URI(uri).isAbsolute()
+						? "classpath:" + URI.create(base.getSchemeSpecificPart()).resolve(uri)
+						: base.resolve(uri).toString();
+			} catch (URISyntaxException e) {
+				throw new SAXException("Invalid catalog entry uri: " + uri, e);
+			}
+
+		}
+
+	}
+
+}
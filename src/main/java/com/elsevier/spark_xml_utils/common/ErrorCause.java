@@ -0,0 +1,90 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.IOException;
+
+import org.xml.sax.SAXParseException;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.trans.XPathException;
+
+
+/**
+ * What went wrong in a failed call of a processor, used to group the error counters
+ * and the rate limited log messages.
+ *
+ * @author Darin McBeath
+ *
+ */
+public enum ErrorCause {
+
+	/** The content isn't well formed xml */
+	MALFORMED_CONTENT,
+
+	/** The expression or stylesheet raised a dynamic error */
+	EVALUATION,
+
+	/** The results couldn't be serialized */
+	SERIALIZATION,
+
+	/** The content couldn't be read or the results couldn't be written */
+	IO,
+
+	/** Anything else */
+	OTHER;
+
+
+	/**
+	 * Classify the exception thrown by Saxon (or the content or results) in a failed call.
+	 *
+	 * @param e exception
+	 * @return ErrorCause
+	 */
+	public static ErrorCause classify(Throwable e) {
+
+		// The error code of the first Saxon exception in the chain
+		String code = null;
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SAXParseException) {
+				return MALFORMED_CONTENT;
+			}
+			if (code == null && t instanceof SaxonApiException && ((SaxonApiException) t).getErrorCode() != null) {
+				code = ((SaxonApiException) t).getErrorCode().getLocalName();
+			}
+			if (code == null && t instanceof XPathException && ((XPathException) t).getErrorCodeLocalPart() != null) {
+				code = ((XPathException) t).getErrorCodeLocalPart();
+			}
+			if (t instanceof IOException) {
+				return IO;
+			}
+		}
+
+		if (code == null) {
+			return OTHER;
+		}
+		if (code.equals("SXXP0003")) {
+			return MALFORMED_CONTENT;
+		}
+		if (code.startsWith("SE")) {
+			return SERIALIZATION;
+		}
+		return EVALUATION;
+
+	}
+
+}
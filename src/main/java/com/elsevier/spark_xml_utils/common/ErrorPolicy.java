@@ -0,0 +1,154 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.Serializable;
+
+
+/**
+ * Controls what a processor does when a call fails (the content is malformed, the
+ * expression raises an error, and so on).  With the default policy (THROW) the call
+ * throws the processor's exception, as it always has.  The other policies count the
+ * error and return in place of the result: null (or the sentinel) for a serialized
+ * result, FALSE for a filter, and nothing more written for a call that writes to an
+ * OutputStream, Writer or ByteBuffer.  COLLECT also keeps the error (up to a maximum
+ * number) for the caller to drain from the processor.
+ * <p>
+ * Whatever the policy, the error is logged by the ErrorReporter, which limits how often
+ * the same kind of error is logged.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ErrorPolicy implements Serializable {
+
+	private static final long serialVersionUID = -2391646327125808432L;
+
+	// Default number of errors kept by COLLECT
+	public static final int DEFAULT_MAXIMUM_COLLECTED = 1000;
+
+	/**
+	 * What to do when a call fails.
+	 */
+	public enum Action {
+		THROW, RETURN_NULL, RETURN_SENTINEL, COLLECT
+	}
+
+	// Throw the processor's exception (the default)
+	public static final ErrorPolicy THROW = new ErrorPolicy(Action.THROW, null, 0);
+
+	// Return null (FALSE for a filter)
+	public static final ErrorPolicy RETURN_NULL = new ErrorPolicy(Action.RETURN_NULL, null, 0);
+
+	// Return null (FALSE for a filter) and keep the error for the caller
+	public static final ErrorPolicy COLLECT = new ErrorPolicy(Action.COLLECT, null, DEFAULT_MAXIMUM_COLLECTED);
+
+	// Member variables
+	private final Action action;
+	private final String sentinel;
+	private final int maximumCollected;
+
+
+	/**
+	 * Create an instance of ErrorPolicy.
+	 *
+	 * @param action what to do when a call fails
+	 * @param sentinel value returned in place of the result
+	 * @param maximumCollected most errors kept (by COLLECT) until they are drained
+	 */
+	private ErrorPolicy(Action action, String sentinel, int maximumCollected) {
+
+		this.action = action;
+		this.sentinel = sentinel;
+		this.maximumCollected = maximumCollected;
+
+	}
+
+
+	/**
+	 * Get an ErrorPolicy returning the sentinel (FALSE for a filter) in place of the result.
+	 *
+	 * @param sentinel value returned in place of the result (for example "" or "#ERROR")
+	 * @return ErrorPolicy
+	 */
+	public static ErrorPolicy returnSentinel(String sentinel) {
+
+		if (sentinel == null) {
+			throw new IllegalArgumentException("sentinel must not be null (use RETURN_NULL)");
+		}
+		return new ErrorPolicy(Action.RETURN_SENTINEL, sentinel, 0);
+
+	}
+
+
+	/**
+	 * Get an ErrorPolicy returning null (FALSE for a filter) and keeping the errors for the
+	 * caller.  Once the maximum number of errors are waiting to be drained, later ones are
+	 * only counted.
+	 *
+	 * @param maximumCollected most errors kept until they are drained
+	 * @return ErrorPolicy
+	 */
+	public static ErrorPolicy collect(int maximumCollected) {
+
+		if (maximumCollected < 0) {
+			throw new IllegalArgumentException("maximumCollected must not be negative");
+		}
+		return new ErrorPolicy(Action.COLLECT, null, maximumCollected);
+
+	}
+
+
+	/**
+	 * @return what to do when a call fails
+	 */
+	public Action getAction() {
+		return action;
+	}
+
+
+	/**
+	 * @return true if a failed call throws
+	 */
+	public boolean isThrowing() {
+		return action == Action.THROW;
+	}
+
+
+	/**
+	 * @return value returned in place of the result of a failed call (null unless RETURN_SENTINEL)
+	 */
+	public String getSentinel() {
+		return sentinel;
+	}
+
+
+	/**
+	 * @return most errors kept until they are drained (0 unless COLLECT)
+	 */
+	public int getMaximumCollected() {
+		return maximumCollected;
+	}
+
+
+	@Override
+	public String toString() {
+		return "ErrorPolicy[action=" + action + (sentinel != null ? ", sentinel=" + sentinel : "")
+				+ (action == Action.COLLECT ? ", maximumCollected=" + maximumCollected : "") + "]";
+	}
+
+}
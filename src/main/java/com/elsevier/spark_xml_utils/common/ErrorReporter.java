@@ -0,0 +1,319 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+
+
+/**
+ * Reports the errors of one processor: counts them by cause, logs them without flooding
+ * the log, and keeps them for the caller when the ErrorPolicy is COLLECT.  It is safe to
+ * share between threads (the concurrent processors do).
+ * <p>
+ * For each kind of processor and cause, at most spark_xml_utils.errors.log.limit errors
+ * (10 by default) are logged in each spark_xml_utils.errors.log.interval milliseconds
+ * (60000 by default), across all processors in the JVM.  The rest are counted and the
+ * count is logged (as a single message) with the next error of the same kind after the
+ * interval.  Messages hold the exception's message and the start of the expression (if any).  The
+ * stack trace is only logged at the debug level, since it is Saxon's and says nothing
+ * about the record that failed.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ErrorReporter {
+
+	/** System property with the number of errors of each kind logged per interval */
+	public static final String LOG_LIMIT_PROPERTY = "spark_xml_utils.errors.log.limit";
+
+	/** System property with the length (milliseconds) of the logging interval */
+	public static final String LOG_INTERVAL_PROPERTY = "spark_xml_utils.errors.log.interval";
+
+	// Longest part of the expression included in a message
+	private static final int MAXIMUM_EXPRESSION_LENGTH = 200;
+
+	// Shared state
+	private static volatile int logLimit = Integer.getInteger(LOG_LIMIT_PROPERTY, 10);
+	private static volatile long logInterval = Long.getLong(LOG_INTERVAL_PROPERTY, 60000L);
+	private static final ConcurrentHashMap<String,LogWindow[]> windows = new ConcurrentHashMap<String,LogWindow[]>();
+
+	// Member variables
+	private final Log log;
+	private final String processorType;
+	private final String expression;
+	private final boolean warn;
+	private final LogWindow[] processorWindows;
+	private final AtomicLongArray counts = new AtomicLongArray(ErrorCause.values().length);
+	private final ConcurrentLinkedQueue<ProcessingError> collected = new ConcurrentLinkedQueue<ProcessingError>();
+	private final AtomicInteger collectedCount = new AtomicInteger();
+
+
+	/**
+	 * Create an instance of ErrorReporter.
+	 *
+	 * @param log Log of the processor
+	 * @param processorType kind of processor
+	 * @param expression expression of the processor (may be null)
+	 * @param warn TRUE to log the errors as warnings
+	 */
+	private ErrorReporter(Log log, String processorType, String expression, boolean warn) {
+
+		this.log = log;
+		this.processorType = processorType;
+		this.expression = expression == null ? "" : "EXPRESSION:" + abbreviate(expression) + " ";
+		this.warn = warn;
+		this.processorWindows = windows.computeIfAbsent(processorType, type -> {
+			LogWindow[] created = new LogWindow[ErrorCause.values().length];
+			for (int i = 0; i < created.length; i++) {
+				created[i] = new LogWindow();
+			}
+			return created;
+		});
+
+	}
+
+
+	/**
+	 * Get an instance of ErrorReporter.
+	 *
+	 * @param log Log of the processor
+	 * @param processorType kind of processor (xpath, xquery or xslt)
+	 * @param expression expression of the processor, included (abbreviated) in messages (may be null)
+	 * @return ErrorReporter
+	 */
+	public static ErrorReporter getInstance(Log log, String processorType, String expression) {
+
+		return new ErrorReporter(log, processorType, expression, false);
+
+	}
+
+
+	/**
+	 * Get an instance of ErrorReporter that logs the errors as warnings (for callers that
+	 * return null in place of the result rather than failing).
+	 *
+	 * @param log Log of the caller
+	 * @param processorType kind of processor (or function)
+	 * @param expression expression of the processor, included (abbreviated) in messages (may be null)
+	 * @return ErrorReporter
+	 */
+	public static ErrorReporter getWarningInstance(Log log, String processorType, String expression) {
+
+		return new ErrorReporter(log, processorType, expression, true);
+
+	}
+
+
+	/**
+	 * Change how many errors of each kind are logged per interval (for all processors).
+	 *
+	 * @param limit errors of each kind logged per interval (0 to log only the counts)
+	 * @param intervalMillis length of the interval (milliseconds)
+	 */
+	public static void setLogLimit(int limit, long intervalMillis) {
+
+		if (limit < 0 || intervalMillis <= 0) {
+			throw new IllegalArgumentException("limit must not be negative and intervalMillis must be positive");
+		}
+		logLimit = limit;
+		logInterval = intervalMillis;
+
+	}
+
+
+	/**
+	 * Report an error: classify it, count it and (unless too many of the same kind were
+	 * logged recently) log it.
+	 *
+	 * @param e exception thrown while processing the content
+	 * @return what went wrong
+	 */
+	public ErrorCause report(Throwable e) {
+
+		return report(e, ErrorCause.classify(e));
+
+	}
+
+
+	/**
+	 * Report an error whose cause is already known (for example the exception thrown by a
+	 * processor, which has already classified it).
+	 *
+	 * @param e exception thrown while processing the content
+	 * @param cause what went wrong
+	 * @return what went wrong
+	 */
+	public ErrorCause report(Throwable e, ErrorCause cause) {
+
+		counts.incrementAndGet(cause.ordinal());
+
+		LogWindow window = processorWindows[cause.ordinal()];
+		long now = System.currentTimeMillis();
+		long start = window.start.get();
+		if (now - start >= logInterval && window.start.compareAndSet(start, now)) {
+			window.logged.set(0);
+			long suppressed = window.suppressed.getAndSet(0);
+			if (suppressed > 0) {
+				write("Suppressed " + suppressed + " more " + cause + " errors from " + processorType + " processors since " + (now - start) / 1000 + " seconds ago.");
+			}
+		}
+		if (window.logged.incrementAndGet() <= logLimit) {
+			write("Problems processing the content (" + cause + ").  " + expression + e.getMessage());
+		} else {
+			window.suppressed.incrementAndGet();
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Problems processing the content (" + cause + ").", e);
+		}
+		return cause;
+
+	}
+
+
+	/**
+	 * Apply the error policy to a reported error.
+	 *
+	 * @param policy ErrorPolicy of the processor
+	 * @param cause what went wrong (from report)
+	 * @param message message of the exception
+	 * @return TRUE if the error was handled (and the call should return in place of
+	 * the result), FALSE if the exception should be thrown
+	 */
+	public boolean absorb(ErrorPolicy policy, ErrorCause cause, String message) {
+
+		if (policy.isThrowing()) {
+			return false;
+		}
+		if (policy.getAction() == ErrorPolicy.Action.COLLECT) {
+			if (collectedCount.incrementAndGet() <= policy.getMaximumCollected()) {
+				collected.add(new ProcessingError(processorType, cause, message));
+			} else {
+				collectedCount.decrementAndGet();
+			}
+		}
+		return true;
+
+	}
+
+
+	/**
+	 * Remove and return the errors kept for the caller (by the COLLECT policy).
+	 *
+	 * @return errors in the order they happened
+	 */
+	public List<ProcessingError> drain() {
+
+		List<ProcessingError> drained = new ArrayList<ProcessingError>();
+		ProcessingError error;
+		while ((error = collected.poll()) != null) {
+			collectedCount.decrementAndGet();
+			drained.add(error);
+		}
+		return drained;
+
+	}
+
+
+	/**
+	 * @return number of errors of each cause (including the ones that weren't logged)
+	 */
+	public Map<ErrorCause,Long> getCounts() {
+
+		Map<ErrorCause,Long> result = new EnumMap<ErrorCause,Long>(ErrorCause.class);
+		for (ErrorCause cause : ErrorCause.values()) {
+			result.put(cause, counts.get(cause.ordinal()));
+		}
+		return result;
+
+	}
+
+
+	/**
+	 * @return number of errors
+	 */
+	public long getCount() {
+
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+
+	}
+
+
+	/**
+	 * Clear the counters.
+	 */
+	public void resetCounts() {
+
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+
+	}
+
+
+	/**
+	 * @param message message to log at the reporter's level
+	 */
+	private void write(String message) {
+
+		if (warn) {
+			log.warn(message);
+		} else {
+			log.error(message);
+		}
+
+	}
+
+
+	/**
+	 * @param expression expression
+	 * @return the start of the expression on a single line
+	 */
+	private static String abbreviate(String expression) {
+
+		String line = expression.length() > 4 * MAXIMUM_EXPRESSION_LENGTH ? expression.substring(0, 4 * MAXIMUM_EXPRESSION_LENGTH) : expression;
+		line = line.replaceAll("\\s+", " ").trim();
+		return line.length() <= MAXIMUM_EXPRESSION_LENGTH ? line : line.substring(0, MAXIMUM_EXPRESSION_LENGTH) + "...";
+
+	}
+
+
+	/**
+	 * Errors of one kind logged (and suppressed) in the current interval.
+	 */
+	private static class LogWindow {
+
+		private final AtomicLong start = new AtomicLong();
+		private final AtomicInteger logged = new AtomicInteger();
+		private final AtomicLong suppressed = new AtomicLong();
+
+	}
+
+}
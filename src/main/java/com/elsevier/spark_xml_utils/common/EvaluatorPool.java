@@ -0,0 +1,252 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Lock-free pool of per-call objects (evaluators, transformers, serializers) that
+ * are expensive to create and can't be shared between threads.  The pool is an
+ * array of slots; each thread starts probing at a slot derived from its id so
+ * threads mostly touch different slots.  When no idle object is found a new one
+ * is created, and when every slot is full a returned object is discarded, so the
+ * pool never blocks.
+ * <p>
+ * The pool counts borrows, creations, discards and contended slot updates
+ * (compare-and-set failures) and reports how many objects are idle or in use.
+ *
+ * @author Darin McBeath
+ *
+ * @param <T> pooled object type
+ */
+public class EvaluatorPool<T> {
+
+	/**
+	 * Creates a new pooled object when no idle object is available.
+	 *
+	 * @param <T> pooled object type
+	 * @param <E> exception thrown when the object cannot be created
+	 */
+	public interface Factory<T, E extends Exception> {
+		T create() throws E;
+	}
+
+
+	// Member variables
+	private final AtomicReferenceArray<T> slots;
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong creations = new AtomicLong();
+	private final AtomicLong discards = new AtomicLong();
+	private final AtomicLong contentions = new AtomicLong();
+	private final AtomicInteger inUse = new AtomicInteger();
+
+
+	/**
+	 * Create a pool with one slot per available processor.
+	 */
+	public EvaluatorPool() {
+
+		this(Runtime.getRuntime().availableProcessors());
+
+	}
+
+
+	/**
+	 * Create a pool with the specified number of slots.
+	 *
+	 * @param capacity maximum number of idle objects kept
+	 */
+	public EvaluatorPool(int capacity) {
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+		}
+		slots = new AtomicReferenceArray<T>(capacity);
+
+	}
+
+
+	/**
+	 * Take an idle object from the pool, or create one with the factory if none is idle.
+	 * The object must be returned with release when the caller is done with it.
+	 *
+	 * @param factory creates an object when none is idle
+	 * @return pooled object for the exclusive use of the caller
+	 * @throws E when a new object could not be created
+	 */
+	public <E extends Exception> T borrow(Factory<? extends T,E> factory) throws E {
+
+		borrows.incrementAndGet();
+		int capacity = slots.length();
+		int start = probe(capacity);
+		for (int i = 0; i < capacity; i++) {
+			int index = (start + i) % capacity;
+			T candidate = slots.get(index);
+			if (candidate != null) {
+				if (slots.compareAndSet(index, candidate, null)) {
+					inUse.incrementAndGet();
+					return candidate;
+				}
+				contentions.incrementAndGet();
+			}
+		}
+
+		// Nothing idle
+		T created = factory.create();
+		creations.incrementAndGet();
+		inUse.incrementAndGet();
+		return created;
+
+	}
+
+
+	/**
+	 * Return a borrowed object to the pool.  If every slot is occupied the object is discarded.
+	 *
+	 * @param object object obtained from borrow
+	 */
+	public void release(T object) {
+
+		inUse.decrementAndGet();
+		int capacity = slots.length();
+		int start = probe(capacity);
+		for (int i = 0; i < capacity; i++) {
+			int index = (start + i) % capacity;
+			if (slots.get(index) == null) {
+				if (slots.compareAndSet(index, null, object)) {
+					return;
+				}
+				contentions.incrementAndGet();
+			}
+		}
+		discards.incrementAndGet();
+
+	}
+
+
+	/**
+	 * Discard all idle objects.
+	 */
+	public void clear() {
+
+		for (int i = 0; i < slots.length(); i++) {
+			slots.set(i, null);
+		}
+
+	}
+
+
+	/**
+	 * @return maximum number of idle objects kept
+	 */
+	public int getCapacity() {
+		return slots.length();
+	}
+
+
+	/**
+	 * @return number of objects currently waiting in the pool
+	 */
+	public int getIdleCount() {
+
+		int idle = 0;
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) != null) {
+				idle++;
+			}
+		}
+		return idle;
+
+	}
+
+
+	/**
+	 * @return number of objects currently borrowed
+	 */
+	public int getInUseCount() {
+		return inUse.get();
+	}
+
+
+	/**
+	 * @return fraction (0.0 - 1.0) of the slots holding an idle object
+	 */
+	public double getOccupancy() {
+		return (double) getIdleCount() / slots.length();
+	}
+
+
+	/**
+	 * @return number of borrow requests
+	 */
+	public long getBorrowCount() {
+		return borrows.get();
+	}
+
+
+	/**
+	 * @return number of objects created because none was idle
+	 */
+	public long getCreationCount() {
+		return creations.get();
+	}
+
+
+	/**
+	 * @return number of returned objects discarded because the pool was full
+	 */
+	public long getDiscardCount() {
+		return discards.get();
+	}
+
+
+	/**
+	 * @return number of slot updates lost to another thread
+	 */
+	public long getContentionCount() {
+		return contentions.get();
+	}
+
+
+	@Override
+	public String toString() {
+
+		return "EvaluatorPool[capacity=" + getCapacity() + ", idle=" + getIdleCount() + ", inUse=" + getInUseCount()
+				+ ", borrows=" + getBorrowCount() + ", creations=" + getCreationCount() + ", discards=" + getDiscardCount()
+				+ ", contentions=" + getContentionCount() + "]";
+
+	}
+
+
+	/**
+	 * Starting slot for the current thread.
+	 *
+	 * @param capacity number of slots
+	 * @return slot index
+	 */
+	private static int probe(int capacity) {
+
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return (hash >>> 1) % capacity;
+
+	}
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.elsevier.spark_xml_utils.common.ConcurrentLruCache.Loader;
+
+
+/**
+ * JVM-wide registry of compiled XPath expressions, XQuery expressions and XSLT
+ * stylesheets.  Processors are restored on every Spark task that deserializes a
+ * closure, so compiling once per JVM (rather than once per deserialization) saves
+ * a Processor creation and a compilation for every task.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the kind of executable, the expression
+ * (or stylesheet), the namespace mappings and the feature mappings.  The registry
+ * holds at most {@value #DEFAULT_MAXIMUM_SIZE} entries unless the system property
+ * {@value #MAXIMUM_SIZE_PROPERTY} says otherwise; the least recently used entry is
+ * evicted first.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ExecutableCache {
+
+	/** System property with the maximum number of cached executables */
+	public static final String MAXIMUM_SIZE_PROPERTY = "spark_xml_utils.executable.cache.size";
+
+	/** Default maximum number of cached executables */
+	public static final int DEFAULT_MAXIMUM_SIZE = 256;
+
+	// Compiled executables
+	private static final ConcurrentLruCache<String,CompiledExecutable<?>> cache =
+			new ConcurrentLruCache<String,CompiledExecutable<?>>(Integer.getInteger(MAXIMUM_SIZE_PROPERTY, DEFAULT_MAXIMUM_SIZE));
+
+
+	private ExecutableCache() {
+	}
+
+
+	/**
+	 * Compute the registry key for an executable.
+	 *
+	 * @param kind kind of executable (xpath, xquery, xslt)
+	 * @param source expression or stylesheet
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings (may be null)
+	 * @param featureMappings Processor feature mappings (may be null)
+	 * @return hex encoded SHA-256 hash
+	 */
+	public static String computeKey(String kind, String source, Map<String,String> namespaceMappings, Map<String,Object> featureMappings) {
+
+		try {
+
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			update(digest, kind);
+			update(digest, source);
+
+			// Sort the mappings so the key doesn't depend on HashMap iteration order
+			if (namespaceMappings != null) {
+				for (Entry<String,String> entry : new TreeMap<String,String>(namespaceMappings).entrySet()) {
+					update(digest, "ns");
+					update(digest, entry.getKey());
+					update(digest, entry.getValue());
+				}
+			}
+			if (featureMappings != null) {
+				for (Entry<String,Object> entry : new TreeMap<String,Object>(featureMappings).entrySet()) {
+					update(digest, "feature");
+					update(digest, entry.getKey());
+					update(digest, String.valueOf(entry.getValue()));
+				}
+			}
+
+			StringBuilder key = new StringBuilder(64);
+			for (byte b : digest.digest()) {
+				key.append(Character.forDigit((b >> 4) & 0xF, 16));
+				key.append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+
+			// Every JVM is required to support SHA-256
+			throw new IllegalStateException(e.getMessage());
+
+		}
+
+	}
+
+
+	/**
+	 * Return the executable registered under the key, compiling it with the
+	 * loader if it is not registered.  Concurrent requests for the same key
+	 * share one compilation.
+	 *
+	 * @param key registry key (see computeKey)
+	 * @param loader compiles the executable
+	 * @return compiled executable
+	 * @throws E when the executable could not be compiled
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T, E extends Exception> CompiledExecutable<T> get(String key, Loader<CompiledExecutable<T>,E> loader) throws E {
+
+		return (CompiledExecutable<T>) cache.get(key, loader);
+
+	}
+
+
+	/**
+	 * Change the maximum number of cached executables.
+	 *
+	 * @param maximumSize maximum number of entries
+	 */
+	public static void setMaximumSize(int maximumSize) {
+		cache.setMaximumSize(maximumSize);
+	}
+
+
+	/**
+	 * @return maximum number of cached executables
+	 */
+	public static int getMaximumSize() {
+		return cache.getMaximumSize();
+	}
+
+
+	/**
+	 * @return number of cached executables
+	 */
+	public static int size() {
+		return cache.size();
+	}
+
+
+	/**
+	 * Remove all cached executables.
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+
+	/**
+	 * @return number of requests satisfied by an already compiled executable
+	 */
+	public static long getHitCount() {
+		return cache.getHitCount();
+	}
+
+
+	/**
+	 * @return number of requests that required a compilation
+	 */
+	public static long getMissCount() {
+		return cache.getMissCount();
+	}
+
+
+	/**
+	 * @return number of executables evicted because the registry was full
+	 */
+	public static long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+
+	/**
+	 * Add a length prefixed string to the digest (so "ab","c" and "a","bc" differ).
+	 *
+	 * @param digest
+	 * @param value
+	 */
+	private static void update(MessageDigest digest, String value) {
+
+		if (value == null) {
+			digest.update((byte) 0);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		digest.update((byte) 1);
+		digest.update((byte) (bytes.length >>> 24));
+		digest.update((byte) (bytes.length >>> 16));
+		digest.update((byte) (bytes.length >>> 8));
+		digest.update((byte) bytes.length);
+		digest.update(bytes);
+
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Lock-free histogram of non-negative values (for example nanoseconds).  Values are
+ * counted in buckets of 8 per power of two, so a percentile is accurate to within
+ * about 12% (and exact below 8).  Recording is a few atomic increments and never
+ * blocks, so any number of threads can record into the same histogram.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class Histogram {
+
+	// Buckets per power of two (as a shift)
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	// Member variables
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * Record a value (negative values are recorded as 0).
+	 *
+	 * @param value value to record
+	 */
+	public void record(long value) {
+
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+
+	}
+
+
+	/**
+	 * @return number of values recorded
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+
+	/**
+	 * @return sum of the values recorded
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+
+	/**
+	 * @return largest value recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+
+	/**
+	 * @return mean of the values recorded (0 if none)
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+
+	/**
+	 * Get the value at a percentile (the upper bound of the bucket holding it, and never
+	 * more than the largest value recorded).
+	 *
+	 * @param percentile percentile (0 to 100)
+	 * @return value at the percentile (0 if nothing was recorded)
+	 */
+	public long getPercentile(double percentile) {
+
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+
+	}
+
+
+	/**
+	 * Clear the histogram.  Values recorded while it is being cleared may be kept or lost.
+	 */
+	public void reset() {
+
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+
+	}
+
+
+	/**
+	 * @param value non-negative value
+	 * @return bucket holding the value
+	 */
+	private static int bucket(long value) {
+
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+
+	}
+
+
+	/**
+	 * @param bucket bucket
+	 * @return largest value held by the bucket
+	 */
+	private static long upperBound(int bucket) {
+
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS + sub) << shift;
+		return lower + (1L << shift) - 1;
+
+	}
+
+}
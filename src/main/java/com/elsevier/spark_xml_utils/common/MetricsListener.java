@@ -0,0 +1,38 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+
+/**
+ * Listener told about each call of a processor while instrumentation is enabled (see
+ * ProcessorMetrics.addListener).  It is called on the thread that made the call, so it
+ * should return quickly.
+ *
+ * @author Darin McBeath
+ *
+ */
+public interface MetricsListener {
+
+	/**
+	 * A call of a processor completed (successfully or not).  The CallMetrics is reused
+	 * by the processor for its next call, so copy what is needed rather than keep it.
+	 *
+	 * @param call measurements of the call
+	 */
+	void callCompleted(CallMetrics call);
+
+}
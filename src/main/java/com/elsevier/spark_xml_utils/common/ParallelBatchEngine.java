@@ -0,0 +1,409 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Runs a processor over a batch of documents on all cores, outside of Spark (for example
+ * over a local directory of files).  The processors in this library are not thread-safe,
+ * so each worker thread gets its own processor, created once when the engine is created.
+ * <p>
+ * The documents are sorted by size and handed out largest first: each worker (a fork-join
+ * task) claims the next largest document as soon as it finishes one, so the run doesn't end
+ * with a few threads working through large documents while the others sit idle.  Results
+ * are passed to the handler as they complete, or in input order when the order is preserved
+ * (results that complete early are held until the ones before them are done).
+ *
+ * @author Darin McBeath
+ *
+ * @param <P> processor type
+ */
+public class ParallelBatchEngine<P> {
+
+	/**
+	 * Applies a processor to the content of one document.
+	 *
+	 * @param <P> processor type
+	 * @param <V> value type
+	 */
+	public interface Operation<P,V> {
+		V apply(P processor, byte[] content) throws Exception;
+	}
+
+
+	// Logger
+	private static Log log = LogFactory.getLog(ParallelBatchEngine.class);
+
+	// Member variables
+	private final List<P> processors;
+	private final ForkJoinPool pool;
+	private final ErrorReporter errors = ErrorReporter.getInstance(log, "batch", null);
+	private boolean preserveOrder = false;
+	private boolean largestFirst = true;
+
+
+	/**
+	 * Create an instance of ParallelBatchEngine.
+	 *
+	 * @param processors one processor per thread
+	 */
+	private ParallelBatchEngine(List<P> processors) {
+
+		this.processors = processors;
+		// Shared by every run (its idle threads end on their own, so it is never shut down)
+		this.pool = new ForkJoinPool(processors.size());
+
+	}
+
+
+	/**
+	 * Get an instance of ParallelBatchEngine.
+	 *
+	 * @param threads maximum number of threads
+	 * @param factory creates the processor used by each thread
+	 * @return ParallelBatchEngine
+	 * @throws E when a processor could not be created
+	 */
+	public static <P, E extends Exception> ParallelBatchEngine<P> getInstance(int threads, EvaluatorPool.Factory<? extends P,E> factory) throws E {
+
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads must be at least 1: " + threads);
+		}
+		List<P> processors = new ArrayList<P>(threads);
+		for (int i = 0; i < threads; i++) {
+			processors.add(factory.create());
+		}
+		return new ParallelBatchEngine<P>(processors);
+
+	}
+
+
+	/**
+	 * Pass the results to the handler in input order (the default is completion order).
+	 *
+	 * @param preserveOrder TRUE to pass the results in input order
+	 */
+	public void setPreserveOrder(boolean preserveOrder) {
+		this.preserveOrder = preserveOrder;
+	}
+
+
+	/**
+	 * Hand out the largest documents first (the default) or in input order.
+	 *
+	 * @param largestFirst TRUE to hand out the largest documents first
+	 */
+	public void setLargestFirst(boolean largestFirst) {
+		this.largestFirst = largestFirst;
+	}
+
+
+	/**
+	 * @return maximum number of threads
+	 */
+	public int getThreads() {
+		return processors.size();
+	}
+
+
+	/**
+	 * Process the documents with every thread.
+	 *
+	 * @param records key and content of each document
+	 * @param operation applied to each document
+	 * @param handler given the result for each document (calls are never concurrent)
+	 * @return throughput of the run
+	 */
+	public <K,V> ParallelBatchReport run(List<? extends Entry<K,byte[]>> records, Operation<? super P,V> operation, Consumer<? super BatchResult<K,V>> handler) {
+
+		return run(toDocuments(records), operation, handler, processors.size());
+
+	}
+
+
+	/**
+	 * Process the files with every thread.  Each file is read by the thread that processes it.
+	 *
+	 * @param files files to process
+	 * @param operation applied to the content of each file
+	 * @param handler given the result for each file (calls are never concurrent)
+	 * @return throughput of the run
+	 * @throws IOException when the size of a file can't be determined
+	 */
+	public <V> ParallelBatchReport runFiles(List<Path> files, Operation<? super P,V> operation, Consumer<? super BatchResult<Path,V>> handler) throws IOException {
+
+		return run(toFileDocuments(files), operation, handler, processors.size());
+
+	}
+
+
+	/**
+	 * Process the documents with 1, 2, 4, ... threads (up to and including the maximum) and
+	 * report the throughput of each run.  The results are discarded.
+	 *
+	 * @param records key and content of each document
+	 * @param operation applied to each document
+	 * @return throughput of each run (in increasing number of threads)
+	 */
+	public <K,V> List<ParallelBatchReport> measureScaling(List<? extends Entry<K,byte[]>> records, Operation<? super P,V> operation) {
+
+		return scale(toDocuments(records), operation);
+
+	}
+
+
+	/**
+	 * Process the files with 1, 2, 4, ... threads (up to and including the maximum) and
+	 * report the throughput of each run.  The results are discarded.
+	 *
+	 * @param files files to process
+	 * @param operation applied to the content of each file
+	 * @return throughput of each run (in increasing number of threads)
+	 * @throws IOException when the size of a file can't be determined
+	 */
+	public <V> List<ParallelBatchReport> measureFileScaling(List<Path> files, Operation<? super P,V> operation) throws IOException {
+
+		return scale(toFileDocuments(files), operation);
+
+	}
+
+
+	/**
+	 * @param documents documents to process
+	 * @param operation applied to each document
+	 * @return throughput of each run
+	 */
+	private <K,V> List<ParallelBatchReport> scale(List<Document<K>> documents, Operation<? super P,V> operation) {
+
+		List<ParallelBatchReport> reports = new ArrayList<ParallelBatchReport>();
+		Consumer<BatchResult<K,V>> discard = r -> { };
+		for (int threads = 1; ; threads *= 2) {
+			threads = Math.min(threads, processors.size());
+			ParallelBatchReport report = run(documents, operation, discard, threads);
+			log.info(report);
+			reports.add(report);
+			if (threads == processors.size()) {
+				break;
+			}
+		}
+		return reports;
+
+	}
+
+
+	/**
+	 * Process the documents.
+	 *
+	 * @param documents documents to process
+	 * @param operation applied to each document
+	 * @param handler given the result for each document
+	 * @param threads number of threads to use
+	 * @return throughput of the run
+	 */
+	private <K,V> ParallelBatchReport run(List<Document<K>> documents, Operation<? super P,V> operation, Consumer<? super BatchResult<K,V>> handler, int threads) {
+
+		// Order in which the documents are handed out
+		Integer[] order = new Integer[documents.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		if (largestFirst) {
+			Arrays.sort(order, Comparator.comparingLong((Integer i) -> documents.get(i).size).reversed());
+		}
+
+		Run<K,V> run = new Run<K,V>(documents, order, operation, handler);
+		long start = System.nanoTime();
+		// One worker per thread (the pool never runs more threads than there are workers busy)
+		List<Worker<K,V>> workers = new ArrayList<Worker<K,V>>(threads);
+		for (int i = 0; i < threads; i++) {
+			workers.add(new Worker<K,V>(run, processors.get(i)));
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				invokeAll(workers);
+			}
+		});
+
+		return new ParallelBatchReport(threads, documents.size(), run.errors.get(), run.bytes.get(), System.nanoTime() - start);
+
+	}
+
+
+	/**
+	 * @param records key and content of each document
+	 * @return documents
+	 */
+	private static <K> List<Document<K>> toDocuments(List<? extends Entry<K,byte[]>> records) {
+
+		List<Document<K>> documents = new ArrayList<Document<K>>(records.size());
+		for (Entry<K,byte[]> record : records) {
+			final byte[] content = record.getValue();
+			documents.add(new Document<K>(record.getKey(), content.length) {
+				@Override
+				byte[] load() {
+					return content;
+				}
+			});
+		}
+		return documents;
+
+	}
+
+
+	/**
+	 * @param files files to process
+	 * @return documents
+	 * @throws IOException
+	 */
+	private static List<Document<Path>> toFileDocuments(List<Path> files) throws IOException {
+
+		List<Document<Path>> documents = new ArrayList<Document<Path>>(files.size());
+		for (final Path file : files) {
+			documents.add(new Document<Path>(file, Files.size(file)) {
+				@Override
+				byte[] load() throws IOException {
+					return Files.readAllBytes(file);
+				}
+			});
+		}
+		return documents;
+
+	}
+
+
+	/**
+	 * A document with its key and size.  The content is only loaded when it is processed.
+	 */
+	private static abstract class Document<K> {
+
+		private final K key;
+		private final long size;
+
+		private Document(K key, long size) {
+			this.key = key;
+			this.size = size;
+		}
+
+		abstract byte[] load() throws IOException;
+
+	}
+
+
+	/**
+	 * State shared by the workers of one run.
+	 */
+	private static class Run<K,V> {
+
+		private final List<Document<K>> documents;
+		private final Integer[] order;
+		private final Operation<?,V> operation;
+		private final Consumer<? super BatchResult<K,V>> handler;
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+
+		// Results held until the results before them are complete (when the order is preserved)
+		private final BatchResult<K,V>[] held;
+		private int nextToEmit = 0;
+
+		@SuppressWarnings("unchecked")
+		private Run(List<Document<K>> documents, Integer[] order, Operation<?,V> operation, Consumer<? super BatchResult<K,V>> handler) {
+			this.documents = documents;
+			this.order = order;
+			this.operation = operation;
+			this.handler = handler;
+			this.held = (BatchResult<K,V>[]) new BatchResult<?,?>[documents.size()];
+		}
+
+		private synchronized void complete(int position, BatchResult<K,V> result, boolean preserveOrder) {
+
+			if (!preserveOrder) {
+				handler.accept(result);
+				return;
+			}
+			held[position] = result;
+			while (nextToEmit < held.length && held[nextToEmit] != null) {
+				handler.accept(held[nextToEmit]);
+				held[nextToEmit++] = null;
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Fork-join task that keeps claiming the next document until none are left.
+	 */
+	private class Worker<K,V> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Run<K,V> run;
+		private final P processor;
+
+		private Worker(Run<K,V> run, P processor) {
+			this.run = run;
+			this.processor = processor;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected void compute() {
+
+			Operation<P,V> operation = (Operation<P,V>) run.operation;
+			int claimed;
+			while ((claimed = run.next.getAndIncrement()) < run.order.length) {
+				int position = run.order[claimed];
+				Document<K> document = run.documents.get(position);
+				BatchResult<K,V> result;
+				try {
+					byte[] content = document.load();
+					run.bytes.addAndGet(content.length);
+					result = BatchResult.success(document.key, operation.apply(processor, content));
+				} catch (Exception e) {
+					errors.report(e);
+					run.errors.incrementAndGet();
+					result = BatchResult.failure(document.key, e.getMessage());
+				}
+				run.complete(position, result, preserveOrder);
+			}
+
+		}
+
+	}
+
+}
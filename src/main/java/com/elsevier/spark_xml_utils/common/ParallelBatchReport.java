@@ -0,0 +1,122 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.Serializable;
+
+
+/**
+ * Throughput of one run of the ParallelBatchEngine.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ParallelBatchReport implements Serializable {
+
+	private static final long serialVersionUID = -6407315978266170923L;
+
+	// Member variables
+	private final int threads;
+	private final long documents;
+	private final long errors;
+	private final long bytes;
+	private final long elapsedNanos;
+
+
+	/**
+	 * Create an instance of ParallelBatchReport.
+	 *
+	 * @param threads number of threads used
+	 * @param documents number of documents processed
+	 * @param errors number of documents that could not be processed
+	 * @param bytes total size of the documents
+	 * @param elapsedNanos time taken by the run
+	 */
+	ParallelBatchReport(int threads, long documents, long errors, long bytes, long elapsedNanos) {
+
+		this.threads = threads;
+		this.documents = documents;
+		this.errors = errors;
+		this.bytes = bytes;
+		this.elapsedNanos = elapsedNanos;
+
+	}
+
+
+	/**
+	 * @return number of threads used
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+
+	/**
+	 * @return number of documents processed
+	 */
+	public long getDocuments() {
+		return documents;
+	}
+
+
+	/**
+	 * @return number of documents that could not be processed
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+
+	/**
+	 * @return total size of the documents
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+
+	/**
+	 * @return time taken by the run
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+
+	/**
+	 * @return documents processed per second
+	 */
+	public double getDocumentsPerSecond() {
+		return elapsedNanos == 0 ? 0 : documents * 1e9 / elapsedNanos;
+	}
+
+
+	/**
+	 * @return megabytes (2^20 bytes) processed per second
+	 */
+	public double getMegabytesPerSecond() {
+		return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos / (1 << 20);
+	}
+
+
+	@Override
+	public String toString() {
+		return String.format("ParallelBatchReport[threads=%d, documents=%d, errors=%d, MB=%.1f, ms=%d, docs/sec=%.1f, MB/sec=%.2f]",
+				threads, documents, errors, bytes / (double) (1 << 20), elapsedNanos / 1000000, getDocumentsPerSecond(), getMegabytesPerSecond());
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.InputStream;
+import java.util.HashMap;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+
+/**
+ * A document that has been parsed once and can be passed directly to the filter,
+ * evaluate and transform methods of the XPath, XQuery and XSLT processors.  The tree
+ * is built with a processor from SharedConfiguration, so it is compatible with every
+ * processor in this library.
+ * <p>
+ * The tree is immutable, so a ParsedDocument can be used by several processors (and
+ * threads) at the same time.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ParsedDocument {
+
+	// Member variables
+	private final XdmNode node;
+
+
+	/**
+	 * Create an instance of ParsedDocument.
+	 *
+	 * @param node root of the parsed tree
+	 */
+	private ParsedDocument(XdmNode node) {
+
+		this.node = node;
+
+	}
+
+
+	/**
+	 * Parse the content.
+	 *
+	 * @param content xml to parse
+	 * @return ParsedDocument
+	 * @throws SaxonApiException
+	 */
+	public static ParsedDocument parse(String content) throws SaxonApiException {
+
+		return parse(content, null);
+
+	}
+
+
+	/**
+	 * Parse the content.
+	 *
+	 * @param content xml to parse
+	 * @param featureMappings Processor feature mappings (for example an entity resolver)
+	 * @return ParsedDocument
+	 * @throws SaxonApiException
+	 */
+	public static ParsedDocument parse(String content, HashMap<String,Object> featureMappings) throws SaxonApiException {
+
+		return parse(ContentSource.fromCharSequence(content), featureMappings);
+
+	}
+
+
+	/**
+	 * Parse the content.
+	 *
+	 * @param content xml to parse
+	 * @return ParsedDocument
+	 * @throws SaxonApiException
+	 */
+	public static ParsedDocument parse(InputStream content) throws SaxonApiException {
+
+		return parse(new StreamSource(content), null);
+
+	}
+
+
+	/**
+	 * Parse the content.
+	 *
+	 * @param content xml to parse
+	 * @param featureMappings Processor feature mappings (for example an entity resolver)
+	 * @return ParsedDocument
+	 * @throws SaxonApiException
+	 */
+	public static ParsedDocument parse(InputStream content, HashMap<String,Object> featureMappings) throws SaxonApiException {
+
+		return parse(new StreamSource(content), featureMappings);
+
+	}
+
+
+	/**
+	 * Parse the content.
+	 *
+	 * @param content xml to parse
+	 * @param featureMappings Processor feature mappings (for example an entity resolver)
+	 * @return ParsedDocument
+	 * @throws SaxonApiException
+	 */
+	public static ParsedDocument parse(Source content, HashMap<String,Object> featureMappings) throws SaxonApiException {
+
+		return new ParsedDocument(SharedConfiguration.getProcessor(featureMappings).newDocumentBuilder().build(content));
+
+	}
+
+
+	/**
+	 * Wrap a tree that has already been built.  The tree must have been built by a
+	 * processor from SharedConfiguration (or by one of the processors in this library).
+	 *
+	 * @param node root of the tree
+	 * @return ParsedDocument
+	 */
+	public static ParsedDocument wrap(XdmNode node) {
+
+		return new ParsedDocument(node);
+
+	}
+
+
+	/**
+	 * @return root of the parsed tree
+	 */
+	public XdmNode getNode() {
+		return node;
+	}
+
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactoryConfigurationError;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+
+
+/**
+ * JVM-wide pool of XMLReaders, configured once (namespaces and the reader properties, with
+ * the parser's own defaults otherwise) and reused by every processor's Configuration
+ * (see SharedConfiguration) for the documents it parses.  The entity resolver (normally
+ * the CatalogResolver) comes from the Configuration's parse options at each parse.  Saxon otherwise keeps a pool
+ * for each Configuration, and each compiled expression has a Configuration of its own.
+ * <p>
+ * The parser implementation is the SAXParserFactory named by the system property
+ * {@value #FACTORY_PROPERTY} or setFactoryClass (the JAXP default when neither is set),
+ * for example org.apache.xerces.jaxp.SAXParserFactoryImpl with Xerces on the classpath.
+ * At most {@value #DEFAULT_MAXIMUM_SIZE} idle readers are kept unless the system property
+ * {@value #MAXIMUM_SIZE_PROPERTY} says otherwise (0 disables pooling).
+ * <p>
+ * The implementation and properties are meant to be set before parsing starts: changing
+ * them empties the pool, and readers already in use keep their settings until released
+ * (they are then dropped instead of going back to the pool).
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ParserPool {
+
+	/** System property with the class name of the SAXParserFactory */
+	public static final String FACTORY_PROPERTY = "spark_xml_utils.parser.factory";
+
+	/** System property with the maximum number of idle readers */
+	public static final String MAXIMUM_SIZE_PROPERTY = "spark_xml_utils.parser.pool.size";
+
+	/** Default maximum number of idle readers */
+	public static final int DEFAULT_MAXIMUM_SIZE = 64;
+
+	/** Reader property (JDK parser) limiting the number of entity expansions */
+	public static final String ENTITY_EXPANSION_LIMIT = "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit";
+
+	/** Reader property (JDK parser) limiting the depth of elements */
+	public static final String MAX_ELEMENT_DEPTH = "http://www.oracle.com/xml/jaxp/properties/maxElementDepth";
+
+	// Lexical events are dropped between parses
+	private static final DefaultHandler2 NO_LEXICAL_HANDLER = new DefaultHandler2();
+
+	// Features Saxon may change for a parse (restored when a reader is released)
+	private static final String[] PARSE_FEATURES = {
+			"http://xml.org/sax/features/namespaces",
+			"http://xml.org/sax/features/namespace-prefixes",
+			"http://xml.org/sax/features/validation",
+			"http://xml.org/sax/features/use-attributes2",
+			"http://apache.org/xml/features/xinclude",
+			"http://apache.org/xml/features/xinclude-aware" };
+
+	// Logger
+	private static Log log = LogFactory.getLog(ParserPool.class);
+
+	// Reader properties set on each new reader
+	private static final Map<String,Object> properties = Collections.synchronizedMap(new LinkedHashMap<String,Object>());
+
+	// Idle readers
+	private static final ConcurrentLinkedQueue<XMLReader> idle = new ConcurrentLinkedQueue<XMLReader>();
+	private static final AtomicInteger idleCount = new AtomicInteger();
+	private static volatile int maximumSize = Integer.getInteger(MAXIMUM_SIZE_PROPERTY, DEFAULT_MAXIMUM_SIZE);
+
+	// Settings changes (setFactoryClass and setProperty), and the count each reader was created at
+	private static final AtomicInteger generation = new AtomicInteger();
+	private static final Map<XMLReader,Integer> generations = Collections.synchronizedMap(new WeakHashMap<XMLReader,Integer>());
+
+	// Counters
+	private static final LongAdder created = new LongAdder();
+	private static final LongAdder reused = new LongAdder();
+
+	// Parser implementation
+	private static volatile String factoryClass = System.getProperty(FACTORY_PROPERTY);
+	private static volatile SAXParserFactory factory = null;
+
+	// Values of PARSE_FEATURES on a new reader (the same for every reader of the factory)
+	private static volatile Map<String,Boolean> featureDefaults = null;
+
+
+	private ParserPool() {
+	}
+
+
+	/**
+	 * Get a reader, idle or new.  Give it back with release when the parse is done.
+	 *
+	 * @return XMLReader
+	 * @throws TransformerFactoryConfigurationError when the parser can't be created
+	 */
+	public static XMLReader borrow() {
+
+		XMLReader reader = idle.poll();
+		if (reader != null) {
+			idleCount.decrementAndGet();
+			reused.increment();
+			return reader;
+		}
+		return create();
+
+	}
+
+
+	/**
+	 * Give a reader back, clearing what the last parse set on it: the handlers, the
+	 * features Saxon may change and the reader properties.  The reader is dropped when the
+	 * pool is full, when a setting can't be restored, or when it was created before the
+	 * parser implementation or properties last changed (or by something other than borrow).
+	 *
+	 * @param reader XMLReader from borrow
+	 */
+	public static void release(XMLReader reader) {
+
+		reader.setContentHandler(null);
+		reader.setDTDHandler(null);
+		reader.setErrorHandler(null);
+		reader.setEntityResolver(null);
+		try {
+			reader.setProperty("http://xml.org/sax/properties/lexical-handler", NO_LEXICAL_HANDLER);
+		} catch (SAXException e) {
+			// Not supported by the reader, so nothing to clear
+		}
+		Integer readerGeneration = generations.get(reader);
+		if (readerGeneration == null || readerGeneration.intValue() != generation.get()) {
+			generations.remove(reader);
+			return;
+		}
+		Map<String,Boolean> defaults = featureDefaults;
+		if (defaults == null) {
+			return;
+		}
+		try {
+			for (Map.Entry<String,Boolean> feature : defaults.entrySet()) {
+				if (reader.getFeature(feature.getKey()) != feature.getValue()) {
+					reader.setFeature(feature.getKey(), feature.getValue());
+				}
+			}
+			setProperties(reader);
+		} catch (SAXException e) {
+			log.debug("Parser setting can't be restored, so the reader isn't reused.  " + e.getMessage());
+			return;
+		}
+		if (idleCount.incrementAndGet() > maximumSize) {
+			idleCount.decrementAndGet();
+			return;
+		}
+		idle.offer(reader);
+
+	}
+
+
+	/**
+	 * Use another parser implementation.
+	 *
+	 * @param className class name of a SAXParserFactory (null for the JAXP default)
+	 */
+	public static void setFactoryClass(String className) {
+
+		factoryClass = className;
+		factory = null;
+		featureDefaults = null;
+		generation.incrementAndGet();
+		clear();
+
+	}
+
+
+	/**
+	 * @return class name of the SAXParserFactory (null for the JAXP default)
+	 */
+	public static String getFactoryClass() {
+		return factoryClass;
+	}
+
+
+	/**
+	 * Set a property (for example ENTITY_EXPANSION_LIMIT) on each new reader.  A property
+	 * the parser doesn't recognize is ignored.
+	 *
+	 * @param name property name
+	 * @param value property value (null to stop setting it)
+	 */
+	public static void setProperty(String name, Object value) {
+
+		if (value == null) {
+			properties.remove(name);
+		} else {
+			properties.put(name, value);
+		}
+		generation.incrementAndGet();
+		clear();
+
+	}
+
+
+	/**
+	 * @param size maximum number of idle readers (0 disables pooling)
+	 */
+	public static void setMaximumSize(int size) {
+
+		maximumSize = size;
+		clear();
+
+	}
+
+
+	/**
+	 * @return maximum number of idle readers
+	 */
+	public static int getMaximumSize() {
+		return maximumSize;
+	}
+
+
+	/**
+	 * Drop the idle readers.
+	 */
+	public static void clear() {
+
+		while (idle.poll() != null) {
+			idleCount.decrementAndGet();
+		}
+
+	}
+
+
+	/**
+	 * @return number of idle readers
+	 */
+	public static int size() {
+		return idleCount.get();
+	}
+
+
+	/**
+	 * @return number of readers created
+	 */
+	public static long getCreatedCount() {
+		return created.sum();
+	}
+
+
+	/**
+	 * @return number of times an idle reader was reused
+	 */
+	public static long getReuseCount() {
+		return reused.sum();
+	}
+
+
+	/**
+	 * Clear the counters.
+	 */
+	public static void resetCounts() {
+
+		created.reset();
+		reused.reset();
+
+	}
+
+
+	/**
+	 * @return a new, configured reader
+	 */
+	private static XMLReader create() {
+
+		// Taken first, so a reader made while the settings change is dropped when released
+		int readerGeneration = generation.get();
+		try {
+			XMLReader reader = getFactory().newSAXParser().getXMLReader();
+			reader.setFeature("http://xml.org/sax/features/namespaces", true);
+			reader.setFeature("http://xml.org/sax/features/namespace-prefixes", false);
+			setProperties(reader);
+			if (featureDefaults == null) {
+				Map<String,Boolean> defaults = new LinkedHashMap<String,Boolean>();
+				for (String feature : PARSE_FEATURES) {
+					try {
+						defaults.put(feature, reader.getFeature(feature));
+					} catch (SAXException e) {
+						// Not supported by the reader, so never changed
+					}
+				}
+				featureDefaults = defaults;
+			}
+			generations.put(reader, readerGeneration);
+			created.increment();
+			return reader;
+		} catch (ParserConfigurationException | SAXException e) {
+			log.error("Problems creating an XML parser. " + e.getMessage(), e);
+			throw new TransformerFactoryConfigurationError(e);
+		}
+
+	}
+
+
+	/**
+	 * Set the reader properties (a property the parser doesn't recognize is ignored).
+	 *
+	 * @param reader XMLReader
+	 */
+	private static void setProperties(XMLReader reader) {
+
+		synchronized (properties) {
+			for (Map.Entry<String,Object> property : properties.entrySet()) {
+				try {
+					reader.setProperty(property.getKey(), property.getValue());
+				} catch (SAXException e) {
+					log.debug("Parser property not supported: " + property.getKey());
+				}
+			}
+		}
+
+	}
+
+
+	/**
+	 * @return the SAXParserFactory (created once)
+	 * @throws ParserConfigurationException
+	 */
+	private static SAXParserFactory getFactory() throws ParserConfigurationException {
+
+		SAXParserFactory current = factory;
+		if (current == null) {
+			String className = factoryClass;
+			current = className == null
+					? SAXParserFactory.newInstance()
+					: SAXParserFactory.newInstance(className, ParserPool.class.getClassLoader());
+			current.setNamespaceAware(true);
+			current.setValidating(false);
+			factory = current;
+		}
+		return current;
+
+	}
+
+}
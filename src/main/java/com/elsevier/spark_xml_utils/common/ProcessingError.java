@@ -0,0 +1,94 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.Serializable;
+
+
+/**
+ * An error kept by a processor whose ErrorPolicy is COLLECT.  It is serializable so it
+ * can be returned from the executors (for example in an accumulator).
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ProcessingError implements Serializable {
+
+	private static final long serialVersionUID = 5470432191372064386L;
+
+	// Member variables
+	private final String processorType;
+	private final ErrorCause cause;
+	private final String message;
+	private final long timestamp;
+
+
+	/**
+	 * Create an instance of ProcessingError.
+	 *
+	 * @param processorType kind of processor (xpath, xquery or xslt)
+	 * @param cause what went wrong
+	 * @param message message of the exception
+	 */
+	ProcessingError(String processorType, ErrorCause cause, String message) {
+
+		this.processorType = processorType;
+		this.cause = cause;
+		this.message = message;
+		this.timestamp = System.currentTimeMillis();
+
+	}
+
+
+	/**
+	 * @return kind of processor
+	 */
+	public String getProcessorType() {
+		return processorType;
+	}
+
+
+	/**
+	 * @return what went wrong
+	 */
+	public ErrorCause getCause() {
+		return cause;
+	}
+
+
+	/**
+	 * @return message of the exception
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+
+	/**
+	 * @return when the error happened (milliseconds since the epoch)
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+
+	@Override
+	public String toString() {
+		return processorType + " " + cause + ": " + message;
+	}
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * JVM-wide metrics of one kind of processor (xpath, xquery or xslt): the time spent
+ * parsing, evaluating and serializing (as histograms), the bytes in and out, the
+ * number of result items and the number of errors.  Each ProcessorMetrics is
+ * registered as an MXBean named com.elsevier.spark_xml_utils:type=ProcessorMetrics,name=&lt;kind&gt;.
+ * <p>
+ * Instrumentation is disabled by default, in which case a call costs the processors a
+ * single volatile read.  Enable it with setEnabled (from code or JMX) or the system
+ * property spark_xml_utils.metrics.enabled=true.  Counters and histograms are
+ * lock-free, so the processors of all threads record into them without contention.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ProcessorMetrics implements ProcessorMetricsMXBean {
+
+	/** System property enabling instrumentation when the library is loaded */
+	public static final String ENABLED_PROPERTY = "spark_xml_utils.metrics.enabled";
+
+	/** JMX domain of the MXBeans */
+	public static final String JMX_DOMAIN = "com.elsevier.spark_xml_utils";
+
+	/**
+	 * Stages of a call.
+	 */
+	public enum Stage {
+		PARSE, EVALUATE, SERIALIZE
+	}
+
+	// Logger
+	private static Log log = LogFactory.getLog(ProcessorMetrics.class);
+
+	// Shared state
+	private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+	private static final ConcurrentHashMap<String,ProcessorMetrics> metrics = new ConcurrentHashMap<String,ProcessorMetrics>();
+	private static final CopyOnWriteArrayList<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+
+	// Member variables
+	private final String processorType;
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder inputBytes = new LongAdder();
+	private final LongAdder outputBytes = new LongAdder();
+	private final LongAdder resultItems = new LongAdder();
+	private final Histogram[] stages = new Histogram[Stage.values().length];
+
+
+	/**
+	 * Create an instance of ProcessorMetrics.
+	 *
+	 * @param processorType kind of processor
+	 */
+	private ProcessorMetrics(String processorType) {
+
+		this.processorType = processorType;
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new Histogram();
+		}
+
+	}
+
+
+	/**
+	 * Get the metrics of a kind of processor, creating (and registering) them if needed.
+	 *
+	 * @param processorType kind of processor (xpath, xquery or xslt)
+	 * @return ProcessorMetrics
+	 */
+	public static ProcessorMetrics get(String processorType) {
+
+		ProcessorMetrics existing = metrics.get(processorType);
+		if (existing != null) {
+			return existing;
+		}
+		ProcessorMetrics created = new ProcessorMetrics(processorType);
+		existing = metrics.putIfAbsent(processorType, created);
+		if (existing != null) {
+			return existing;
+		}
+		created.register();
+		return created;
+
+	}
+
+
+	/**
+	 * @return TRUE if instrumentation is enabled
+	 */
+	public static boolean isInstrumenting() {
+		return enabled;
+	}
+
+
+	/**
+	 * Enable or disable instrumentation of all processors.
+	 *
+	 * @param enable TRUE to record metrics
+	 */
+	public static void setInstrumenting(boolean enable) {
+		enabled = enable;
+	}
+
+
+	/**
+	 * Add a listener told about each call while instrumentation is enabled.
+	 *
+	 * @param listener MetricsListener
+	 */
+	public static void addListener(MetricsListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+
+	/**
+	 * @param listener MetricsListener to remove
+	 */
+	public static void removeListener(MetricsListener listener) {
+		listeners.remove(listener);
+	}
+
+
+	/**
+	 * Record a completed call and tell the listeners about it.
+	 *
+	 * @param call measurements of the call
+	 */
+	void record(CallMetrics call) {
+
+		calls.increment();
+		if (call.isFailed()) {
+			errors.increment();
+		}
+		inputBytes.add(call.getInputBytes());
+		outputBytes.add(call.getOutputBytes());
+		resultItems.add(call.getResultItems());
+		if (call.getParseNanos() > 0) {
+			stages[Stage.PARSE.ordinal()].record(call.getParseNanos());
+		}
+		if (call.getEvaluateNanos() > 0) {
+			stages[Stage.EVALUATE.ordinal()].record(call.getEvaluateNanos());
+		}
+		if (call.getSerializeNanos() > 0) {
+			stages[Stage.SERIALIZE.ordinal()].record(call.getSerializeNanos());
+		}
+
+		for (MetricsListener listener : listeners) {
+			try {
+				listener.callCompleted(call);
+			} catch (RuntimeException e) {
+				log.warn("Problems notifying a metrics listener.  " + e.getMessage(), e);
+			}
+		}
+
+	}
+
+
+	/**
+	 * Register the MXBean (a failure is logged and otherwise ignored).
+	 */
+	private void register() {
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ProcessorMetrics,name=" + ObjectName.quote(processorType));
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException | SecurityException e) {
+			log.warn("Problems registering the metrics of " + processorType + ".  " + e.getMessage(), e);
+		}
+
+	}
+
+
+	/**
+	 * @return kind of processor
+	 */
+	public String getProcessorType() {
+		return processorType;
+	}
+
+
+	/**
+	 * @param stage Stage
+	 * @return histogram of the time (nanoseconds) spent in the stage by each call
+	 */
+	public Histogram getHistogram(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+
+	@Override
+	public void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+
+	@Override
+	public long getCalls() {
+		return calls.sum();
+	}
+
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+
+	@Override
+	public long getInputBytes() {
+		return inputBytes.sum();
+	}
+
+
+	@Override
+	public long getOutputBytes() {
+		return outputBytes.sum();
+	}
+
+
+	@Override
+	public long getResultItems() {
+		return resultItems.sum();
+	}
+
+
+	@Override
+	public long getParseNanos() {
+		return stages[Stage.PARSE.ordinal()].getSum();
+	}
+
+
+	@Override
+	public long getParseP50Micros() {
+		return stages[Stage.PARSE.ordinal()].getPercentile(50) / 1000;
+	}
+
+
+	@Override
+	public long getParseP99Micros() {
+		return stages[Stage.PARSE.ordinal()].getPercentile(99) / 1000;
+	}
+
+
+	@Override
+	public long getEvaluateNanos() {
+		return stages[Stage.EVALUATE.ordinal()].getSum();
+	}
+
+
+	@Override
+	public long getEvaluateP50Micros() {
+		return stages[Stage.EVALUATE.ordinal()].getPercentile(50) / 1000;
+	}
+
+
+	@Override
+	public long getEvaluateP99Micros() {
+		return stages[Stage.EVALUATE.ordinal()].getPercentile(99) / 1000;
+	}
+
+
+	@Override
+	public long getSerializeNanos() {
+		return stages[Stage.SERIALIZE.ordinal()].getSum();
+	}
+
+
+	@Override
+	public long getSerializeP50Micros() {
+		return stages[Stage.SERIALIZE.ordinal()].getPercentile(50) / 1000;
+	}
+
+
+	@Override
+	public long getSerializeP99Micros() {
+		return stages[Stage.SERIALIZE.ordinal()].getPercentile(99) / 1000;
+	}
+
+
+	@Override
+	public void reset() {
+
+		calls.reset();
+		errors.reset();
+		inputBytes.reset();
+		outputBytes.reset();
+		resultItems.reset();
+		for (Histogram stage : stages) {
+			stage.reset();
+		}
+
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+
+/**
+ * JMX view of the ProcessorMetrics of one kind of processor (registered as
+ * com.elsevier.spark_xml_utils:type=ProcessorMetrics,name=xpath, xquery or xslt).
+ *
+ * @author Darin McBeath
+ *
+ */
+public interface ProcessorMetricsMXBean {
+
+	/** @return TRUE if instrumentation is enabled (for all processors) */
+	boolean isEnabled();
+
+	/** @param enabled TRUE to enable instrumentation (for all processors) */
+	void setEnabled(boolean enabled);
+
+	/** @return number of calls */
+	long getCalls();
+
+	/** @return number of calls that failed */
+	long getErrors();
+
+	/** @return bytes (or characters) of content parsed */
+	long getInputBytes();
+
+	/** @return bytes (or characters for a Writer) of results written */
+	long getOutputBytes();
+
+	/** @return number of result items */
+	long getResultItems();
+
+	/** @return total parse time (nanoseconds) */
+	long getParseNanos();
+
+	/** @return median parse time (microseconds) */
+	long getParseP50Micros();
+
+	/** @return 99th percentile parse time (microseconds) */
+	long getParseP99Micros();
+
+	/** @return total evaluation time (nanoseconds) */
+	long getEvaluateNanos();
+
+	/** @return median evaluation time (microseconds) */
+	long getEvaluateP50Micros();
+
+	/** @return 99th percentile evaluation time (microseconds) */
+	long getEvaluateP99Micros();
+
+	/** @return total serialization time (nanoseconds) */
+	long getSerializeNanos();
+
+	/** @return median serialization time (microseconds) */
+	long getSerializeP50Micros();
+
+	/** @return 99th percentile serialization time (microseconds) */
+	long getSerializeP99Micros();
+
+	/** Clear the counters and histograms */
+	void reset();
+
+}
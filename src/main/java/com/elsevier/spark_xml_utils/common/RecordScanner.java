@@ -0,0 +1,416 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Finds the records of a multi-record xml file by scanning its bytes, without parsing
+ * it.  The scanner understands just enough xml to do so: start and end tags (including
+ * quoted attribute values containing '&gt;'), comments, CDATA sections, processing
+ * instructions and the DOCTYPE.  Records are matched by their qualified name as it is
+ * written in the file, and a record may contain elements of the same name.  The file
+ * must be in an encoding where '&lt;', '&gt;' and the ASCII characters of names are
+ * single bytes (UTF-8, ISO-8859-1 and so on).
+ * <p>
+ * Positions are absolute indexes of a ByteBuffer.  A scan that runs into the limit
+ * before it finds what it is looking for returns NEED_MORE.
+ *
+ * @author Darin McBeath
+ *
+ */
+class RecordScanner {
+
+	/** The scan reached the limit */
+	static final int NEED_MORE = -1;
+
+	/** The record contains an element of the same name (when that isn't allowed) */
+	static final int NESTED = -2;
+
+	private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] PI_END = "?>".getBytes(StandardCharsets.US_ASCII);
+
+	// Member variables
+	private final byte[] name;
+
+
+	/**
+	 * Create an instance of RecordScanner.
+	 *
+	 * @param recordName qualified name of the record elements (as written in the file)
+	 */
+	RecordScanner(String recordName) {
+
+		this.name = recordName.getBytes(StandardCharsets.UTF_8);
+
+	}
+
+
+	/**
+	 * Find the start tag of the next record.
+	 *
+	 * @param buf bytes
+	 * @param pos where to start (outside markup)
+	 * @param limit end of the bytes
+	 * @return position of the '&lt;' of the start tag (or NEED_MORE)
+	 */
+	int findStart(ByteBuffer buf, int pos, int limit) {
+
+		int i = pos;
+		while (true) {
+			i = indexOf(buf, (byte) '<', i, limit);
+			if (i < 0 || i + name.length + 1 >= limit) {
+				return NEED_MORE;
+			}
+			if (isName(buf, i + 1)) {
+				return i;
+			}
+			i = skipMarkup(buf, i, limit);
+			if (i < 0) {
+				return NEED_MORE;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Find the end of the record.
+	 *
+	 * @param buf bytes
+	 * @param start position of the start tag of the record (from findStart)
+	 * @param limit end of the bytes
+	 * @param nesting TRUE if the record may contain elements of the same name
+	 * @return position after the end tag of the record (or NEED_MORE or NESTED)
+	 */
+	int findEnd(ByteBuffer buf, int start, int limit, boolean nesting) {
+
+		int depth = 0;
+		int i = start;
+		while (true) {
+			if (i + name.length + 2 >= limit) {
+				return NEED_MORE;
+			}
+			byte next = buf.get(i + 1);
+			if (next == '/' && isName(buf, i + 2)) {
+				i = tagEnd(buf, i, limit);
+				if (i < 0) {
+					return NEED_MORE;
+				}
+				if (--depth == 0) {
+					return i + 1;
+				}
+			} else if (isName(buf, i + 1)) {
+				int end = tagEnd(buf, i, limit);
+				if (end < 0) {
+					return NEED_MORE;
+				}
+				if (depth > 0 && !nesting) {
+					return NESTED;
+				}
+				if (buf.get(end - 1) != '/') {
+					depth++;
+				} else if (depth == 0) {
+					return end + 1;
+				}
+				i = end;
+			} else {
+				i = skipMarkup(buf, i, limit);
+				if (i < 0) {
+					return NEED_MORE;
+				}
+			}
+			i = indexOf(buf, (byte) '<', i, limit);
+			if (i < 0) {
+				return NEED_MORE;
+			}
+		}
+
+	}
+
+
+	/**
+	 * Get the namespaces declared by the elements that are open at a position (the
+	 * elements that wrap the records).
+	 *
+	 * @param buf bytes
+	 * @param pos start of the document
+	 * @param end position (outside markup) the namespaces are wanted for
+	 * @return prefix ("" for the default namespace) to uri (as written), inner declarations last
+	 */
+	Map<String,String> namespacesAt(ByteBuffer buf, int pos, int end) {
+
+		List<Map<String,String>> open = new ArrayList<Map<String,String>>();
+		int i = pos;
+		while ((i = indexOf(buf, (byte) '<', i, end)) >= 0) {
+			byte next = i + 1 < end ? buf.get(i + 1) : 0;
+			if (next == '/') {
+				if (!open.isEmpty()) {
+					open.remove(open.size() - 1);
+				}
+				i = tagEnd(buf, i, end);
+			} else if (next == '!' || next == '?') {
+				i = skipMarkup(buf, i, end);
+			} else {
+				int tagEnd = tagEnd(buf, i, end);
+				if (tagEnd < 0) {
+					break;
+				}
+				if (buf.get(tagEnd - 1) != '/') {
+					open.add(declarations(buf, i, tagEnd));
+				}
+				i = tagEnd;
+			}
+			if (i < 0) {
+				break;
+			}
+		}
+		Map<String,String> namespaces = new LinkedHashMap<String,String>();
+		for (Map<String,String> declared : open) {
+			for (Map.Entry<String,String> declaration : declared.entrySet()) {
+				namespaces.remove(declaration.getKey());
+				namespaces.put(declaration.getKey(), declaration.getValue());
+			}
+		}
+		return namespaces;
+
+	}
+
+
+	/**
+	 * Get the namespaces declared by a start tag.
+	 *
+	 * @param buf bytes
+	 * @param start position of the '&lt;' of the tag
+	 * @param end position of the '&gt;' of the tag
+	 * @return prefix ("" for the default namespace) to uri (as written)
+	 */
+	static Map<String,String> declarations(ByteBuffer buf, int start, int end) {
+
+		Map<String,String> declared = new LinkedHashMap<String,String>(4);
+		int i = start + 1;
+		while (i < end) {
+			// Skip to the next attribute name
+			byte b = buf.get(i);
+			if (!isWhitespace(b)) {
+				i++;
+				continue;
+			}
+			while (i < end && isWhitespace(buf.get(i))) {
+				i++;
+			}
+			int nameStart = i;
+			while (i < end && buf.get(i) != '=' && !isWhitespace(buf.get(i))) {
+				i++;
+			}
+			String attribute = ascii(buf, nameStart, i);
+			while (i < end && buf.get(i) != '\'' && buf.get(i) != '"') {
+				i++;
+			}
+			if (i >= end) {
+				break;
+			}
+			byte quote = buf.get(i);
+			int valueStart = ++i;
+			while (i < end && buf.get(i) != quote) {
+				i++;
+			}
+			if (attribute.equals("xmlns")) {
+				declared.put("", utf8(buf, valueStart, i));
+			} else if (attribute.startsWith("xmlns:")) {
+				declared.put(attribute.substring(6), utf8(buf, valueStart, i));
+			}
+			i++;
+		}
+		return declared;
+
+	}
+
+
+	/**
+	 * @param buf bytes
+	 * @param start position of the '&lt;' of a start or end tag
+	 * @param limit end of the bytes
+	 * @return position of the '&gt;' ending the tag (or NEED_MORE)
+	 */
+	static int tagEnd(ByteBuffer buf, int start, int limit) {
+
+		byte quote = 0;
+		for (int i = start + 1; i < limit; i++) {
+			byte b = buf.get(i);
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '"' || b == '\'') {
+				quote = b;
+			} else if (b == '>') {
+				return i;
+			}
+		}
+		return NEED_MORE;
+
+	}
+
+
+	/**
+	 * Skip a comment, CDATA section, processing instruction, DOCTYPE or tag (other than a
+	 * record's).
+	 *
+	 * @param buf bytes
+	 * @param start position of the '&lt;'
+	 * @param limit end of the bytes
+	 * @return position after the markup (or NEED_MORE)
+	 */
+	private static int skipMarkup(ByteBuffer buf, int start, int limit) {
+
+		if (start + 3 >= limit) {
+			return NEED_MORE;
+		}
+		byte next = buf.get(start + 1);
+		if (next == '?') {
+			return skipPast(buf, start + 2, limit, PI_END);
+		}
+		if (next == '!') {
+			if (buf.get(start + 2) == '-' && buf.get(start + 3) == '-') {
+				return skipPast(buf, start + 4, limit, COMMENT_END);
+			}
+			if (startsWith(buf, start, limit, CDATA_START)) {
+				return skipPast(buf, start + CDATA_START.length, limit, CDATA_END);
+			}
+			if (start + CDATA_START.length >= limit) {
+				return NEED_MORE;
+			}
+			// DOCTYPE (with any internal subset)
+			int brackets = 0;
+			byte quote = 0;
+			for (int i = start + 2; i < limit; i++) {
+				byte b = buf.get(i);
+				if (quote != 0) {
+					if (b == quote) {
+						quote = 0;
+					}
+				} else if (b == '"' || b == '\'') {
+					quote = b;
+				} else if (b == '[') {
+					brackets++;
+				} else if (b == ']') {
+					brackets--;
+				} else if (b == '>' && brackets <= 0) {
+					return i + 1;
+				}
+			}
+			return NEED_MORE;
+		}
+		int end = tagEnd(buf, start, limit);
+		return end < 0 ? NEED_MORE : end + 1;
+
+	}
+
+
+	/**
+	 * @param buf bytes
+	 * @param i position of the name
+	 * @return TRUE if the record name (followed by whitespace, '/' or '&gt;') is at the position
+	 */
+	private boolean isName(ByteBuffer buf, int i) {
+
+		for (int k = 0; k < name.length; k++) {
+			if (buf.get(i + k) != name[k]) {
+				return false;
+			}
+		}
+		byte after = buf.get(i + name.length);
+		return after == '>' || after == '/' || isWhitespace(after);
+
+	}
+
+
+	private static int skipPast(ByteBuffer buf, int i, int limit, byte[] terminator) {
+
+		for (int last = limit - terminator.length; i <= last; i++) {
+			if (buf.get(i) == terminator[0] && startsWith(buf, i, limit, terminator)) {
+				return i + terminator.length;
+			}
+		}
+		return NEED_MORE;
+
+	}
+
+
+	private static boolean startsWith(ByteBuffer buf, int i, int limit, byte[] prefix) {
+
+		if (i + prefix.length > limit) {
+			return false;
+		}
+		for (int k = 0; k < prefix.length; k++) {
+			if (buf.get(i + k) != prefix[k]) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+
+	private static int indexOf(ByteBuffer buf, byte b, int i, int limit) {
+
+		for (; i < limit; i++) {
+			if (buf.get(i) == b) {
+				return i;
+			}
+		}
+		return NEED_MORE;
+
+	}
+
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+
+	private static String ascii(ByteBuffer buf, int start, int end) {
+
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++) {
+			chars[i - start] = (char) (buf.get(i) & 0xff);
+		}
+		return new String(chars);
+
+	}
+
+
+	private static String utf8(ByteBuffer buf, int start, int end) {
+
+		byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			bytes[i - start] = buf.get(i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+
+	}
+
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.transform.stream.StreamSource;
+
+
+/**
+ * Splits a large xml file that wraps many records (for example hundreds of thousands of
+ * &lt;record&gt; elements in a single multi-GB file) into the records, so each can be
+ * given to the processors like any other document.  The file is scanned as bytes (see
+ * the limits below) rather than parsed, so the splitting itself is cheap.
+ * <p>
+ * A file is memory-mapped a window at a time and each record is a read-only slice of
+ * the mapping: nothing is copied until a processor parses the record.  An InputStream
+ * is read into a buffer instead, and each record is copied out of it.  The namespaces
+ * declared by the elements wrapping the records are carried with each record and added
+ * to its start tag when it is read (see Record.toSource), so prefixes declared on the
+ * wrapper still resolve.
+ * <p>
+ * For parallel splitting (for example one Spark task per range) the file is divided
+ * into byte ranges.  A range starts with the first record start tag at or after its
+ * start, and ends with the last record that starts before its end (even if that record
+ * ends in the next range), so every record is returned by exactly one range.  A range
+ * can't tell whether a start tag it finds is nested in a record that began before it,
+ * so when the file is split in ranges a record containing an element of the same name
+ * fails the split (the whole file, or a single range covering it, allows nesting).
+ * <p>
+ * The scanner matches records by their qualified name as written in the file and
+ * handles comments, CDATA sections, processing instructions and quoted attribute values.
+ * The file must be in UTF-8 (or another encoding where markup characters are single
+ * bytes), and records must not rely on entities declared in a DOCTYPE.  A range that
+ * starts inside a comment or CDATA section that contains a record start tag can't tell
+ * it from a real one; this can't happen when splitting from the start of the file.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class RecordSplitter implements Serializable {
+
+	private static final long serialVersionUID = 6290338563447316874L;
+
+	// Default largest record
+	public static final int DEFAULT_MAXIMUM_RECORD_SIZE = 64 * 1024 * 1024;
+
+	// Default bytes of a file mapped at a time (in addition to the largest record)
+	private static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+	// Member variables
+	private final String recordName;
+	private int maximumRecordSize = DEFAULT_MAXIMUM_RECORD_SIZE;
+	private int windowSize = DEFAULT_WINDOW_SIZE;
+	private transient RecordScanner scanner = null;
+
+
+	/**
+	 * Create an instance of RecordSplitter.
+	 *
+	 * @param recordName qualified name of the record elements
+	 */
+	private RecordSplitter(String recordName) {
+
+		this.recordName = recordName;
+
+	}
+
+
+	/**
+	 * Get an instance of RecordSplitter.
+	 *
+	 * @param recordName qualified name of the record elements as written in the file (for
+	 * example record or dc:record)
+	 * @return RecordSplitter
+	 */
+	public static RecordSplitter getInstance(String recordName) {
+
+		if (recordName == null || recordName.isEmpty()) {
+			throw new IllegalArgumentException("The record name is required");
+		}
+		return new RecordSplitter(recordName);
+
+	}
+
+
+	/**
+	 * Set the size of the largest record (64 MB by default).  A larger record fails the
+	 * split, rather than being scanned for without limit.
+	 *
+	 * @param bytes largest record
+	 * @return this RecordSplitter
+	 */
+	public RecordSplitter setMaximumRecordSize(int bytes) {
+
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("The maximum record size must be positive");
+		}
+		maximumRecordSize = bytes;
+		return this;
+
+	}
+
+
+	/**
+	 * @return size of the largest record
+	 */
+	public int getMaximumRecordSize() {
+		return maximumRecordSize;
+	}
+
+
+	/**
+	 * Set the bytes of a file mapped at a time (in addition to the largest record).
+	 *
+	 * @param bytes size of a window
+	 * @return this RecordSplitter
+	 */
+	RecordSplitter setWindowSize(int bytes) {
+
+		windowSize = bytes;
+		return this;
+
+	}
+
+
+	/**
+	 * Divide a file into byte ranges of about the same size for splitting in parallel.
+	 *
+	 * @param file xml file
+	 * @param count number of ranges
+	 * @return ranges covering the file
+	 * @throws IOException
+	 */
+	public static List<Range> getRanges(Path file, int count) throws IOException {
+
+		if (count <= 0) {
+			throw new IllegalArgumentException("The number of ranges must be positive");
+		}
+		long size;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = channel.size();
+		}
+		List<Range> ranges = new ArrayList<Range>(count);
+		for (int i = 0; i < count; i++) {
+			ranges.add(new Range(size * i / count, size * (i + 1) / count));
+		}
+		return ranges;
+
+	}
+
+
+	/**
+	 * Split a whole file.
+	 *
+	 * @param file xml file
+	 * @return the records (reading a record that is too large or unterminated throws UncheckedIOException)
+	 * @throws IOException
+	 */
+	public Iterator<Record> split(Path file) throws IOException {
+
+		return split(file, new Range(0, Long.MAX_VALUE));
+
+	}
+
+
+	/**
+	 * Split the records starting in a range of a file.
+	 *
+	 * @param file xml file
+	 * @param range byte range (from getRanges)
+	 * @return the records (reading a record that is too large or unterminated throws UncheckedIOException)
+	 * @throws IOException
+	 */
+	public Iterator<Record> split(Path file, Range range) throws IOException {
+
+		long size;
+		Map<String,String> namespaces;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = channel.size();
+			namespaces = headNamespaces(channel, size);
+		}
+		return new MappedIterator(file, size, Math.min(range.getStart(), size), Math.min(range.getEnd(), size), namespaces,
+				range.getStart() == 0 && range.getEnd() >= size);
+
+	}
+
+
+	/**
+	 * Split the records of a stream.  Each record is copied out of the buffer the stream is
+	 * read into (the buffer grows to hold the largest record).
+	 *
+	 * @param content xml (closed when the last record has been read)
+	 * @return the records (reading a record that is too large or unterminated, or a stream
+	 * that fails, throws UncheckedIOException)
+	 */
+	public Iterator<Record> split(InputStream content) {
+
+		return new StreamIterator(content);
+
+	}
+
+
+	/**
+	 * @return the scanner (created once per instance)
+	 */
+	private RecordScanner scanner() {
+
+		if (scanner == null) {
+			scanner = new RecordScanner(recordName);
+		}
+		return scanner;
+
+	}
+
+
+	/**
+	 * Get the namespaces declared by the elements wrapping the first record of the file.
+	 *
+	 * @param channel the file
+	 * @param size size of the file
+	 * @return prefix to uri
+	 * @throws IOException
+	 */
+	private Map<String,String> headNamespaces(FileChannel channel, long size) throws IOException {
+
+		ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Math.min((long) windowSize + maximumRecordSize, Integer.MAX_VALUE)));
+		int first = scanner().findStart(head, 0, head.limit());
+		return scanner().namespacesAt(head, 0, first < 0 ? head.limit() : first);
+
+	}
+
+
+	/**
+	 * Records of a file, mapped a window at a time.  Each window maps its part of the
+	 * range and enough after it to hold the largest record.
+	 */
+	private class MappedIterator implements Iterator<Record> {
+
+		private final Path file;
+		private final long size;
+		private final long end;
+		private final Map<String,String> namespaces;
+		private final boolean nesting;
+		private ByteBuffer window = null;
+		private long windowStart;
+		private int windowLength = 0;
+		private int pos = 0;
+		private Record next = null;
+		private boolean done = false;
+
+		private MappedIterator(Path file, long size, long start, long end, Map<String,String> namespaces, boolean nesting) throws IOException {
+			this.file = file;
+			this.size = size;
+			this.end = end;
+			this.namespaces = namespaces;
+			this.nesting = nesting;
+			map(start);
+		}
+
+		/**
+		 * Map the window starting at a position of the file (the mapping stays valid once
+		 * the channel is closed).
+		 */
+		private void map(long start) throws IOException {
+			windowStart = start;
+			windowLength = (int) Math.min(end - start, windowSize);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, Math.min((long) windowLength + maximumRecordSize, Integer.MAX_VALUE)));
+			}
+			pos = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && !done) {
+				try {
+					next = fetch();
+				} catch (IOException e) {
+					done = true;
+					throw new UncheckedIOException(e);
+				}
+				done = next == null;
+			}
+			return next != null;
+		}
+
+		@Override
+		public Record next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Record record = next;
+			next = null;
+			return record;
+		}
+
+		private Record fetch() throws IOException {
+			while (true) {
+				int limit = window.limit();
+				int start = scanner().findStart(window, pos, limit);
+				if (start < 0 || start >= windowLength) {
+					// Carry on in the next window, from the next record (or, failing that, the end of this window)
+					long nextStart = start < 0 ? windowStart + Math.max(windowLength, pos) : windowStart + start;
+					if (nextStart >= end || windowStart + limit >= size && start < 0) {
+						return null;
+					}
+					map(nextStart);
+					continue;
+				}
+				int recordEnd = scanner().findEnd(window, start, limit, nesting);
+				if (recordEnd == RecordScanner.NESTED) {
+					throw new IOException("The record at offset " + (windowStart + start) + " contains a " + recordName + " element, which isn't supported when splitting a range");
+				}
+				if (recordEnd < 0) {
+					if (windowStart + limit >= size) {
+						throw new IOException("The record at offset " + (windowStart + start) + " is not terminated");
+					}
+					throw new IOException("The record at offset " + (windowStart + start) + " is larger than " + maximumRecordSize + " bytes");
+				}
+				if (recordEnd - start > maximumRecordSize) {
+					throw new IOException("The record at offset " + (windowStart + start) + " is larger than " + maximumRecordSize + " bytes");
+				}
+				ByteBuffer slice = window.duplicate();
+				((Buffer) slice).position(start);
+				((Buffer) slice).limit(recordEnd);
+				pos = recordEnd;
+				return new Record(slice.slice().asReadOnlyBuffer(), windowStart + start, namespaces);
+			}
+		}
+
+	}
+
+
+	/**
+	 * Records of a stream, read into a buffer that is compacted as records are returned.
+	 */
+	private class StreamIterator implements Iterator<Record> {
+
+		private final InputStream content;
+		private byte[] buffer = new byte[64 * 1024];
+		private ByteBuffer view = ByteBuffer.wrap(buffer);
+		private int length = 0;
+		private int pos = 0;
+		private long offset = 0;
+		private boolean eof = false;
+		private Map<String,String> namespaces = null;
+		private Record next = null;
+		private boolean done = false;
+
+		private StreamIterator(InputStream content) {
+			this.content = content;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && !done) {
+				try {
+					next = fetch();
+				} catch (IOException e) {
+					done = true;
+					closeQuietly();
+					throw new UncheckedIOException(e);
+				}
+				done = next == null;
+				if (done) {
+					closeQuietly();
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Record next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Record record = next;
+			next = null;
+			return record;
+		}
+
+		private Record fetch() throws IOException {
+			while (true) {
+				int start = scanner().findStart(view, pos, length);
+				if (start < 0) {
+					if (eof) {
+						return null;
+					}
+					read(namespaces == null ? 0 : pos);
+					continue;
+				}
+				if (namespaces == null) {
+					namespaces = scanner().namespacesAt(view, 0, start);
+				}
+				int recordEnd = scanner().findEnd(view, start, length, true);
+				if (recordEnd < 0) {
+					if (eof) {
+						throw new IOException("The record at offset " + (offset + start) + " is not terminated");
+					}
+					if (length - start > maximumRecordSize) {
+						throw new IOException("The record at offset " + (offset + start) + " is larger than " + maximumRecordSize + " bytes");
+					}
+					pos = start;
+					read(start);
+					continue;
+				}
+				if (recordEnd - start > maximumRecordSize) {
+					throw new IOException("The record at offset " + (offset + start) + " is larger than " + maximumRecordSize + " bytes");
+				}
+				pos = recordEnd;
+				return new Record(ByteBuffer.wrap(Arrays.copyOfRange(buffer, start, recordEnd)).asReadOnlyBuffer(), offset + start, namespaces);
+			}
+		}
+
+		/**
+		 * Discard the bytes before a position and read more (growing the buffer if it is full).
+		 */
+		private void read(int keep) throws IOException {
+			if (keep > 0) {
+				System.arraycopy(buffer, keep, buffer, 0, length - keep);
+				length -= keep;
+				pos -= keep;
+				offset += keep;
+			}
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				view = ByteBuffer.wrap(buffer);
+			}
+			int n = content.read(buffer, length, buffer.length - length);
+			if (n < 0) {
+				eof = true;
+			} else {
+				length += n;
+			}
+		}
+
+		private void closeQuietly() {
+			try {
+				content.close();
+			} catch (IOException e) {
+				// Nothing more to read
+			}
+		}
+
+	}
+
+
+	/**
+	 * A range of bytes of a file.
+	 */
+	public static class Range implements Serializable {
+
+		private static final long serialVersionUID = -3460811617398252719L;
+
+		private final long start;
+		private final long end;
+
+		/**
+		 * @param start first byte of the range
+		 * @param end byte after the range
+		 */
+		public Range(long start, long end) {
+			if (start < 0 || end < start) {
+				throw new IllegalArgumentException("Invalid range " + start + "-" + end);
+			}
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * @return first byte of the range
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * @return byte after the range
+		 */
+		public long getEnd() {
+			return end;
+		}
+
+		@Override
+		public String toString() {
+			return start + "-" + end;
+		}
+
+	}
+
+
+	/**
+	 * A record: its bytes and the namespaces declared by the elements wrapping it.  A
+	 * Record can be given to BatchIterator (and ColumnarExtractor) like any other content.
+	 */
+	public static class Record {
+
+		private final ByteBuffer content;
+		private final long offset;
+		private final Map<String,String> inherited;
+		private Map<String,String> namespaces = null;
+
+		private Record(ByteBuffer content, long offset, Map<String,String> inherited) {
+			this.content = content;
+			this.offset = offset;
+			this.inherited = inherited;
+		}
+
+		/**
+		 * @return bytes of the record, as written in the file (read-only)
+		 */
+		public ByteBuffer getContent() {
+			return content.duplicate();
+		}
+
+		/**
+		 * @return position of the record in the file (or stream)
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return namespaces declared by the elements wrapping the record that the record
+		 * doesn't declare itself (prefix, "" for the default namespace, to uri)
+		 */
+		public Map<String,String> getNamespaces() {
+			if (namespaces == null) {
+				if (inherited.isEmpty()) {
+					namespaces = Collections.emptyMap();
+				} else {
+					namespaces = new LinkedHashMap<String,String>(inherited);
+					int tagEnd = RecordScanner.tagEnd(content, 0, content.limit());
+					namespaces.keySet().removeAll(RecordScanner.declarations(content, 0, tagEnd).keySet());
+				}
+			}
+			return namespaces;
+		}
+
+		/**
+		 * @return the record (with the namespaces of getNamespaces declared on its start tag)
+		 */
+		public InputStream getInputStream() {
+			Map<String,String> declarations = getNamespaces();
+			if (declarations.isEmpty()) {
+				return ContentSource.fromByteBuffer(content).getInputStream();
+			}
+
+			// Insert the declarations after the name of the record element
+			int nameEnd = 1;
+			while (nameEnd < content.limit() && !isDelimiter(content.get(nameEnd))) {
+				nameEnd++;
+			}
+			StringBuilder inserted = new StringBuilder();
+			for (Map.Entry<String,String> declaration : declarations.entrySet()) {
+				String quote = declaration.getValue().indexOf('"') < 0 ? "\"" : "'";
+				inserted.append(declaration.getKey().isEmpty() ? " xmlns=" : " xmlns:" + declaration.getKey() + "=")
+						.append(quote).append(declaration.getValue()).append(quote);
+			}
+			ByteBuffer head = content.duplicate();
+			((Buffer) head).limit(nameEnd);
+			ByteBuffer tail = content.duplicate();
+			((Buffer) tail).position(nameEnd);
+			return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+					ContentSource.fromByteBuffer(head).getInputStream(),
+					new ByteArrayInputStream(inserted.toString().getBytes(StandardCharsets.UTF_8)),
+					ContentSource.fromByteBuffer(tail).getInputStream())));
+		}
+
+		/**
+		 * @return StreamSource reading the record (see getInputStream)
+		 */
+		public StreamSource toSource() {
+			return new StreamSource(getInputStream());
+		}
+
+		private static boolean isDelimiter(byte b) {
+			return b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\n' || b == '\r';
+		}
+
+	}
+
+}
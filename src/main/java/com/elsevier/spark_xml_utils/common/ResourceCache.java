@@ -0,0 +1,489 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * JVM-wide cache of resources referenced by stylesheets (xsl:import, xsl:include and
+ * similar), shared by every processor in the JVM.  A resource is retrieved at most once
+ * while it is cached: concurrent requests for a resource that is still being retrieved
+ * (for example several tasks compiling the same stylesheet) wait for the one retrieval.
+ * <p>
+ * Resources are retrieved by the first ResourceFetcher that accepts the uri.  Fetchers
+ * registered with registerFetcher are consulted first, then the built-in fetchers for
+ * file:, classpath: (for example classpath:/xsl/common.xsl), jar:, http: and https: uris,
+ * and finally any other uri java.net.URL can open.  Remote resources can also be kept in
+ * an on-disk mirror (the directory given by setMirrorDirectory or the system property
+ * {@value #MIRROR_DIRECTORY_PROPERTY}) so they are only retrieved once per machine.
+ * <p>
+ * The cache holds at most {@value #DEFAULT_MAXIMUM_SIZE} resources unless the system
+ * property {@value #MAXIMUM_SIZE_PROPERTY} says otherwise; the least recently used
+ * resource is evicted first.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ResourceCache {
+
+	/** System property with the maximum number of cached resources */
+	public static final String MAXIMUM_SIZE_PROPERTY = "spark_xml_utils.resource.cache.size";
+
+	/** System property with the directory of the on-disk mirror */
+	public static final String MIRROR_DIRECTORY_PROPERTY = "spark_xml_utils.resource.mirror.dir";
+
+	/** Default maximum number of cached resources */
+	public static final int DEFAULT_MAXIMUM_SIZE = 128;
+
+	/** Default time allowed to connect to a remote resource (in milliseconds) */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/** Default time allowed between reads of a remote resource (in milliseconds) */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	// Logger
+	private static Log log = LogFactory.getLog(ResourceCache.class);
+
+	// Cached resources
+	private static final ConcurrentLruCache<String,byte[]> cache =
+			new ConcurrentLruCache<String,byte[]>(Integer.getInteger(MAXIMUM_SIZE_PROPERTY, DEFAULT_MAXIMUM_SIZE));
+
+	// Fetchers consulted before the built-in fetchers
+	private static final CopyOnWriteArrayList<ResourceFetcher> registered = new CopyOnWriteArrayList<ResourceFetcher>();
+
+	// Built-in fetchers
+	private static final List<ResourceFetcher> builtIn = Arrays.asList(
+			new FileFetcher(),
+			new ClasspathFetcher(),
+			new JarFetcher(),
+			new HttpFetcher(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT),
+			new UrlFetcher(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT));
+
+	// Directory of the on-disk mirror (null when there is no mirror)
+	private static volatile Path mirrorDirectory = System.getProperty(MIRROR_DIRECTORY_PROPERTY) == null ? null : Paths.get(System.getProperty(MIRROR_DIRECTORY_PROPERTY));
+
+
+	private ResourceCache() {
+	}
+
+
+	/**
+	 * Return the content of the resource, retrieving it if it is not cached.
+	 *
+	 * @param uri absolute uri of the resource
+	 * @return content of the resource (must not be modified)
+	 * @throws IOException when the resource can't be retrieved
+	 */
+	public static byte[] get(String uri) throws IOException {
+
+		return cache.get(uri, () -> retrieve(uri));
+
+	}
+
+
+	/**
+	 * Consult the fetcher before the built-in fetchers (and before the fetchers registered
+	 * earlier).
+	 *
+	 * @param fetcher ResourceFetcher
+	 */
+	public static void registerFetcher(ResourceFetcher fetcher) {
+		registered.add(0, fetcher);
+	}
+
+
+	/**
+	 * Stop consulting a registered fetcher.
+	 *
+	 * @param fetcher ResourceFetcher
+	 */
+	public static void unregisterFetcher(ResourceFetcher fetcher) {
+		registered.remove(fetcher);
+	}
+
+
+	/**
+	 * Keep remote resources in a directory (created if it doesn't exist), or stop using
+	 * the mirror.
+	 *
+	 * @param directory directory of the mirror (null for no mirror)
+	 */
+	public static void setMirrorDirectory(Path directory) {
+		mirrorDirectory = directory;
+	}
+
+
+	/**
+	 * @return directory of the on-disk mirror (null when there is no mirror)
+	 */
+	public static Path getMirrorDirectory() {
+		return mirrorDirectory;
+	}
+
+
+	/**
+	 * Change the maximum number of cached resources.
+	 *
+	 * @param maximumSize maximum number of entries
+	 */
+	public static void setMaximumSize(int maximumSize) {
+		cache.setMaximumSize(maximumSize);
+	}
+
+
+	/**
+	 * @return maximum number of cached resources
+	 */
+	public static int getMaximumSize() {
+		return cache.getMaximumSize();
+	}
+
+
+	/**
+	 * @return number of cached resources
+	 */
+	public static int size() {
+		return cache.size();
+	}
+
+
+	/**
+	 * Remove all cached resources (the on-disk mirror is kept).
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+
+	/**
+	 * @return number of requests satisfied by a cached resource
+	 */
+	public static long getHitCount() {
+		return cache.getHitCount();
+	}
+
+
+	/**
+	 * @return number of requests that required a retrieval
+	 */
+	public static long getMissCount() {
+		return cache.getMissCount();
+	}
+
+
+	/**
+	 * @return number of resources evicted because the cache was full
+	 */
+	public static long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+
+	/**
+	 * Retrieve the resource from the mirror or with the first fetcher that accepts it
+	 * (without caching it here).  Also used by EntityCatalog, which has its own cache.
+	 *
+	 * @param uri absolute uri of the resource
+	 * @return content of the resource
+	 * @throws IOException
+	 */
+	static byte[] retrieve(String uri) throws IOException {
+
+		URI parsed;
+		try {
+			parsed = new URI(uri);
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid resource uri: " + uri, e);
+		}
+
+		ResourceFetcher fetcher = getFetcher(parsed);
+		Path directory = mirrorDirectory;
+		Path mirrored = directory == null || !fetcher.isRemote() ? null : directory.resolve(ExecutableCache.computeKey("resource", uri, null, null));
+		if (mirrored != null && Files.isRegularFile(mirrored)) {
+			return Files.readAllBytes(mirrored);
+		}
+
+		byte[] content = fetcher.fetch(parsed);
+		if (mirrored != null) {
+			mirror(mirrored, content);
+		}
+		return content;
+
+	}
+
+
+	/**
+	 * @param uri absolute uri of the resource
+	 * @return first fetcher that accepts the uri
+	 * @throws IOException when no fetcher accepts the uri
+	 */
+	private static ResourceFetcher getFetcher(URI uri) throws IOException {
+
+		for (ResourceFetcher fetcher : registered) {
+			if (fetcher.accepts(uri)) {
+				return fetcher;
+			}
+		}
+		for (ResourceFetcher fetcher : builtIn) {
+			if (fetcher.accepts(uri)) {
+				return fetcher;
+			}
+		}
+		throw new IOException("No fetcher for the resource: " + uri);
+
+	}
+
+
+	/**
+	 * Write the content to the mirror (other JVMs on the machine only ever see a complete
+	 * file).  A failure is logged and otherwise ignored.
+	 *
+	 * @param mirrored file in the mirror
+	 * @param content content of the resource
+	 */
+	private static void mirror(Path mirrored, byte[] content) {
+
+		try {
+			Files.createDirectories(mirrored.getParent());
+			Path temp = Files.createTempFile(mirrored.getParent(), mirrored.getFileName().toString(), ".tmp");
+			Files.write(temp, content);
+			Files.move(temp, mirrored, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("Problems writing to the resource mirror. FILE:" + mirrored + " " + e.getMessage(), e);
+		}
+
+	}
+
+
+	/**
+	 * @param connection connection to read
+	 * @return content of the connection
+	 * @throws IOException
+	 */
+	private static byte[] read(URLConnection connection) throws IOException {
+
+		try (InputStream in = connection.getInputStream()) {
+			return IOUtils.toByteArray(in);
+		}
+
+	}
+
+
+	/**
+	 * Retrieves file: uris.
+	 */
+	public static class FileFetcher implements ResourceFetcher {
+
+		@Override
+		public boolean accepts(URI uri) {
+			return "file".equalsIgnoreCase(uri.getScheme());
+		}
+
+		@Override
+		public boolean isRemote() {
+			return false;
+		}
+
+		@Override
+		public byte[] fetch(URI uri) throws IOException {
+			return Files.readAllBytes(Paths.get(uri));
+		}
+
+	}
+
+
+	/**
+	 * Retrieves classpath: uris (for example classpath:/xsl/common.xsl) with the context
+	 * class loader.
+	 */
+	public static class ClasspathFetcher implements ResourceFetcher {
+
+		@Override
+		public boolean accepts(URI uri) {
+			return "classpath".equalsIgnoreCase(uri.getScheme());
+		}
+
+		@Override
+		public boolean isRemote() {
+			return false;
+		}
+
+		@Override
+		public byte[] fetch(URI uri) throws IOException {
+
+			String path = uri.getSchemeSpecificPart();
+			while (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			try (InputStream in = (loader == null ? ResourceCache.class.getClassLoader() : loader).getResourceAsStream(path)) {
+				if (in == null) {
+					throw new FileNotFoundException("Resource not found on the classpath: " + uri);
+				}
+				return IOUtils.toByteArray(in);
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Retrieves jar: uris (without keeping the jar file open).
+	 */
+	public static class JarFetcher implements ResourceFetcher {
+
+		@Override
+		public boolean accepts(URI uri) {
+			return "jar".equalsIgnoreCase(uri.getScheme());
+		}
+
+		@Override
+		public boolean isRemote() {
+			return false;
+		}
+
+		@Override
+		public byte[] fetch(URI uri) throws IOException {
+
+			URLConnection connection = uri.toURL().openConnection();
+			connection.setUseCaches(false);
+			return read(connection);
+
+		}
+
+	}
+
+
+	/**
+	 * Retrieves http: and https: uris with a connect and read timeout.  Any response other
+	 * than 200 is an error.
+	 */
+	public static class HttpFetcher implements ResourceFetcher {
+
+		private final int connectTimeout;
+		private final int readTimeout;
+
+		/**
+		 * @param connectTimeout time allowed to connect (in milliseconds)
+		 * @param readTimeout time allowed between reads (in milliseconds)
+		 */
+		public HttpFetcher(int connectTimeout, int readTimeout) {
+			this.connectTimeout = connectTimeout;
+			this.readTimeout = readTimeout;
+		}
+
+		@Override
+		public boolean accepts(URI uri) {
+			return "http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme());
+		}
+
+		@Override
+		public boolean isRemote() {
+			return true;
+		}
+
+		@Override
+		public byte[] fetch(URI uri) throws IOException {
+
+			HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+			try {
+				connection.setConnectTimeout(connectTimeout);
+				connection.setReadTimeout(readTimeout);
+				int status = connection.getResponseCode();
+				if (status != HttpURLConnection.HTTP_OK) {
+					throw new IOException("HTTP " + status + " retrieving the resource: " + uri);
+				}
+				return read(connection);
+			} finally {
+				connection.disconnect();
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * Retrieves any other uri java.net.URL can open (for example a scheme with a protocol
+	 * handler installed by the application) with a connect and read timeout.
+	 */
+	public static class UrlFetcher implements ResourceFetcher {
+
+		private final int connectTimeout;
+		private final int readTimeout;
+
+		/**
+		 * @param connectTimeout time allowed to connect (in milliseconds)
+		 * @param readTimeout time allowed between reads (in milliseconds)
+		 */
+		public UrlFetcher(int connectTimeout, int readTimeout) {
+			this.connectTimeout = connectTimeout;
+			this.readTimeout = readTimeout;
+		}
+
+		@Override
+		public boolean accepts(URI uri) {
+			if (!uri.isAbsolute()) {
+				return false;
+			}
+			try {
+				new URL(uri.toString());
+				return true;
+			} catch (MalformedURLException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public boolean isRemote() {
+			return true;
+		}
+
+		@Override
+		public byte[] fetch(URI uri) throws IOException {
+
+			URLConnection connection = new URL(uri.toString()).openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			return read(connection);
+
+		}
+
+	}
+
+}
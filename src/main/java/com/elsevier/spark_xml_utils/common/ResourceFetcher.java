@@ -0,0 +1,52 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.IOException;
+import java.net.URI;
+
+
+/**
+ * Retrieves the content of a resource (for example an imported stylesheet) for the
+ * ResourceCache.  Implementations must be thread-safe.
+ *
+ * @author Darin McBeath
+ *
+ */
+public interface ResourceFetcher {
+
+	/**
+	 * @param uri absolute uri of the resource
+	 * @return true if this fetcher retrieves the uri
+	 */
+	boolean accepts(URI uri);
+
+	/**
+	 * @return true if the resources are remote (and worth keeping in the on-disk mirror)
+	 */
+	boolean isRemote();
+
+	/**
+	 * Retrieve the resource.
+	 *
+	 * @param uri absolute uri of the resource
+	 * @return content of the resource
+	 * @throws IOException when the resource can't be retrieved
+	 */
+	byte[] fetch(URI uri) throws IOException;
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.trans.XPathException;
+
+
+/**
+ * Lazy iterator over the serialized items of a result.  Saxon evaluates the expression
+ * only as far as the items that are pulled, and each item is serialized when next returns
+ * it, so taking the first few matches of a large document doesn't evaluate or serialize
+ * the rest.  An optional maximum number of items ends the iteration (and the evaluation)
+ * early.  hasNext evaluates and serializes the next item.
+ * <p>
+ * The iterator uses its processor's serializer: finish or close it before the next call on
+ * the processor.  An error while pulling an item goes through the processor's error policy,
+ * which either ends the iteration or throws an IterationException (unchecked, with the
+ * processor's exception as the cause).
+ *
+ * @author Darin McBeath
+ *
+ */
+public abstract class ResultIterator implements Iterator<String>, AutoCloseable {
+
+	// Member variables
+	private final SequenceIterator items;
+	private final int maxItems;
+	private int count = 0;
+	private boolean closed = false;
+	private String pending = null;
+
+
+	/**
+	 * Create an instance of ResultIterator.
+	 *
+	 * @param items lazy iterator over the result (null for an empty result).  Saxon's own
+	 * XdmSequenceIterator reads an item ahead, so the underlying iterator is used instead.
+	 * @param maxItems maximum number of items to return (0 or less for no maximum)
+	 */
+	protected ResultIterator(SequenceIterator items, int maxItems) {
+
+		this.items = items;
+		this.maxItems = maxItems;
+		if (items == null) {
+			closed = true;
+		}
+
+	}
+
+
+	/**
+	 * Serialize an item.
+	 *
+	 * @param item item of the result
+	 * @return serialized item
+	 * @throws SaxonApiException
+	 */
+	protected abstract String serialize(XdmItem item) throws SaxonApiException;
+
+
+	/**
+	 * An item couldn't be evaluated or serialized.  The iterator is closed afterwards.
+	 *
+	 * @param e the error
+	 * @throws IterationException unless the error policy absorbs the error
+	 */
+	protected abstract void failed(SaxonApiException e);
+
+
+	/**
+	 * The iteration is over (all items returned, the maximum reached, an error or close).
+	 */
+	protected abstract void completed();
+
+
+	@Override
+	public boolean hasNext() {
+
+		if (pending != null) {
+			return true;
+		}
+		if (closed) {
+			return false;
+		}
+		if (maxItems > 0 && count >= maxItems) {
+			close();
+			return false;
+		}
+		try {
+			Item item = items.next();
+			if (item != null) {
+				pending = serialize((XdmItem) XdmValue.wrap(item));
+				count++;
+				return true;
+			}
+		} catch (XPathException e) {
+			fail(new SaxonApiException(e));
+			return false;
+		} catch (SaxonApiException e) {
+			fail(e);
+			return false;
+		}
+		close();
+		return false;
+
+	}
+
+
+	@Override
+	public String next() {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		String item = pending;
+		pending = null;
+		return item;
+
+	}
+
+
+	/**
+	 * Stop the evaluation (nothing more is returned).
+	 */
+	@Override
+	public void close() {
+
+		pending = null;
+		if (!closed) {
+			closed = true;
+			items.close();
+			completed();
+		}
+
+	}
+
+
+	/**
+	 * @return an iterator without items (for a call whose error the error policy absorbed)
+	 */
+	public static ResultIterator empty() {
+
+		return new ResultIterator(null, 0) {
+
+			@Override
+			protected String serialize(XdmItem item) {
+				return null;
+			}
+
+			@Override
+			protected void failed(SaxonApiException e) {
+			}
+
+			@Override
+			protected void completed() {
+			}
+
+		};
+
+	}
+
+
+	/**
+	 * @return number of items evaluated so far
+	 */
+	public int getCount() {
+		return count;
+	}
+
+
+	/**
+	 * Close the iterator and hand the error to the processor.
+	 *
+	 * @param e the error
+	 */
+	private void fail(SaxonApiException e) {
+
+		try {
+			failed(e);
+		} finally {
+			close();
+		}
+
+	}
+
+
+	/**
+	 * Error while pulling an item from a ResultIterator, thrown when the processor's error
+	 * policy doesn't absorb it.  The cause is the processor's exception (XPathException or
+	 * XQueryException).
+	 */
+	public static class IterationException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * @param cause the processor's exception
+		 */
+		public IterationException(Exception cause) {
+			super(cause.getMessage(), cause);
+		}
+
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+
+
+/**
+ * Controls what a processor holds on to between calls.  A processor keeps the buffer it
+ * serializes results into, and the buffer keeps the capacity of the largest result it
+ * has ever held.  The evaluator also keeps a reference to the last document it was given.
+ * With the default policy a buffer that has grown past 1 MB is dropped (and a new one
+ * started) after the call, and the document is released as soon as the call completes.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class RetentionPolicy implements Serializable {
+
+	private static final long serialVersionUID = 3390287714213564419L;
+
+	// Default upper bound on the retained buffer capacity
+	public static final int DEFAULT_MAXIMUM_BUFFER_SIZE = 1 << 20;
+
+	// Drop buffers over 1 MB and release the document after each call
+	public static final RetentionPolicy DEFAULT = new RetentionPolicy(DEFAULT_MAXIMUM_BUFFER_SIZE, true);
+
+	// Keep everything (the behavior before there was a policy)
+	public static final RetentionPolicy RETAIN_ALL = new RetentionPolicy(Integer.MAX_VALUE, false);
+
+	// Member variables
+	private final int maximumBufferSize;
+	private final boolean releaseContext;
+
+
+	/**
+	 * Create an instance of RetentionPolicy.
+	 *
+	 * @param maximumBufferSize largest buffer (in bytes) to keep after a call
+	 * @param releaseContext true to release the document after each call
+	 */
+	private RetentionPolicy(int maximumBufferSize, boolean releaseContext) {
+
+		this.maximumBufferSize = maximumBufferSize;
+		this.releaseContext = releaseContext;
+
+	}
+
+
+	/**
+	 * Get an instance of RetentionPolicy.
+	 *
+	 * @param maximumBufferSize largest buffer (in bytes) to keep after a call
+	 * @param releaseContext true to release the document after each call
+	 * @return RetentionPolicy
+	 */
+	public static RetentionPolicy getInstance(int maximumBufferSize, boolean releaseContext) {
+
+		if (maximumBufferSize < 0) {
+			throw new IllegalArgumentException("maximumBufferSize must not be negative");
+		}
+		return new RetentionPolicy(maximumBufferSize, releaseContext);
+
+	}
+
+
+	/**
+	 * @return largest buffer (in bytes) to keep after a call
+	 */
+	public int getMaximumBufferSize() {
+		return maximumBufferSize;
+	}
+
+
+	/**
+	 * @return true if the document is released after each call
+	 */
+	public boolean isReleaseContext() {
+		return releaseContext;
+	}
+
+
+	/**
+	 * Check if the buffer has grown past the maximum size.  The capacity of the buffer is at
+	 * least the size of the largest content it has held, and it is reset before each call, so
+	 * checking after each call is enough.
+	 *
+	 * @param baos buffer used by the last call
+	 * @return true if the buffer should be replaced
+	 */
+	public boolean isOversized(ByteArrayOutputStream baos) {
+		return baos.size() > maximumBufferSize;
+	}
+
+
+	@Override
+	public String toString() {
+		return "RetentionPolicy[maximumBufferSize=" + maximumBufferSize + ", releaseContext=" + releaseContext + "]";
+	}
+
+}
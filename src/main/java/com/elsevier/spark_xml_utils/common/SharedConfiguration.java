@@ -0,0 +1,209 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+
+import org.xml.sax.XMLReader;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.lib.Feature;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.util.DocumentNumberAllocator;
+
+
+/**
+ * Creates the Saxon processors used by the XPath, XQuery and XSLT processors.  Every
+ * processor created here shares one NamePool and one DocumentNumberAllocator, which
+ * is what Saxon requires for a tree built by one Configuration to be used by another.
+ * A document parsed once (see ParsedDocument) can therefore be handed to any of the
+ * XPath, XQuery and XSLT processors without being serialized and parsed again.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class SharedConfiguration {
+
+	// Shared by every Configuration created here
+	private static final NamePool namePool = new NamePool();
+	private static final DocumentNumberAllocator documentNumberAllocator = new DocumentNumberAllocator();
+
+	// Processors used for parsing, keyed by feature mappings
+	private static final ConcurrentLruCache<String,Processor> processors = new ConcurrentLruCache<String,Processor>(64);
+
+
+	private SharedConfiguration() {
+	}
+
+
+	/**
+	 * Create a new processor that shares the name pool and document numbering with all
+	 * other processors created by this class.
+	 *
+	 * @param featureMappings Processor feature mappings (may be null)
+	 * @return Processor
+	 */
+	public static Processor newProcessor(HashMap<String,Object> featureMappings) {
+
+		// Get the processor
+		Configuration config = new PooledConfiguration();
+		Processor proc = new Processor(config);
+		config.setNamePool(namePool);
+		config.setDocumentNumberAllocator(documentNumberAllocator);
+
+		// Parse errors reach the caller in the processor's exception and are logged (rate
+		// limited) by ErrorReporter, so the parser shouldn't also print each one to stderr
+		config.getParseOptions().setErrorReporter(error -> { });
+
+		// External DTDs and entities are resolved with the JVM-wide EntityCatalog (an
+		// ENTITY_RESOLVER_CLASS in the feature mappings replaces it)
+		config.getParseOptions().setEntityResolver(new CatalogResolver());
+
+		// Set any specified configuration properties for the processor
+		if (featureMappings != null) {
+			for (Entry<String, Object> entry : featureMappings.entrySet()) {
+				proc.setConfigurationProperty((Feature)(Feature.byName(entry.getKey())), entry.getValue());
+			}
+		}
+
+		return proc;
+
+	}
+
+
+	/**
+	 * Get the shared processor for the feature mappings.  Used where only a document
+	 * builder is needed (no compilation), so one processor per set of feature mappings
+	 * is enough.
+	 *
+	 * @param featureMappings Processor feature mappings (may be null)
+	 * @return Processor
+	 */
+	public static Processor getProcessor(HashMap<String,Object> featureMappings) {
+
+		String key = ExecutableCache.computeKey("processor", null, null, featureMappings);
+		return processors.get(key, () -> newProcessor(featureMappings));
+
+	}
+
+
+	/**
+	 * Get an ErrorListener for evaluators and transformers that ignores what Saxon reports.
+	 * Dynamic errors still fail the call and reach the caller in the processor's exception
+	 * (logged, rate limited, by ErrorReporter), so Saxon shouldn't also print each one.
+	 *
+	 * @return ErrorListener
+	 */
+	public static ErrorListener getQuietErrorListener() {
+		return QUIET_ERROR_LISTENER;
+	}
+
+
+	// Ignores what Saxon reports (see getQuietErrorListener)
+	private static final ErrorListener QUIET_ERROR_LISTENER = new ErrorListener() {
+
+		@Override
+		public void warning(TransformerException exception) {
+		}
+
+		@Override
+		public void error(TransformerException exception) {
+		}
+
+		@Override
+		public void fatalError(TransformerException exception) {
+		}
+
+	};
+
+
+	/**
+	 * Get a tiny document that processors use in place of the last document they were
+	 * given, so that document can be garbage collected (see RetentionPolicy).
+	 *
+	 * @return placeholder document
+	 */
+	public static XdmNode getPlaceholderDocument() {
+		return PlaceholderHolder.placeholder;
+	}
+
+
+	/**
+	 * Builds the placeholder document the first time it is needed.
+	 */
+	private static class PlaceholderHolder {
+
+		private static final XdmNode placeholder = build();
+
+		private static XdmNode build() {
+			try {
+				return getProcessor(null).newDocumentBuilder().build(new StreamSource(new StringReader("<placeholder/>")));
+			} catch (SaxonApiException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+	}
+
+
+	/**
+	 * @return NamePool shared by all processors
+	 */
+	public static NamePool getNamePool() {
+		return namePool;
+	}
+
+
+
+	/**
+	 * Configuration parsing with readers from the JVM-wide ParserPool (Saxon would keep a
+	 * pool per Configuration).  Validating parses, and a Configuration with its own
+	 * SOURCE_PARSER_CLASS, use Saxon's own readers.  A reader given parser features or
+	 * properties by the parse options isn't returned to the shared pool.
+	 */
+	private static class PooledConfiguration extends Configuration {
+
+		@Override
+		public XMLReader getSourceParser() {
+			return isPooled() ? ParserPool.borrow() : super.getSourceParser();
+		}
+
+		@Override
+		public void reuseSourceParser(XMLReader parser) {
+			if (!isPooled()) {
+				super.reuseSourceParser(parser);
+			} else if (getParseOptions().getParserFeatures() == null && getParseOptions().getParserProperties() == null) {
+				ParserPool.release(parser);
+			}
+		}
+
+		private boolean isPooled() {
+			return !isValidation() && getSourceParserClass() == null;
+		}
+
+	}
+
+}
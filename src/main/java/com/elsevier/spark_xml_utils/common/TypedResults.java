@@ -0,0 +1,360 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.s9api.ItemType;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmArray;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmMap;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.ValidationException;
+import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.DateTimeValue;
+import net.sf.saxon.value.DateValue;
+import net.sf.saxon.value.DoubleValue;
+import net.sf.saxon.value.FloatValue;
+import net.sf.saxon.value.Int64Value;
+import net.sf.saxon.value.NumericValue;
+
+
+/**
+ * Converts the result of an evaluation straight to Java values, without serializing it.
+ * Used by the typed evaluate methods of the processors (evaluateToStrings,
+ * evaluateToLong and so on).  A result that can't be converted is a dynamic error
+ * (XPTY0004, FORG0001, FOCA0002 or FOAR0002) like any other.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class TypedResults {
+
+	/**
+	 * Conversion of a result.
+	 *
+	 * @param <T> Java type of the converted result
+	 */
+	public interface Conversion<T> {
+
+		/**
+		 * @param result result of the evaluation
+		 * @return converted result
+		 * @throws SaxonApiException when the result can't be converted
+		 */
+		T convert(XdmValue result) throws SaxonApiException;
+
+	}
+
+
+	private TypedResults() {
+	}
+
+
+	/**
+	 * @param result result of the evaluation
+	 * @return string value of each item (the members of arrays are flattened)
+	 * @throws SaxonApiException when an item (a map or function) has no string value
+	 */
+	public static List<String> toStrings(XdmValue result) throws SaxonApiException {
+
+		List<String> strings = new ArrayList<String>(result.size());
+		addStrings(result, strings);
+		return strings;
+
+	}
+
+
+	/**
+	 * @param result result of the evaluation (empty, or a single number or string)
+	 * @return value as an xs:integer (null if the result is empty)
+	 * @throws SaxonApiException when the result isn't a single integer (see toLongExact)
+	 */
+	public static Long toLong(XdmValue result) throws SaxonApiException {
+
+		XdmItem item = single(result);
+		if (item == null) {
+			return null;
+		}
+		if (item.isAtomicValue() && ((XdmAtomicValue) item).getUnderlyingValue() instanceof NumericValue) {
+			return toLongExact((NumericValue) ((XdmAtomicValue) item).getUnderlyingValue());
+		}
+		return toLongExact((NumericValue) cast(item, ItemType.INTEGER).getUnderlyingValue());
+
+	}
+
+
+	/**
+	 * Convert a number to a long without truncating or rounding it.
+	 *
+	 * @param value number
+	 * @return value as a long
+	 * @throws SaxonApiException when the number is NaN or infinite (FOCA0002), has a
+	 * fractional part (FORG0001) or doesn't fit in a long (FOAR0002)
+	 */
+	public static long toLongExact(NumericValue value) throws SaxonApiException {
+
+		if (value instanceof Int64Value) {
+			return ((Int64Value) value).longValue();
+		}
+		if (value instanceof DoubleValue || value instanceof FloatValue) {
+			double d = value.getDoubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				throw error("Can't convert " + value.getStringValue() + " to an integer", "FOCA0002");
+			}
+			if (d != Math.floor(d)) {
+				throw error("Can't convert " + value.getStringValue() + " to an integer", "FORG0001");
+			}
+			// 2^63 is the smallest double too large for a long
+			if (d >= 0x1p63 || d < -0x1p63) {
+				throw error("Can't convert " + value.getStringValue() + " to a long", "FOAR0002");
+			}
+			return (long) d;
+		}
+		if (!value.isWholeNumber()) {
+			throw error("Can't convert " + value.getStringValue() + " to an integer", "FORG0001");
+		}
+		try {
+			return value.getDecimalValue().longValueExact();
+		} catch (ArithmeticException | ValidationException e) {
+			throw error("Can't convert " + value.getStringValue() + " to a long", "FOAR0002");
+		}
+
+	}
+
+
+	/**
+	 * @param result result of the evaluation (empty, or a single number or string)
+	 * @return value as an xs:double (null if the result is empty)
+	 * @throws SaxonApiException when the result isn't a single number
+	 */
+	public static Double toDouble(XdmValue result) throws SaxonApiException {
+
+		XdmItem item = single(result);
+		if (item == null) {
+			return null;
+		}
+		if (item.isAtomicValue() && ((XdmAtomicValue) item).getUnderlyingValue() instanceof NumericValue) {
+			return ((XdmAtomicValue) item).getDoubleValue();
+		}
+		return cast(item, ItemType.DOUBLE).getDoubleValue();
+
+	}
+
+
+	/**
+	 * @param result result of the evaluation
+	 * @return effective boolean value of the result (as with fn:boolean)
+	 * @throws SaxonApiException when the result has no effective boolean value
+	 */
+	public static Boolean toBoolean(XdmValue result) throws SaxonApiException {
+
+		try {
+			return ExpressionTool.effectiveBooleanValue(result.getUnderlyingValue().iterate());
+		} catch (XPathException e) {
+			throw new SaxonApiException(e);
+		}
+
+	}
+
+
+	/**
+	 * Convert a map.  Keys are given by their string value.  Values that are maps become
+	 * Maps, arrays and sequences of more than one item become Lists, nodes become their
+	 * string value and atomic values become the matching Java value (Long, or BigInteger
+	 * when too large, BigDecimal, Double, Float, Boolean, LocalDate, LocalDateTime,
+	 * OffsetDateTime or String).  The empty sequence is null.
+	 *
+	 * @param result result of the evaluation (empty or a single map)
+	 * @return Map (null if the result is empty)
+	 * @throws SaxonApiException when the result isn't a single map
+	 */
+	public static Map<String,Object> toMap(XdmValue result) throws SaxonApiException {
+
+		XdmItem item = single(result);
+		if (item == null) {
+			return null;
+		}
+		if (!(item instanceof XdmMap)) {
+			throw error("Expected a map but found " + describe(item), "XPTY0004");
+		}
+		return toJava((XdmMap) item);
+
+	}
+
+
+	/**
+	 * @param value value of a map entry or array member
+	 * @return Java value (see toMap)
+	 * @throws SaxonApiException when the value contains a function
+	 */
+	private static Object toJava(XdmValue value) throws SaxonApiException {
+
+		if (value.size() == 0) {
+			return null;
+		}
+		if (value.size() > 1) {
+			List<Object> list = new ArrayList<Object>(value.size());
+			for (XdmItem item : value) {
+				list.add(toJava(item));
+			}
+			return list;
+		}
+
+		XdmItem item = value.itemAt(0);
+		if (item instanceof XdmMap) {
+			return toJava((XdmMap) item);
+		}
+		if (item instanceof XdmArray) {
+			List<Object> list = new ArrayList<Object>();
+			for (XdmValue member : ((XdmArray) item).asList()) {
+				list.add(toJava(member));
+			}
+			return list;
+		}
+		if (item.isNode()) {
+			return item.getStringValue();
+		}
+		if (item.isAtomicValue()) {
+			XdmAtomicValue atomic = (XdmAtomicValue) item;
+			AtomicValue underlying = atomic.getUnderlyingValue();
+			if (underlying instanceof DateTimeValue) {
+				return ((DateTimeValue) underlying).hasTimezone() ? atomic.getOffsetDateTime() : atomic.getLocalDateTime();
+			}
+			if (underlying instanceof DateValue) {
+				return atomic.getLocalDate();
+			}
+			if (underlying instanceof Int64Value) {
+				return ((Int64Value) underlying).longValue();
+			}
+			return atomic.getValue();
+		}
+		throw error("Can't convert " + describe(item) + " to a Java value", "XPTY0004");
+
+	}
+
+
+	/**
+	 * @param map XdmMap
+	 * @return Map (see toMap)
+	 * @throws SaxonApiException
+	 */
+	private static Map<String,Object> toJava(XdmMap map) throws SaxonApiException {
+
+		Map<String,Object> converted = new LinkedHashMap<String,Object>();
+		for (Map.Entry<XdmAtomicValue,XdmValue> entry : map.asMap().entrySet()) {
+			converted.put(entry.getKey().getStringValue(), toJava(entry.getValue()));
+		}
+		return converted;
+
+	}
+
+
+	/**
+	 * @param value result (or array member)
+	 * @param strings list to add the string values to
+	 * @throws SaxonApiException when an item has no string value
+	 */
+	private static void addStrings(XdmValue value, List<String> strings) throws SaxonApiException {
+
+		for (XdmItem item : value) {
+			if (item instanceof XdmArray) {
+				for (XdmValue member : ((XdmArray) item).asList()) {
+					addStrings(member, strings);
+				}
+			} else if (item.isNode() || item.isAtomicValue()) {
+				strings.add(item.getStringValue());
+			} else {
+				throw error("Can't convert " + describe(item) + " to a string", "FOTY0014");
+			}
+		}
+
+	}
+
+
+	/**
+	 * @param result result of the evaluation
+	 * @return the only item of the result (null if the result is empty)
+	 * @throws SaxonApiException when there is more than one item
+	 */
+	private static XdmItem single(XdmValue result) throws SaxonApiException {
+
+		if (result.size() > 1) {
+			throw error("Expected a single item but found " + result.size(), "XPTY0004");
+		}
+		return result.size() == 0 ? null : result.itemAt(0);
+
+	}
+
+
+	/**
+	 * @param item node or atomic value
+	 * @param type ItemType to cast the string value to
+	 * @return value of the type
+	 * @throws SaxonApiException when the string value isn't valid for the type
+	 */
+	private static XdmAtomicValue cast(XdmItem item, ItemType type) throws SaxonApiException {
+
+		if (!item.isNode() && !item.isAtomicValue()) {
+			throw error("Expected a number but found " + describe(item), "XPTY0004");
+		}
+		try {
+			return new XdmAtomicValue(item.getStringValue().trim(), type);
+		} catch (SaxonApiException e) {
+			throw error("Can't convert '" + item.getStringValue() + "' to " + type.getTypeName().getLocalName(), "FORG0001");
+		}
+
+	}
+
+
+	/**
+	 * @param item item
+	 * @return kind of item (for messages)
+	 */
+	private static String describe(XdmItem item) {
+
+		if (item instanceof XdmMap) {
+			return "a map";
+		}
+		if (item instanceof XdmArray) {
+			return "an array";
+		}
+		if (item.isNode()) {
+			return "a node";
+		}
+		return item.isAtomicValue() ? "an atomic value" : "a function";
+
+	}
+
+
+	/**
+	 * @param message description of the error
+	 * @param code error code
+	 * @return SaxonApiException for a dynamic error
+	 */
+	private static SaxonApiException error(String message, String code) {
+		return new SaxonApiException(new XPathException(message, code));
+	}
+
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.elsevier.spark_xml_utils.xpath.ExtractionSpec.ColumnType;
+
+
+/**
+ * The values extracted from a batch of documents by a ColumnarExtractor, one row per
+ * document, stored by column in primitive arrays.  Nothing is allocated per cell, so the
+ * columns can be handed to Spark or Arrow-style consumers as they are.
+ * <ul>
+ * <li>LONG and DOUBLE columns are a long[] or double[] with one value per row.</li>
+ * <li>BOOLEAN columns are a bitmap (bit row % 64 of word row / 64, set for TRUE).</li>
+ * <li>STRING columns are the UTF-8 bytes of all the rows one after another and an int[]
+ * of rowCount + 1 offsets; the bytes of a row are from offsets[row] up to offsets[row + 1].</li>
+ * </ul>
+ * Each column also has a validity bitmap, in which the bit of a row is set when the
+ * cell has a value and clear when it is null.  A row whose document couldn't be parsed
+ * or evaluated (when the error policy absorbs the error) is null in every column and is
+ * marked as failed.
+ * <p>
+ * The arrays are at least as long as the capacity of the batch; only the first
+ * getRowCount rows hold values.  A batch can be filled again by ColumnarExtractor.fill,
+ * reusing its arrays, so keep the arrays only until then.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ColumnBatch {
+
+	// Member variables
+	private final ExtractionSpec spec;
+	private final int capacity;
+	private final long[][] longs;
+	private final double[][] doubles;
+	private final long[][] booleans;
+	private final byte[][] stringBytes;
+	private final int[][] stringOffsets;
+	private final long[][] validity;
+	private final long[] failed;
+	private int rowCount = 0;
+	private int failedCount = 0;
+
+
+	/**
+	 * Create an instance of ColumnBatch.
+	 *
+	 * @param spec columns of the batch
+	 * @param capacity most rows the batch holds
+	 */
+	ColumnBatch(ExtractionSpec spec, int capacity) {
+
+		if (capacity < 0) {
+			throw new IllegalArgumentException("The capacity can't be negative");
+		}
+		this.spec = spec;
+		this.capacity = capacity;
+		int columns = spec.getColumnCount();
+		int words = (capacity + 63) >>> 6;
+		longs = new long[columns][];
+		doubles = new double[columns][];
+		booleans = new long[columns][];
+		stringBytes = new byte[columns][];
+		stringOffsets = new int[columns][];
+		validity = new long[columns][];
+		for (int col = 0; col < columns; col++) {
+			validity[col] = new long[words];
+			switch (spec.getType(col)) {
+			case LONG:
+				longs[col] = new long[capacity];
+				break;
+			case DOUBLE:
+				doubles[col] = new double[capacity];
+				break;
+			case BOOLEAN:
+				booleans[col] = new long[words];
+				break;
+			case STRING:
+				stringBytes[col] = new byte[Math.max(64, capacity * 16)];
+				stringOffsets[col] = new int[capacity + 1];
+				break;
+			}
+		}
+		failed = new long[words];
+
+	}
+
+
+	/**
+	 * @return columns of the batch
+	 */
+	public ExtractionSpec getSpec() {
+		return spec;
+	}
+
+
+	/**
+	 * @return number of columns
+	 */
+	public int getColumnCount() {
+		return spec.getColumnCount();
+	}
+
+
+	/**
+	 * @return most rows the batch holds
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+
+	/**
+	 * @return number of rows (documents) in the batch
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+
+	/**
+	 * @return number of rows whose document couldn't be parsed or evaluated
+	 */
+	public int getFailedCount() {
+		return failedCount;
+	}
+
+
+	/**
+	 * @param row row
+	 * @return TRUE if the document of the row couldn't be parsed or evaluated
+	 */
+	public boolean isFailed(int row) {
+		return isSet(failed, row);
+	}
+
+
+	/**
+	 * @param column position of the column
+	 * @param row row
+	 * @return TRUE if the cell has no value
+	 */
+	public boolean isNull(int column, int row) {
+		return !isSet(validity[column], row);
+	}
+
+
+	/**
+	 * @param column position of the column
+	 * @return validity bitmap of the column (a bit is set when the cell has a value)
+	 */
+	public long[] getValidity(int column) {
+		return validity[column];
+	}
+
+
+	/**
+	 * @param column position of a LONG column
+	 * @return values of the column (0 for null cells)
+	 */
+	public long[] getLongs(int column) {
+
+		check(column, ColumnType.LONG);
+		return longs[column];
+
+	}
+
+
+	/**
+	 * @param column position of a DOUBLE column
+	 * @return values of the column (0 for null cells)
+	 */
+	public double[] getDoubles(int column) {
+
+		check(column, ColumnType.DOUBLE);
+		return doubles[column];
+
+	}
+
+
+	/**
+	 * @param column position of a BOOLEAN column
+	 * @return bitmap of the column (a bit is set for TRUE)
+	 */
+	public long[] getBooleans(int column) {
+
+		check(column, ColumnType.BOOLEAN);
+		return booleans[column];
+
+	}
+
+
+	/**
+	 * @param column position of a STRING column
+	 * @return UTF-8 bytes of the column (see getStringOffsets)
+	 */
+	public byte[] getStringBytes(int column) {
+
+		check(column, ColumnType.STRING);
+		return stringBytes[column];
+
+	}
+
+
+	/**
+	 * @param column position of a STRING column
+	 * @return start of the bytes of each row in getStringBytes, followed by the end of the last row
+	 */
+	public int[] getStringOffsets(int column) {
+
+		check(column, ColumnType.STRING);
+		return stringOffsets[column];
+
+	}
+
+
+	/**
+	 * @param column position of a LONG column
+	 * @param row row
+	 * @return value of the cell (0 if it is null)
+	 */
+	public long getLong(int column, int row) {
+		return getLongs(column)[row];
+	}
+
+
+	/**
+	 * @param column position of a DOUBLE column
+	 * @param row row
+	 * @return value of the cell (0 if it is null)
+	 */
+	public double getDouble(int column, int row) {
+		return getDoubles(column)[row];
+	}
+
+
+	/**
+	 * @param column position of a BOOLEAN column
+	 * @param row row
+	 * @return value of the cell (FALSE if it is null)
+	 */
+	public boolean getBoolean(int column, int row) {
+		return isSet(getBooleans(column), row);
+	}
+
+
+	/**
+	 * Decode a cell of a STRING column (which, unlike the other methods, allocates a String).
+	 *
+	 * @param column position of a STRING column
+	 * @param row row
+	 * @return value of the cell (null if it is null)
+	 */
+	public String getString(int column, int row) {
+
+		int[] offsets = getStringOffsets(column);
+		if (isNull(column, row)) {
+			return null;
+		}
+		return new String(stringBytes[column], offsets[row], offsets[row + 1] - offsets[row], StandardCharsets.UTF_8);
+
+	}
+
+
+	/**
+	 * Empty the batch (keeping its arrays).
+	 */
+	void clear() {
+
+		int words = (rowCount + 63) >>> 6;
+		for (int col = 0; col < validity.length; col++) {
+			Arrays.fill(validity[col], 0, words, 0L);
+			if (booleans[col] != null) {
+				Arrays.fill(booleans[col], 0, words, 0L);
+			}
+		}
+		Arrays.fill(failed, 0, words, 0L);
+		rowCount = 0;
+		failedCount = 0;
+
+	}
+
+
+	/**
+	 * @return TRUE if the batch holds as many rows as it can
+	 */
+	boolean isFull() {
+		return rowCount >= capacity;
+	}
+
+
+	/**
+	 * Start the next row, with every cell null.
+	 *
+	 * @return the row
+	 */
+	int startRow() {
+
+		int row = rowCount++;
+		for (int col = 0; col < stringOffsets.length; col++) {
+			if (stringOffsets[col] != null) {
+				stringOffsets[col][row + 1] = stringOffsets[col][row];
+			}
+			if (longs[col] != null) {
+				longs[col][row] = 0L;
+			} else if (doubles[col] != null) {
+				doubles[col][row] = 0D;
+			}
+		}
+		return row;
+
+	}
+
+
+	/**
+	 * Make every cell of the row null (dropping any values already set) and mark it as failed.
+	 *
+	 * @param row row
+	 */
+	void fail(int row) {
+
+		for (int col = 0; col < validity.length; col++) {
+			clearBit(validity[col], row);
+			if (booleans[col] != null) {
+				clearBit(booleans[col], row);
+			} else if (stringOffsets[col] != null) {
+				stringOffsets[col][row + 1] = stringOffsets[col][row];
+			} else if (longs[col] != null) {
+				longs[col][row] = 0L;
+			} else if (doubles[col] != null) {
+				doubles[col][row] = 0D;
+			}
+		}
+		setBit(failed, row);
+		failedCount++;
+
+	}
+
+
+	void setLong(int column, int row, long value) {
+
+		longs[column][row] = value;
+		setBit(validity[column], row);
+
+	}
+
+
+	void setDouble(int column, int row, double value) {
+
+		doubles[column][row] = value;
+		setBit(validity[column], row);
+
+	}
+
+
+	void setBoolean(int column, int row, boolean value) {
+
+		if (value) {
+			setBit(booleans[column], row);
+		}
+		setBit(validity[column], row);
+
+	}
+
+
+	/**
+	 * Encode the value as UTF-8 after the bytes of the previous rows.  Unpaired surrogates
+	 * (which can't come from parsed XML) are encoded as '?'.
+	 *
+	 * @param column position of a STRING column
+	 * @param row row
+	 * @param value value of the cell
+	 */
+	void setString(int column, int row, CharSequence value) {
+
+		int[] offsets = stringOffsets[column];
+		int pos = offsets[row];
+		int length = value.length();
+		byte[] bytes = ensureCapacity(column, pos + length * 3);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				bytes[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[pos++] = (byte) (0xC0 | (c >> 6));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+				bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				bytes[pos++] = (byte) '?';
+			} else {
+				bytes[pos++] = (byte) (0xE0 | (c >> 12));
+				bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		offsets[row + 1] = pos;
+		setBit(validity[column], row);
+
+	}
+
+
+	/**
+	 * @param column position of a STRING column
+	 * @param required number of bytes needed
+	 * @return bytes of the column (grown if needed)
+	 */
+	private byte[] ensureCapacity(int column, int required) {
+
+		byte[] bytes = stringBytes[column];
+		if (required > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length * 2));
+			stringBytes[column] = bytes;
+		}
+		return bytes;
+
+	}
+
+
+	/**
+	 * @param column position of the column
+	 * @param type type the caller expects
+	 */
+	private void check(int column, ColumnType type) {
+
+		if (spec.getType(column) != type) {
+			throw new IllegalArgumentException("Column " + spec.getName(column) + " is " + spec.getType(column) + " not " + type);
+		}
+
+	}
+
+
+	private static boolean isSet(long[] bitmap, int row) {
+		return (bitmap[row >>> 6] & (1L << row)) != 0;
+	}
+
+
+	private static void setBit(long[] bitmap, int row) {
+		bitmap[row >>> 6] |= 1L << row;
+	}
+
+
+	private static void clearBit(long[] bitmap, int row) {
+		bitmap[row >>> 6] &= ~(1L << row);
+	}
+
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.type.StringToDouble;
+import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.NumericValue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.elsevier.spark_xml_utils.common.BatchIterator;
+import com.elsevier.spark_xml_utils.common.BinaryDocumentReader;
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+import com.elsevier.spark_xml_utils.common.ErrorPolicy;
+import com.elsevier.spark_xml_utils.common.ErrorReporter;
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.common.TypedResults;
+import com.elsevier.spark_xml_utils.common.ProcessingError;
+import com.elsevier.spark_xml_utils.xpath.ExtractionSpec.ColumnType;
+
+
+/**
+ * Class with methods to extract the columns of an ExtractionSpec from batches of
+ * documents into ColumnBatches.  Each document is parsed once and the expressions are
+ * evaluated together (by an XPathMultiProcessor, so shared work is done once).  The
+ * values are converted straight into the primitive arrays of the batch without
+ * serializing them or creating a String or boxed value per cell.
+ * <p>
+ * A record is the content of a document (a String or other CharSequence, byte[] or
+ * ByteBuffer, which may hold a document encoded by BinaryDocumentWriter), a
+ * RecordSplitter.Record, a ParsedDocument or null (a row that is null in every column).
+ * A value that can't be converted to the type of its column (more than one item, a
+ * string that isn't a number, or for a LONG column a number that isn't a whole number
+ * that fits in a long) is an error like one raised by the expression, so the
+ * error policy decides whether the call throws or the row is null in every column and
+ * marked as failed.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ColumnarExtractor implements Serializable {
+
+	private static final long serialVersionUID = -5183090921773460298L;
+
+	// Logger
+	private static Log log = LogFactory.getLog(ColumnarExtractor.class);
+
+	// Member variables
+	private ExtractionSpec spec = null;
+	private HashMap<String,String> namespaceMappings = null;
+	private HashMap<String,Object> featureMappings = null;
+	private ErrorPolicy errorPolicy = null;
+	private transient ColumnType[] types = null;
+	private transient XPathMultiProcessor multiProc = null;
+	private transient ErrorReporter errors = null;
+
+
+	/**
+	 * Create an instance of ColumnarExtractor.
+	 *
+	 * @param spec columns to extract
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 */
+	private ColumnarExtractor(ExtractionSpec spec, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings) {
+
+		this.spec = spec;
+		this.namespaceMappings = namespaceMappings;
+		this.featureMappings = featureMappings;
+
+	}
+
+
+	/**
+	 * Restore the serialized object and then do a one time initialization to improve
+	 * performance for repetitive invocations of extract.  We need to initialize the
+	 * transient variables.
+	 *
+	 * @param inputStream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws XPathException
+	 */
+	private void readObject(ObjectInputStream inputStream)
+            throws IOException, ClassNotFoundException, XPathException
+    {
+
+        inputStream.defaultReadObject();
+        init();
+
+    }
+
+
+	/**
+	 * Get an instance of ColumnarExtractor.
+	 *
+	 * @param spec columns to extract
+	 * @return ColumnarExtractor
+	 * @throws XPathException
+	 */
+	public static ColumnarExtractor getInstance(ExtractionSpec spec) throws XPathException {
+
+		return getInstance(spec, null, null);
+
+	}
+
+
+	/**
+	 * Get an instance of ColumnarExtractor.
+	 *
+	 * @param spec columns to extract
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @return ColumnarExtractor
+	 * @throws XPathException
+	 */
+	public static ColumnarExtractor getInstance(ExtractionSpec spec, HashMap<String,String> namespaceMappings) throws XPathException {
+
+		return getInstance(spec, namespaceMappings, null);
+
+	}
+
+
+	/**
+	 * Get an instance of ColumnarExtractor.
+	 *
+	 * @param spec columns to extract
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @return ColumnarExtractor
+	 * @throws XPathException
+	 */
+	public static ColumnarExtractor getInstance(ExtractionSpec spec, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings) throws XPathException {
+
+		ColumnarExtractor extractor = new ColumnarExtractor(spec, namespaceMappings, featureMappings);
+		extractor.init();
+		return extractor;
+
+	}
+
+
+	/**
+	 * Initialization to improve performance for repetitive invocations of extract
+	 *
+	 * @throws XPathException
+	 */
+	private void init() throws XPathException {
+
+		if (spec.getColumnCount() == 0) {
+			log.error("Problems creating a ColumnarExtractor.  The spec has no columns.");
+			throw new XPathException("The spec has no columns");
+		}
+		types = new ColumnType[spec.getColumnCount()];
+		for (int col = 0; col < types.length; col++) {
+			types[col] = spec.getType(col);
+		}
+		multiProc = XPathMultiProcessor.getInstance(spec.getExpressions(), namespaceMappings, featureMappings);
+		errors = multiProc.getErrorReporter();
+
+	}
+
+
+	/**
+	 * Set what happens when a document fails (the default is ErrorPolicy.THROW).  With any
+	 * other policy the row is null in every column and marked as failed.
+	 *
+	 * @param policy ErrorPolicy
+	 */
+	public void setErrorPolicy(ErrorPolicy policy) {
+		errorPolicy = policy;
+	}
+
+
+	/**
+	 * @return what happens when a document fails
+	 */
+	public ErrorPolicy getErrorPolicy() {
+		return errorPolicy == null ? ErrorPolicy.THROW : errorPolicy;
+	}
+
+
+	/**
+	 * @return number of failed documents by cause
+	 */
+	public Map<ErrorCause,Long> getErrorCounts() {
+		return errors.getCounts();
+	}
+
+
+	/**
+	 * Remove and return the errors kept by the ErrorPolicy.COLLECT policy.
+	 *
+	 * @return errors in the order they happened
+	 */
+	public List<ProcessingError> drainErrors() {
+		return errors.drain();
+	}
+
+
+	/**
+	 * @return columns extracted
+	 */
+	public ExtractionSpec getSpec() {
+		return spec;
+	}
+
+
+	/**
+	 * Create an empty batch for fill.
+	 *
+	 * @param capacity most rows the batch holds
+	 * @return ColumnBatch
+	 */
+	public ColumnBatch newBatch(int capacity) {
+
+		return new ColumnBatch(spec, capacity);
+
+	}
+
+
+	/**
+	 * Extract the columns from the next records (at most maxRows of them) into a new batch.
+	 *
+	 * @param records content of each document
+	 * @param maxRows most documents in the batch
+	 * @return ColumnBatch
+	 * @throws XPathException when a document fails and the error policy is THROW
+	 */
+	public ColumnBatch extract(Iterator<?> records, int maxRows) throws XPathException {
+
+		ColumnBatch batch = newBatch(maxRows);
+		fill(batch, records);
+		return batch;
+
+	}
+
+
+	/**
+	 * Empty the batch and extract the columns from the next records until the batch is
+	 * full or the records run out.  Reusing a batch reuses its arrays.
+	 *
+	 * @param batch ColumnBatch (from newBatch)
+	 * @param records content of each document
+	 * @return number of rows in the batch
+	 * @throws XPathException when a document fails and the error policy is THROW (the
+	 * batch holds the rows before it)
+	 */
+	public int fill(ColumnBatch batch, Iterator<?> records) throws XPathException {
+
+		if (batch.getSpec() != spec) {
+			throw new IllegalArgumentException("The batch is for another spec");
+		}
+		batch.clear();
+		while (!batch.isFull() && records.hasNext()) {
+			Object record = records.next();
+			int row = batch.startRow();
+			if (record == null) {
+				continue;
+			}
+			try {
+				XdmNode document = toDocument(record);
+				XdmValue[] values = multiProc.evaluateValues(document);
+				for (int col = 0; col < values.length; col++) {
+					convert(batch, col, row, values[col]);
+				}
+			} catch (SaxonApiException e) {
+				batch.fail(row);
+				recover(new XPathException(e.getMessage(), errors.report(e)));
+			} catch (XPathException e) {
+				batch.fail(row);
+				recover(e);
+			}
+		}
+		return batch.getRowCount();
+
+	}
+
+
+	/**
+	 * Extract the columns from the records in batches.  Each batch is a new ColumnBatch, so
+	 * it can be kept after the next one is requested.
+	 *
+	 * @param records content of each document
+	 * @param batchSize most documents in each batch
+	 * @return ColumnBatches (a document that fails when the error policy is THROW ends
+	 * the batches with an ExtractionException)
+	 */
+	public Iterator<ColumnBatch> extractBatches(final Iterator<?> records, final int batchSize) {
+
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("The batch size must be positive");
+		}
+		return new Iterator<ColumnBatch>() {
+
+			@Override
+			public boolean hasNext() {
+				return records.hasNext();
+			}
+
+			@Override
+			public ColumnBatch next() {
+				if (!records.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				try {
+					return extract(records, batchSize);
+				} catch (XPathException e) {
+					throw new ExtractionException(e);
+				}
+			}
+
+		};
+
+	}
+
+
+	/**
+	 * @param record content of a document (not null)
+	 * @return root of the document
+	 * @throws SaxonApiException when an encoded document can't be decoded
+	 * @throws XPathException when the content can't be parsed
+	 */
+	private XdmNode toDocument(Object record) throws SaxonApiException, XPathException {
+
+		if (record instanceof ParsedDocument) {
+			return ((ParsedDocument) record).getNode();
+		}
+		if (record instanceof byte[] && BinaryDocumentReader.isBinary(record)) {
+			return BinaryDocumentReader.read((byte[]) record).getNode();
+		}
+		if (record instanceof ByteBuffer && BinaryDocumentReader.isBinary(record)) {
+			return BinaryDocumentReader.read((ByteBuffer) record).getNode();
+		}
+		return multiProc.parse(BatchIterator.toSource(record));
+
+	}
+
+
+	/**
+	 * Convert a value into its cell.
+	 *
+	 * @param batch ColumnBatch
+	 * @param col position of the column
+	 * @param row row
+	 * @param value value of the expression
+	 * @throws SaxonApiException when the value can't be converted
+	 */
+	private void convert(ColumnBatch batch, int col, int row, XdmValue value) throws SaxonApiException {
+
+		try {
+
+			if (types[col] == ColumnType.BOOLEAN) {
+				batch.setBoolean(col, row, ExpressionTool.effectiveBooleanValue(value.getUnderlyingValue().iterate()));
+				return;
+			}
+
+			Item item = single(col, value);
+			if (item == null) {
+				return;
+			}
+			switch (types[col]) {
+			case LONG:
+				if (item instanceof NumericValue) {
+					batch.setLong(col, row, TypedResults.toLongExact((NumericValue) item));
+				} else {
+					batch.setLong(col, row, parseLong(col, item.getStringValueCS()));
+				}
+				break;
+			case DOUBLE:
+				if (item instanceof NumericValue) {
+					batch.setDouble(col, row, ((NumericValue) item).getDoubleValue());
+				} else {
+					try {
+						batch.setDouble(col, row, StringToDouble.getInstance().stringToNumber(item.getStringValueCS()));
+					} catch (NumberFormatException e) {
+						throw error("Column " + spec.getName(col) + " can't convert '" + item.getStringValueCS() + "' to double", "FORG0001");
+					}
+				}
+				break;
+			default:
+				batch.setString(col, row, item.getStringValueCS());
+				break;
+			}
+
+		} catch (net.sf.saxon.trans.XPathException e) {
+
+			throw new SaxonApiException(e);
+
+		}
+
+	}
+
+
+	/**
+	 * @param col position of the column
+	 * @param value value of the expression
+	 * @return the single node or atomic value (null if the value is empty)
+	 * @throws SaxonApiException when the value has more than one item, or isn't a node or atomic value
+	 */
+	private Item single(int col, XdmValue value) throws SaxonApiException {
+
+		int size = value.size();
+		if (size == 0) {
+			return null;
+		}
+		if (size > 1) {
+			throw error("Column " + spec.getName(col) + " expected a single item but found " + size, "XPTY0004");
+		}
+		Item item = value.getUnderlyingValue().head();
+		if (!(item instanceof AtomicValue) && !(item instanceof net.sf.saxon.om.NodeInfo)) {
+			throw error("Column " + spec.getName(col) + " expected a node or atomic value", "XPTY0004");
+		}
+		return item;
+
+	}
+
+
+	/**
+	 * Parse an xs:integer (surrounding whitespace is allowed) without allocating.
+	 *
+	 * @param col position of the column
+	 * @param chars string value
+	 * @return value
+	 * @throws SaxonApiException when the string isn't an integer that fits in a long
+	 */
+	private long parseLong(int col, CharSequence chars) throws SaxonApiException {
+
+		int start = 0;
+		int end = chars.length();
+		while (start < end && isWhitespace(chars.charAt(start))) {
+			start++;
+		}
+		while (end > start && isWhitespace(chars.charAt(end - 1))) {
+			end--;
+		}
+		boolean negative = false;
+		if (start < end && (chars.charAt(start) == '-' || chars.charAt(start) == '+')) {
+			negative = chars.charAt(start) == '-';
+			start++;
+		}
+		if (start == end) {
+			throw error("Column " + spec.getName(col) + " can't convert '" + chars + "' to integer", "FORG0001");
+		}
+
+		// Accumulate negatively so that Long.MIN_VALUE fits
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long result = 0;
+		for (int i = start; i < end; i++) {
+			int digit = chars.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw error("Column " + spec.getName(col) + " can't convert '" + chars + "' to integer", "FORG0001");
+			}
+			if (result < (limit + digit) / 10) {
+				throw error("Column " + spec.getName(col) + " can't convert '" + chars + "' to a long", "FOAR0002");
+			}
+			result = result * 10 - digit;
+		}
+		return negative ? result : -result;
+
+	}
+
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+
+	/**
+	 * Throw the exception, unless the error policy absorbs it.
+	 *
+	 * @param e XPathException
+	 * @throws XPathException
+	 */
+	private void recover(XPathException e) throws XPathException {
+
+		if (!errors.absorb(getErrorPolicy(), e.getErrorCause(), e.getMessage())) {
+			throw e;
+		}
+
+	}
+
+
+	/**
+	 * @param message message
+	 * @param code XPath error code
+	 * @return SaxonApiException
+	 */
+	private static SaxonApiException error(String message, String code) {
+		return new SaxonApiException(new net.sf.saxon.trans.XPathException(message, code));
+	}
+
+
+	/**
+	 * Thrown by the iterator of extractBatches when a document fails and the error policy
+	 * is THROW.
+	 */
+	public static class ExtractionException extends RuntimeException {
+
+		private static final long serialVersionUID = 2906316474287659322L;
+
+		private ExtractionException(XPathException cause) {
+			super(cause.getMessage(), cause);
+		}
+
+	}
+
+}
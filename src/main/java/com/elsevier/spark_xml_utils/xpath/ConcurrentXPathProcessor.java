@@ -0,0 +1,621 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.elsevier.spark_xml_utils.common.CallMetrics;
+import com.elsevier.spark_xml_utils.common.CompiledExecutable;
+import com.elsevier.spark_xml_utils.common.ContentSource;
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+import com.elsevier.spark_xml_utils.common.ErrorPolicy;
+import com.elsevier.spark_xml_utils.common.ErrorReporter;
+import com.elsevier.spark_xml_utils.common.EvaluatorPool;
+import com.elsevier.spark_xml_utils.common.ProcessingError;
+import com.elsevier.spark_xml_utils.common.RetentionPolicy;
+import com.elsevier.spark_xml_utils.common.SharedConfiguration;
+
+
+/**
+ * Thread-safe variant of XPathProcessor.  A single instance can be shared by all
+ * threads in an executor.  The compiled XPath expression is shared, and each call
+ * borrows an evaluator (selector, document builder and serializer) from an
+ * EvaluatorPool sized to the number of cores.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ConcurrentXPathProcessor implements Serializable {
+
+	private static final long serialVersionUID = -2873047519874213307L;
+
+	// Logger
+	private static Log log = LogFactory.getLog(ConcurrentXPathProcessor.class);
+
+	// Member variables
+	private String xPathExpression = null;
+	private HashMap<String,String> namespaceMappings = null;
+	private HashMap<String,Object> featureMappings = null;
+	private volatile String outputMethod = "xml";
+	private transient Processor proc = null;
+	private transient XPathExecutable exp = null;
+	private transient EvaluatorPool<Evaluator> pool = null;
+	private volatile boolean prefilterDisabled = false;
+	private transient XPathPrefilter prefilter = null;
+	private transient AtomicLong prefilterRejectCount = null;
+	private volatile ErrorPolicy errorPolicy = null;
+	private volatile RetentionPolicy retentionPolicy = null;
+	private transient ErrorReporter errors = null;
+
+
+	/**
+	 * Per-call state.  Only used by one thread at a time.
+	 */
+	private static class Evaluator {
+
+		private XPathSelector xsel = null;
+		private DocumentBuilder builder = null;
+		private Serializer serializer = null;
+		private ByteArrayOutputStream baos = null;
+		private String outputMethod = null;
+		private CallMetrics metrics = null;
+
+	}
+
+
+	/**
+	 * Create an instance of ConcurrentXPathProcessor.
+	 *
+	 * @param xPathExpression XPath expression to apply to the content
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 */
+	private ConcurrentXPathProcessor(String xPathExpression, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings) {
+
+		this.xPathExpression = xPathExpression;
+		this.namespaceMappings = namespaceMappings;
+		this.featureMappings = featureMappings;
+
+	}
+
+
+	/**
+	 * Restore the serialized object and then do a one time initialization.  We need to
+	 * initialize the transient variables.
+	 *
+	 * @param inputStream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws XPathException
+	 */
+	private void readObject(ObjectInputStream inputStream)
+            throws IOException, ClassNotFoundException, XPathException
+    {
+
+        inputStream.defaultReadObject();
+        init();
+
+    }
+
+
+	/**
+	 * Get an instance of ConcurrentXPathProcessor.
+	 *
+	 * @param xPathExpression XPath expression to apply to the content
+	 * @return ConcurrentXPathProcessor
+	 * @throws XPathException
+	 */
+	public static ConcurrentXPathProcessor getInstance(String xPathExpression) throws XPathException {
+
+		return getInstance(xPathExpression, null, null);
+
+	}
+
+
+	/**
+	 * Get an instance of ConcurrentXPathProcessor.
+	 *
+	 * @param xPathExpression XPath expression to apply to the content
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @return ConcurrentXPathProcessor
+	 * @throws XPathException
+	 */
+	public static ConcurrentXPathProcessor getInstance(String xPathExpression, HashMap<String,String> namespaceMappings) throws XPathException {
+
+		return getInstance(xPathExpression, namespaceMappings, null);
+
+	}
+
+
+	/**
+	 * Get an instance of ConcurrentXPathProcessor.
+	 *
+	 * @param xPathExpression XPath expression to apply to the content
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @return ConcurrentXPathProcessor
+	 * @throws XPathException
+	 */
+	public static ConcurrentXPathProcessor getInstance(String xPathExpression, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings) throws XPathException {
+
+		ConcurrentXPathProcessor proc = new ConcurrentXPathProcessor(xPathExpression, namespaceMappings, featureMappings);
+		proc.init();
+		return proc;
+
+	}
+
+
+	/**
+	 * Initialization of the shared compiled expression and the evaluator pool.
+	 *
+	 * @throws XPathException
+	 */
+	private void init() throws XPathException {
+
+		try {
+
+			CompiledExecutable<XPathExecutable> compiled = XPathProcessor.getCompiledExpression(xPathExpression, namespaceMappings, featureMappings);
+			proc = compiled.getProcessor();
+			exp = compiled.getExecutable();
+			pool = new EvaluatorPool<Evaluator>();
+			prefilter = XPathPrefilter.getInstance(exp, featureMappings);
+			prefilterRejectCount = new AtomicLong();
+			errors = ErrorReporter.getInstance(log, "xpath", xPathExpression);
+
+		} catch (SaxonApiException e) {
+
+			log.error("Problems creating a ConcurrentXPathProcessor.  " + e.getMessage(),e);
+			throw new XPathException(e.getMessage());
+
+		}
+
+	}
+
+
+	/**
+	 * Set what a call does when it fails (the default is ErrorPolicy.THROW).
+	 *
+	 * @param policy ErrorPolicy
+	 */
+	public void setErrorPolicy(ErrorPolicy policy) {
+		errorPolicy = policy;
+	}
+
+
+	/**
+	 * @return what a call does when it fails
+	 */
+	public ErrorPolicy getErrorPolicy() {
+		return errorPolicy == null ? ErrorPolicy.THROW : errorPolicy;
+	}
+
+
+	/**
+	 * Set what a pooled evaluator keeps between calls (the default is RetentionPolicy.DEFAULT).
+	 *
+	 * @param policy RetentionPolicy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		retentionPolicy = policy;
+	}
+
+
+	/**
+	 * @return what a pooled evaluator keeps between calls
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy == null ? RetentionPolicy.DEFAULT : retentionPolicy;
+	}
+
+
+	/**
+	 * @return number of failed calls by cause (from all threads)
+	 */
+	public Map<ErrorCause,Long> getErrorCounts() {
+		return errors.getCounts();
+	}
+
+
+	/**
+	 * Remove and return the errors kept by the ErrorPolicy.COLLECT policy (from all threads).
+	 *
+	 * @return errors in the order they happened
+	 */
+	public List<ProcessingError> drainErrors() {
+		return errors.drain();
+	}
+
+
+	/**
+	 * Set the output method (the default is xml).  Applies to all subsequent evaluations.
+	 * @param method
+	 */
+	public void setOutputMethod(String method)  {
+		outputMethod = method;
+	}
+
+
+	/**
+	 * Get the pool of evaluators (for monitoring).
+	 *
+	 * @return evaluator pool
+	 */
+	public EvaluatorPool<?> getEvaluatorPool() {
+		return pool;
+	}
+
+
+	/**
+	 * Enable or disable the prefilter (enabled by default).  When enabled, filter scans the
+	 * content for the names and string literals the XPath expression requires and returns
+	 * FALSE without parsing content that is missing one of them.  Such content is not
+	 * checked for being well formed.
+	 *
+	 * @param enabled TRUE to scan the content before parsing it
+	 */
+	public void setPrefilterEnabled(boolean enabled) {
+		prefilterDisabled = !enabled;
+	}
+
+
+	/**
+	 * @return number of times filter returned FALSE without parsing the content
+	 */
+	public long getPrefilterRejectCount() {
+		return prefilterRejectCount.get();
+	}
+
+
+	/**
+	 * Filter the content with the XPath expression specified when creating the ConcurrentXPathProcessor.
+	 *
+	 * @param content String to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	public boolean filter(String content) throws XPathException {
+
+		return filterString(content);
+
+	}
+
+
+	/**
+	 * Filter the content with the XPath expression specified when creating the ConcurrentXPathProcessor.
+	 *
+	 * @param content String to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	public boolean filterString(String content) throws XPathException {
+
+		if (prefilter != null && !prefilterDisabled && !prefilter.mayMatch(content)) {
+			prefilterRejectCount.incrementAndGet();
+			return false;
+		}
+
+		return filter(ContentSource.fromCharSequence(content));
+
+	}
+
+
+	/**
+	 * Filter the content with the XPath expression specified when creating the ConcurrentXPathProcessor.
+	 *
+	 * @param content InputStream to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	public boolean filter(InputStream content) throws XPathException {
+
+		return filterStream(content);
+
+	}
+
+
+	/**
+	 * Filter the content with the XPath expression specified when creating the ConcurrentXPathProcessor.
+	 *
+	 * @param content InputStream to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	public boolean filterStream(InputStream content) throws XPathException {
+
+		if (prefilter == null || prefilterDisabled) {
+			return filter(new StreamSource(content));
+		}
+
+		try {
+
+			// Read the content so it can be scanned before it is parsed
+			return filter(IOUtils.toByteArray(content));
+
+		} catch (IOException e) {
+
+			recover(new XPathException(e.getMessage(), errors.report(e)));
+			return false;
+
+		}
+
+	}
+
+
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the ConcurrentXPathProcessor
+	 * and return a serialized response.
+	 *
+	 * @param content String to which the XPath Expression will be evaluated
+	 * @return Serialized response from the evaluation.
+	 * @throws XPathException
+	 */
+	public String evaluate(String content) throws XPathException {
+
+		return evaluateString(content);
+
+	}
+
+
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the ConcurrentXPathProcessor
+	 * and return a serialized response.
+	 *
+	 * @param content String to which the XPath Expression will be evaluated
+	 * @return Serialized response from the evaluation.
+	 * @throws XPathException
+	 */
+	public String evaluateString(String content) throws XPathException {
+
+		return evaluate(new StreamSource(IOUtils.toInputStream(content,StandardCharsets.UTF_8)));
+
+	}
+
+
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the ConcurrentXPathProcessor
+	 * and return a serialized response.
+	 *
+	 * @param content InputStream to which the XPath Expression will be evaluated
+	 * @return Serialized response from the evaluation.
+	 * @throws XPathException
+	 */
+	public String evaluate(InputStream content) throws XPathException {
+
+		return evaluateStream(content);
+
+	}
+
+
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the ConcurrentXPathProcessor
+	 * and return a serialized response.
+	 *
+	 * @param content InputStream to which the XPath Expression will be evaluated
+	 * @return Serialized response from the evaluation.
+	 * @throws XPathException
+	 */
+	public String evaluateStream(InputStream content) throws XPathException {
+
+		return evaluate(new StreamSource(content));
+
+	}
+
+
+	/**
+	 * Filter the content, skipping the parse when the prefilter shows the XPath expression
+	 * cannot be true.
+	 *
+	 * @param content UTF-8 (or self describing) xml to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	private boolean filter(byte[] content) throws XPathException {
+
+		if (prefilter != null && !prefilterDisabled && !prefilter.mayMatch(content, 0, content.length)) {
+			prefilterRejectCount.incrementAndGet();
+			return false;
+		}
+
+		return filter(new StreamSource(new ByteArrayInputStream(content)));
+
+	}
+
+
+	/**
+	 * Filter the content with a pooled evaluator.
+	 *
+	 * @param content StreamSource to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	private boolean filter(StreamSource content) throws XPathException {
+
+		Evaluator evaluator = pool.borrow(this::newEvaluator);
+		try {
+
+			// Prepare to evaluate the XPath expression against the content
+			long start = evaluator.metrics.start();
+			XdmNode xmlDoc = evaluator.builder.build(content);
+			start = evaluator.metrics.parsed(start);
+			evaluator.xsel.setContextItem(xmlDoc);
+
+			// Evaluate and return the boolean value for the XPath expression
+			boolean result = evaluator.xsel.effectiveBooleanValue();
+			evaluator.metrics.evaluated(start);
+			return result;
+
+		} catch (SaxonApiException e) {
+
+			evaluator.metrics.failed();
+			recover(new XPathException(e.getMessage(), errors.report(e)));
+			return false;
+
+		} finally {
+
+			evaluator.metrics.complete();
+			release(evaluator);
+
+		}
+
+	}
+
+
+	/**
+	 * Evaluate the content with a pooled evaluator and return a serialized response.
+	 *
+	 * @param content StreamSource to which the XPath expression will be evaluated
+	 * @return Serialized response from the evaluation.
+	 * @throws XPathException
+	 */
+	private String evaluate(StreamSource content) throws XPathException {
+
+		Evaluator evaluator = pool.borrow(this::newEvaluator);
+		try {
+
+			// Reset the serializer (and pick up any change to the output method)
+			evaluator.serializer.close();
+			evaluator.baos.reset();
+			if (!outputMethod.equals(evaluator.outputMethod)) {
+				evaluator.outputMethod = outputMethod;
+				evaluator.serializer.setOutputProperty(Serializer.Property.METHOD, evaluator.outputMethod);
+			}
+
+			// Prepare to evaluate the XPath expression against the content
+			long start = evaluator.metrics.start();
+			XdmNode xmlDoc = evaluator.builder.build(content);
+			start = evaluator.metrics.parsed(start);
+			evaluator.xsel.setContextItem(xmlDoc);
+
+			// Evaluate the XPath expression
+			XdmValue results = evaluator.xsel.evaluate();
+			start = evaluator.metrics.evaluated(start);
+			for (XdmItem item : results) {
+				evaluator.serializer.serializeXdmValue(item);
+			}
+			evaluator.metrics.serialized(start);
+			evaluator.metrics.items(results.size());
+			evaluator.metrics.output(evaluator.baos.size());
+
+			// Return the results
+			return new String(evaluator.baos.toByteArray(), StandardCharsets.UTF_8);
+
+		} catch (SaxonApiException e) {
+
+			evaluator.metrics.failed();
+			return recover(new XPathException(e.getMessage(), errors.report(e)));
+
+		} finally {
+
+			evaluator.metrics.complete();
+			release(evaluator);
+
+		}
+
+	}
+
+
+	/**
+	 * Apply the retention policy to a evaluator before it goes back to the pool: replace a
+	 * buffer that has grown too large and release the document.
+	 *
+	 * @param evaluator Evaluator used by the call
+	 */
+	private void release(Evaluator evaluator) {
+
+		RetentionPolicy policy = getRetentionPolicy();
+		if (policy.isOversized(evaluator.baos)) {
+			evaluator.baos = new ByteArrayOutputStream();
+			evaluator.serializer.setOutputStream(evaluator.baos);
+		}
+		if (policy.isReleaseContext()) {
+			try {
+				evaluator.xsel.setContextItem(SharedConfiguration.getPlaceholderDocument());
+			} catch (SaxonApiException e) {
+				log.error("Problems releasing the content.  " + e.getMessage(),e);
+			}
+		}
+		pool.release(evaluator);
+
+	}
+
+
+	/**
+	 * Apply the error policy to a failed call: throw the exception again, or return what
+	 * the policy returns in place of the result.
+	 *
+	 * @param e exception of the failed call (already reported)
+	 * @return value to return in place of the result (null unless the policy has a sentinel)
+	 * @throws XPathException
+	 */
+	private String recover(XPathException e) throws XPathException {
+
+		ErrorPolicy policy = getErrorPolicy();
+		if (!errors.absorb(policy, e.getErrorCause(), e.getMessage())) {
+			throw e;
+		}
+		return policy.getSentinel();
+
+	}
+
+
+	/**
+	 * Create a new evaluator for the pool.
+	 *
+	 * @return Evaluator
+	 */
+	private Evaluator newEvaluator() {
+
+		Evaluator evaluator = new Evaluator();
+		evaluator.xsel = exp.load();
+		evaluator.builder = proc.newDocumentBuilder();
+		evaluator.baos = new ByteArrayOutputStream();
+		evaluator.serializer = proc.newSerializer(evaluator.baos);
+		evaluator.outputMethod = outputMethod;
+		evaluator.serializer.setOutputProperty(Serializer.Property.METHOD, evaluator.outputMethod);
+		evaluator.serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION,"yes");
+		evaluator.metrics = CallMetrics.getInstance("xpath");
+		return evaluator;
+
+	}
+
+}
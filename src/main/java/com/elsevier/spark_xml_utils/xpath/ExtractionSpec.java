@@ -0,0 +1,203 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+
+/**
+ * The columns to extract from each document by a ColumnarExtractor: the name of each
+ * column, the XPath expression giving its value and the type it is stored as.
+ * <p>
+ * Each expression should give the empty sequence (a null cell) or a single node or
+ * atomic value.  LONG and DOUBLE columns take numbers as they are and convert the string
+ * value of anything else.  BOOLEAN columns store the effective boolean value (so the
+ * empty sequence is FALSE rather than null).  STRING columns store the string value as
+ * UTF-8.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ExtractionSpec implements Serializable {
+
+	private static final long serialVersionUID = 4415820938311905487L;
+
+	/**
+	 * Type a column is stored as.
+	 */
+	public enum ColumnType {
+		LONG, DOUBLE, BOOLEAN, STRING
+	}
+
+	// Member variables
+	private final List<String> names = new ArrayList<String>();
+	private final List<String> expressions = new ArrayList<String>();
+	private final List<ColumnType> types = new ArrayList<ColumnType>();
+
+
+	/**
+	 * Create an instance of ExtractionSpec.
+	 */
+	private ExtractionSpec() {
+	}
+
+
+	/**
+	 * Get an instance of ExtractionSpec (with no columns).
+	 *
+	 * @return ExtractionSpec
+	 */
+	public static ExtractionSpec getInstance() {
+
+		return new ExtractionSpec();
+
+	}
+
+
+	/**
+	 * Add a column.
+	 *
+	 * @param name name of the column (unique within the spec)
+	 * @param xPathExpression XPath expression giving the value of the column
+	 * @param type type the column is stored as
+	 * @return this ExtractionSpec
+	 */
+	public ExtractionSpec add(String name, String xPathExpression, ColumnType type) {
+
+		if (name == null || xPathExpression == null || type == null) {
+			throw new IllegalArgumentException("The name, expression and type of a column are required");
+		}
+		if (names.contains(name)) {
+			throw new IllegalArgumentException("Duplicate column " + name);
+		}
+		names.add(name);
+		expressions.add(xPathExpression);
+		types.add(type);
+		return this;
+
+	}
+
+
+	/**
+	 * Add a LONG column.
+	 *
+	 * @param name name of the column
+	 * @param xPathExpression XPath expression giving the value of the column
+	 * @return this ExtractionSpec
+	 */
+	public ExtractionSpec addLong(String name, String xPathExpression) {
+		return add(name, xPathExpression, ColumnType.LONG);
+	}
+
+
+	/**
+	 * Add a DOUBLE column.
+	 *
+	 * @param name name of the column
+	 * @param xPathExpression XPath expression giving the value of the column
+	 * @return this ExtractionSpec
+	 */
+	public ExtractionSpec addDouble(String name, String xPathExpression) {
+		return add(name, xPathExpression, ColumnType.DOUBLE);
+	}
+
+
+	/**
+	 * Add a BOOLEAN column.
+	 *
+	 * @param name name of the column
+	 * @param xPathExpression XPath expression giving the value of the column
+	 * @return this ExtractionSpec
+	 */
+	public ExtractionSpec addBoolean(String name, String xPathExpression) {
+		return add(name, xPathExpression, ColumnType.BOOLEAN);
+	}
+
+
+	/**
+	 * Add a STRING column.
+	 *
+	 * @param name name of the column
+	 * @param xPathExpression XPath expression giving the value of the column
+	 * @return this ExtractionSpec
+	 */
+	public ExtractionSpec addString(String name, String xPathExpression) {
+		return add(name, xPathExpression, ColumnType.STRING);
+	}
+
+
+	/**
+	 * @return number of columns
+	 */
+	public int getColumnCount() {
+		return names.size();
+	}
+
+
+	/**
+	 * @param column position of the column
+	 * @return name of the column
+	 */
+	public String getName(int column) {
+		return names.get(column);
+	}
+
+
+	/**
+	 * @param column position of the column
+	 * @return XPath expression giving the value of the column
+	 */
+	public String getExpression(int column) {
+		return expressions.get(column);
+	}
+
+
+	/**
+	 * @param column position of the column
+	 * @return type the column is stored as
+	 */
+	public ColumnType getType(int column) {
+		return types.get(column);
+	}
+
+
+	/**
+	 * @param name name of a column
+	 * @return position of the column (-1 if there is no such column)
+	 */
+	public int indexOf(String name) {
+		return names.indexOf(name);
+	}
+
+
+	/**
+	 * @return names and XPath expressions of the columns (in order)
+	 */
+	LinkedHashMap<String,String> getExpressions() {
+
+		LinkedHashMap<String,String> map = new LinkedHashMap<String,String>();
+		for (int i = 0; i < names.size(); i++) {
+			map.put(names.get(i), expressions.get(i));
+		}
+		return map;
+
+	}
+
+}
@@ -16,6 +16,8 @@
  */
 package com.elsevier.spark_xml_utils.xpath;
 
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+
 
 /**
  * XPath Exception
@@ -26,11 +28,37 @@ package com.elsevier.spark_xml_utils.xpath;
 public class XPathException extends Exception {
 	
 	private static final long serialVersionUID = -7388865425596520914L;
+	
+	// What went wrong (null if not known)
+	private ErrorCause errorCause = null;
 
 	public XPathException(String msg) {
 		
 		super(msg);
 		
 	}
+	
+	
+	/**
+	 * Create an exception without a stack trace (or suppressed exceptions), which is
+	 * what the processors throw when processing the content fails.
+	 * 
+	 * @param msg message
+	 * @param errorCause what went wrong
+	 */
+	public XPathException(String msg, ErrorCause errorCause) {
+		
+		super(msg, null, false, false);
+		this.errorCause = errorCause;
+		
+	}
+	
+	
+	/**
+	 * @return what went wrong (OTHER if not known)
+	 */
+	public ErrorCause getErrorCause() {
+		return errorCause == null ? ErrorCause.OTHER : errorCause;
+	}
 
 }
@@ -0,0 +1,867 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.elsevier.spark_xml_utils.common.CompiledExecutable;
+import com.elsevier.spark_xml_utils.common.ErrorReporter;
+import com.elsevier.spark_xml_utils.common.ExecutableCache;
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.common.RetentionPolicy;
+import com.elsevier.spark_xml_utils.common.SharedConfiguration;
+
+
+/**
+ * Class with methods to evaluate a named set of XPath expressions against a string
+ * of arbitrary xml content.  The expressions are compiled once and each document is
+ * parsed once, no matter how many expressions are in the set.
+ * <p>
+ * Work shared by several expressions is only done once per document.  Identical
+ * expressions are evaluated once, and simple paths that start with the same steps
+ * (for example /xocs:doc/xocs:meta/xocs:eid and /xocs:doc/xocs:meta/xocs:doi) evaluate
+ * the common steps once and apply the remaining steps to that result.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class XPathMultiProcessor implements Serializable {
+
+	private static final long serialVersionUID = -1722393744826584315L;
+
+	// Logger
+	private static Log log = LogFactory.getLog(XPathMultiProcessor.class);
+
+	// Variable holding the value of a shared prefix
+	private static final String PREFIX_NAMESPACE = "http://www.elsevier.com/spark_xml_utils/xpath/multi";
+	private static final QName PREFIX_VARIABLE = new QName(PREFIX_NAMESPACE, "prefix");
+
+	// Member variables
+	private LinkedHashMap<String,String> xPathExpressions = null;
+	private HashMap<String,String> namespaceMappings = null;
+	private HashMap<String,Object> featureMappings = null;
+	private transient String[] names = null;
+	private transient CompiledSet compiledSet = null;
+	private transient XPathSelector[] prefixSelectors = null;
+	private transient XPathSelector[] unitSelectors = null;
+	private transient DocumentBuilder builder = null;
+	private transient Processor proc  = null;
+	private transient Serializer serializer = null;
+	private transient ByteArrayOutputStream baos = null;
+	private transient ErrorReporter errors = null;
+	private RetentionPolicy retentionPolicy = null;
+
+
+	/**
+	 * The compiled form of the expression set.  Units are the distinct expressions; each
+	 * unit is either evaluated against the document, evaluated against the value of a
+	 * shared prefix, or is itself a shared prefix.
+	 */
+	private static class CompiledSet {
+
+		// Distinct prefixes
+		private XPathExecutable[] prefixes = null;
+
+		// Distinct expressions
+		private XPathExecutable[] units = null;
+		private int[] unitPrefix = null;
+		private int[] unitIsPrefix = null;
+
+		// Position of the expression (in the order given) -> unit
+		private int[] expressionUnit = null;
+
+	}
+
+
+	/**
+	 * Create an instance of XPathMultiProcessor.
+	 *
+	 * @param xPathExpressions Names and XPath expressions to apply to the content
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 */
+	private XPathMultiProcessor(Map<String,String> xPathExpressions, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings) {
+
+		this.xPathExpressions = new LinkedHashMap<String,String>(xPathExpressions);
+		this.namespaceMappings = namespaceMappings;
+		this.featureMappings = featureMappings;
+
+	}
+
+
+	/**
+	 * Restore the serialized object and then do a one time initialization to improve
+	 * performance for repetitive invocations of evaluate expressions.  We need to
+	 * initialize the transient variables.
+	 *
+	 * @param inputStream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws XPathException
+	 */
+	private void readObject(ObjectInputStream inputStream)
+            throws IOException, ClassNotFoundException, XPathException
+    {
+
+        inputStream.defaultReadObject();
+        init();
+
+    }
+
+
+	/**
+	 * Get an instance of XPathMultiProcessor.
+	 *
+	 * @param xPathExpressions Names and XPath expressions (results are returned in this order)
+	 * @return XPathMultiProcessor
+	 * @throws XPathException
+	 */
+	public static XPathMultiProcessor getInstance(Map<String,String> xPathExpressions) throws XPathException {
+
+		return getInstance(xPathExpressions, null, null);
+
+	}
+
+
+	/**
+	 * Get an instance of XPathMultiProcessor.
+	 *
+	 * @param xPathExpressions Names and XPath expressions (results are returned in this order)
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @return XPathMultiProcessor
+	 * @throws XPathException
+	 */
+	public static XPathMultiProcessor getInstance(Map<String,String> xPathExpressions, HashMap<String,String> namespaceMappings) throws XPathException {
+
+		return getInstance(xPathExpressions, namespaceMappings, null);
+
+	}
+
+
+	/**
+	 * Get an instance of XPathMultiProcessor.
+	 *
+	 * @param xPathExpressions Names and XPath expressions (results are returned in this order)
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @return XPathMultiProcessor
+	 * @throws XPathException
+	 */
+	public static XPathMultiProcessor getInstance(Map<String,String> xPathExpressions, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings) throws XPathException {
+
+		XPathMultiProcessor proc = new XPathMultiProcessor(xPathExpressions, namespaceMappings, featureMappings);
+		proc.init();
+		return proc;
+
+	}
+
+
+	/**
+	 * Initialization to improve performance for repetitive invocations of evaluate expressions
+	 *
+	 * @throws XPathException
+	 */
+	private void init() throws XPathException {
+
+		try {
+
+			names = xPathExpressions.keySet().toArray(new String[xPathExpressions.size()]);
+			final String[] expressions = xPathExpressions.values().toArray(new String[xPathExpressions.size()]);
+
+			// Get the compiled set (compiling it only if this JVM hasn't already done so)
+			String key = ExecutableCache.computeKey("xpath-multi", String.join("\u0000", expressions), namespaceMappings, featureMappings);
+			CompiledExecutable<CompiledSet> compiled = ExecutableCache.get(key, () -> compile(expressions, namespaceMappings, featureMappings));
+			proc = compiled.getProcessor();
+			compiledSet = compiled.getExecutable();
+
+			// Load the selectors
+			prefixSelectors = new XPathSelector[compiledSet.prefixes.length];
+			for (int i = 0; i < prefixSelectors.length; i++) {
+				prefixSelectors[i] = compiledSet.prefixes[i].load();
+			}
+			unitSelectors = new XPathSelector[compiledSet.units.length];
+			for (int i = 0; i < unitSelectors.length; i++) {
+				if (compiledSet.units[i] != null) {
+					unitSelectors[i] = compiledSet.units[i].load();
+				}
+			}
+			builder = proc.newDocumentBuilder();
+
+			// Create and initialize the serializer
+			baos = new ByteArrayOutputStream();
+			serializer = proc.newSerializer(baos);
+			serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+			serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION,"yes");
+
+			// Get the reporter of the errors processing the content
+			errors = ErrorReporter.getInstance(log, "xpath", String.join(" | ", expressions));
+
+		} catch (SaxonApiException e) {
+
+			log.error("Problems creating an XPathMultiProcessor.  " + e.getMessage(),e);
+			throw new XPathException(e.getMessage());
+
+		}
+
+	}
+
+
+	/**
+	 * Set the output method (the default is xml).
+	 * @param method
+	 */
+	public void setOutputMethod(String method)  {
+		serializer.setOutputProperty(Serializer.Property.METHOD, method);
+	}
+
+
+	/**
+	 * Set what is kept between calls (the default is RetentionPolicy.DEFAULT).
+	 *
+	 * @param policy RetentionPolicy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		retentionPolicy = policy;
+	}
+
+
+	/**
+	 * @return what is kept between calls
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy == null ? RetentionPolicy.DEFAULT : retentionPolicy;
+	}
+
+
+	/**
+	 * Get the names of the expressions (in the order the results are returned by evaluateToArray).
+	 *
+	 * @return expression names
+	 */
+	public String[] getNames() {
+		return names.clone();
+	}
+
+
+	/**
+	 * Get the number of distinct expressions and shared prefixes evaluated for each document.
+	 *
+	 * @return number of evaluations per document
+	 */
+	public int getEvaluationCount() {
+
+		int count = compiledSet.prefixes.length;
+		for (int i = 0; i < compiledSet.units.length; i++) {
+			if (compiledSet.unitIsPrefix[i] < 0) {
+				count++;
+			}
+		}
+		return count;
+
+	}
+
+
+	/**
+	 * Evaluate the content with each of the XPath expressions and return the serialized
+	 * responses keyed by expression name.
+	 *
+	 * @param content String to which the XPath expressions will be evaluated
+	 * @return Serialized response for each expression (in the order given)
+	 * @throws XPathException
+	 */
+	public Map<String,String> evaluate(String content) throws XPathException {
+
+		return evaluateString(content);
+
+	}
+
+
+	/**
+	 * Evaluate the content with each of the XPath expressions and return the serialized
+	 * responses keyed by expression name.
+	 *
+	 * @param content String to which the XPath expressions will be evaluated
+	 * @return Serialized response for each expression (in the order given)
+	 * @throws XPathException
+	 */
+	public Map<String,String> evaluateString(String content) throws XPathException {
+
+		return toMap(evaluateToArray(content));
+
+	}
+
+
+	/**
+	 * Evaluate the content with each of the XPath expressions and return the serialized
+	 * responses keyed by expression name.
+	 *
+	 * @param content InputStream to which the XPath expressions will be evaluated
+	 * @return Serialized response for each expression (in the order given)
+	 * @throws XPathException
+	 */
+	public Map<String,String> evaluate(InputStream content) throws XPathException {
+
+		return evaluateStream(content);
+
+	}
+
+
+	/**
+	 * Evaluate the content with each of the XPath expressions and return the serialized
+	 * responses keyed by expression name.
+	 *
+	 * @param content InputStream to which the XPath expressions will be evaluated
+	 * @return Serialized response for each expression (in the order given)
+	 * @throws XPathException
+	 */
+	public Map<String,String> evaluateStream(InputStream content) throws XPathException {
+
+		return toMap(evaluate(new StreamSource(content)));
+
+	}
+
+
+	/**
+	 * Evaluate the content with each of the XPath expressions and return the serialized
+	 * responses by position (see getNames).
+	 *
+	 * @param content String to which the XPath expressions will be evaluated
+	 * @return Serialized response for each expression (in the order given)
+	 * @throws XPathException
+	 */
+	public String[] evaluateToArray(String content) throws XPathException {
+
+		return evaluate(new StreamSource(IOUtils.toInputStream(content,StandardCharsets.UTF_8)));
+
+	}
+
+
+	/**
+	 * Evaluate the content with each of the XPath expressions and return the serialized
+	 * responses by position (see getNames).
+	 *
+	 * @param content InputStream to which the XPath expressions will be evaluated
+	 * @return Serialized response for each expression (in the order given)
+	 * @throws XPathException
+	 */
+	public String[] evaluateToArray(InputStream content) throws XPathException {
+
+		return evaluate(new StreamSource(content));
+
+	}
+
+
+	/**
+	 * Evaluate the already parsed content with each of the XPath expressions and return the
+	 * serialized responses keyed by name (in the order given).
+	 *
+	 * @param content ParsedDocument to which the XPath expressions will be evaluated
+	 * @return Serialized response for each named expression
+	 * @throws XPathException
+	 */
+	public Map<String,String> evaluate(ParsedDocument content) throws XPathException {
+
+		return toMap(evaluate(content.getNode()));
+
+	}
+
+
+	/**
+	 * Evaluate the already parsed content with each of the XPath expressions and return the
+	 * serialized responses by position (see getNames).
+	 *
+	 * @param content ParsedDocument to which the XPath expressions will be evaluated
+	 * @return Serialized response for each expression (in the order given)
+	 * @throws XPathException
+	 */
+	public String[] evaluateToArray(ParsedDocument content) throws XPathException {
+
+		return evaluate(content.getNode());
+
+	}
+
+
+	/**
+	 * Parse the content once and evaluate each prefix and distinct expression once.
+	 *
+	 * @param content StreamSource to which the XPath expressions will be evaluated
+	 * @return Serialized response for each expression (in the order given)
+	 * @throws XPathException
+	 */
+	private String[] evaluate(StreamSource content) throws XPathException {
+
+		return evaluate(parse(content));
+
+	}
+
+
+	/**
+	 * Parse the content.
+	 *
+	 * @param content Source to parse
+	 * @return parsed content
+	 * @throws XPathException
+	 */
+	XdmNode parse(Source content) throws XPathException {
+
+		try {
+
+			return builder.build(content);
+
+		} catch (SaxonApiException e) {
+
+			throw new XPathException(e.getMessage(), errors.report(e));
+
+		}
+
+	}
+
+
+	/**
+	 * Evaluate each prefix and distinct expression once against the parsed content.
+	 *
+	 * @param xmlDoc parsed content to which the XPath expressions will be evaluated
+	 * @return Serialized response for each expression (in the order given)
+	 * @throws XPathException
+	 */
+	private String[] evaluate(XdmNode xmlDoc) throws XPathException {
+
+		try {
+
+			// Evaluate and serialize the distinct expressions
+			XdmValue[] unitValues = evaluateUnits(xmlDoc);
+			String[] unitResults = new String[unitValues.length];
+			for (int i = 0; i < unitValues.length; i++) {
+				unitResults[i] = serialize(unitValues[i]);
+			}
+
+			// Return the results in the order given
+			String[] results = new String[names.length];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = unitResults[compiledSet.expressionUnit[i]];
+			}
+			return results;
+
+		} catch (SaxonApiException e) {
+
+			throw new XPathException(e.getMessage(), errors.report(e));
+
+		} finally {
+
+			release();
+
+		}
+
+	}
+
+
+	/**
+	 * Evaluate each prefix and distinct expression once against the parsed content and
+	 * return the (unserialized) values.
+	 *
+	 * @param xmlDoc parsed content to which the XPath expressions will be evaluated
+	 * @return value of each expression (in the order given)
+	 * @throws XPathException
+	 */
+	XdmValue[] evaluateValues(XdmNode xmlDoc) throws XPathException {
+
+		try {
+
+			XdmValue[] unitValues = evaluateUnits(xmlDoc);
+			XdmValue[] values = new XdmValue[names.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = unitValues[compiledSet.expressionUnit[i]];
+			}
+			return values;
+
+		} catch (SaxonApiException e) {
+
+			throw new XPathException(e.getMessage(), errors.report(e));
+
+		} finally {
+
+			release();
+
+		}
+
+	}
+
+
+	/**
+	 * Evaluate each prefix and distinct expression once against the parsed content.
+	 *
+	 * @param xmlDoc parsed content to which the XPath expressions will be evaluated
+	 * @return value of each distinct expression
+	 * @throws SaxonApiException
+	 */
+	private XdmValue[] evaluateUnits(XdmNode xmlDoc) throws SaxonApiException {
+
+		// Evaluate the shared prefixes
+		XdmValue[] prefixValues = new XdmValue[prefixSelectors.length];
+		for (int i = 0; i < prefixSelectors.length; i++) {
+			prefixSelectors[i].setContextItem(xmlDoc);
+			prefixValues[i] = prefixSelectors[i].evaluate();
+		}
+
+		// Evaluate the distinct expressions
+		XdmValue[] unitValues = new XdmValue[unitSelectors.length];
+		for (int i = 0; i < unitSelectors.length; i++) {
+			if (compiledSet.unitIsPrefix[i] >= 0) {
+				unitValues[i] = prefixValues[compiledSet.unitIsPrefix[i]];
+			} else {
+				XPathSelector xsel = unitSelectors[i];
+				xsel.setContextItem(xmlDoc);
+				if (compiledSet.unitPrefix[i] >= 0) {
+					xsel.setVariable(PREFIX_VARIABLE, prefixValues[compiledSet.unitPrefix[i]]);
+				}
+				unitValues[i] = xsel.evaluate();
+			}
+		}
+		return unitValues;
+
+	}
+
+
+	/**
+	 * Apply the retention policy after a call: replace a buffer that has grown too large and
+	 * release the document (and the prefix values bound to the selectors).
+	 */
+	private void release() {
+
+		RetentionPolicy policy = getRetentionPolicy();
+		if (policy.isOversized(baos)) {
+			baos = new ByteArrayOutputStream();
+			serializer.setOutputStream(baos);
+		}
+		if (policy.isReleaseContext()) {
+			try {
+				XdmNode placeholder = SharedConfiguration.getPlaceholderDocument();
+				for (XPathSelector xsel : prefixSelectors) {
+					xsel.setContextItem(placeholder);
+				}
+				for (int i = 0; i < unitSelectors.length; i++) {
+					if (unitSelectors[i] != null) {
+						unitSelectors[i].setContextItem(placeholder);
+						if (compiledSet.unitPrefix[i] >= 0) {
+							unitSelectors[i].setVariable(PREFIX_VARIABLE, XdmEmptySequence.getInstance());
+						}
+					}
+				}
+			} catch (SaxonApiException e) {
+				log.error("Problems releasing the content.  " + e.getMessage(),e);
+			}
+		}
+
+	}
+
+
+	/**
+	 * @return the reporter of the errors processing the content
+	 */
+	ErrorReporter getErrorReporter() {
+		return errors;
+	}
+
+
+	/**
+	 * Serialize each item in the value.
+	 *
+	 * @param value XdmValue to serialize
+	 * @return serialized value
+	 * @throws SaxonApiException
+	 */
+	private String serialize(XdmValue value) throws SaxonApiException {
+
+		serializer.close();
+		baos.reset();
+		for (XdmItem item : value) {
+			serializer.serializeXdmValue(item);
+		}
+		return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+
+	}
+
+
+	/**
+	 * Key the positional results by expression name.
+	 *
+	 * @param results positional results
+	 * @return results keyed by expression name
+	 */
+	private Map<String,String> toMap(String[] results) {
+
+		LinkedHashMap<String,String> map = new LinkedHashMap<String,String>();
+		for (int i = 0; i < names.length; i++) {
+			map.put(names[i], results[i]);
+		}
+		return map;
+
+	}
+
+
+	/**
+	 * Create a processor and compile the expression set, factoring out shared prefixes.
+	 *
+	 * @param expressions XPath expressions
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @return compiled expression set
+	 * @throws SaxonApiException
+	 */
+	private static CompiledExecutable<CompiledSet> compile(String[] expressions, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings) throws SaxonApiException {
+
+		// Get the processor (sharing the name pool with all other processors)
+		Processor proc = SharedConfiguration.newProcessor(featureMappings);
+
+		// Get the XPath compilers (one with the prefix variable declared)
+		XPathCompiler xpathCompiler = proc.newXPathCompiler();
+		XPathProcessor.setPrefixNamespaceMappings(xpathCompiler, namespaceMappings);
+		XPathCompiler suffixCompiler = proc.newXPathCompiler();
+		XPathProcessor.setPrefixNamespaceMappings(suffixCompiler, namespaceMappings);
+		suffixCompiler.declareVariable(PREFIX_VARIABLE);
+
+		// Distinct expressions
+		LinkedHashMap<String,Integer> unitIndex = new LinkedHashMap<String,Integer>();
+		int[] expressionUnit = new int[expressions.length];
+		for (int i = 0; i < expressions.length; i++) {
+			Integer index = unitIndex.get(expressions[i]);
+			if (index == null) {
+				index = unitIndex.size();
+				unitIndex.put(expressions[i], index);
+			}
+			expressionUnit[i] = index;
+		}
+		String[] units = unitIndex.keySet().toArray(new String[unitIndex.size()]);
+
+		// Count how many distinct expressions start with each prefix
+		List<List<String>> unitSteps = new ArrayList<List<String>>();
+		HashMap<String,Integer> prefixCounts = new HashMap<String,Integer>();
+		for (String unit : units) {
+			List<String> steps = splitSteps(unit);
+			unitSteps.add(steps);
+			if (steps != null) {
+				for (int k = 1; k < steps.size(); k++) {
+					if (isPlainPrefix(steps, k)) {
+						String prefix = joinSteps(steps, 0, k);
+						Integer count = prefixCounts.get(prefix);
+						prefixCounts.put(prefix, count == null ? 1 : count + 1);
+					}
+				}
+			}
+		}
+
+		// Use the longest prefix shared with at least one other expression (or that is itself an expression)
+		String[] unitPrefixes = new String[units.length];
+		int[] unitSplit = new int[units.length];
+		HashMap<String,Integer> prefixUsage = new HashMap<String,Integer>();
+		for (int u = 0; u < units.length; u++) {
+			List<String> steps = unitSteps.get(u);
+			if (steps == null) {
+				continue;
+			}
+			for (int k = steps.size() - 1; k >= 1; k--) {
+				if (!isPlainPrefix(steps, k)) {
+					continue;
+				}
+				String prefix = joinSteps(steps, 0, k);
+				Integer count = prefixCounts.get(prefix);
+				if ((count != null && count > 1) || unitIndex.containsKey(prefix)) {
+					unitPrefixes[u] = prefix;
+					unitSplit[u] = k;
+					Integer usage = prefixUsage.get(prefix);
+					prefixUsage.put(prefix, usage == null ? 1 : usage + 1);
+					break;
+				}
+			}
+		}
+
+		// A prefix used by a single expression (that isn't itself an expression) only adds work
+		LinkedHashMap<String,Integer> prefixIndex = new LinkedHashMap<String,Integer>();
+		String[] unitSuffix = new String[units.length];
+		int[] unitPrefix = new int[units.length];
+		for (int u = 0; u < units.length; u++) {
+			unitPrefix[u] = -1;
+			String prefix = unitPrefixes[u];
+			if (prefix == null || (prefixUsage.get(prefix) < 2 && !unitIndex.containsKey(prefix))) {
+				continue;
+			}
+			Integer index = prefixIndex.get(prefix);
+			if (index == null) {
+				index = prefixIndex.size();
+				prefixIndex.put(prefix, index);
+			}
+			List<String> steps = unitSteps.get(u);
+			unitPrefix[u] = index;
+			unitSuffix[u] = "$Q{" + PREFIX_NAMESPACE + "}prefix/" + joinSteps(steps, unitSplit[u], steps.size());
+		}
+
+		// Compile the prefixes and the distinct expressions
+		CompiledSet set = new CompiledSet();
+		set.expressionUnit = expressionUnit;
+		set.unitPrefix = unitPrefix;
+		set.prefixes = new XPathExecutable[prefixIndex.size()];
+		int p = 0;
+		for (String prefix : prefixIndex.keySet()) {
+			set.prefixes[p++] = xpathCompiler.compile(prefix);
+		}
+		set.units = new XPathExecutable[units.length];
+		set.unitIsPrefix = new int[units.length];
+		for (int u = 0; u < units.length; u++) {
+			Integer isPrefix = prefixIndex.get(units[u]);
+			set.unitIsPrefix[u] = isPrefix == null ? -1 : isPrefix;
+			if (isPrefix != null) {
+				set.units[u] = null;
+			} else if (unitPrefix[u] >= 0) {
+				set.units[u] = suffixCompiler.compile(unitSuffix[u]);
+			} else {
+				set.units[u] = xpathCompiler.compile(units[u]);
+			}
+		}
+
+		return new CompiledExecutable<CompiledSet>(proc, set);
+
+	}
+
+
+	/**
+	 * Split a simple absolute path (such as /a:b/c[@d='e']/f) into its steps.  The
+	 * first step is the empty string before the leading '/'.  An empty step in the
+	 * middle stands for '//'.  Returns null when the expression is anything other
+	 * than a single path, in which case it won't share a prefix.
+	 *
+	 * @param expression XPath expression
+	 * @return steps or null
+	 */
+	static List<String> splitSteps(String expression) {
+
+		String expr = expression.trim();
+		if (!expr.startsWith("/") || expr.startsWith("//")) {
+			return null;
+		}
+
+		List<String> steps = new ArrayList<String>();
+		StringBuilder step = new StringBuilder();
+		int depth = 0;
+		char quote = 0;
+		for (int i = 0; i < expr.length(); i++) {
+			char c = expr.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '\'' || c == '"') {
+				if (depth == 0) {
+					return null;
+				}
+				quote = c;
+			} else if (c == '[' || c == '(') {
+				depth++;
+			} else if (c == ']' || c == ')') {
+				depth--;
+				if (depth < 0) {
+					return null;
+				}
+			} else if (depth == 0) {
+				if (c == '/') {
+					steps.add(step.toString());
+					step.setLength(0);
+					continue;
+				}
+				// Anything that could be an operator or a separator means this isn't a single path
+				if (!(Character.isLetterOrDigit(c) || c == ':' || c == '*' || c == '@' || c == '.' || c == '-' || c == '_')) {
+					return null;
+				}
+			}
+			step.append(c);
+		}
+		if (depth != 0 || quote != 0 || step.length() == 0) {
+			return null;
+		}
+		steps.add(step.toString());
+		return steps;
+
+	}
+
+
+	/**
+	 * Check that the first k steps form a prefix that can be evaluated on its own
+	 * (it doesn't end in the middle of a '//').
+	 *
+	 * @param steps steps from splitSteps
+	 * @param k number of steps in the prefix
+	 * @return true if the prefix can be evaluated on its own
+	 */
+	private static boolean isPlainPrefix(List<String> steps, int k) {
+
+		// steps[0] is the empty string before the leading '/', so a prefix needs at least one real step
+		return k >= 2 && !steps.get(k - 1).isEmpty();
+
+	}
+
+
+	/**
+	 * Join steps[from..to) with '/'.
+	 *
+	 * @param steps steps from splitSteps
+	 * @param from first step
+	 * @param to step after the last step
+	 * @return joined steps
+	 */
+	private static String joinSteps(List<String> steps, int from, int to) {
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			if (i > from) {
+				sb.append('/');
+			}
+			sb.append(steps.get(i));
+		}
+		return sb.toString();
+
+	}
+
+}
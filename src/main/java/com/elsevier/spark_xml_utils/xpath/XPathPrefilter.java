@@ -0,0 +1,1171 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.sf.saxon.expr.AndExpression;
+import net.sf.saxon.expr.Atomizer;
+import net.sf.saxon.expr.AttributeGetter;
+import net.sf.saxon.expr.AxisExpression;
+import net.sf.saxon.expr.CardinalityChecker;
+import net.sf.saxon.expr.ContextItemExpression;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.FilterExpression;
+import net.sf.saxon.expr.FirstItemExpression;
+import net.sf.saxon.expr.GeneralComparison;
+import net.sf.saxon.expr.ItemChecker;
+import net.sf.saxon.expr.LastItemExpression;
+import net.sf.saxon.expr.Literal;
+import net.sf.saxon.expr.OrExpression;
+import net.sf.saxon.expr.RootExpression;
+import net.sf.saxon.expr.SingletonAtomizer;
+import net.sf.saxon.expr.SlashExpression;
+import net.sf.saxon.expr.SubscriptExpression;
+import net.sf.saxon.expr.SystemFunctionCall;
+import net.sf.saxon.expr.UntypedSequenceConverter;
+import net.sf.saxon.expr.ValueComparison;
+import net.sf.saxon.expr.VennExpression;
+import net.sf.saxon.expr.parser.Token;
+import net.sf.saxon.expr.sort.DocumentSorter;
+import net.sf.saxon.lib.FeatureKeys;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.pattern.CombinedNodeTest;
+import net.sf.saxon.pattern.LocalNameTest;
+import net.sf.saxon.pattern.NameTest;
+import net.sf.saxon.pattern.NodeKindTest;
+import net.sf.saxon.pattern.NodeTest;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.value.StringValue;
+
+
+/**
+ * Byte level prefilter for XPath filter expressions.  The compiled expression is examined
+ * once for the tokens it cannot be true without: the local names of the elements and
+ * attributes on its paths and the string literals it compares those paths with (using =,
+ * eq, contains, starts-with or ends-with).  Each document is then scanned for those tokens
+ * before it is parsed, and a document missing a required token is rejected without
+ * building a tree.
+ * <p>
+ * Names are searched for in the raw bytes.  Literals are searched for in the character
+ * data and attribute values only, with tags, comments and processing instructions removed
+ * so text split by markup is still found.  Literals are split on whitespace and on the
+ * characters that may be escaped, so no token can be hidden by line ending normalization
+ * or by the predefined entities.
+ * <p>
+ * The scan answers "may match" whenever it cannot be sure: a DOCTYPE (entities or default
+ * attributes), a character reference (for literals), an encoding other than UTF-8, or a
+ * parser that might change the content (XInclude or a custom source parser).  Any
+ * expression the analysis doesn't understand simply adds no requirement.
+ * <p>
+ * Characters are scanned in place, each fed to the automata as its UTF-8 bytes, and are
+ * parsed as characters too, so a declared encoding doesn't apply to them.
+ *
+ * @author Darin McBeath
+ *
+ */
+final class XPathPrefilter {
+
+	// Token kinds
+	private static final int NAME = 0;
+	private static final int TEXT = 1;
+
+	// At most one bit per token
+	private static final int MAXIMUM_TOKENS = 64;
+
+	// Upper bound on the clauses produced by an 'or'
+	private static final int MAXIMUM_CLAUSES = 32;
+
+	// Member variables
+	private final String[] tokens;
+	private final long[] clauses;
+	private final long nameClauses;
+	private final long textTokens;
+	private final Automaton nameAutomaton;
+	private final Automaton textAutomaton;
+
+
+	/**
+	 * Create an instance of XPathPrefilter.
+	 *
+	 * @param tokens required tokens
+	 * @param kinds kind (NAME or TEXT) of each token
+	 * @param clauses each clause is a set of alternative tokens, all clauses must be satisfied
+	 */
+	private XPathPrefilter(List<String> tokens, List<Integer> kinds, long[] clauses) {
+
+		this.tokens = tokens.toArray(new String[tokens.size()]);
+		this.clauses = clauses;
+
+		List<byte[]> names = new ArrayList<byte[]>();
+		List<byte[]> texts = new ArrayList<byte[]>();
+		long[] nameMasks = new long[tokens.size()];
+		long[] textMasks = new long[tokens.size()];
+		long textTokens = 0;
+		for (int i = 0; i < tokens.size(); i++) {
+			byte[] bytes = tokens.get(i).getBytes(StandardCharsets.UTF_8);
+			if (kinds.get(i) == NAME) {
+				nameMasks[names.size()] = 1L << i;
+				names.add(bytes);
+			} else {
+				textMasks[texts.size()] = 1L << i;
+				texts.add(bytes);
+				textTokens |= 1L << i;
+			}
+		}
+		this.textTokens = textTokens;
+
+		// Clauses that can be decided by the name scan alone
+		long nameClauses = 0;
+		for (int i = 0; i < clauses.length; i++) {
+			if ((clauses[i] & textTokens) == 0) {
+				nameClauses |= 1L << i;
+			}
+		}
+		this.nameClauses = nameClauses;
+
+		this.nameAutomaton = names.isEmpty() ? null : new Automaton(names, nameMasks);
+		this.textAutomaton = texts.isEmpty() ? null : new Automaton(texts, textMasks);
+
+	}
+
+
+	/**
+	 * Get the prefilter for the compiled expression.
+	 *
+	 * @param exp compiled XPath expression
+	 * @param featureMappings Processor feature mappings
+	 * @return XPathPrefilter or null if the expression doesn't require any token
+	 */
+	static XPathPrefilter getInstance(XPathExecutable exp, HashMap<String,Object> featureMappings) {
+
+		// A parser that may add content makes the raw bytes incomplete
+		if (featureMappings != null && (featureMappings.containsKey(FeatureKeys.SOURCE_PARSER_CLASS) ||
+				Boolean.TRUE.equals(featureMappings.get(FeatureKeys.XINCLUDE)) ||
+				"true".equals(featureMappings.get(FeatureKeys.XINCLUDE)))) {
+			return null;
+		}
+
+		Analyzer analyzer = new Analyzer();
+		List<Long> clauses = analyzer.truth(exp.getUnderlyingExpression().getInternalExpression(), true);
+		if (clauses.isEmpty()) {
+			return null;
+		}
+
+		long[] array = new long[clauses.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = clauses.get(i);
+		}
+		return new XPathPrefilter(analyzer.tokens, analyzer.kinds, array);
+
+	}
+
+
+	/**
+	 * @return tokens required by the expression
+	 */
+	String[] getTokens() {
+		return tokens;
+	}
+
+
+	/**
+	 * Scan the content for the required tokens.
+	 *
+	 * @param content xml content
+	 * @param offset start of the content
+	 * @param length length of the content
+	 * @return false if the expression cannot be true for the content, true otherwise
+	 */
+	boolean mayMatch(byte[] content, int offset, int length) {
+
+		int end = offset + length;
+		int start = checkProlog(content, offset, end);
+		if (start < 0) {
+			return true;
+		}
+
+		// Names (anywhere in the raw bytes)
+		long found = 0;
+		if (nameAutomaton != null) {
+			found = nameAutomaton.scan(content, start, end, 0, found);
+			if (!satisfied(found, nameClauses)) {
+				return false;
+			}
+		}
+		if (textAutomaton == null) {
+			return satisfied(found, -1L);
+		}
+
+		// Literals (in the character data and attribute values)
+		Automaton automaton = textAutomaton;
+		int state = 0;
+		int i = start;
+		while (i < end) {
+
+			byte b = content[i];
+
+			if (b == '<') {
+
+				if (startsWith(content, i + 1, end, COMMENT_START)) {
+
+					// Comments aren't part of any string value
+					i = indexOf(content, i + 4, end, COMMENT_END);
+					if (i < 0) break;
+					i += COMMENT_END.length;
+
+				} else if (startsWith(content, i + 1, end, CDATA_START)) {
+
+					// CDATA content is character data
+					int from = i + 1 + CDATA_START.length;
+					int to = indexOf(content, from, end, CDATA_END);
+					if (to < 0) to = end;
+					for (int j = from; j < to; j++) {
+						state = automaton.next[(state << 8) | (content[j] & 0xff)];
+						found |= automaton.output[state];
+					}
+					i = to + CDATA_END.length;
+
+				} else if (i + 1 < end && content[i + 1] == '?') {
+
+					// Processing instructions aren't part of any string value
+					i = indexOf(content, i + 2, end, PI_END);
+					if (i < 0) break;
+					i += PI_END.length;
+
+				} else if (i + 1 < end && content[i + 1] == '!') {
+
+					// Declaration where none is expected
+					return true;
+
+				} else {
+
+					// Start or end tag (attribute values are scanned on their own, so the
+					// state of the character data carries on across inline markup)
+					i++;
+					while (i < end && content[i] != '>') {
+						byte q = content[i++];
+						if (q == '"' || q == '\'') {
+							int valueState = 0;
+							while (i < end && content[i] != q) {
+								if (content[i] == '&') {
+									if (i + 1 < end && content[i + 1] == '#') {
+										found |= textTokens;
+									}
+									valueState = 0;
+									while (i < end && content[i] != ';' && content[i] != q) i++;
+									if (i < end && content[i] == ';') i++;
+								} else {
+									valueState = automaton.next[(valueState << 8) | (content[i++] & 0xff)];
+									found |= automaton.output[valueState];
+								}
+							}
+							i++;
+						}
+					}
+					i++;
+
+				}
+
+			} else if (b == '&') {
+
+				// Character references could hide any character, entity references only separators
+				if (i + 1 < end && content[i + 1] == '#') {
+					found |= textTokens;
+				}
+				state = 0;
+				while (i < end && content[i] != ';') i++;
+				i++;
+
+			} else {
+
+				state = automaton.next[(state << 8) | (b & 0xff)];
+				found |= automaton.output[state];
+				i++;
+
+			}
+
+			if ((found & textTokens) == textTokens) {
+				break;
+			}
+
+		}
+
+		return satisfied(found, -1L);
+
+	}
+
+
+	/**
+	 * Scan the characters for the required tokens.
+	 *
+	 * @param content xml content (parsed as characters)
+	 * @return false if the expression cannot be true for the content, true otherwise
+	 */
+	boolean mayMatch(CharSequence content) {
+
+		int end = content.length();
+		int start = checkProlog(content, end);
+		if (start < 0) {
+			return true;
+		}
+
+		// Names (anywhere in the characters)
+		long found = 0;
+		if (nameAutomaton != null) {
+			found = nameAutomaton.scan(content, start, end, found);
+			if (!satisfied(found, nameClauses)) {
+				return false;
+			}
+		}
+		if (textAutomaton == null) {
+			return satisfied(found, -1L);
+		}
+
+		// Literals (in the character data and attribute values)
+		Automaton automaton = textAutomaton;
+		int state = 0;
+		int i = start;
+		while (i < end) {
+
+			char c = content.charAt(i);
+
+			if (c == '<') {
+
+				if (startsWith(content, i + 1, end, COMMENT_START)) {
+
+					// Comments aren't part of any string value
+					i = indexOf(content, i + 4, end, COMMENT_END);
+					if (i < 0) break;
+					i += COMMENT_END.length;
+
+				} else if (startsWith(content, i + 1, end, CDATA_START)) {
+
+					// CDATA content is character data
+					int from = i + 1 + CDATA_START.length;
+					int to = indexOf(content, from, end, CDATA_END);
+					if (to < 0) to = end;
+					for (int j = from; j < to; ) {
+						int codePoint = Character.codePointAt(content, j);
+						state = automaton.step(state, codePoint);
+						found |= automaton.output[state];
+						j += Character.charCount(codePoint);
+					}
+					i = to + CDATA_END.length;
+
+				} else if (i + 1 < end && content.charAt(i + 1) == '?') {
+
+					// Processing instructions aren't part of any string value
+					i = indexOf(content, i + 2, end, PI_END);
+					if (i < 0) break;
+					i += PI_END.length;
+
+				} else if (i + 1 < end && content.charAt(i + 1) == '!') {
+
+					// Declaration where none is expected
+					return true;
+
+				} else {
+
+					// Start or end tag (attribute values are scanned on their own, so the
+					// state of the character data carries on across inline markup)
+					i++;
+					while (i < end && content.charAt(i) != '>') {
+						char q = content.charAt(i++);
+						if (q == '"' || q == '\'') {
+							int valueState = 0;
+							while (i < end && content.charAt(i) != q) {
+								if (content.charAt(i) == '&') {
+									if (i + 1 < end && content.charAt(i + 1) == '#') {
+										found |= textTokens;
+									}
+									valueState = 0;
+									while (i < end && content.charAt(i) != ';' && content.charAt(i) != q) i++;
+									if (i < end && content.charAt(i) == ';') i++;
+								} else {
+									int codePoint = Character.codePointAt(content, i);
+									valueState = automaton.step(valueState, codePoint);
+									found |= automaton.output[valueState];
+									i += Character.charCount(codePoint);
+								}
+							}
+							i++;
+						}
+					}
+					i++;
+
+				}
+
+			} else if (c == '&') {
+
+				// Character references could hide any character, entity references only separators
+				if (i + 1 < end && content.charAt(i + 1) == '#') {
+					found |= textTokens;
+				}
+				state = 0;
+				while (i < end && content.charAt(i) != ';') i++;
+				i++;
+
+			} else {
+
+				int codePoint = Character.codePointAt(content, i);
+				state = automaton.step(state, codePoint);
+				found |= automaton.output[state];
+				i += Character.charCount(codePoint);
+
+			}
+
+			if ((found & textTokens) == textTokens) {
+				break;
+			}
+
+		}
+
+		return satisfied(found, -1L);
+
+	}
+
+
+	/**
+	 * Check if each of the selected clauses has at least one token found.
+	 *
+	 * @param found tokens found
+	 * @param selected clauses to check
+	 * @return true if all selected clauses are satisfied
+	 */
+	private boolean satisfied(long found, long selected) {
+
+		for (int i = 0; i < clauses.length; i++) {
+			if ((selected & (1L << i)) != 0 && (clauses[i] & found) == 0) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+
+	private static final byte[] XML_DECLARATION = "<?xml".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ENCODING = "encoding".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] COMMENT_START = "!--".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_START = "![CDATA[".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] PI_END = "?>".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] DOCTYPE = "<!DOCTYPE".getBytes(StandardCharsets.US_ASCII);
+
+
+	/**
+	 * Check the prolog of the content.  The scan is only safe for UTF-8 (or ASCII) content
+	 * without a DOCTYPE.
+	 *
+	 * @param content xml content
+	 * @param offset start of the content
+	 * @param end end of the content
+	 * @return start of the content following any byte order mark, or -1 if the scan isn't safe
+	 */
+	private static int checkProlog(byte[] content, int offset, int end) {
+
+		int i = offset;
+
+		// Byte order marks
+		if (end - i >= 2 && ((content[i] & 0xff) == 0xfe || (content[i] & 0xff) == 0xff)) {
+			return -1;
+		}
+		if (end - i >= 3 && (content[i] & 0xff) == 0xef && (content[i + 1] & 0xff) == 0xbb && (content[i + 2] & 0xff) == 0xbf) {
+			i += 3;
+		}
+		int start = i;
+
+		// Encoding (from the xml declaration)
+		if (startsWith(content, i, end, XML_DECLARATION)) {
+			int declarationEnd = indexOf(content, i, end, PI_END);
+			if (declarationEnd < 0) {
+				return -1;
+			}
+			int encoding = indexOf(content, i, declarationEnd, ENCODING);
+			if (encoding >= 0) {
+				int j = encoding + ENCODING.length;
+				while (j < declarationEnd && content[j] != '"' && content[j] != '\'') j++;
+				int k = j + 1;
+				while (k < declarationEnd && content[k] != content[j]) k++;
+				if (k >= declarationEnd) {
+					return -1;
+				}
+				String name = new String(content, j + 1, k - j - 1, StandardCharsets.US_ASCII);
+				if (!name.equalsIgnoreCase("UTF-8") && !name.equalsIgnoreCase("UTF8") &&
+						!name.equalsIgnoreCase("US-ASCII") && !name.equalsIgnoreCase("ASCII")) {
+					return -1;
+				}
+			}
+			i = declarationEnd + PI_END.length;
+		} else if (end - i >= 2 && (content[i] == 0 || content[i + 1] == 0)) {
+			// UTF-16 (or UCS-4) without a byte order mark
+			return -1;
+		}
+
+		// DOCTYPE (after any whitespace, comments and processing instructions)
+		while (i < end) {
+			byte b = content[i];
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+				i++;
+			} else if (startsWith(content, i, end, DOCTYPE)) {
+				return -1;
+			} else if (b == '<' && startsWith(content, i + 1, end, COMMENT_START)) {
+				i = indexOf(content, i + 4, end, COMMENT_END);
+				if (i < 0) break;
+				i += COMMENT_END.length;
+			} else if (b == '<' && i + 1 < end && content[i + 1] == '?') {
+				i = indexOf(content, i + 2, end, PI_END);
+				if (i < 0) break;
+				i += PI_END.length;
+			} else {
+				break;
+			}
+		}
+
+		return start;
+
+	}
+
+
+	/**
+	 * Check the prolog of the characters.  The scan is only safe without a DOCTYPE (the
+	 * characters are parsed as they are, whatever encoding is declared).
+	 *
+	 * @param content xml content
+	 * @param end end of the content
+	 * @return start of the content, or -1 if the scan isn't safe
+	 */
+	private static int checkProlog(CharSequence content, int end) {
+
+		int i = 0;
+
+		// DOCTYPE (after any whitespace, comments and processing instructions, including the xml declaration)
+		while (i < end) {
+			char c = content.charAt(i);
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+				i++;
+			} else if (startsWith(content, i, end, DOCTYPE)) {
+				return -1;
+			} else if (c == '<' && startsWith(content, i + 1, end, COMMENT_START)) {
+				i = indexOf(content, i + 4, end, COMMENT_END);
+				if (i < 0) break;
+				i += COMMENT_END.length;
+			} else if (c == '<' && i + 1 < end && content.charAt(i + 1) == '?') {
+				i = indexOf(content, i + 2, end, PI_END);
+				if (i < 0) break;
+				i += PI_END.length;
+			} else {
+				break;
+			}
+		}
+
+		return 0;
+
+	}
+
+
+	/**
+	 * @return true if the content has the pattern at the position
+	 */
+	private static boolean startsWith(byte[] content, int position, int end, byte[] pattern) {
+
+		if (end - position < pattern.length) {
+			return false;
+		}
+		for (int i = 0; i < pattern.length; i++) {
+			if (content[position + i] != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+
+	/**
+	 * @return position of the pattern in the content, or -1 if not found
+	 */
+	private static int indexOf(byte[] content, int from, int end, byte[] pattern) {
+
+		for (int i = from; i <= end - pattern.length; i++) {
+			if (content[i] == pattern[0] && startsWith(content, i, end, pattern)) {
+				return i;
+			}
+		}
+		return -1;
+
+	}
+
+
+	/**
+	 * @return true if the characters have the (ASCII) pattern at the position
+	 */
+	private static boolean startsWith(CharSequence content, int position, int end, byte[] pattern) {
+
+		if (end - position < pattern.length) {
+			return false;
+		}
+		for (int i = 0; i < pattern.length; i++) {
+			if (content.charAt(position + i) != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+
+	/**
+	 * @return position of the (ASCII) pattern in the characters, or -1 if not found
+	 */
+	private static int indexOf(CharSequence content, int from, int end, byte[] pattern) {
+
+		for (int i = from; i <= end - pattern.length; i++) {
+			if (content.charAt(i) == pattern[0] && startsWith(content, i, end, pattern)) {
+				return i;
+			}
+		}
+		return -1;
+
+	}
+
+
+	/**
+	 * Aho-Corasick automaton over bytes with the failure transitions resolved into a dense
+	 * transition table, so the scan is one table lookup per byte.
+	 */
+	private static final class Automaton {
+
+		private int[] next;
+		private long[] output;
+
+
+		/**
+		 * Create an instance of Automaton.
+		 *
+		 * @param patterns patterns to search for
+		 * @param masks bit reported for each pattern
+		 */
+		private Automaton(List<byte[]> patterns, long[] masks) {
+
+			int capacity = 1;
+			for (byte[] pattern : patterns) {
+				capacity += pattern.length;
+			}
+			next = new int[capacity << 8];
+			output = new long[capacity];
+			Arrays.fill(next, -1);
+
+			// Build the trie
+			int states = 1;
+			for (int p = 0; p < patterns.size(); p++) {
+				int state = 0;
+				for (byte b : patterns.get(p)) {
+					int index = (state << 8) | (b & 0xff);
+					if (next[index] < 0) {
+						next[index] = states++;
+					}
+					state = next[index];
+				}
+				output[state] |= masks[p];
+			}
+
+			// Resolve the failure transitions (breadth first)
+			int[] fail = new int[states];
+			int[] queue = new int[states];
+			int head = 0;
+			int tail = 0;
+			for (int c = 0; c < 256; c++) {
+				int s = next[c];
+				if (s < 0) {
+					next[c] = 0;
+				} else {
+					fail[s] = 0;
+					queue[tail++] = s;
+				}
+			}
+			while (head < tail) {
+				int state = queue[head++];
+				output[state] |= output[fail[state]];
+				for (int c = 0; c < 256; c++) {
+					int index = (state << 8) | c;
+					int s = next[index];
+					if (s < 0) {
+						next[index] = next[(fail[state] << 8) | c];
+					} else {
+						fail[s] = next[(fail[state] << 8) | c];
+						queue[tail++] = s;
+					}
+				}
+			}
+
+			if (states < capacity) {
+				next = Arrays.copyOf(next, states << 8);
+				output = Arrays.copyOf(output, states);
+			}
+
+		}
+
+
+		/**
+		 * Scan the content.
+		 *
+		 * @param content content to scan
+		 * @param from start of the scan
+		 * @param end end of the scan
+		 * @param state starting state
+		 * @param found patterns already found
+		 * @return patterns found
+		 */
+		private long scan(byte[] content, int from, int end, int state, long found) {
+
+			final int[] next = this.next;
+			final long[] output = this.output;
+			for (int i = from; i < end; i++) {
+				state = next[(state << 8) | (content[i] & 0xff)];
+				long o = output[state];
+				if (o != 0 && (found | o) != found) {
+					found |= o;
+				}
+			}
+			return found;
+
+		}
+
+
+		/**
+		 * Scan the characters (as their UTF-8 bytes).
+		 *
+		 * @param content content to scan
+		 * @param from start of the scan
+		 * @param end end of the scan
+		 * @param found patterns already found
+		 * @return patterns found
+		 */
+		private long scan(CharSequence content, int from, int end, long found) {
+
+			int state = 0;
+			for (int i = from; i < end; ) {
+				int codePoint = Character.codePointAt(content, i);
+				state = step(state, codePoint);
+				found |= output[state];
+				i += Character.charCount(codePoint);
+			}
+			return found;
+
+		}
+
+
+		/**
+		 * Feed the UTF-8 bytes of a character to the automaton (an unpaired surrogate is
+		 * fed as '?', as String.getBytes encodes it).  A pattern is valid UTF-8, so it can
+		 * only end on the last byte of a character.
+		 *
+		 * @param state current state
+		 * @param c code point
+		 * @return state after the character
+		 */
+		private int step(int state, int c) {
+
+			if (c < 0x80) {
+				return next[(state << 8) | c];
+			}
+			if (c < 0x800) {
+				state = next[(state << 8) | 0xc0 | (c >> 6)];
+			} else if (c < 0x10000) {
+				if (Character.isSurrogate((char) c)) {
+					return next[(state << 8) | '?'];
+				}
+				state = next[(state << 8) | 0xe0 | (c >> 12)];
+				state = next[(state << 8) | 0x80 | ((c >> 6) & 0x3f)];
+			} else {
+				state = next[(state << 8) | 0xf0 | (c >> 18)];
+				state = next[(state << 8) | 0x80 | ((c >> 12) & 0x3f)];
+				state = next[(state << 8) | 0x80 | ((c >> 6) & 0x3f)];
+			}
+			return next[(state << 8) | 0x80 | (c & 0x3f)];
+
+		}
+
+	}
+
+
+	/**
+	 * Derives the required tokens from the expression tree.  A requirement is a list of
+	 * clauses (all must hold), each clause being a set of alternative tokens.  An empty
+	 * list means nothing is required.
+	 */
+	private static final class Analyzer {
+
+		private final List<String> tokens = new ArrayList<String>();
+		private final List<Integer> kinds = new ArrayList<Integer>();
+
+
+		/**
+		 * Tokens required for the expression to have a true effective boolean value.
+		 *
+		 * @param exp expression
+		 * @param textual true if the context item has its text in the character data
+		 * @return required clauses
+		 */
+		private List<Long> truth(Expression exp, boolean textual) {
+
+			if (exp instanceof AndExpression) {
+				AndExpression and = (AndExpression) exp;
+				return and(truth(and.getLhsExpression(), textual), truth(and.getRhsExpression(), textual));
+			}
+
+			if (exp instanceof OrExpression) {
+				OrExpression or = (OrExpression) exp;
+				return or(truth(or.getLhsExpression(), textual), truth(or.getRhsExpression(), textual));
+			}
+
+			if ((exp instanceof GeneralComparison && ((GeneralComparison) exp).getOperator() == Token.EQUALS) ||
+					(exp instanceof ValueComparison && ((ValueComparison) exp).getOperator() == Token.FEQ)) {
+
+				// Both operands must be non empty, and a path compared with strings must contain one of them
+				Expression lhs = ((net.sf.saxon.expr.BinaryExpression) exp).getLhsExpression();
+				Expression rhs = ((net.sf.saxon.expr.BinaryExpression) exp).getRhsExpression();
+				List<Long> result = and(nonEmpty(lhs, textual), nonEmpty(rhs, textual));
+				if (rhs instanceof Literal && isTextual(lhs, textual)) {
+					result = and(result, literals(((Literal) rhs).getValue()));
+				} else if (lhs instanceof Literal && isTextual(rhs, textual)) {
+					result = and(result, literals(((Literal) lhs).getValue()));
+				}
+				return result;
+
+			}
+
+			if (exp instanceof SystemFunctionCall) {
+
+				SystemFunctionCall call = (SystemFunctionCall) exp;
+				if (!NamespaceConstant.FN.equals(call.getFunctionName().getURI())) {
+					return none();
+				}
+				String name = call.getFunctionName().getLocalPart();
+				if ((name.equals("exists") || name.equals("boolean")) && call.getArity() == 1) {
+					return nonEmpty(call.getArg(0), textual);
+				}
+				if ((name.equals("contains") || name.equals("starts-with") || name.equals("ends-with")) && call.getArity() == 2) {
+					// Nothing is required when searching for the empty string
+					Expression arg = call.getArg(1);
+					if (arg instanceof Literal && isTextual(call.getArg(0), textual)) {
+						List<Long> literal = literals(((Literal) arg).getValue());
+						if (!literal.isEmpty()) {
+							return and(nonEmpty(call.getArg(0), textual), literal);
+						}
+					}
+					return none();
+				}
+				if (name.equals("not") || name.equals("empty")) {
+					return none();
+				}
+
+			}
+
+			// A true effective boolean value needs a non empty value
+			return nonEmpty(exp, textual);
+
+		}
+
+
+		/**
+		 * Tokens required for the expression to return a non empty sequence.
+		 *
+		 * @param exp expression
+		 * @param textual true if the context item has its text in the character data
+		 * @return required clauses
+		 */
+		private List<Long> nonEmpty(Expression exp, boolean textual) {
+
+			exp = unwrap(exp);
+
+			if (exp instanceof AxisExpression) {
+				AxisExpression axis = (AxisExpression) exp;
+				if (axis.getAxis() == AxisInfo.NAMESPACE) {
+					return none();
+				}
+				return nodeTest(axis.getNodeTest());
+			}
+
+			if (exp instanceof AttributeGetter) {
+				return name(((AttributeGetter) exp).getAttributeName().getLocalPart());
+			}
+
+			if (exp instanceof SlashExpression) {
+				SlashExpression slash = (SlashExpression) exp;
+				return and(nonEmpty(slash.getSelectExpression(), textual),
+						nonEmpty(slash.getActionExpression(), isTextual(slash.getSelectExpression(), textual)));
+			}
+
+			if (exp instanceof FilterExpression) {
+				FilterExpression filter = (FilterExpression) exp;
+				return and(nonEmpty(filter.getSelectExpression(), textual),
+						truth(filter.getFilter(), isTextual(filter.getSelectExpression(), textual)));
+			}
+
+			if (exp instanceof VennExpression) {
+				VennExpression venn = (VennExpression) exp;
+				List<Long> lhs = nonEmpty(venn.getLhsExpression(), textual);
+				if (venn.getOperator() == Token.UNION) {
+					return or(lhs, nonEmpty(venn.getRhsExpression(), textual));
+				} else if (venn.getOperator() == Token.INTERSECT) {
+					return and(lhs, nonEmpty(venn.getRhsExpression(), textual));
+				}
+				return lhs;
+			}
+
+			// Anything else (including booleans, which are never empty) requires nothing
+			return none();
+
+		}
+
+
+		/**
+		 * Tokens required for the node test to match a node.
+		 *
+		 * @param test node test
+		 * @return required clauses
+		 */
+		private List<Long> nodeTest(NodeTest test) {
+
+			if (test instanceof NameTest) {
+				int kind = ((NameTest) test).getNodeKind();
+				if (kind == Type.ELEMENT || kind == Type.ATTRIBUTE) {
+					return name(((NameTest) test).getLocalPart());
+				}
+			}
+			if (test instanceof LocalNameTest) {
+				int kind = ((LocalNameTest) test).getNodeKind();
+				if (kind == Type.ELEMENT || kind == Type.ATTRIBUTE) {
+					return name(((LocalNameTest) test).getLocalName());
+				}
+			}
+			if (test instanceof CombinedNodeTest) {
+				CombinedNodeTest combined = (CombinedNodeTest) test;
+				if (combined.getOperator() == Token.UNION) {
+					return or(nodeTest(combined.getOperand(0)), nodeTest(combined.getOperand(1)));
+				} else if (combined.getOperator() == Token.INTERSECT) {
+					return and(nodeTest(combined.getOperand(0)), nodeTest(combined.getOperand(1)));
+				}
+			}
+			return none();
+
+		}
+
+
+		/**
+		 * Check if the string value of the nodes selected by the expression comes from the
+		 * character data or attribute values (and not from comments or processing instructions).
+		 *
+		 * @param exp expression
+		 * @param textual true if the context item has its text in the character data
+		 * @return true if the expression selects elements, attributes, text or documents
+		 */
+		private boolean isTextual(Expression exp, boolean textual) {
+
+			exp = unwrap(exp);
+
+			if (exp instanceof AttributeGetter || exp instanceof RootExpression) {
+				return true;
+			}
+			if (exp instanceof ContextItemExpression) {
+				return textual;
+			}
+			if (exp instanceof AxisExpression) {
+				AxisExpression axis = (AxisExpression) exp;
+				if (axis.getAxis() == AxisInfo.NAMESPACE) {
+					return false;
+				}
+				NodeTest test = axis.getNodeTest();
+				int kind = -1;
+				if (test instanceof NameTest) {
+					kind = ((NameTest) test).getNodeKind();
+				} else if (test instanceof LocalNameTest) {
+					kind = ((LocalNameTest) test).getNodeKind();
+				} else if (test instanceof NodeKindTest) {
+					kind = ((NodeKindTest) test).getNodeKind();
+				}
+				return kind == Type.ELEMENT || kind == Type.ATTRIBUTE || kind == Type.TEXT || kind == Type.DOCUMENT;
+			}
+			if (exp instanceof SlashExpression) {
+				SlashExpression slash = (SlashExpression) exp;
+				return isTextual(slash.getActionExpression(), isTextual(slash.getSelectExpression(), textual));
+			}
+			if (exp instanceof FilterExpression) {
+				return isTextual(((FilterExpression) exp).getSelectExpression(), textual);
+			}
+			return false;
+
+		}
+
+
+		/**
+		 * Remove the wrappers that return an empty sequence for an empty sequence (and
+		 * otherwise pass the nodes or their typed values through).
+		 *
+		 * @param exp expression
+		 * @return unwrapped expression
+		 */
+		private static Expression unwrap(Expression exp) {
+
+			while (true) {
+				if (exp instanceof Atomizer) {
+					exp = ((Atomizer) exp).getBaseExpression();
+				} else if (exp instanceof SingletonAtomizer) {
+					exp = ((SingletonAtomizer) exp).getBaseExpression();
+				} else if (exp instanceof UntypedSequenceConverter) {
+					exp = ((UntypedSequenceConverter) exp).getBaseExpression();
+				} else if (exp instanceof CardinalityChecker) {
+					exp = ((CardinalityChecker) exp).getBaseExpression();
+				} else if (exp instanceof ItemChecker) {
+					exp = ((ItemChecker) exp).getBaseExpression();
+				} else if (exp instanceof DocumentSorter) {
+					exp = ((DocumentSorter) exp).getBaseExpression();
+				} else if (exp instanceof FirstItemExpression) {
+					exp = ((FirstItemExpression) exp).getBaseExpression();
+				} else if (exp instanceof LastItemExpression) {
+					exp = ((LastItemExpression) exp).getBaseExpression();
+				} else if (exp instanceof SubscriptExpression) {
+					exp = ((SubscriptExpression) exp).getBaseExpression();
+				} else {
+					return exp;
+				}
+			}
+
+		}
+
+
+		/**
+		 * Tokens required for a node with one of the string values to be in the content
+		 * (one clause per word, when there is a single string).
+		 *
+		 * @param value literal value
+		 * @return required clauses
+		 */
+		private List<Long> literals(GroundedValue value) {
+
+			List<Long> result = null;
+			for (Item item : value.asIterable()) {
+				if (!(item instanceof StringValue)) {
+					return none();
+				}
+				List<Long> words = none();
+				for (String word : item.getStringValue().split("[\\s&<>'\"]+")) {
+					if (!word.isEmpty()) {
+						words = and(words, token(word, TEXT));
+					}
+				}
+				result = result == null ? words : or(result, words);
+			}
+			return result == null ? none() : result;
+
+		}
+
+
+		/**
+		 * @return clause for a name
+		 */
+		private List<Long> name(String name) {
+			return token(name, NAME);
+		}
+
+
+		/**
+		 * @return clause for a single token (or nothing if there are too many tokens)
+		 */
+		private List<Long> token(String value, int kind) {
+
+			int index = -1;
+			for (int i = 0; i < tokens.size(); i++) {
+				if (tokens.get(i).equals(value) && kinds.get(i) == kind) {
+					index = i;
+				}
+			}
+			if (index < 0) {
+				if (tokens.size() == MAXIMUM_TOKENS) {
+					return none();
+				}
+				index = tokens.size();
+				tokens.add(value);
+				kinds.add(kind);
+			}
+			List<Long> result = new ArrayList<Long>();
+			result.add(1L << index);
+			return result;
+
+		}
+
+
+		/**
+		 * @return no requirement
+		 */
+		private static List<Long> none() {
+			return new ArrayList<Long>();
+		}
+
+
+		/**
+		 * @return requirement that both hold
+		 */
+		private static List<Long> and(List<Long> a, List<Long> b) {
+
+			List<Long> result = new ArrayList<Long>(a);
+			for (Long clause : b) {
+				if (!result.contains(clause)) {
+					result.add(clause);
+				}
+			}
+			return result;
+
+		}
+
+
+		/**
+		 * @return requirement that at least one holds (distributed into clauses)
+		 */
+		private static List<Long> or(List<Long> a, List<Long> b) {
+
+			if (a.isEmpty() || b.isEmpty() || a.size() * b.size() > MAXIMUM_CLAUSES) {
+				return none();
+			}
+			List<Long> result = new ArrayList<Long>();
+			for (Long x : a) {
+				for (Long y : b) {
+					Long clause = x | y;
+					if (!result.contains(clause)) {
+						result.add(clause);
+					}
+				}
+			}
+			return result;
+
+		}
+
+	}
+
+}
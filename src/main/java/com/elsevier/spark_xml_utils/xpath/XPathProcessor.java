@@ -19,32 +19,57 @@ package com.elsevier.spark_xml_utils.xpath;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.ObjectInputStream;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
+import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 
-import net.sf.saxon.lib.Feature;
 import net.sf.saxon.lib.NamespaceConstant;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.sxpath.XPathExpression;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.elsevier.spark_xml_utils.common.BatchIterator;
+import com.elsevier.spark_xml_utils.common.ByteBufferOutputStream;
+import com.elsevier.spark_xml_utils.common.CallMetrics;
+import com.elsevier.spark_xml_utils.common.CompiledExecutable;
+import com.elsevier.spark_xml_utils.common.ContentSource;
+import com.elsevier.spark_xml_utils.common.DocumentProjection;
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+import com.elsevier.spark_xml_utils.common.ErrorPolicy;
+import com.elsevier.spark_xml_utils.common.ErrorReporter;
+import com.elsevier.spark_xml_utils.common.ExecutableCache;
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.common.ProcessingError;
+import com.elsevier.spark_xml_utils.common.ResultIterator;
+import com.elsevier.spark_xml_utils.common.RetentionPolicy;
+import com.elsevier.spark_xml_utils.common.SharedConfiguration;
+import com.elsevier.spark_xml_utils.common.TypedResults;
+
 
 /**
  * Class with  methods to filter an XPath expression (return a TRUE/FALSE)
@@ -66,10 +91,20 @@ public class XPathProcessor implements Serializable {
 	private HashMap<String,String> namespaceMappings = null;
 	private HashMap<String,Object> featureMappings = null;
 	private transient XPathSelector xsel = null;
+	private transient XPathExpression expression = null;
 	private transient DocumentBuilder builder = null;
 	private transient Processor proc  = null;
 	private transient Serializer serializer = null;
 	private transient ByteArrayOutputStream baos = null;
+	private boolean prefilterDisabled = false;
+	private transient XPathPrefilter prefilter = null;
+	private transient long prefilterRejectCount = 0;
+	private boolean projectionEnabled = false;
+	private transient DocumentProjection projection = null;
+	private RetentionPolicy retentionPolicy = null;
+	private transient CallMetrics metrics = null;
+	private ErrorPolicy errorPolicy = null;
+	private transient ErrorReporter errors = null;
 	
 	/** 
 	 * Create an instance of XPathProcessor. 
@@ -167,27 +202,26 @@ public class XPathProcessor implements Serializable {
 		
 		try {
 			
-			// Get the processor
-			proc = new Processor(false);
+			// Get the compiled expression (compiling it only if this JVM hasn't already done so)
+			CompiledExecutable<XPathExecutable> compiled = getCompiledExpression(xPathExpression, namespaceMappings, featureMappings);
+			proc = compiled.getProcessor();
 
-			// Set any specified configuration properties for the processor
-			if (featureMappings != null) {
-				for (Entry<String, Object> entry : featureMappings.entrySet()) {
-					proc.setConfigurationProperty((Feature)(Feature.byName(entry.getKey())), entry.getValue());
-				}
-			}
+			// Load the XPath expression  and get a document builder
+			xsel = compiled.getExecutable().load();
+			expression = compiled.getExecutable().getUnderlyingExpression();
+			builder = proc.newDocumentBuilder();
 			
-			//proc.setConfigurationProperty(FeatureKeys.ENTITY_RESOLVER_CLASS, "com.elsevier.spark_xml_utils.common.IgnoreDoctype");
+			// Get the tokens the content must have for the XPath expression to be true
+			prefilter = XPathPrefilter.getInstance(compiled.getExecutable(), featureMappings);
 			
-			// Get the XPath compiler
-			XPathCompiler xpathCompiler = proc.newXPathCompiler();
-
-			// Set the namespace to prefix mappings
-			this.setPrefixNamespaceMappings(xpathCompiler, namespaceMappings);
-
-			// Compile the XPath expression  and get a document builder
-			xsel = xpathCompiler.compile(xPathExpression).load();
-			builder = proc.newDocumentBuilder();
+			// Get the parts of the content the XPath expression can reach
+			projection = DocumentProjection.getInstance(compiled.getExecutable().getUnderlyingExpression().getInternalExpression(), featureMappings);
+		
+			// Get the per call measurements (recorded only while instrumentation is enabled)
+			metrics = CallMetrics.getInstance("xpath");
+			
+			// Get the reporter of the errors processing the content
+			errors = ErrorReporter.getInstance(log, "xpath", xPathExpression);
 		
 			// Create and initialize the serializer  
 			baos = new ByteArrayOutputStream();
@@ -207,6 +241,38 @@ public class XPathProcessor implements Serializable {
 	}
 
 	
+	/**
+	 * Get the compiled XPath expression from the ExecutableCache, creating a processor
+	 * and compiling the expression if this JVM hasn't already done so.
+	 * 
+	 * @param xPathExpression XPath expression to compile
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @return compiled XPath expression
+	 * @throws SaxonApiException
+	 */
+	static CompiledExecutable<XPathExecutable> getCompiledExpression(String xPathExpression, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings) throws SaxonApiException {
+		
+		String key = ExecutableCache.computeKey("xpath", xPathExpression, namespaceMappings, featureMappings);
+		return ExecutableCache.get(key, () -> {
+		
+			// Get the processor (sharing the name pool with all other processors)
+			Processor proc = SharedConfiguration.newProcessor(featureMappings);
+			
+			// Get the XPath compiler
+			XPathCompiler xpathCompiler = proc.newXPathCompiler();
+
+			// Set the namespace to prefix mappings
+			setPrefixNamespaceMappings(xpathCompiler, namespaceMappings);
+
+			// Compile the XPath expression
+			return new CompiledExecutable<XPathExecutable>(proc, xpathCompiler.compile(xPathExpression));
+		
+		});
+		
+	}
+
+	
 	/**
 	 * Set the output method (the default is xml).
 	 * @param method
@@ -216,6 +282,103 @@ public class XPathProcessor implements Serializable {
 	}
 	
 	
+	/**
+	 * Set what is kept between calls (the default is RetentionPolicy.DEFAULT).
+	 * 
+	 * @param policy RetentionPolicy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		retentionPolicy = policy;
+	}
+	
+	
+	/**
+	 * @return what is kept between calls
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy == null ? RetentionPolicy.DEFAULT : retentionPolicy;
+	}
+	
+	
+	/**
+	 * Set what a call does when it fails (the default is ErrorPolicy.THROW).
+	 * 
+	 * @param policy ErrorPolicy
+	 */
+	public void setErrorPolicy(ErrorPolicy policy) {
+		errorPolicy = policy;
+	}
+	
+	
+	/**
+	 * @return what a call does when it fails
+	 */
+	public ErrorPolicy getErrorPolicy() {
+		return errorPolicy == null ? ErrorPolicy.THROW : errorPolicy;
+	}
+	
+	
+	/**
+	 * @return number of failed calls by cause
+	 */
+	public Map<ErrorCause,Long> getErrorCounts() {
+		return errors.getCounts();
+	}
+	
+	
+	/**
+	 * Remove and return the errors kept by the ErrorPolicy.COLLECT policy.
+	 * 
+	 * @return errors in the order they happened
+	 */
+	public List<ProcessingError> drainErrors() {
+		return errors.drain();
+	}
+	
+	
+	/**
+	 * Enable or disable the prefilter (enabled by default).  When enabled, filter scans the
+	 * content for the names and string literals the XPath expression requires and returns
+	 * FALSE without parsing content that is missing one of them.  Such content is not
+	 * checked for being well formed.
+	 * 
+	 * @param enabled TRUE to scan the content before parsing it
+	 */
+	public void setPrefilterEnabled(boolean enabled) {
+		prefilterDisabled = !enabled;
+	}
+	
+	
+	/**
+	 * @return number of times filter returned FALSE without parsing the content
+	 */
+	public long getPrefilterRejectCount() {
+		return prefilterRejectCount;
+	}
+	
+	
+	/**
+	 * Enable or disable document projection (disabled by default).  When enabled, content is
+	 * parsed into a tree holding only the elements the XPath expression can reach.  Expressions
+	 * that may reach any part of the content (for example //* or a reverse axis) are always
+	 * evaluated against the full tree.  Projection only applies to content this processor
+	 * parses (not to an XdmNode or ParsedDocument passed in).
+	 * 
+	 * @param enabled TRUE to build only what the XPath expression can reach
+	 */
+	public void setProjectionEnabled(boolean enabled) {
+		projectionEnabled = enabled;
+	}
+	
+	
+	/**
+	 * @return TRUE if content is parsed into a projected tree
+	 */
+	public boolean isProjecting() {
+		return projectionEnabled && projection != null;
+	}
+	
+	
 	/**
 	 * Filter the content with the XPath expression specified when creating the XPathProcessor.
 	 * 
@@ -239,16 +402,88 @@ public class XPathProcessor implements Serializable {
 	 */
 	public boolean filterString(String content) throws XPathException {
 
-		try {
+		return filter((CharSequence) content);
 
-			return filterStream(IOUtils.toInputStream(content,StandardCharsets.UTF_8.name()));
+	}
+	
+	
+	/**
+	 * Filter the content with the XPath expression specified when creating the XPathProcessor.
+	 * The characters are read in place, both by the prefilter and by the parser.
+	 * 
+	 * @param content CharSequence to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	public boolean filter(CharSequence content) throws XPathException {
 
-		} catch (IOException e) {
-			
-			log.error("Problems processing the content.  " + e.getMessage(),e);
-			throw new XPathException(e.getMessage());
-			
+		metrics.input(content.length());
+		if (prefilter != null && !prefilterDisabled && !prefilter.mayMatch(content)) {
+			prefilterRejectCount++;
+			metrics.complete();
+			return false;
+		}
+
+		return filter(ContentSource.fromCharSequence(content));
+
+	}
+	
+	
+	/**
+	 * Filter the content with the XPath expression specified when creating the XPathProcessor.
+	 * 
+	 * @param content Reader to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	public boolean filter(Reader content) throws XPathException {
+
+		return filter(ContentSource.fromReader(content));
+
+	}
+	
+	
+	/**
+	 * Filter the content with the XPath expression specified when creating the XPathProcessor.
+	 * The bytes are read in place.
+	 * 
+	 * @param content UTF-8 (or self describing) xml to which the XPath expression will be applied
+	 * @param offset start of the xml in the array
+	 * @param length length of the xml
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	public boolean filter(byte[] content, int offset, int length) throws XPathException {
+
+		metrics.input(length);
+		if (prefilter != null && !prefilterDisabled && !prefilter.mayMatch(content, offset, length)) {
+			prefilterRejectCount++;
+			metrics.complete();
+			return false;
+		}
+		
+		return filter(ContentSource.fromBytes(content, offset, length));
+
+	}
+	
+	
+	/**
+	 * Filter the content (from the position to the limit) with the XPath expression specified
+	 * when creating the XPathProcessor.  The bytes are read in place and the position of the 
+	 * buffer is not changed.  The prefilter is only applied to heap buffers.
+	 * 
+	 * @param content UTF-8 (or self describing) xml to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	public boolean filter(ByteBuffer content) throws XPathException {
+
+		if (content.hasArray()) {
+			return filter(content.array(), content.arrayOffset() + content.position(), content.remaining());
 		}
+		
+		metrics.input(content.remaining());
+		return filter(ContentSource.fromByteBuffer(content));
 
 	}
 	
@@ -276,7 +511,24 @@ public class XPathProcessor implements Serializable {
 	 */
 	public boolean filterStream(InputStream content) throws XPathException {
 
-		return filter(new StreamSource(content));
+		if (prefilter == null || prefilterDisabled) {
+			return filter(new StreamSource(content));
+		}
+		
+		try {
+
+			// Read the content so it can be scanned before it is parsed
+			byte[] bytes = IOUtils.toByteArray(content);
+			return filter(bytes, 0, bytes.length);
+
+		} catch (IOException e) {
+			
+			metrics.failed();
+			metrics.complete();
+			recover(new XPathException(e.getMessage(), errors.report(e)));
+			return false;
+			
+		}
 
 	}
 	
@@ -306,16 +558,74 @@ public class XPathProcessor implements Serializable {
 	 */
 	public String evaluateString(String content) throws XPathException{
 
-		try {
-			
-			return evaluateStream(IOUtils.toInputStream(content,StandardCharsets.UTF_8.name()));
+		metrics.input(content.length());
+		return evaluate(ContentSource.fromCharSequence(content));
 
-		} catch (IOException e) {
-			
-			log.error("Problems processing the content.  " + e.getMessage(),e);
-			throw new XPathException(e.getMessage());
-			
-		}
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return a serialized response.  The characters are read in place.
+	 * 
+	 * @param content CharSequence to which the XPath Expression will be evaluated
+	 * @return Serialized response from the evaluation.  
+	 * @throws XPathException
+	 */
+	public String evaluate(CharSequence content) throws XPathException{
+
+		metrics.input(content.length());
+		return evaluate(ContentSource.fromCharSequence(content));
+
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return a serialized response.
+	 * 
+	 * @param content Reader to which the XPath Expression will be evaluated
+	 * @return Serialized response from the evaluation.  
+	 * @throws XPathException
+	 */
+	public String evaluate(Reader content) throws XPathException{
+
+		return evaluate(ContentSource.fromReader(content));
+
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return a serialized response.  The bytes are read in place.
+	 * 
+	 * @param content UTF-8 (or self describing) xml to which the XPath Expression will be evaluated
+	 * @param offset start of the xml in the array
+	 * @param length length of the xml
+	 * @return Serialized response from the evaluation.  
+	 * @throws XPathException
+	 */
+	public String evaluate(byte[] content, int offset, int length) throws XPathException{
+
+		metrics.input(length);
+		return evaluate(ContentSource.fromBytes(content, offset, length));
+
+	}
+	
+	
+	/**
+	 * Evaluate the content (from the position to the limit) with the XPath expression specified 
+	 * when creating the XPathProcessor and return a serialized response.  The bytes are read in
+	 * place and the position of the buffer is not changed.
+	 * 
+	 * @param content UTF-8 (or self describing) xml to which the XPath Expression will be evaluated
+	 * @return Serialized response from the evaluation.  
+	 * @throws XPathException
+	 */
+	public String evaluate(ByteBuffer content) throws XPathException{
+
+		metrics.input(content.remaining());
+		return evaluate(ContentSource.fromByteBuffer(content));
 
 	}
 
@@ -352,77 +662,979 @@ public class XPathProcessor implements Serializable {
 	}
 	
 	/**
-	 * Filter the content with the XPath expression specified when creating the XPathProcessor.
+	 * Filter the already parsed content with the XPath expression specified when creating the XPathProcessor.
 	 * 
-	 * @param content String to which the XPath expression will be applied
+	 * @param content ParsedDocument to which the XPath expression will be applied
 	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
 	 * @throws XPathException
 	 */
-	private  boolean filter(StreamSource content) throws XPathException {
-
+	public boolean filter(ParsedDocument content) throws XPathException {
+		
 		try {
-
-			// Prepare to evaluate the XPath expression against the content
-			XdmNode xmlDoc = builder.build(content);
-			xsel.setContextItem(xmlDoc);
-
-			// Evaluate and return the boolean value for the XPath expression
-			return xsel.effectiveBooleanValue();
-
-		} catch (SaxonApiException e) {
-			
-			log.error("Problems processing the content.  EXPRESSION:" + xPathExpression + " "  + e.getMessage(),e);
-			throw new XPathException(e.getMessage());
-			
+			return filter(content.getNode());
+		} catch (XPathException e) {
+			recover(e);
+			return false;
 		}
-
+		
 	}
-
+	
 	
 	/**
-	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
 	 * and return a serialized response.
 	 * 
-	 * @param content StreamSource to which the XPath expression will be evaluated
+	 * @param content ParsedDocument to which the XPath Expression will be evaluated
 	 * @return Serialized response from the evaluation.  
 	 * @throws XPathException
 	 */
-	private  String evaluate(StreamSource content) throws XPathException {
-
+	public String evaluate(ParsedDocument content) throws XPathException {
+		
 		try {
+			return evaluate(content.getNode());
+		} catch (XPathException e) {
+			return recover(e);
+		}
 
-			//Reset the serializer
-			serializer.close();
-			baos.reset();
-			
-			// Prepare to evaluate the XPath expression against the content
-			XdmNode xmlDoc = builder.build(content);
-			xsel.setContextItem(xmlDoc);
+	}
+
+
+	/**
+	 * Filter a batch of records (for example a Spark partition in mapPartitions) with the XPath
+	 * expression specified when creating the XPathProcessor.  Each record can be a String (or
+	 * other CharSequence), byte[], ByteBuffer or ParsedDocument and is keyed by its position
+	 * in the batch.  See filterAllKeyed.
+	 *
+	 * @param records content to which the XPath expression will be applied
+	 * @return lazy iterator over the result for each record
+	 */
+	public BatchIterator<Long,Boolean> filterAll(Iterator<?> records) {
+
+		return filterAllKeyed(BatchIterator.withPositions(records));
+
+	}
+
+
+	/**
+	 * Filter a batch of keyed records with the XPath expression specified when creating the
+	 * XPathProcessor.  The records are read lazily and the next one is parsed while the current
+	 * one is filtered.  When the prefilter is enabled, content that can't match is rejected
+	 * without being parsed.  A record that can't be parsed or filtered is returned as an error
+	 * result.  The XPathProcessor must not be used for anything else until the batch is exhausted.
+	 *
+	 * @param records key and content (String, byte[], ByteBuffer or ParsedDocument) of each record
+	 * @return lazy iterator over the result for each record
+	 */
+	public <K> BatchIterator<K,Boolean> filterAllKeyed(Iterator<? extends Entry<K,?>> records) {
+
+		return new BatchIterator<K,Boolean>(records, featureMappings) {
+
+			@Override
+			protected ParsedDocument prepare(Object content) throws Exception {
+
+				if (prefilter != null && !prefilterDisabled) {
+					if (content instanceof CharSequence) {
+						if (!prefilter.mayMatch((CharSequence) content)) {
+							return null;
+						}
+					} else if (content instanceof byte[]) {
+						byte[] bytes = (byte[]) content;
+						if (!prefilter.mayMatch(bytes, 0, bytes.length)) {
+							return null;
+						}
+					} else if (content instanceof ByteBuffer && ((ByteBuffer) content).hasArray()) {
+						ByteBuffer buffer = (ByteBuffer) content;
+						if (!prefilter.mayMatch(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())) {
+							return null;
+						}
+					}
+				}
+				return super.prepare(content);
 
-			
-			// Evaluate the XPath expression
-			XdmValue results = xsel.evaluate();
-			Iterator<XdmItem> it = results.iterator();
-			while (it.hasNext()) {
-				XdmItem item = it.next();
-				serializer.serializeXdmValue(item);
 			}
 
-			// Return the results
-			return new String(baos.toByteArray(), StandardCharsets.UTF_8.name());
+			@Override
+			protected Boolean process(ParsedDocument document) throws XPathException {
 
-		} catch (IOException e) {
-			
-			log.error("Problems processing the content.  EXPRESSION:" + xPathExpression + " "  + e.getMessage(),e);
-			throw new XPathException(e.getMessage());
-			
-		} catch (SaxonApiException e) {
-			
-			log.error("Problems processing the content.  EXPRESSION:" + xPathExpression + " "  + e.getMessage(),e);
-			throw new XPathException(e.getMessage());
-			
-		}
+				if (document == null) {
+					prefilterRejectCount++;
+					return false;
+				}
+				return filter(document);
 
+			}
+
+		};
+
+	}
+
+
+	/**
+	 * Evaluate a batch of records (for example a Spark partition in mapPartitions) with the XPath
+	 * expression specified when creating the XPathProcessor.  Each record can be a String (or
+	 * other CharSequence), byte[], ByteBuffer or ParsedDocument and is keyed by its position
+	 * in the batch.  See evaluateAllKeyed.
+	 *
+	 * @param records content to which the XPath expression will be evaluated
+	 * @return lazy iterator over the serialized response for each record
+	 */
+	public BatchIterator<Long,String> evaluateAll(Iterator<?> records) {
+
+		return evaluateAllKeyed(BatchIterator.withPositions(records));
+
+	}
+
+
+	/**
+	 * Evaluate a batch of keyed records with the XPath expression specified when creating the
+	 * XPathProcessor.  The records are read lazily and the next one is parsed while the current
+	 * one is evaluated.  A record that can't be parsed or evaluated is returned as an error
+	 * result.  The XPathProcessor must not be used for anything else until the batch is exhausted.
+	 *
+	 * @param records key and content (String, byte[], ByteBuffer or ParsedDocument) of each record
+	 * @return lazy iterator over the serialized response for each record
+	 */
+	public <K> BatchIterator<K,String> evaluateAllKeyed(Iterator<? extends Entry<K,?>> records) {
+
+		return new BatchIterator<K,String>(records, featureMappings) {
+
+			@Override
+			protected String process(ParsedDocument document) throws XPathException {
+				return evaluate(document);
+			}
+
+		};
+
+	}
+
+
+	/**
+	 * Filter the content with the XPath expression specified when creating the XPathProcessor.
+	 *
+	 * @param content String to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	private  boolean filter(StreamSource content) throws XPathException {
+
+		// Parse the content and evaluate the XPath expression against it
+		try {
+			return filter(parse(content));
+		} catch (XPathException e) {
+			recover(e);
+			return false;
+		}
+
+	}
+
+	
+	/**
+	 * Filter the parsed content with the XPath expression specified when creating the XPathProcessor.
+	 * 
+	 * @param xmlDoc XdmNode to which the XPath expression will be applied
+	 * @return TRUE if the XPath expression evaluates to true, FALSE otherwise
+	 * @throws XPathException
+	 */
+	private  boolean filter(XdmNode xmlDoc) throws XPathException {
+
+		try {
+
+			// Prepare to evaluate the XPath expression against the content
+			long start = metrics.start();
+			xsel.setContextItem(xmlDoc);
+
+			// Evaluate and return the boolean value for the XPath expression
+			boolean result = xsel.effectiveBooleanValue();
+			metrics.evaluated(start);
+			return result;
+
+		} catch (SaxonApiException e) {
+			
+			metrics.failed();
+			throw new XPathException(e.getMessage(), errors.report(e));
+			
+		} finally {
+			
+			release();
+			
+		}
+
+	}
+
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return a serialized response.
+	 * 
+	 * @param content StreamSource to which the XPath expression will be evaluated
+	 * @return Serialized response from the evaluation.  
+	 * @throws XPathException
+	 */
+	private  String evaluate(StreamSource content) throws XPathException {
+
+		// Parse the content and evaluate the XPath expression against it
+		try {
+			return evaluate(parse(content));
+		} catch (XPathException e) {
+			return recover(e);
+		}
+
+	}
+	
+	
+	/**
+	 * Evaluate the parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and return a serialized response.
+	 * 
+	 * @param xmlDoc XdmNode to which the XPath expression will be evaluated
+	 * @return Serialized response from the evaluation.  
+	 * @throws XPathException
+	 */
+	private  String evaluate(XdmNode xmlDoc) throws XPathException {
+
+		try {
+
+			// Evaluate the XPath expression
+			serializeToBuffer(xmlDoc);
+
+			// Return the results (decoded straight from the buffer)
+			return baos.toString(StandardCharsets.UTF_8.name());
+
+		} catch (IOException e) {
+			
+			metrics.failed();
+			throw new XPathException(e.getMessage(), errors.report(e));
+			
+		} finally {
+			
+			release();
+			
+		}
+
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and write the serialized response to the OutputStream.  The stream is not closed.
+	 * 
+	 * @param content Source (for example from ContentSource) to which the XPath Expression will be evaluated
+	 * @param out OutputStream for the serialized response
+	 * @throws XPathException
+	 */
+	public void evaluate(Source content, OutputStream out) throws XPathException {
+		
+		try {
+			evaluate(parse(content), out, null);
+		} catch (XPathException e) {
+			recover(e);
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and write the serialized response to the OutputStream.  The stream is not closed.
+	 * 
+	 * @param content ParsedDocument to which the XPath Expression will be evaluated
+	 * @param out OutputStream for the serialized response
+	 * @throws XPathException
+	 */
+	public void evaluate(ParsedDocument content, OutputStream out) throws XPathException {
+		
+		try {
+			evaluate(content.getNode(), out, null);
+		} catch (XPathException e) {
+			recover(e);
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and write the serialized response to the Writer.  The writer is not closed.
+	 * 
+	 * @param content Source (for example from ContentSource) to which the XPath Expression will be evaluated
+	 * @param out Writer for the serialized response
+	 * @throws XPathException
+	 */
+	public void evaluate(Source content, Writer out) throws XPathException {
+		
+		try {
+			evaluate(parse(content), null, out);
+		} catch (XPathException e) {
+			recover(e);
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and write the serialized response to the Writer.  The writer is not closed.
+	 * 
+	 * @param content ParsedDocument to which the XPath Expression will be evaluated
+	 * @param out Writer for the serialized response
+	 * @throws XPathException
+	 */
+	public void evaluate(ParsedDocument content, Writer out) throws XPathException {
+		
+		try {
+			evaluate(content.getNode(), null, out);
+		} catch (XPathException e) {
+			recover(e);
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and write the serialized response (UTF-8) to the ByteBuffer, starting at its position.
+	 * The position is advanced past the response.  A response that doesn't fit is an error.
+	 * 
+	 * @param content Source (for example from ContentSource) to which the XPath Expression will be evaluated
+	 * @param out ByteBuffer (heap or direct) for the serialized response
+	 * @return number of bytes written
+	 * @throws XPathException
+	 */
+	public int evaluate(Source content, ByteBuffer out) throws XPathException {
+		
+		ByteBufferOutputStream bbos = new ByteBufferOutputStream(out);
+		try {
+			evaluate(parse(content), bbos, null);
+		} catch (XPathException e) {
+			recover(e);
+		}
+		return bbos.getCount();
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and write the serialized response (UTF-8) to the ByteBuffer, starting at its position.
+	 * The position is advanced past the response.  A response that doesn't fit is an error.
+	 * 
+	 * @param content ParsedDocument to which the XPath Expression will be evaluated
+	 * @param out ByteBuffer (heap or direct) for the serialized response
+	 * @return number of bytes written
+	 * @throws XPathException
+	 */
+	public int evaluate(ParsedDocument content, ByteBuffer out) throws XPathException {
+		
+		ByteBufferOutputStream bbos = new ByteBufferOutputStream(out);
+		try {
+			evaluate(content.getNode(), bbos, null);
+		} catch (XPathException e) {
+			recover(e);
+		}
+		return bbos.getCount();
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return the serialized response as UTF-8 bytes.
+	 * 
+	 * @param content Source (for example from ContentSource) to which the XPath Expression will be evaluated
+	 * @return Serialized response from the evaluation (UTF-8)
+	 * @throws XPathException
+	 */
+	public byte[] evaluateToBytes(Source content) throws XPathException {
+		
+		try {
+			return evaluateToBytes(parse(content));
+		} catch (XPathException e) {
+			String sentinel = recover(e);
+			return sentinel == null ? null : sentinel.getBytes(StandardCharsets.UTF_8);
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and return the serialized response as UTF-8 bytes.
+	 * 
+	 * @param content ParsedDocument to which the XPath Expression will be evaluated
+	 * @return Serialized response from the evaluation (UTF-8)
+	 * @throws XPathException
+	 */
+	public byte[] evaluateToBytes(ParsedDocument content) throws XPathException {
+		
+		try {
+			return evaluateToBytes(content.getNode());
+		} catch (XPathException e) {
+			String sentinel = recover(e);
+			return sentinel == null ? null : sentinel.getBytes(StandardCharsets.UTF_8);
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return the string value of each item of the result (the members of arrays are
+	 * flattened), for example a list of identifiers.
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XPath expression will be evaluated
+	 * @return List of the string values (null if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public List<String> evaluateToStrings(String content) throws XPathException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toStrings);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and return the string value of each item of the result (the members of arrays are
+	 * flattened), for example a list of identifiers.
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XPath expression will be evaluated
+	 * @return List of the string values (null if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public List<String> evaluateToStrings(ParsedDocument content) throws XPathException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toStrings);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return the result (a single number, or a node or string holding an integer) as a
+	 * Long, for example a count.
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XPath expression will be evaluated
+	 * @return Long (null if the result is empty or the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public Long evaluateToLong(String content) throws XPathException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toLong);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and return the result (a single number, or a node or string holding an integer) as a
+	 * Long, for example a count.
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XPath expression will be evaluated
+	 * @return Long (null if the result is empty or the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public Long evaluateToLong(ParsedDocument content) throws XPathException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toLong);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return the result (a single number, or a node or string holding a number) as a
+	 * Double.
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XPath expression will be evaluated
+	 * @return Double (null if the result is empty or the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public Double evaluateToDouble(String content) throws XPathException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toDouble);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and return the result (a single number, or a node or string holding a number) as a
+	 * Double.
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XPath expression will be evaluated
+	 * @return Double (null if the result is empty or the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public Double evaluateToDouble(ParsedDocument content) throws XPathException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toDouble);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return the effective boolean value of the result.
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XPath expression will be evaluated
+	 * @return Boolean (null if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public Boolean evaluateToBoolean(String content) throws XPathException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toBoolean);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and return the effective boolean value of the result.
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XPath expression will be evaluated
+	 * @return Boolean (null if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public Boolean evaluateToBoolean(ParsedDocument content) throws XPathException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toBoolean);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return the result (a single XPath 3.1 map) as a Map, with nested maps as Maps and
+	 * arrays as Lists (see TypedResults.toMap).
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XPath expression will be evaluated
+	 * @return Map (null if the result is empty or the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public Map<String,Object> evaluateToMap(String content) throws XPathException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toMap);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and return the result (a single XPath 3.1 map) as a Map, with nested maps as Maps and
+	 * arrays as Lists (see TypedResults.toMap).
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XPath expression will be evaluated
+	 * @return Map (null if the result is empty or the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public Map<String,Object> evaluateToMap(ParsedDocument content) throws XPathException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toMap);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return a lazy iterator over the serialized items of the result.  Items are only
+	 * evaluated and serialized as they are pulled (see ResultIterator).
+	 * 
+	 * @param content String to which the XPath expression will be evaluated
+	 * @return ResultIterator (empty if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public ResultIterator iterate(String content) throws XPathException {
+		
+		return iterate(content, 0);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XPath expression specified when creating the XPathProcessor
+	 * and return a lazy iterator over at most maxItems serialized items of the result.  The
+	 * evaluation stops once maxItems items have been pulled.
+	 * 
+	 * @param content String to which the XPath expression will be evaluated
+	 * @param maxItems maximum number of items (0 for no maximum)
+	 * @return ResultIterator (empty if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public ResultIterator iterate(String content, int maxItems) throws XPathException {
+		
+		metrics.input(content.length());
+		try {
+			return iterate(parse(ContentSource.fromCharSequence(content)), maxItems);
+		} catch (XPathException e) {
+			recover(e);
+			return ResultIterator.empty();
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and return a lazy iterator over the serialized items of the result.
+	 * 
+	 * @param content ParsedDocument to which the XPath expression will be evaluated
+	 * @return ResultIterator (empty if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public ResultIterator iterate(ParsedDocument content) throws XPathException {
+		
+		return iterate(content, 0);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XPath expression specified when creating the XPathProcessor
+	 * and return a lazy iterator over at most maxItems serialized items of the result.
+	 * 
+	 * @param content ParsedDocument to which the XPath expression will be evaluated
+	 * @param maxItems maximum number of items (0 for no maximum)
+	 * @return ResultIterator (empty if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	public ResultIterator iterate(ParsedDocument content, int maxItems) throws XPathException {
+		
+		try {
+			return iterate(content.getNode(), maxItems);
+		} catch (XPathException e) {
+			recover(e);
+			return ResultIterator.empty();
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the parsed content and return the serialized response as UTF-8 bytes.
+	 * 
+	 * @param xmlDoc XdmNode to which the XPath expression will be evaluated
+	 * @return Serialized response from the evaluation (UTF-8)
+	 * @throws XPathException
+	 */
+	private byte[] evaluateToBytes(XdmNode xmlDoc) throws XPathException {
+		
+		try {
+			
+			serializeToBuffer(xmlDoc);
+			return baos.toByteArray();
+			
+		} finally {
+			
+			release();
+			
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the parsed content and write the serialized response to the OutputStream
+	 * or the Writer (whichever is not null).
+	 * 
+	 * @param xmlDoc XdmNode to which the XPath expression will be evaluated
+	 * @param out OutputStream for the serialized response
+	 * @param writer Writer for the serialized response
+	 * @throws XPathException
+	 */
+	private void evaluate(XdmNode xmlDoc, OutputStream out, Writer writer) throws XPathException {
+
+		try {
+
+			// Point the serializer at the caller's sink
+			serializer.close();
+			if (writer != null) {
+				serializer.setOutputWriter(metrics.wrap(writer));
+			} else {
+				serializer.setOutputStream(metrics.wrap(out));
+			}
+
+			// Evaluate the XPath expression
+			serialize(xmlDoc);
+
+		} catch (SaxonApiException e) {
+			
+			metrics.failed();
+			throw new XPathException(e.getMessage(), errors.report(e));
+			
+		} finally {
+			
+			serializer.setOutputStream(baos);
+			release();
+			
+		}
+
+	}
+	
+	
+	/**
+	 * Parse the content, evaluate it and convert the result.
+	 *
+	 * @param content Source to which the XPath expression will be evaluated
+	 * @param conversion conversion of the result
+	 * @return converted result (null if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	private <T> T evaluateTo(Source content, TypedResults.Conversion<T> conversion) throws XPathException {
+
+		try {
+			return convert(parse(content), conversion);
+		} catch (XPathException e) {
+			recover(e);
+			return null;
+		}
+
+	}
+
+
+	/**
+	 * Evaluate the parsed content and convert the result.
+	 *
+	 * @param xmlDoc XdmNode to which the XPath expression will be evaluated
+	 * @param conversion conversion of the result
+	 * @return converted result (null if the error policy absorbs an error)
+	 * @throws XPathException
+	 */
+	private <T> T evaluateTo(XdmNode xmlDoc, TypedResults.Conversion<T> conversion) throws XPathException {
+
+		try {
+			return convert(xmlDoc, conversion);
+		} catch (XPathException e) {
+			recover(e);
+			return null;
+		}
+
+	}
+
+
+	/**
+	 * Evaluate the XPath expression against the parsed content and convert the result
+	 * (instead of serializing it).
+	 *
+	 * @param xmlDoc XdmNode to which the XPath expression will be evaluated
+	 * @param conversion conversion of the result
+	 * @return converted result
+	 * @throws XPathException
+	 */
+	private <T> T convert(XdmNode xmlDoc, TypedResults.Conversion<T> conversion) throws XPathException {
+
+		try {
+
+			long start = metrics.start();
+			xsel.setContextItem(xmlDoc);
+			XdmValue results = xsel.evaluate();
+			T converted = conversion.convert(results);
+			metrics.evaluated(start);
+			metrics.items(results.size());
+			return converted;
+
+		} catch (SaxonApiException e) {
+
+			metrics.failed();
+			throw new XPathException(e.getMessage(), errors.report(e));
+
+		} finally {
+
+			release();
+
+		}
+
+	}
+
+
+	/**
+	 * Start a lazy evaluation of the XPath expression against the parsed content.
+	 *
+	 * @param xmlDoc XdmNode to which the XPath expression will be evaluated
+	 * @param maxItems maximum number of items (0 for no maximum)
+	 * @return ResultIterator serializing each item as it is pulled
+	 * @throws XPathException
+	 */
+	private ResultIterator iterate(XdmNode xmlDoc, int maxItems) throws XPathException {
+
+		try {
+
+			xsel.setContextItem(xmlDoc);
+			return new ResultIterator(expression.iterate(xsel.getUnderlyingXPathContext()), maxItems) {
+
+				@Override
+				protected String serialize(XdmItem item) throws SaxonApiException {
+					long start = metrics.start();
+					serializer.close();
+					baos.reset();
+					serializer.serializeXdmValue(item);
+					metrics.serialized(start);
+					metrics.output(baos.size());
+					metrics.items(1);
+					return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+				}
+
+				@Override
+				protected void failed(SaxonApiException e) {
+					metrics.failed();
+					XPathException error = new XPathException(e.getMessage(), errors.report(e));
+					if (!errors.absorb(getErrorPolicy(), error.getErrorCause(), error.getMessage())) {
+						throw new ResultIterator.IterationException(error);
+					}
+				}
+
+				@Override
+				protected void completed() {
+					release();
+				}
+
+			};
+
+		} catch (SaxonApiException | net.sf.saxon.trans.XPathException e) {
+
+			metrics.failed();
+			release();
+			throw new XPathException(e.getMessage(), errors.report(e));
+
+		}
+
+	}
+
+
+	/**
+	 * Evaluate the parsed content and serialize the response into the buffer.
+	 * 
+	 * @param xmlDoc XdmNode to which the XPath expression will be evaluated
+	 * @throws XPathException
+	 */
+	private void serializeToBuffer(XdmNode xmlDoc) throws XPathException {
+
+		try {
+
+			//Reset the serializer
+			serializer.close();
+			baos.reset();
+			
+			// Evaluate the XPath expression
+			serialize(xmlDoc);
+			metrics.output(baos.size());
+
+		} catch (SaxonApiException e) {
+			
+			metrics.failed();
+			throw new XPathException(e.getMessage(), errors.report(e));
+			
+		}
+
+	}
+	
+	
+	/**
+	 * Evaluate the XPath expression against the parsed content and serialize each item.
+	 * 
+	 * @param xmlDoc XdmNode to which the XPath expression will be evaluated
+	 * @throws SaxonApiException
+	 */
+	private void serialize(XdmNode xmlDoc) throws SaxonApiException {
+		
+		// Prepare to evaluate the XPath expression against the content
+		long start = metrics.start();
+		xsel.setContextItem(xmlDoc);
+
+		// Evaluate the XPath expression
+		XdmValue results = xsel.evaluate();
+		start = metrics.evaluated(start);
+		Iterator<XdmItem> it = results.iterator();
+		while (it.hasNext()) {
+			XdmItem item = it.next();
+			serializer.serializeXdmValue(item);
+		}
+		metrics.serialized(start);
+		metrics.items(results.size());
+		
+	}
+	
+	
+	/**
+	 * Parse the content.
+	 * 
+	 * @param content Source to parse
+	 * @return parsed content
+	 * @throws XPathException
+	 */
+	private XdmNode parse(Source content) throws XPathException {
+		
+		long start = metrics.start();
+		try {
+			
+			XdmNode xmlDoc = isProjecting() ? projection.build(builder, proc.getUnderlyingConfiguration(), content) : builder.build(content);
+			metrics.parsed(start);
+			return xmlDoc;
+			
+		} catch (SaxonApiException e) {
+			
+			metrics.failed();
+			metrics.complete();
+			throw new XPathException(e.getMessage(), errors.report(e));
+			
+		}
+		
+	}
+	
+	
+	/**
+	 * Apply the error policy to a failed call: throw the exception again, or return what
+	 * the policy returns in place of the result.
+	 * 
+	 * @param e exception of the failed call (already reported)
+	 * @return value to return in place of the result (null unless the policy has a sentinel)
+	 * @throws XPathException
+	 */
+	private String recover(XPathException e) throws XPathException {
+		
+		ErrorPolicy policy = getErrorPolicy();
+		if (!errors.absorb(policy, e.getErrorCause(), e.getMessage())) {
+			throw e;
+		}
+		return policy.getSentinel();
+		
+	}
+	
+	
+	/**
+	 * Apply the retention policy after a call: replace a buffer that has grown too large and
+	 * release the document.  Then record the call's metrics.
+	 */
+	private void release() {
+		
+		RetentionPolicy policy = getRetentionPolicy();
+		if (policy.isOversized(baos)) {
+			baos = new ByteArrayOutputStream();
+			serializer.setOutputStream(baos);
+		}
+		if (policy.isReleaseContext()) {
+			try {
+				xsel.setContextItem(SharedConfiguration.getPlaceholderDocument());
+			} catch (SaxonApiException e) {
+				log.error("Problems releasing the content.  " + e.getMessage(),e);
+			}
+		}
+		metrics.complete();
+		
 	}
 	
 	
@@ -432,7 +1644,7 @@ public class XPathProcessor implements Serializable {
 	 * @param xpathCompiler
 	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
 	 */
-	private  void setPrefixNamespaceMappings(XPathCompiler xpathCompiler, HashMap<String,String> namespaceMappings) {
+	static void setPrefixNamespaceMappings(XPathCompiler xpathCompiler, HashMap<String,String> namespaceMappings) {
 
 		if (namespaceMappings != null) {
 			
@@ -0,0 +1,490 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xquery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.ExtensionFunction;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XQueryExecutable;
+import net.sf.saxon.s9api.XdmAtomicValue;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.elsevier.spark_xml_utils.common.CallMetrics;
+import com.elsevier.spark_xml_utils.common.CompiledExecutable;
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+import com.elsevier.spark_xml_utils.common.ErrorPolicy;
+import com.elsevier.spark_xml_utils.common.ErrorReporter;
+import com.elsevier.spark_xml_utils.common.EvaluatorPool;
+import com.elsevier.spark_xml_utils.common.ProcessingError;
+import com.elsevier.spark_xml_utils.common.RetentionPolicy;
+import com.elsevier.spark_xml_utils.common.SharedConfiguration;
+
+
+/**
+ * Thread-safe variant of XQueryProcessor.  A single instance can be shared by all
+ * threads in an executor.  The compiled XQuery expression is shared, and each call
+ * borrows an evaluator (query evaluator and serializer) from an EvaluatorPool sized
+ * to the number of cores.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ConcurrentXQueryProcessor implements Serializable {
+
+	private static final long serialVersionUID = 6015869373212498731L;
+
+	// Logger
+	private static Log log = LogFactory.getLog(ConcurrentXQueryProcessor.class);
+
+	// Member variables
+	private String xQueryExpression = null;
+	private HashMap<String,String> namespaceMappings = null;
+	private HashMap<String,Object> featureMappings = null;
+	private Set<ExtensionFunction> extensionFunctions = null;
+	private volatile String outputMethod = "xml";
+	private ConcurrentHashMap<String,String> externalVariables = new ConcurrentHashMap<String,String>();
+	private transient Processor proc = null;
+	private transient XQueryExecutable exp = null;
+	private transient EvaluatorPool<Evaluator> pool = null;
+	private volatile ErrorPolicy errorPolicy = null;
+	private volatile RetentionPolicy retentionPolicy = null;
+	private transient ErrorReporter errors = null;
+
+
+	/**
+	 * Per-call state.  Only used by one thread at a time.
+	 */
+	private static class Evaluator {
+
+		private XQueryEvaluator eval = null;
+		private Serializer serializer = null;
+		private ByteArrayOutputStream baos = null;
+		private String outputMethod = null;
+		private CallMetrics metrics = null;
+
+	}
+
+
+	/**
+	 * Create an instance of ConcurrentXQueryProcessor.
+	 *
+	 * @param xQueryExpression XQuery expression to apply to the content
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @param extensionFunctions Extension functions to be registered to the XQuery Processor
+	 */
+	private ConcurrentXQueryProcessor(String xQueryExpression, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings, Set<ExtensionFunction> extensionFunctions) {
+
+		this.xQueryExpression = xQueryExpression;
+		this.namespaceMappings = namespaceMappings;
+		this.featureMappings = featureMappings;
+		this.extensionFunctions = extensionFunctions;
+
+	}
+
+
+	/**
+	 * Restore the serialized object and then do a one time initialization.  We need to
+	 * initialize the transient variables.
+	 *
+	 * @param inputStream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws XQueryException
+	 */
+	private void readObject(ObjectInputStream inputStream)
+            throws IOException, ClassNotFoundException, XQueryException
+    {
+
+        inputStream.defaultReadObject();
+        init();
+
+    }
+
+
+	/**
+	 * Get an instance of ConcurrentXQueryProcessor.
+	 *
+	 * @param xQueryExpression XQuery expression to apply to the content
+	 * @return ConcurrentXQueryProcessor
+	 * @throws XQueryException
+	 */
+	public static ConcurrentXQueryProcessor getInstance(String xQueryExpression) throws XQueryException {
+
+		return getInstance(xQueryExpression, null, null, null);
+
+	}
+
+
+	/**
+	 * Get an instance of ConcurrentXQueryProcessor.
+	 *
+	 * @param xQueryExpression XQuery expression to apply to the content
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @return ConcurrentXQueryProcessor
+	 * @throws XQueryException
+	 */
+	public static ConcurrentXQueryProcessor getInstance(String xQueryExpression, HashMap<String,String> namespaceMappings) throws XQueryException {
+
+		return getInstance(xQueryExpression, namespaceMappings, null, null);
+
+	}
+
+
+	/**
+	 * Get an instance of ConcurrentXQueryProcessor.
+	 *
+	 * @param xQueryExpression XQuery expression to apply to the content
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @return ConcurrentXQueryProcessor
+	 * @throws XQueryException
+	 */
+	public static ConcurrentXQueryProcessor getInstance(String xQueryExpression, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings) throws XQueryException {
+
+		return getInstance(xQueryExpression, namespaceMappings, featureMappings, null);
+
+	}
+
+
+	/**
+	 * Get an instance of ConcurrentXQueryProcessor.
+	 *
+	 * @param xQueryExpression XQuery expression to apply to the content
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @param extensionFunctions Extension functions to be registered to the XQuery Processor
+	 * @return ConcurrentXQueryProcessor
+	 * @throws XQueryException
+	 */
+	public static ConcurrentXQueryProcessor getInstance(String xQueryExpression, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings, Set<ExtensionFunction> extensionFunctions) throws XQueryException {
+
+		ConcurrentXQueryProcessor proc = new ConcurrentXQueryProcessor(xQueryExpression, namespaceMappings, featureMappings, extensionFunctions);
+		proc.init();
+		return proc;
+
+	}
+
+
+	/**
+	 * Initialization of the shared compiled expression and the evaluator pool.
+	 *
+	 * @throws XQueryException
+	 */
+	private void init() throws XQueryException {
+
+		try {
+
+			CompiledExecutable<XQueryExecutable> compiled = XQueryProcessor.getCompiledExpression(xQueryExpression, namespaceMappings, featureMappings, extensionFunctions);
+			proc = compiled.getProcessor();
+			exp = compiled.getExecutable();
+			pool = new EvaluatorPool<Evaluator>();
+			errors = ErrorReporter.getInstance(log, "xquery", xQueryExpression);
+
+		} catch (SaxonApiException e) {
+
+			log.error("Problems creating a ConcurrentXQueryProcessor.  " + e.getMessage(),e);
+			throw new XQueryException(e.getMessage());
+
+		}
+
+	}
+
+
+	/**
+	 * Set what a call does when it fails (the default is ErrorPolicy.THROW).
+	 *
+	 * @param policy ErrorPolicy
+	 */
+	public void setErrorPolicy(ErrorPolicy policy) {
+		errorPolicy = policy;
+	}
+
+
+	/**
+	 * @return what a call does when it fails
+	 */
+	public ErrorPolicy getErrorPolicy() {
+		return errorPolicy == null ? ErrorPolicy.THROW : errorPolicy;
+	}
+
+
+	/**
+	 * Set what a pooled evaluator keeps between calls (the default is RetentionPolicy.DEFAULT).
+	 *
+	 * @param policy RetentionPolicy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		retentionPolicy = policy;
+	}
+
+
+	/**
+	 * @return what a pooled evaluator keeps between calls
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy == null ? RetentionPolicy.DEFAULT : retentionPolicy;
+	}
+
+
+	/**
+	 * @return number of failed calls by cause (from all threads)
+	 */
+	public Map<ErrorCause,Long> getErrorCounts() {
+		return errors.getCounts();
+	}
+
+
+	/**
+	 * Remove and return the errors kept by the ErrorPolicy.COLLECT policy (from all threads).
+	 *
+	 * @return errors in the order they happened
+	 */
+	public List<ProcessingError> drainErrors() {
+		return errors.drain();
+	}
+
+
+	/**
+	 * Set the output method (the default is xml).  Applies to all subsequent evaluations.
+	 * @param method
+	 */
+	public void setOutputMethod(String method)  {
+		outputMethod = method;
+	}
+
+
+	/**
+	 * Set the external variable for all subsequent evaluations.  The value should be a String.
+	 *
+	 * @param name  Name of the external variable in the XQuery
+	 * @param value Value for the external variable
+	 */
+	public void setExternalVariable(String name, String value) {
+		externalVariables.put(name, value);
+	}
+
+
+	/**
+	 * Get the pool of evaluators (for monitoring).
+	 *
+	 * @return evaluator pool
+	 */
+	public EvaluatorPool<?> getEvaluatorPool() {
+		return pool;
+	}
+
+
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the ConcurrentXQueryProcessor
+	 * and return a serialized response.
+	 *
+	 * @param content String to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation.
+	 * @throws XQueryException
+	 */
+	public String evaluate(String content) throws XQueryException {
+
+		return evaluateString(content);
+
+	}
+
+
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the ConcurrentXQueryProcessor
+	 * and return a serialized response.
+	 *
+	 * @param content String to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation.
+	 * @throws XQueryException
+	 */
+	public String evaluateString(String content) throws XQueryException {
+
+		return evaluate(new StreamSource(IOUtils.toInputStream(content,StandardCharsets.UTF_8)));
+
+	}
+
+
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the ConcurrentXQueryProcessor
+	 * and return a serialized response.
+	 *
+	 * @param content InputStream to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation.
+	 * @throws XQueryException
+	 */
+	public String evaluate(InputStream content) throws XQueryException {
+
+		return evaluateStream(content);
+
+	}
+
+
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the ConcurrentXQueryProcessor
+	 * and return a serialized response.
+	 *
+	 * @param content InputStream to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation.
+	 * @throws XQueryException
+	 */
+	public String evaluateStream(InputStream content) throws XQueryException {
+
+		return evaluate(new StreamSource(content));
+
+	}
+
+
+	/**
+	 * Evaluate the content with a pooled evaluator and return a serialized response.
+	 *
+	 * @param content StreamSource to which the XQuery expression will be evaluated
+	 * @return Serialized response from the evaluation
+	 * @throws XQueryException
+	 */
+	private String evaluate(StreamSource content) throws XQueryException {
+
+		Evaluator evaluator = pool.borrow(this::newEvaluator);
+		try {
+
+			// Reset the serializer (and pick up any change to the output method)
+			evaluator.serializer.close();
+			evaluator.baos.reset();
+			if (!outputMethod.equals(evaluator.outputMethod)) {
+				evaluator.outputMethod = outputMethod;
+				evaluator.serializer.setOutputProperty(Serializer.Property.METHOD, evaluator.outputMethod);
+			}
+
+			// Set the external variables
+			for (Entry<String,String> entry : externalVariables.entrySet()) {
+				evaluator.eval.setExternalVariable(new QName(entry.getKey()), new XdmAtomicValue(entry.getValue()));
+			}
+
+			// Set the source (content) and run the query
+			long start = evaluator.metrics.start();
+			evaluator.eval.setSource(content);
+			start = evaluator.metrics.parsed(start);
+			Destination destination = evaluator.metrics.wrap(evaluator.serializer);
+			evaluator.eval.run(destination);
+			evaluator.metrics.evaluatedAndSerialized(start, destination);
+			evaluator.metrics.output(evaluator.baos.size());
+
+			// Return the results
+			return new String(evaluator.baos.toByteArray(), StandardCharsets.UTF_8);
+
+		} catch (SaxonApiException e) {
+
+			evaluator.metrics.failed();
+			return recover(new XQueryException(e.getMessage(), errors.report(e)));
+
+		} finally {
+
+			evaluator.metrics.complete();
+			release(evaluator);
+
+		}
+
+	}
+
+
+	/**
+	 * Apply the retention policy to a evaluator before it goes back to the pool: replace a
+	 * buffer that has grown too large and release the document.
+	 *
+	 * @param evaluator Evaluator used by the call
+	 */
+	private void release(Evaluator evaluator) {
+
+		RetentionPolicy policy = getRetentionPolicy();
+		if (policy.isOversized(evaluator.baos)) {
+			evaluator.baos = new ByteArrayOutputStream();
+			evaluator.serializer.setOutputStream(evaluator.baos);
+		}
+		if (policy.isReleaseContext()) {
+			try {
+				evaluator.eval.setContextItem(SharedConfiguration.getPlaceholderDocument());
+			} catch (SaxonApiException e) {
+				log.error("Problems releasing the content.  " + e.getMessage(),e);
+			}
+		}
+		pool.release(evaluator);
+
+	}
+
+
+	/**
+	 * Apply the error policy to a failed call: throw the exception again, or return what
+	 * the policy returns in place of the result.
+	 *
+	 * @param e exception of the failed call (already reported)
+	 * @return value to return in place of the result (null unless the policy has a sentinel)
+	 * @throws XQueryException
+	 */
+	private String recover(XQueryException e) throws XQueryException {
+
+		ErrorPolicy policy = getErrorPolicy();
+		if (!errors.absorb(policy, e.getErrorCause(), e.getMessage())) {
+			throw e;
+		}
+		return policy.getSentinel();
+
+	}
+
+
+	/**
+	 * Create a new evaluator for the pool.
+	 *
+	 * @return Evaluator
+	 */
+	private Evaluator newEvaluator() {
+
+		Evaluator evaluator = new Evaluator();
+		evaluator.eval = exp.load();
+		evaluator.eval.setErrorListener(SharedConfiguration.getQuietErrorListener());
+		evaluator.baos = new ByteArrayOutputStream();
+		evaluator.serializer = proc.newSerializer(evaluator.baos);
+		evaluator.outputMethod = outputMethod;
+		evaluator.serializer.setOutputProperty(Serializer.Property.METHOD, evaluator.outputMethod);
+		evaluator.serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION,"yes");
+		evaluator.metrics = CallMetrics.getInstance("xquery");
+		return evaluator;
+
+	}
+
+}
@@ -16,6 +16,8 @@
  */
 package com.elsevier.spark_xml_utils.xquery;
 
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+
 /**
  * XQuery Exception
  * 
@@ -25,11 +27,37 @@ package com.elsevier.spark_xml_utils.xquery;
 public class XQueryException extends Exception {
 	
 	private static final long serialVersionUID = -1838016565780507800L;
+	
+	// What went wrong (null if not known)
+	private ErrorCause errorCause = null;
 
 	public XQueryException(String msg) {
 		
 		super(msg);
 		
 	}
+	
+	
+	/**
+	 * Create an exception without a stack trace (or suppressed exceptions), which is
+	 * what the processors throw when processing the content fails.
+	 * 
+	 * @param msg message
+	 * @param errorCause what went wrong
+	 */
+	public XQueryException(String msg, ErrorCause errorCause) {
+		
+		super(msg, null, false, false);
+		this.errorCause = errorCause;
+		
+	}
+	
+	
+	/**
+	 * @return what went wrong (OTHER if not known)
+	 */
+	public ErrorCause getErrorCause() {
+		return errorCause == null ? ErrorCause.OTHER : errorCause;
+	}
 
 }
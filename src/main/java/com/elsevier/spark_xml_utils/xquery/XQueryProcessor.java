@@ -19,24 +19,46 @@ package com.elsevier.spark_xml_utils.xquery;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.ObjectInputStream;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
+import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 
-import net.sf.saxon.lib.Feature;
 import net.sf.saxon.lib.NamespaceConstant;
 import net.sf.saxon.s9api.*;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.elsevier.spark_xml_utils.common.BatchIterator;
+import com.elsevier.spark_xml_utils.common.ByteBufferOutputStream;
+import com.elsevier.spark_xml_utils.common.CallMetrics;
+import com.elsevier.spark_xml_utils.common.CompiledExecutable;
+import com.elsevier.spark_xml_utils.common.ContentSource;
+import com.elsevier.spark_xml_utils.common.DocumentProjection;
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+import com.elsevier.spark_xml_utils.common.ErrorPolicy;
+import com.elsevier.spark_xml_utils.common.ErrorReporter;
+import com.elsevier.spark_xml_utils.common.ExecutableCache;
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.common.ProcessingError;
+import com.elsevier.spark_xml_utils.common.ResultIterator;
+import com.elsevier.spark_xml_utils.common.RetentionPolicy;
+import com.elsevier.spark_xml_utils.common.SharedConfiguration;
+import com.elsevier.spark_xml_utils.common.TypedResults;
+
 
 /**
  * Class with methods to apply an XQuery expression against a string of
@@ -62,6 +84,13 @@ public class XQueryProcessor implements Serializable {
 	private transient XQueryEvaluator eval = null;
 	private transient Serializer serializer = null;
 	private transient ByteArrayOutputStream baos = null;
+	private transient DocumentBuilder builder = null;
+	private boolean projectionEnabled = false;
+	private transient DocumentProjection projection = null;
+	private RetentionPolicy retentionPolicy = null;
+	private transient CallMetrics metrics = null;
+	private ErrorPolicy errorPolicy = null;
+	private transient ErrorReporter errors = null;
 
 	
 	/** 
@@ -180,33 +209,23 @@ public class XQueryProcessor implements Serializable {
 		
 		try {
 			
-			// Get the processor
-			proc = new Processor(false);
-
-			// Register any specified extension functions to the processor
-			if (extensionFunctions != null) {
-				for (ExtensionFunction extensionFunction : extensionFunctions) {
-					proc.registerExtensionFunction(extensionFunction);
-				}
-			}
-
-			// Set any specified configuration properties for the processor
-			if (featureMappings != null) {
-				for (Entry<String, Object> entry : featureMappings.entrySet()) {
-					proc.setConfigurationProperty((Feature)(Feature.byName(entry.getKey())), entry.getValue());
-				}
-			}
-			
-			// Get the XQuery compiler
-			XQueryCompiler xqueryCompiler = proc.newXQueryCompiler();
-			xqueryCompiler.setEncoding(StandardCharsets.UTF_8.name());
+			// Get the compiled expression (compiling it only if this JVM hasn't already done so)
+			CompiledExecutable<XQueryExecutable> compiled = getCompiledExpression(xQueryExpression, namespaceMappings, featureMappings, extensionFunctions);
+			proc = compiled.getProcessor();
+			exp = compiled.getExecutable();
 
-			// Set the namespace to prefix mappings
-			this.setPrefixNamespaceMappings(xqueryCompiler, namespaceMappings);
-
-			// Compile the XQuery expression and get an XQuery evaluator
-			exp = xqueryCompiler.compile(xQueryExpression);
+			// Get an XQuery evaluator
 			eval = exp.load();
+			eval.setErrorListener(SharedConfiguration.getQuietErrorListener());
+			
+			// Get the parts of the content the XQuery expression can reach
+			projection = DocumentProjection.getInstance(exp.getUnderlyingCompiledQuery().getExpression(), featureMappings);
+			
+			// Get the per call measurements (recorded only while instrumentation is enabled)
+			metrics = CallMetrics.getInstance("xquery");
+			
+			// Get the reporter of the errors processing the content
+			errors = ErrorReporter.getInstance(log, "xquery", xQueryExpression);
 			
 			// Create and initialize the serializer 
 			baos = new ByteArrayOutputStream();
@@ -225,6 +244,119 @@ public class XQueryProcessor implements Serializable {
 		
 	}
 	
+	
+	/**
+	 * Get the compiled XQuery expression from the ExecutableCache, creating a processor
+	 * and compiling the expression if this JVM hasn't already done so.  Extension functions
+	 * are objects that can't be compared across instances, so queries registering extension
+	 * functions are always compiled.
+	 * 
+	 * @param xQueryExpression XQuery expression to compile
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @param extensionFunctions Extension functions to be registered to the XQuery Processor
+	 * @return compiled XQuery expression
+	 * @throws SaxonApiException
+	 */
+	static CompiledExecutable<XQueryExecutable> getCompiledExpression(String xQueryExpression, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings, Set<ExtensionFunction> extensionFunctions) throws SaxonApiException {
+		
+		if (extensionFunctions != null && !extensionFunctions.isEmpty()) {
+			return compile(xQueryExpression, namespaceMappings, featureMappings, extensionFunctions);
+		}
+		String key = ExecutableCache.computeKey("xquery", xQueryExpression, namespaceMappings, featureMappings);
+		return ExecutableCache.get(key, () -> compile(xQueryExpression, namespaceMappings, featureMappings, null));
+		
+	}
+	
+	
+	/**
+	 * Create a processor and compile the XQuery expression.
+	 * 
+	 * @param xQueryExpression XQuery expression to compile
+	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
+	 * @param featureMappings Processor feature mappings
+	 * @param extensionFunctions Extension functions to be registered to the XQuery Processor
+	 * @return compiled XQuery expression
+	 * @throws SaxonApiException
+	 */
+	private static CompiledExecutable<XQueryExecutable> compile(String xQueryExpression, HashMap<String,String> namespaceMappings, HashMap<String,Object> featureMappings, Set<ExtensionFunction> extensionFunctions) throws SaxonApiException {
+		
+		// Get the processor (sharing the name pool with all other processors)
+		Processor proc = SharedConfiguration.newProcessor(featureMappings);
+
+		// Register any specified extension functions to the processor
+		if (extensionFunctions != null) {
+			for (ExtensionFunction extensionFunction : extensionFunctions) {
+				proc.registerExtensionFunction(extensionFunction);
+			}
+		}
+		
+		// Get the XQuery compiler
+		XQueryCompiler xqueryCompiler = proc.newXQueryCompiler();
+		xqueryCompiler.setEncoding(StandardCharsets.UTF_8.name());
+
+		// Set the namespace to prefix mappings
+		setPrefixNamespaceMappings(xqueryCompiler, namespaceMappings);
+
+		// Compile the XQuery expression
+		return new CompiledExecutable<XQueryExecutable>(proc, xqueryCompiler.compile(xQueryExpression));
+		
+	}
+	
+	/**
+	 * Set what is kept between calls (the default is RetentionPolicy.DEFAULT).
+	 * 
+	 * @param policy RetentionPolicy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		retentionPolicy = policy;
+	}
+	
+	
+	/**
+	 * @return what is kept between calls
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy == null ? RetentionPolicy.DEFAULT : retentionPolicy;
+	}
+	
+	
+	/**
+	 * Set what a call does when it fails (the default is ErrorPolicy.THROW).
+	 * 
+	 * @param policy ErrorPolicy
+	 */
+	public void setErrorPolicy(ErrorPolicy policy) {
+		errorPolicy = policy;
+	}
+	
+	
+	/**
+	 * @return what a call does when it fails
+	 */
+	public ErrorPolicy getErrorPolicy() {
+		return errorPolicy == null ? ErrorPolicy.THROW : errorPolicy;
+	}
+	
+	
+	/**
+	 * @return number of failed calls by cause
+	 */
+	public Map<ErrorCause,Long> getErrorCounts() {
+		return errors.getCounts();
+	}
+	
+	
+	/**
+	 * Remove and return the errors kept by the ErrorPolicy.COLLECT policy.
+	 * 
+	 * @return errors in the order they happened
+	 */
+	public List<ProcessingError> drainErrors() {
+		return errors.drain();
+	}
+	
+	
 	/**
 	 * Set the output method (the default is xml).
 	 * @param method
@@ -234,6 +366,28 @@ public class XQueryProcessor implements Serializable {
 	}
 	
 	
+	/**
+	 * Enable or disable document projection (disabled by default).  When enabled, content is
+	 * parsed into a tree holding only the elements the XQuery expression can reach.  Queries
+	 * that may reach any part of the content (for example //*, a reverse axis or a function
+	 * declared in the query) are always evaluated against the full tree.  Projection only
+	 * applies to content this processor parses (not to an XdmNode or ParsedDocument passed in).
+	 * 
+	 * @param enabled TRUE to build only what the XQuery expression can reach
+	 */
+	public void setProjectionEnabled(boolean enabled) {
+		projectionEnabled = enabled;
+	}
+	
+	
+	/**
+	 * @return TRUE if content is parsed into a projected tree
+	 */
+	public boolean isProjecting() {
+		return projectionEnabled && projection != null;
+	}
+	
+	
 	/**
 	 * Set the external variable.  The value should be a String.
 	 * 
@@ -270,16 +424,74 @@ public class XQueryProcessor implements Serializable {
 	 */
 	public String evaluateString(String content) throws XQueryException {
 
-		try {
+		metrics.input(content.length());
+		return evaluate(ContentSource.fromCharSequence(content));
 
-			return evaluateStream(IOUtils.toInputStream(content,StandardCharsets.UTF_8.name()));
+	}
 
-		} catch (IOException e) {
-			
-			log.error("Problems processing the content.  " + e.getMessage(),e);
-			throw new XQueryException(e.getMessage());
-			
-		}
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return a serialized response.  The characters are read in place.
+	 * 
+	 * @param content CharSequence to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation. 
+	 * @throws XQueryException
+	 */
+	public String evaluate(CharSequence content) throws XQueryException {
+
+		metrics.input(content.length());
+		return evaluate(ContentSource.fromCharSequence(content));
+
+	}
+
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return a serialized response.
+	 * 
+	 * @param content Reader to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation. 
+	 * @throws XQueryException
+	 */
+	public String evaluate(Reader content) throws XQueryException {
+
+		return evaluate(ContentSource.fromReader(content));
+
+	}
+
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return a serialized response.  The bytes are read in place.
+	 * 
+	 * @param content UTF-8 (or self describing) xml to which the XQuery Expression will be evaluated
+	 * @param offset start of the xml in the array
+	 * @param length length of the xml
+	 * @return Serialized response from the evaluation. 
+	 * @throws XQueryException
+	 */
+	public String evaluate(byte[] content, int offset, int length) throws XQueryException {
+
+		metrics.input(length);
+		return evaluate(ContentSource.fromBytes(content, offset, length));
+
+	}
+
+	
+	/**
+	 * Evaluate the content (from the position to the limit) with the XQuery expression specified 
+	 * when creating the XQueryProcessor and return a serialized response.  The bytes are read in
+	 * place and the position of the buffer is not changed.
+	 * 
+	 * @param content UTF-8 (or self describing) xml to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation. 
+	 * @throws XQueryException
+	 */
+	public String evaluate(ByteBuffer content) throws XQueryException {
+
+		metrics.input(content.remaining());
+		return evaluate(ContentSource.fromByteBuffer(content));
 
 	}
 
@@ -313,6 +525,68 @@ public class XQueryProcessor implements Serializable {
 
 	}
 	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return a serialized response.
+	 * 
+	 * @param content ParsedDocument to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation. 
+	 * @throws XQueryException
+	 */
+	public String evaluate(ParsedDocument content) throws XQueryException {
+
+		try {
+			// Set the context item (content)
+			bind(content.getNode());
+
+			// Run the query
+			return runToString();
+		} catch (XQueryException e) {
+			return recover(e);
+		}
+
+	}
+
+
+	/**
+	 * Evaluate a batch of records (for example a Spark partition in mapPartitions) with the XQuery
+	 * expression specified when creating the XQueryProcessor.  Each record can be a String (or
+	 * other CharSequence), byte[], ByteBuffer or ParsedDocument and is keyed by its position
+	 * in the batch.  See evaluateAllKeyed.
+	 *
+	 * @param records content to which the XQuery expression will be evaluated
+	 * @return lazy iterator over the serialized response for each record
+	 */
+	public BatchIterator<Long,String> evaluateAll(Iterator<?> records) {
+
+		return evaluateAllKeyed(BatchIterator.withPositions(records));
+
+	}
+
+
+	/**
+	 * Evaluate a batch of keyed records with the XQuery expression specified when creating the
+	 * XQueryProcessor.  The records are read lazily and the next one is parsed while the current
+	 * one is evaluated.  A record that can't be parsed or evaluated is returned as an error
+	 * result.  The XQueryProcessor must not be used for anything else until the batch is exhausted.
+	 *
+	 * @param records key and content (String, byte[], ByteBuffer or ParsedDocument) of each record
+	 * @return lazy iterator over the serialized response for each record
+	 */
+	public <K> BatchIterator<K,String> evaluateAllKeyed(Iterator<? extends Entry<K,?>> records) {
+
+		return new BatchIterator<K,String>(records, featureMappings) {
+
+			@Override
+			protected String process(ParsedDocument document) throws XQueryException {
+				return evaluate(document);
+			}
+
+		};
+
+	}
+	
+	
 	/**
 	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
 	 * and return a serialized response.
@@ -324,33 +598,782 @@ public class XQueryProcessor implements Serializable {
 	private String evaluate(StreamSource content) throws XQueryException {
 
 		try {
-
-			//Reset the serializer
-			serializer.close();
-			baos.reset();
-			
 			// Set the source (content)
-			eval.setSource(content);
+			bind(content);
 
 			// Run the query
-			eval.run(serializer);
+			return runToString();
+		} catch (XQueryException e) {
+			return recover(e);
+		}
+
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and write the serialized response to the OutputStream.  The stream is not closed.
+	 * 
+	 * @param content Source (for example from ContentSource) to which the XQuery Expression will be evaluated
+	 * @param out OutputStream for the serialized response
+	 * @throws XQueryException
+	 */
+	public void evaluate(Source content, OutputStream out) throws XQueryException {
 
-			// Return the results
-			return new String(baos.toByteArray(), StandardCharsets.UTF_8.name());
+		try {
+			bind(content);
+			run(out, null);
+		} catch (XQueryException e) {
+			recover(e);
+		}
 
-		} catch (IOException e) {
-			
-			log.error("Problems processing the content.  EXPRESSION:" + xQueryExpression + " "  + e.getMessage(),e);
-			throw new XQueryException(e.getMessage());
-			
-		} catch (SaxonApiException e) {
-			
-			log.error("Problems processing the content.  EXPRESSION:" + xQueryExpression + " "  + e.getMessage(),e);
-			throw new XQueryException(e.getMessage());
-			
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and write the serialized response to the OutputStream.  The stream is not closed.
+	 * 
+	 * @param content ParsedDocument to which the XQuery Expression will be evaluated
+	 * @param out OutputStream for the serialized response
+	 * @throws XQueryException
+	 */
+	public void evaluate(ParsedDocument content, OutputStream out) throws XQueryException {
+
+		try {
+			bind(content.getNode());
+			run(out, null);
+		} catch (XQueryException e) {
+			recover(e);
+		}
+
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and write the serialized response to the Writer.  The writer is not closed.
+	 * 
+	 * @param content Source (for example from ContentSource) to which the XQuery Expression will be evaluated
+	 * @param out Writer for the serialized response
+	 * @throws XQueryException
+	 */
+	public void evaluate(Source content, Writer out) throws XQueryException {
+
+		try {
+			bind(content);
+			run(null, out);
+		} catch (XQueryException e) {
+			recover(e);
+		}
+
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and write the serialized response to the Writer.  The writer is not closed.
+	 * 
+	 * @param content ParsedDocument to which the XQuery Expression will be evaluated
+	 * @param out Writer for the serialized response
+	 * @throws XQueryException
+	 */
+	public void evaluate(ParsedDocument content, Writer out) throws XQueryException {
+
+		try {
+			bind(content.getNode());
+			run(null, out);
+		} catch (XQueryException e) {
+			recover(e);
 		}
 
 	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and write the serialized response (UTF-8) to the ByteBuffer, starting at its position.
+	 * The position is advanced past the response.  A response that doesn't fit is an error.
+	 * 
+	 * @param content Source (for example from ContentSource) to which the XQuery Expression will be evaluated
+	 * @param out ByteBuffer (heap or direct) for the serialized response
+	 * @return number of bytes written
+	 * @throws XQueryException
+	 */
+	public int evaluate(Source content, ByteBuffer out) throws XQueryException {
+
+		ByteBufferOutputStream bbos = new ByteBufferOutputStream(out);
+		try {
+			bind(content);
+			run(bbos, null);
+		} catch (XQueryException e) {
+			recover(e);
+		}
+		return bbos.getCount();
+
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and write the serialized response (UTF-8) to the ByteBuffer, starting at its position.
+	 * The position is advanced past the response.  A response that doesn't fit is an error.
+	 * 
+	 * @param content ParsedDocument to which the XQuery Expression will be evaluated
+	 * @param out ByteBuffer (heap or direct) for the serialized response
+	 * @return number of bytes written
+	 * @throws XQueryException
+	 */
+	public int evaluate(ParsedDocument content, ByteBuffer out) throws XQueryException {
+
+		ByteBufferOutputStream bbos = new ByteBufferOutputStream(out);
+		try {
+			bind(content.getNode());
+			run(bbos, null);
+		} catch (XQueryException e) {
+			recover(e);
+		}
+		return bbos.getCount();
+
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the serialized response as UTF-8 bytes.
+	 * 
+	 * @param content Source (for example from ContentSource) to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation (UTF-8)
+	 * @throws XQueryException
+	 */
+	public byte[] evaluateToBytes(Source content) throws XQueryException {
+
+		try {
+			bind(content);
+			return runToBytes();
+		} catch (XQueryException e) {
+			String sentinel = recover(e);
+			return sentinel == null ? null : sentinel.getBytes(StandardCharsets.UTF_8);
+		}
+
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the serialized response as UTF-8 bytes.
+	 * 
+	 * @param content ParsedDocument to which the XQuery Expression will be evaluated
+	 * @return Serialized response from the evaluation (UTF-8)
+	 * @throws XQueryException
+	 */
+	public byte[] evaluateToBytes(ParsedDocument content) throws XQueryException {
+
+		try {
+			bind(content.getNode());
+			return runToBytes();
+		} catch (XQueryException e) {
+			String sentinel = recover(e);
+			return sentinel == null ? null : sentinel.getBytes(StandardCharsets.UTF_8);
+		}
+
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the string value of each item of the result (the members of arrays are
+	 * flattened), for example a list of identifiers.
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XQuery expression will be evaluated
+	 * @return List of the string values (null if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public List<String> evaluateToStrings(String content) throws XQueryException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toStrings);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the string value of each item of the result (the members of arrays are
+	 * flattened), for example a list of identifiers.
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XQuery expression will be evaluated
+	 * @return List of the string values (null if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public List<String> evaluateToStrings(ParsedDocument content) throws XQueryException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toStrings);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the result (a single number, or a node or string holding an integer) as a
+	 * Long, for example a count.
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XQuery expression will be evaluated
+	 * @return Long (null if the result is empty or the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public Long evaluateToLong(String content) throws XQueryException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toLong);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the result (a single number, or a node or string holding an integer) as a
+	 * Long, for example a count.
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XQuery expression will be evaluated
+	 * @return Long (null if the result is empty or the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public Long evaluateToLong(ParsedDocument content) throws XQueryException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toLong);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the result (a single number, or a node or string holding a number) as a
+	 * Double.
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XQuery expression will be evaluated
+	 * @return Double (null if the result is empty or the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public Double evaluateToDouble(String content) throws XQueryException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toDouble);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the result (a single number, or a node or string holding a number) as a
+	 * Double.
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XQuery expression will be evaluated
+	 * @return Double (null if the result is empty or the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public Double evaluateToDouble(ParsedDocument content) throws XQueryException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toDouble);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the effective boolean value of the result.
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XQuery expression will be evaluated
+	 * @return Boolean (null if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public Boolean evaluateToBoolean(String content) throws XQueryException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toBoolean);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the effective boolean value of the result.
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XQuery expression will be evaluated
+	 * @return Boolean (null if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public Boolean evaluateToBoolean(ParsedDocument content) throws XQueryException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toBoolean);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the result (a single XPath 3.1 map) as a Map, with nested maps as Maps and
+	 * arrays as Lists (see TypedResults.toMap).
+	 * Nothing is serialized.
+	 * 
+	 * @param content String to which the XQuery expression will be evaluated
+	 * @return Map (null if the result is empty or the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public Map<String,Object> evaluateToMap(String content) throws XQueryException {
+		
+		metrics.input(content.length());
+		return evaluateTo(ContentSource.fromCharSequence(content), TypedResults::toMap);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return the result (a single XPath 3.1 map) as a Map, with nested maps as Maps and
+	 * arrays as Lists (see TypedResults.toMap).
+	 * Nothing is serialized.
+	 * 
+	 * @param content ParsedDocument to which the XQuery expression will be evaluated
+	 * @return Map (null if the result is empty or the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public Map<String,Object> evaluateToMap(ParsedDocument content) throws XQueryException {
+		
+		return evaluateTo(content.getNode(), TypedResults::toMap);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return a lazy iterator over the serialized items of the result.  Items are only
+	 * evaluated and serialized as they are pulled (see ResultIterator).
+	 * 
+	 * @param content String to which the XQuery expression will be evaluated
+	 * @return ResultIterator (empty if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public ResultIterator iterate(String content) throws XQueryException {
+		
+		return iterate(content, 0);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return a lazy iterator over at most maxItems serialized items of the result.  The
+	 * evaluation stops once maxItems items have been pulled.
+	 * 
+	 * @param content String to which the XQuery expression will be evaluated
+	 * @param maxItems maximum number of items (0 for no maximum)
+	 * @return ResultIterator (empty if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public ResultIterator iterate(String content, int maxItems) throws XQueryException {
+		
+		metrics.input(content.length());
+		try {
+			bind(ContentSource.fromCharSequence(content));
+			return iterate(maxItems);
+		} catch (XQueryException e) {
+			recover(e);
+			return ResultIterator.empty();
+		}
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return a lazy iterator over the serialized items of the result.
+	 * 
+	 * @param content ParsedDocument to which the XQuery expression will be evaluated
+	 * @return ResultIterator (empty if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public ResultIterator iterate(ParsedDocument content) throws XQueryException {
+		
+		return iterate(content, 0);
+		
+	}
+	
+	
+	/**
+	 * Evaluate the already parsed content with the XQuery expression specified when creating the XQueryProcessor
+	 * and return a lazy iterator over at most maxItems serialized items of the result.
+	 * 
+	 * @param content ParsedDocument to which the XQuery expression will be evaluated
+	 * @param maxItems maximum number of items (0 for no maximum)
+	 * @return ResultIterator (empty if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	public ResultIterator iterate(ParsedDocument content, int maxItems) throws XQueryException {
+		
+		try {
+			bind(content.getNode());
+			return iterate(maxItems);
+		} catch (XQueryException e) {
+			recover(e);
+			return ResultIterator.empty();
+		}
+		
+	}
+	
+	
+	/**
+	 * Set the content (parsing it) as the context item.
+	 * 
+	 * @param content Source to which the XQuery expression will be evaluated
+	 * @throws XQueryException
+	 */
+	private void bind(Source content) throws XQueryException {
+
+		long start = metrics.start();
+		try {
+
+			if (isProjecting()) {
+				if (builder == null) {
+					builder = proc.newDocumentBuilder();
+				}
+				eval.setContextItem(projection.build(builder, proc.getUnderlyingConfiguration(), content));
+			} else {
+				eval.setSource(content);
+			}
+			metrics.parsed(start);
+
+		} catch (SaxonApiException e) {
+			
+			metrics.failed();
+			release();
+			throw new XQueryException(e.getMessage(), errors.report(e));
+			
+		}
+
+	}
+	
+	
+	/**
+	 * Set the parsed content as the context item.
+	 * 
+	 * @param node XdmNode to which the XQuery expression will be evaluated
+	 * @throws XQueryException
+	 */
+	private void bind(XdmNode node) throws XQueryException {
+
+		try {
+
+			eval.setContextItem(node);
+
+		} catch (SaxonApiException e) {
+			
+			metrics.failed();
+			metrics.complete();
+			throw new XQueryException(e.getMessage(), errors.report(e));
+			
+		}
+
+	}
+	
+	
+	/**
+	 * Set the content (parsing it) as the context item, run the query and convert the result.
+	 *
+	 * @param content Source to which the XQuery expression will be evaluated
+	 * @param conversion conversion of the result
+	 * @return converted result (null if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	private <T> T evaluateTo(Source content, TypedResults.Conversion<T> conversion) throws XQueryException {
+
+		try {
+			bind(content);
+			return runTo(conversion);
+		} catch (XQueryException e) {
+			recover(e);
+			return null;
+		}
+
+	}
+
+
+	/**
+	 * Set the parsed content as the context item, run the query and convert the result.
+	 *
+	 * @param node XdmNode to which the XQuery expression will be evaluated
+	 * @param conversion conversion of the result
+	 * @return converted result (null if the error policy absorbs an error)
+	 * @throws XQueryException
+	 */
+	private <T> T evaluateTo(XdmNode node, TypedResults.Conversion<T> conversion) throws XQueryException {
+
+		try {
+			bind(node);
+			return runTo(conversion);
+		} catch (XQueryException e) {
+			recover(e);
+			return null;
+		}
+
+	}
+
+
+	/**
+	 * Run the query against the current context item and convert the result (instead of
+	 * serializing it).
+	 *
+	 * @param conversion conversion of the result
+	 * @return converted result
+	 * @throws XQueryException
+	 */
+	private <T> T runTo(TypedResults.Conversion<T> conversion) throws XQueryException {
+
+		try {
+
+			long start = metrics.start();
+			XdmValue results = eval.evaluate();
+			T converted = conversion.convert(results);
+			metrics.evaluated(start);
+			metrics.items(results.size());
+			return converted;
+
+		} catch (SaxonApiException e) {
+
+			metrics.failed();
+			throw new XQueryException(e.getMessage(), errors.report(e));
+
+		} finally {
+
+			release();
+
+		}
+
+	}
+
+
+	/**
+	 * Start a lazy evaluation of the query against the current context item.
+	 *
+	 * @param maxItems maximum number of items (0 for no maximum)
+	 * @return ResultIterator serializing each item as it is pulled
+	 * @throws XQueryException
+	 */
+	private ResultIterator iterate(int maxItems) throws XQueryException {
+
+		try {
+
+			return new ResultIterator(exp.getUnderlyingCompiledQuery().iterator(eval.getUnderlyingQueryContext()), maxItems) {
+
+				@Override
+				protected String serialize(XdmItem item) throws SaxonApiException {
+					long start = metrics.start();
+					serializer.close();
+					baos.reset();
+					serializer.serializeXdmValue(item);
+					metrics.serialized(start);
+					metrics.output(baos.size());
+					metrics.items(1);
+					return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+				}
+
+				@Override
+				protected void failed(SaxonApiException e) {
+					metrics.failed();
+					XQueryException error = new XQueryException(e.getMessage(), errors.report(e));
+					if (!errors.absorb(getErrorPolicy(), error.getErrorCause(), error.getMessage())) {
+						throw new ResultIterator.IterationException(error);
+					}
+				}
+
+				@Override
+				protected void completed() {
+					release();
+				}
+
+			};
+
+		} catch (net.sf.saxon.trans.XPathException e) {
+
+			metrics.failed();
+			release();
+			throw new XQueryException(e.getMessage(), errors.report(e));
+
+		}
+
+	}
+
+
+	/**
+	 * Run the query against the current context item and return a serialized response.
+	 * 
+	 * @return Serialized response from the evaluation
+	 * @throws XQueryException
+	 */
+	private String runToString() throws XQueryException {
+		
+		try {
+			
+			runToBuffer();
+			
+			// Return the results (decoded straight from the buffer)
+			return baos.toString(StandardCharsets.UTF_8.name());
+			
+		} catch (IOException e) {
+			
+			metrics.failed();
+			throw new XQueryException(e.getMessage(), errors.report(e));
+			
+		} finally {
+			
+			release();
+			
+		}
+		
+	}
+	
+	
+	/**
+	 * Run the query against the current context item and return the serialized response as UTF-8 bytes.
+	 * 
+	 * @return Serialized response from the evaluation (UTF-8)
+	 * @throws XQueryException
+	 */
+	private byte[] runToBytes() throws XQueryException {
+		
+		try {
+			
+			runToBuffer();
+			return baos.toByteArray();
+			
+		} finally {
+			
+			release();
+			
+		}
+		
+	}
+	
+	
+	/**
+	 * Run the query against the current context item, serializing into the buffer.
+	 * 
+	 * @throws XQueryException
+	 */
+	private void runToBuffer() throws XQueryException {
+		
+		try {
+			
+			//Reset the serializer
+			serializer.close();
+			baos.reset();
+	
+			// Run the query
+			long start = metrics.start();
+			Destination destination = metrics.wrap(serializer);
+			eval.run(destination);
+			metrics.evaluatedAndSerialized(start, destination);
+			metrics.output(baos.size());
+			
+		} catch (SaxonApiException e) {
+			
+			metrics.failed();
+			throw new XQueryException(e.getMessage(), errors.report(e));
+			
+		}
+		
+	}
+	
+	
+	/**
+	 * Run the query against the current context item and write the serialized response to
+	 * the OutputStream or the Writer (whichever is not null).
+	 * 
+	 * @param out OutputStream for the serialized response
+	 * @param writer Writer for the serialized response
+	 * @throws XQueryException
+	 */
+	private void run(OutputStream out, Writer writer) throws XQueryException {
+		
+		try {
+			
+			// Point the serializer at the caller's sink
+			serializer.close();
+			if (writer != null) {
+				serializer.setOutputWriter(metrics.wrap(writer));
+			} else {
+				serializer.setOutputStream(metrics.wrap(out));
+			}
+	
+			// Run the query
+			long start = metrics.start();
+			Destination destination = metrics.wrap(serializer);
+			eval.run(destination);
+			metrics.evaluatedAndSerialized(start, destination);
+			
+		} catch (SaxonApiException e) {
+			
+			metrics.failed();
+			throw new XQueryException(e.getMessage(), errors.report(e));
+			
+		} finally {
+			
+			serializer.setOutputStream(baos);
+			release();
+			
+		}
+		
+	}
+	
+	
+	/**
+	 * Apply the error policy to a failed call: throw the exception again, or return what
+	 * the policy returns in place of the result.
+	 * 
+	 * @param e exception of the failed call (already reported)
+	 * @return value to return in place of the result (null unless the policy has a sentinel)
+	 * @throws XQueryException
+	 */
+	private String recover(XQueryException e) throws XQueryException {
+		
+		ErrorPolicy policy = getErrorPolicy();
+		if (!errors.absorb(policy, e.getErrorCause(), e.getMessage())) {
+			throw e;
+		}
+		return policy.getSentinel();
+		
+	}
+	
+	
+	/**
+	 * Apply the retention policy after a call: replace a buffer that has grown too large and
+	 * release the document.  Then record the call's metrics.
+	 */
+	private void release() {
+		
+		RetentionPolicy policy = getRetentionPolicy();
+		if (policy.isOversized(baos)) {
+			baos = new ByteArrayOutputStream();
+			serializer.setOutputStream(baos);
+		}
+		if (policy.isReleaseContext()) {
+			try {
+				eval.setContextItem(SharedConfiguration.getPlaceholderDocument());
+			} catch (SaxonApiException e) {
+				log.error("Problems releasing the content.  " + e.getMessage(),e);
+			}
+		}
+		metrics.complete();
+		
+	}
 
 	
 	/**
@@ -359,7 +1382,7 @@ public class XQueryProcessor implements Serializable {
 	 * @param xqueryCompiler
 	 * @param namespaceMappings Namespace prefix to Namespace uri mappings
 	 */
-	private  void setPrefixNamespaceMappings(XQueryCompiler xqueryCompiler, HashMap<String,String> namespaceMappings) {
+	static void setPrefixNamespaceMappings(XQueryCompiler xqueryCompiler, HashMap<String,String> namespaceMappings) {
 
 		if (namespaceMappings != null) {
 			
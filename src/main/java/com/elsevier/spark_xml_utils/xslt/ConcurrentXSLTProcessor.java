@@ -0,0 +1,481 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xslt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.elsevier.spark_xml_utils.common.CallMetrics;
+import com.elsevier.spark_xml_utils.common.CompiledExecutable;
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+import com.elsevier.spark_xml_utils.common.ErrorPolicy;
+import com.elsevier.spark_xml_utils.common.ErrorReporter;
+import com.elsevier.spark_xml_utils.common.EvaluatorPool;
+import com.elsevier.spark_xml_utils.common.ProcessingError;
+import com.elsevier.spark_xml_utils.common.RetentionPolicy;
+import com.elsevier.spark_xml_utils.common.SharedConfiguration;
+
+
+/**
+ * Thread-safe variant of XSLTProcessor.  A single instance can be shared by all
+ * threads in an executor.  The compiled stylesheet is shared, and each call borrows
+ * a transformer (with its serializer and parameter binder) from an
+ * EvaluatorPool sized to the number of cores.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class ConcurrentXSLTProcessor implements Serializable {
+
+	private static final long serialVersionUID = 3148519370825187764L;
+
+	// Logger
+	private static Log log = LogFactory.getLog(ConcurrentXSLTProcessor.class);
+
+	// Member variables
+	private HashMap<String,Object> featureMappings = null;
+	private String stylesheet = null;
+	private StylesheetBundle bundle = null;
+	private volatile String outputMethod = "xml";
+	private transient Processor proc = null;
+	private transient XsltExecutable exp = null;
+	private transient EvaluatorPool<Transformer> pool = null;
+	private volatile ErrorPolicy errorPolicy = null;
+	private volatile RetentionPolicy retentionPolicy = null;
+	private transient ErrorReporter errors = null;
+
+
+	/**
+	 * Per-call state.  Only used by one thread at a time.
+	 */
+	private static class Transformer {
+
+		private XsltTransformer trans = null;
+		private ParameterBinder binder = null;
+		private Serializer serializer = null;
+		private ByteArrayOutputStream baos = null;
+		private String outputMethod = null;
+		private CallMetrics metrics = null;
+		private DocumentBuilder sourceBuilder = null;
+
+	}
+
+
+	/**
+	 * Create an instance of ConcurrentXSLTProcessor.
+	 *
+	 * @param stylesheet
+	 * @param featureMappings Processor feature mappings
+	 */
+	private ConcurrentXSLTProcessor(String stylesheet, HashMap<String,Object> featureMappings) {
+
+		this.stylesheet = stylesheet;
+		this.featureMappings = featureMappings;
+
+	}
+
+
+	/**
+	 * Restore the serialized object and then do a one time initialization.  We need to
+	 * initialize the transient variables.
+	 *
+	 * @param inputStream
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws XSLTException
+	 */
+	private void readObject(ObjectInputStream inputStream)
+            throws IOException, ClassNotFoundException, XSLTException
+    {
+
+        inputStream.defaultReadObject();
+        init();
+
+    }
+
+
+	/**
+	 * Get an instance of ConcurrentXSLTProcessor.
+	 *
+	 * @param stylesheet
+	 * @return ConcurrentXSLTProcessor
+	 * @throws XSLTException
+	 */
+	public static ConcurrentXSLTProcessor getInstance(String stylesheet) throws XSLTException {
+
+		return getInstance(stylesheet, null);
+
+	}
+
+
+	/**
+	 * Get an instance of ConcurrentXSLTProcessor.
+	 *
+	 * @param stylesheet
+	 * @param featureMappings Processor feature mappings
+	 * @return ConcurrentXSLTProcessor
+	 * @throws XSLTException
+	 */
+	public static ConcurrentXSLTProcessor getInstance(String stylesheet, HashMap<String,Object> featureMappings) throws XSLTException {
+
+		ConcurrentXSLTProcessor proc = new ConcurrentXSLTProcessor(stylesheet, featureMappings);
+		proc.init();
+		return proc;
+
+	}
+
+
+	/**
+	 * Get an instance of ConcurrentXSLTProcessor for a stylesheet bundle (see
+	 * XSLTProcessor.getInstance(StylesheetBundle)).
+	 *
+	 * @param bundle stylesheet with its imports, includes and documents
+	 * @return ConcurrentXSLTProcessor
+	 * @throws XSLTException
+	 */
+	public static ConcurrentXSLTProcessor getInstance(StylesheetBundle bundle) throws XSLTException {
+
+		return getInstance(bundle, null);
+
+	}
+
+
+	/**
+	 * Get an instance of ConcurrentXSLTProcessor for a stylesheet bundle (see
+	 * XSLTProcessor.getInstance(StylesheetBundle)).
+	 *
+	 * @param bundle stylesheet with its imports, includes and documents
+	 * @param featureMappings Processor feature mappings
+	 * @return ConcurrentXSLTProcessor
+	 * @throws XSLTException
+	 */
+	public static ConcurrentXSLTProcessor getInstance(StylesheetBundle bundle, HashMap<String,Object> featureMappings) throws XSLTException {
+
+		ConcurrentXSLTProcessor proc = new ConcurrentXSLTProcessor(null, featureMappings);
+		proc.bundle = bundle;
+		proc.init();
+		return proc;
+
+	}
+
+
+	/**
+	 * Initialization of the shared compiled stylesheet and the transformer pool.
+	 *
+	 * @throws XSLTException
+	 */
+	private void init() throws XSLTException {
+
+		try {
+
+			CompiledExecutable<XsltExecutable> compiled = bundle == null ? XSLTProcessor.getCompiledStylesheet(stylesheet, featureMappings) : XSLTProcessor.getCompiledStylesheet(bundle, featureMappings);
+			proc = compiled.getProcessor();
+			exp = compiled.getExecutable();
+			pool = new EvaluatorPool<Transformer>();
+			errors = ErrorReporter.getInstance(log, "xslt", null);
+
+		} catch (SaxonApiException e) {
+
+			log.error("Problems creating a ConcurrentXSLTProcessor.  " + e.getMessage(),e);
+			throw new XSLTException(e.getMessage());
+
+		}
+
+	}
+
+
+	/**
+	 * Set what a call does when it fails (the default is ErrorPolicy.THROW).
+	 *
+	 * @param policy ErrorPolicy
+	 */
+	public void setErrorPolicy(ErrorPolicy policy) {
+		errorPolicy = policy;
+	}
+
+
+	/**
+	 * @return what a call does when it fails
+	 */
+	public ErrorPolicy getErrorPolicy() {
+		return errorPolicy == null ? ErrorPolicy.THROW : errorPolicy;
+	}
+
+
+	/**
+	 * Set what a pooled transformer keeps between calls (the default is RetentionPolicy.DEFAULT).
+	 *
+	 * @param policy RetentionPolicy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		retentionPolicy = policy;
+	}
+
+
+	/**
+	 * @return what a pooled transformer keeps between calls
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy == null ? RetentionPolicy.DEFAULT : retentionPolicy;
+	}
+
+
+	/**
+	 * @return number of failed calls by cause (from all threads)
+	 */
+	public Map<ErrorCause,Long> getErrorCounts() {
+		return errors.getCounts();
+	}
+
+
+	/**
+	 * Remove and return the errors kept by the ErrorPolicy.COLLECT policy (from all threads).
+	 *
+	 * @return errors in the order they happened
+	 */
+	public List<ProcessingError> drainErrors() {
+		return errors.drain();
+	}
+
+
+	/**
+	 * Set the output method (the default is xml).  Applies to all subsequent transformations.
+	 * @param method
+	 */
+	public void setOutputMethod(String method)  {
+		outputMethod = method;
+	}
+
+
+	/**
+	 * Get the pool of transformers (for monitoring).
+	 *
+	 * @return transformer pool
+	 */
+	public EvaluatorPool<?> getEvaluatorPool() {
+		return pool;
+	}
+
+
+	/**
+	 * Transform the content.
+	 *
+	 * @param content the xml to be transformed
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	public String transform(String content) throws XSLTException {
+
+		return transform(content, null);
+
+	}
+
+
+	/**
+	 * Transform the content.
+	 *
+	 * @param content the xml to be transformed
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	public String transform(InputStream content) throws XSLTException {
+
+		return transform(new StreamSource(content), null);
+
+	}
+
+
+	/**
+	 * Transform the content.  The stylesheet params apply to this call only.
+	 *
+	 * @param content the xml to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	public String transform(String content, HashMap<String,String> stylesheetParams) throws XSLTException {
+
+		return transform(new StreamSource(IOUtils.toInputStream(content, StandardCharsets.UTF_8)), stylesheetParams);
+
+	}
+
+
+	/**
+	 * Transform the content with a pooled transformer.
+	 *
+	 * @param content the xml to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params (may be null)
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	private String transform(StreamSource content, HashMap<String,String> stylesheetParams) throws XSLTException {
+
+		Transformer transformer = pool.borrow(this::newTransformer);
+		try {
+
+			// Reset the serializer (and pick up any change to the output method)
+			transformer.serializer.close();
+			transformer.baos.reset();
+			if (!outputMethod.equals(transformer.outputMethod)) {
+				transformer.outputMethod = outputMethod;
+				transformer.serializer.setOutputProperty(Serializer.Property.METHOD, transformer.outputMethod);
+			}
+
+			// Parameters from a previous caller must not leak into this transformation (when the
+			// same parameters are passed again, only the values that changed are rebound)
+			if (stylesheetParams == null || !stylesheetParams.keySet().equals(transformer.binder.getBoundNames())) {
+				transformer.binder.clear(transformer.trans);
+			}
+			if (stylesheetParams != null) {
+				transformer.binder.bindDocuments(transformer.trans, stylesheetParams);
+			}
+
+			// While instrumenting, parse the content first so the parse is timed on its own
+			long start = transformer.metrics.start();
+			if (start != 0) {
+				transformer.trans.setSource(transformer.sourceBuilder.build(content).asSource());
+				start = transformer.metrics.parsed(start);
+			} else {
+				transformer.trans.setSource(content);
+			}
+
+			// Transform the content
+			Destination destination = transformer.metrics.wrap(transformer.serializer);
+			transformer.trans.setDestination(destination);
+			transformer.trans.transform();
+			transformer.metrics.evaluatedAndSerialized(start, destination);
+			transformer.metrics.output(transformer.baos.size());
+
+			// Return the transformed content
+			return new String(transformer.baos.toByteArray(), StandardCharsets.UTF_8);
+
+		} catch (SaxonApiException e) {
+
+			transformer.metrics.failed();
+			return recover(new XSLTException(e.getMessage(), errors.report(e)));
+
+		} finally {
+
+			transformer.metrics.complete();
+			release(transformer);
+
+		}
+
+	}
+
+
+	/**
+	 * Apply the retention policy to a transformer before it goes back to the pool: replace a
+	 * buffer that has grown too large and release the document.  As in XSLTProcessor, only
+	 * the transformed document is dropped from the document pool unless the buffer was
+	 * replaced.
+	 *
+	 * @param transformer Transformer used by the call
+	 */
+	private void release(Transformer transformer) {
+
+		RetentionPolicy policy = getRetentionPolicy();
+		if (policy.isOversized(transformer.baos)) {
+			transformer.baos = new ByteArrayOutputStream();
+			transformer.serializer.setOutputStream(transformer.baos);
+			transformer.trans.getUnderlyingController().clearDocumentPool();
+		}
+		if (policy.isReleaseContext()) {
+			Controller controller = transformer.trans.getUnderlyingController();
+			Item context = controller.getGlobalContextItem();
+			if (context instanceof NodeInfo) {
+				controller.getDocumentPool().discard(((NodeInfo) context).getTreeInfo());
+			}
+			transformer.trans.setInitialContextNode(null);
+			controller.clearGlobalContextItem();
+		}
+		pool.release(transformer);
+
+	}
+
+
+	/**
+	 * Apply the error policy to a failed call: throw the exception again, or return what
+	 * the policy returns in place of the result.
+	 *
+	 * @param e exception of the failed call (already reported)
+	 * @return value to return in place of the result (null unless the policy has a sentinel)
+	 * @throws XSLTException
+	 */
+	private String recover(XSLTException e) throws XSLTException {
+
+		ErrorPolicy policy = getErrorPolicy();
+		if (!errors.absorb(policy, e.getErrorCause(), e.getMessage())) {
+			throw e;
+		}
+		return policy.getSentinel();
+
+	}
+
+
+	/**
+	 * Create a new transformer for the pool.
+	 *
+	 * @return Transformer
+	 */
+	private Transformer newTransformer() {
+
+		Transformer transformer = new Transformer();
+		transformer.trans = exp.load();
+		transformer.trans.setErrorListener(SharedConfiguration.getQuietErrorListener());
+		if (bundle != null) {
+			transformer.trans.setURIResolver(bundle.getURIResolver(false));
+		}
+		transformer.binder = new ParameterBinder(proc.newDocumentBuilder(), ParameterBinder.DEFAULT_DOCUMENT_CACHE_SIZE);
+		transformer.baos = new ByteArrayOutputStream();
+		transformer.serializer = proc.newSerializer(transformer.baos);
+		transformer.outputMethod = outputMethod;
+		transformer.serializer.setOutputProperty(Serializer.Property.METHOD, transformer.outputMethod);
+		transformer.serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION,"yes");
+		transformer.trans.setDestination(transformer.serializer);
+		transformer.metrics = CallMetrics.getInstance("xslt");
+		transformer.sourceBuilder = proc.newDocumentBuilder();
+		transformer.sourceBuilder.setWhitespaceStrippingPolicy(exp.getWhitespaceStrippingPolicy());
+		return transformer;
+
+	}
+
+}
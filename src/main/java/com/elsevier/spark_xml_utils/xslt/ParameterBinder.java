@@ -0,0 +1,182 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xslt;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltTransformer;
+
+import com.elsevier.spark_xml_utils.common.ConcurrentLruCache;
+
+
+/**
+ * Binds stylesheet parameters to a transformer.  A parameter is only passed to the
+ * transformer when its value differs from the one bound by the previous call, the QName
+ * for each parameter name is created once, and parameter values given as xml are parsed
+ * once and then taken from a bounded cache keyed by the xml.  Only used by one thread at
+ * a time (one binder per transformer).
+ *
+ * @author Darin McBeath
+ *
+ */
+class ParameterBinder {
+
+	// Default number of parsed parameter values kept
+	static final int DEFAULT_DOCUMENT_CACHE_SIZE = 32;
+
+	// Member variables
+	private final DocumentBuilder builder;
+	private final HashMap<String,QName> names = new HashMap<String,QName>();
+	private final ConcurrentLruCache<String,XdmNode> documents;
+	private final HashMap<String,Object> bound = new HashMap<String,Object>();
+
+
+	/**
+	 * Create an instance of ParameterBinder.
+	 *
+	 * @param builder document builder for parameter values given as xml
+	 * @param documentCacheSize maximum number of parsed parameter values kept
+	 */
+	ParameterBinder(DocumentBuilder builder, int documentCacheSize) {
+
+		this.builder = builder;
+		this.documents = new ConcurrentLruCache<String,XdmNode>(documentCacheSize);
+
+	}
+
+
+	/**
+	 * Bind a parameter whose value is xml (parsed into a document node).
+	 *
+	 * @param trans transformer
+	 * @param name parameter name
+	 * @param xml parameter value
+	 * @throws SaxonApiException when the value is not well formed xml
+	 */
+	void bindDocument(XsltTransformer trans, String name, String xml) throws SaxonApiException {
+
+		bind(trans, name, documents.get(xml, () -> builder.build(new StreamSource(new StringReader(xml)))));
+
+	}
+
+
+	/**
+	 * Bind each parameter whose value is xml.
+	 *
+	 * @param trans transformer
+	 * @param params parameter name to xml value
+	 * @throws SaxonApiException when a value is not well formed xml
+	 */
+	void bindDocuments(XsltTransformer trans, Map<String,String> params) throws SaxonApiException {
+
+		for (Map.Entry<String,String> entry : params.entrySet()) {
+			bindDocument(trans, entry.getKey(), entry.getValue());
+		}
+
+	}
+
+
+	/**
+	 * Bind a parameter.
+	 *
+	 * @param trans transformer
+	 * @param name parameter name
+	 * @param value an XdmNode, or a String, Long, Double or Boolean (bound as an atomic value)
+	 */
+	void bind(XsltTransformer trans, String name, Object value) {
+
+		// Nodes are compared by identity (a cached document is the same node), atomic values by value
+		Object previous = bound.get(name);
+		if (previous != null && (previous == value || (!(value instanceof XdmNode) && value.equals(previous)))) {
+			return;
+		}
+		trans.setParameter(getQName(name), toXdmValue(value));
+		bound.put(name, value);
+
+	}
+
+
+	/**
+	 * Remove every parameter from the transformer.
+	 *
+	 * @param trans transformer
+	 */
+	void clear(XsltTransformer trans) {
+
+		trans.clearParameters();
+		bound.clear();
+
+	}
+
+
+	/**
+	 * @return names of the parameters currently bound
+	 */
+	Set<String> getBoundNames() {
+		return bound.keySet();
+	}
+
+
+	/**
+	 * @param name parameter name
+	 * @return QName for the parameter (created once per name)
+	 */
+	private QName getQName(String name) {
+
+		QName qname = names.get(name);
+		if (qname == null) {
+			qname = new QName("", name);
+			names.put(name, qname);
+		}
+		return qname;
+
+	}
+
+
+	/**
+	 * @param value an XdmNode, or a String, Long, Double or Boolean
+	 * @return value to bind
+	 */
+	private static XdmValue toXdmValue(Object value) {
+
+		if (value instanceof XdmNode) {
+			return (XdmNode) value;
+		} else if (value instanceof String) {
+			return new XdmAtomicValue((String) value);
+		} else if (value instanceof Long) {
+			return new XdmAtomicValue((Long) value);
+		} else if (value instanceof Double) {
+			return new XdmAtomicValue((Double) value);
+		} else if (value instanceof Boolean) {
+			return new XdmAtomicValue((Boolean) value);
+		}
+		throw new IllegalArgumentException("Unsupported stylesheet parameter type: " + value.getClass().getName());
+
+	}
+
+}
@@ -16,75 +16,82 @@
  */
 package com.elsevier.spark_xml_utils.xslt;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.net.URI;
+import java.net.URISyntaxException;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
 import javax.xml.transform.stream.StreamSource;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.elsevier.spark_xml_utils.common.ResourceCache;
+
 
 /**
  * URI Resolver that will be used by XLTProcessor when resolving xsl:import and
- * xsl:include statements. The purpose of this class is to create a local cache
- * of the stylesheets retrieved (presumably) from S3 so they don't need to be 
- * re-retrieved from S3 on subsequent requests.
+ * xsl:include statements. The stylesheets retrieved (presumably) from S3 are kept
+ * in the JVM-wide ResourceCache so they don't need to be re-retrieved from S3 on
+ * subsequent requests (by this or any other processor in the JVM).
  * 
  * @author Darin McBeath
  * 
  */
 public class S3URIResolver implements URIResolver {
 
-	// Stylesheet map cache
-	private HashMap<String, String> stylesheetMap = new HashMap<String, String>();
-	
 	// Logger
 	private static Log log = LogFactory.getLog(S3URIResolver.class);
 
 	
 	/**
-	 * Return the requested stylesheet. If the stylesheet hasn't been cached,
-	 * then save the stylesheet to the cache. The assumption (although not
-	 * required) is that the imported/included stylesheets will be stored in an
-	 * S3 bucket and accessible using an S3 url.
+	 * Return the requested stylesheet from the ResourceCache (retrieving it if it 
+	 * hasn't been cached). The assumption (although not required) is that the 
+	 * imported/included stylesheets will be stored in an S3 bucket and accessible 
+	 * using an S3 url.
 	 * 
 	 * @param href url for the stylesheet
-	 * @param base not used (assuming absolute urls)
+	 * @param base url of the importing stylesheet (used when href is relative)
 	 */
 	public Source resolve(String href, String base) throws TransformerException {
 
+		String uri = href;
 		try {
 			
-			// Check local cache
-			if (stylesheetMap.containsKey(href)) {
-				
-				return new StreamSource(IOUtils.toInputStream(stylesheetMap.get(href),StandardCharsets.UTF_8.name()));	
-				
-			} else {
-
-				// Read the data from the URL and populate the cache
-				URL theUrl = new URL(href);
-				stylesheetMap.put(href,IOUtils.toString(theUrl.openStream(),StandardCharsets.UTF_8.name()));	
-				
-				// Return a StreamSource
-				return new StreamSource(IOUtils.toInputStream(stylesheetMap.get(href),StandardCharsets.UTF_8.name()));		
-				
-			}
+			// Relative urls are resolved against the importing stylesheet
+			uri = resolveUri(href, base);
+			
+			// Return a StreamSource (with the url, so its own imports can be relative)
+			return new StreamSource(new ByteArrayInputStream(ResourceCache.get(uri)), uri);		
 
-		} catch (IOException e) {
+		} catch (IOException | URISyntaxException e) {
 			
-			log.error("Problems resolving a stylesheet. URI:" + href + " " + e.getMessage(),e);
+			log.error("Problems resolving a stylesheet. URI:" + uri + " " + e.getMessage(),e);
 			throw new TransformerException(e.getMessage());
 			
 		}
 		
 	}
 	
+	
+	/**
+	 * Resolve a relative url against the url of the importing stylesheet.
+	 * 
+	 * @param href url (possibly relative)
+	 * @param base url of the importing stylesheet (may be null)
+	 * @return absolute url (href when it is absolute or there is no base)
+	 * @throws URISyntaxException
+	 */
+	static String resolveUri(String href, String base) throws URISyntaxException {
+		
+		if (base == null || base.isEmpty() || new URI(href).isAbsolute()) {
+			return href;
+		}
+		return new URI(base).resolve(href).toString();
+		
+	}
+	
 }
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xslt;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.elsevier.spark_xml_utils.common.ResourceCache;
+import com.elsevier.spark_xml_utils.common.SharedConfiguration;
+
+
+/**
+ * A stylesheet together with everything it loads: the transitive closure of its
+ * xsl:import and xsl:include statements and the documents it names in document() or
+ * doc() calls with a literal uri.  The bundle is built once (for example on the driver)
+ * and then travels with the XSLTProcessor, so executors compile the stylesheet entirely
+ * from memory instead of resolving the imports again over the network.
+ * <p>
+ * The imports and includes are found by compiling the stylesheet and recording every
+ * stylesheet the compiler asks for, so they are exactly the ones the compiler uses.
+ * Documents whose uri is computed at run time can't be found in advance and are still
+ * resolved as usual.  A bundle can also be written to (and read from) a zip file.
+ *
+ * @author Darin McBeath
+ *
+ */
+public class StylesheetBundle implements Serializable {
+
+	private static final long serialVersionUID = -2093365828473013734L;
+
+	// Logger
+	private static Log log = LogFactory.getLog(StylesheetBundle.class);
+
+	// Literal uris passed to document() and doc()
+	private static final Pattern DOCUMENT_CALL = Pattern.compile("\\b(?:document|doc)\\s*\\(\\s*(['\"])([^'\"]+)\\1");
+
+	// Names of the zip entries
+	private static final String MANIFEST_ENTRY = "bundle.properties";
+	private static final String STYLESHEET_ENTRY = "stylesheet.xsl";
+	private static final String RESOURCE_ENTRY = "resources/";
+
+	// Member variables
+	private final String stylesheet;
+	private final String baseUri;
+	private final LinkedHashMap<String,byte[]> resources;
+	private transient String key = null;
+
+
+	/**
+	 * Create an instance of StylesheetBundle.
+	 *
+	 * @param stylesheet main stylesheet
+	 * @param baseUri uri of the main stylesheet (may be null)
+	 * @param resources content of each imported, included and loaded uri
+	 */
+	private StylesheetBundle(String stylesheet, String baseUri, LinkedHashMap<String,byte[]> resources) {
+
+		this.stylesheet = stylesheet;
+		this.baseUri = baseUri;
+		this.resources = resources;
+
+	}
+
+
+	/**
+	 * Build the bundle for a stylesheet (whose imports use absolute uris).
+	 *
+	 * @param stylesheet main stylesheet
+	 * @return StylesheetBundle
+	 * @throws XSLTException when the stylesheet or one of its imports can't be compiled
+	 */
+	public static StylesheetBundle build(String stylesheet) throws XSLTException {
+
+		return build(stylesheet, null);
+
+	}
+
+
+	/**
+	 * Build the bundle for a stylesheet.
+	 *
+	 * @param stylesheet main stylesheet
+	 * @param baseUri uri relative imports are resolved against (may be null)
+	 * @return StylesheetBundle
+	 * @throws XSLTException when the stylesheet or one of its imports can't be compiled
+	 */
+	public static StylesheetBundle build(String stylesheet, String baseUri) throws XSLTException {
+
+		LinkedHashMap<String,byte[]> resources = new LinkedHashMap<String,byte[]>();
+		try {
+
+			// Compile the stylesheet, recording every stylesheet the compiler loads
+			XsltCompiler xsltCompiler = SharedConfiguration.newProcessor(null).newXsltCompiler();
+			xsltCompiler.setURIResolver((href, base) -> {
+				String uri = resolve(href, base);
+				byte[] content = fetch(uri);
+				resources.put(uri, content);
+				return new StreamSource(new ByteArrayInputStream(content), uri);
+			});
+			xsltCompiler.compile(new StreamSource(new StringReader(stylesheet), baseUri));
+
+			// Add the documents named (with a literal uri) by each stylesheet
+			List<String> documents = findDocuments(stylesheet, baseUri);
+			for (Entry<String,byte[]> entry : new ArrayList<Entry<String,byte[]>>(resources.entrySet())) {
+				documents.addAll(findDocuments(new String(entry.getValue(), StandardCharsets.UTF_8), entry.getKey()));
+			}
+			for (String uri : documents) {
+				if (!resources.containsKey(uri)) {
+					try {
+						resources.put(uri, fetch(uri));
+					} catch (TransformerException e) {
+						// The call may never be evaluated, so it is left to be resolved at run time
+						log.warn("Not bundling the document " + uri + ".  " + e.getMessage());
+					}
+				}
+			}
+
+		} catch (SaxonApiException e) {
+
+			log.error("Problems building a StylesheetBundle.  " + e.getMessage(),e);
+			throw new XSLTException(e.getMessage());
+
+		}
+		return new StylesheetBundle(stylesheet, baseUri, resources);
+
+	}
+
+
+	/**
+	 * Build the bundle for the stylesheet at a uri.
+	 *
+	 * @param uri uri of the main stylesheet
+	 * @return StylesheetBundle
+	 * @throws XSLTException when the stylesheet or one of its imports can't be retrieved or compiled
+	 */
+	public static StylesheetBundle buildFromUri(String uri) throws XSLTException {
+
+		try {
+			return build(new String(fetch(uri), StandardCharsets.UTF_8), uri);
+		} catch (TransformerException e) {
+			log.error("Problems building a StylesheetBundle.  " + e.getMessage(),e);
+			throw new XSLTException(e.getMessage());
+		}
+
+	}
+
+
+	/**
+	 * Read a bundle written by writeTo.
+	 *
+	 * @param in zip content (not closed)
+	 * @return StylesheetBundle
+	 * @throws IOException when the content is not a bundle
+	 */
+	public static StylesheetBundle readFrom(InputStream in) throws IOException {
+
+		Properties manifest = null;
+		String stylesheet = null;
+		LinkedHashMap<String,byte[]> entries = new LinkedHashMap<String,byte[]>();
+		ZipInputStream zip = new ZipInputStream(in);
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null) {
+			byte[] content = IOUtils.toByteArray(zip);
+			if (entry.getName().equals(MANIFEST_ENTRY)) {
+				manifest = new Properties();
+				manifest.load(new ByteArrayInputStream(content));
+			} else if (entry.getName().equals(STYLESHEET_ENTRY)) {
+				stylesheet = new String(content, StandardCharsets.UTF_8);
+			} else {
+				entries.put(entry.getName(), content);
+			}
+		}
+		if (manifest == null || stylesheet == null) {
+			throw new IOException("Not a stylesheet bundle.");
+		}
+
+		LinkedHashMap<String,byte[]> resources = new LinkedHashMap<String,byte[]>();
+		for (int i = 0; manifest.getProperty("resource." + i) != null; i++) {
+			byte[] content = entries.get(RESOURCE_ENTRY + i);
+			if (content == null) {
+				throw new IOException("Stylesheet bundle is missing a resource: " + manifest.getProperty("resource." + i));
+			}
+			resources.put(manifest.getProperty("resource." + i), content);
+		}
+		return new StylesheetBundle(stylesheet, manifest.getProperty("base"), resources);
+
+	}
+
+
+	/**
+	 * Write the bundle as a zip (the main stylesheet, each resource, and a manifest of the
+	 * uri of each resource).
+	 *
+	 * @param out where the zip is written (not closed)
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+
+		Properties manifest = new Properties();
+		if (baseUri != null) {
+			manifest.setProperty("base", baseUri);
+		}
+		ZipOutputStream zip = new ZipOutputStream(out);
+		zip.putNextEntry(new ZipEntry(STYLESHEET_ENTRY));
+		zip.write(stylesheet.getBytes(StandardCharsets.UTF_8));
+		int i = 0;
+		for (Entry<String,byte[]> entry : resources.entrySet()) {
+			manifest.setProperty("resource." + i, entry.getKey());
+			zip.putNextEntry(new ZipEntry(RESOURCE_ENTRY + i++));
+			zip.write(entry.getValue());
+		}
+		zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+		manifest.store(zip, "Stylesheet bundle");
+		zip.finish();
+
+	}
+
+
+	/**
+	 * @return main stylesheet
+	 */
+	public String getStylesheet() {
+		return stylesheet;
+	}
+
+
+	/**
+	 * @return uri of the main stylesheet (may be null)
+	 */
+	public String getBaseUri() {
+		return baseUri;
+	}
+
+
+	/**
+	 * @return uris of the imported, included and loaded resources
+	 */
+	public Set<String> getResourceUris() {
+		return Collections.unmodifiableSet(resources.keySet());
+	}
+
+
+	/**
+	 * @param uri absolute uri
+	 * @return content of the resource (null if it is not in the bundle)
+	 */
+	public byte[] getResource(String uri) {
+		return resources.get(uri);
+	}
+
+
+	/**
+	 * @return hex encoded SHA-256 hash of the stylesheet, its uri and every resource
+	 */
+	public String getKey() {
+
+		if (key == null) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				update(digest, stylesheet.getBytes(StandardCharsets.UTF_8));
+				update(digest, baseUri == null ? new byte[0] : baseUri.getBytes(StandardCharsets.UTF_8));
+				for (Entry<String,byte[]> entry : resources.entrySet()) {
+					update(digest, entry.getKey().getBytes(StandardCharsets.UTF_8));
+					update(digest, entry.getValue());
+				}
+				StringBuilder hex = new StringBuilder(64);
+				for (byte b : digest.digest()) {
+					hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+					hex.append(Character.forDigit(b & 0xF, 16));
+				}
+				key = hex.toString();
+			} catch (NoSuchAlgorithmException e) {
+				// Every JVM is required to support SHA-256
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+		return key;
+
+	}
+
+
+	/**
+	 * Get a URIResolver that returns the bundled resources.
+	 *
+	 * @param strict TRUE to fail for a uri that isn't in the bundle (when compiling), FALSE
+	 * to let the caller resolve it as usual (document() calls at run time)
+	 * @return URIResolver
+	 */
+	URIResolver getURIResolver(boolean strict) {
+
+		return (href, base) -> {
+			String uri = resolve(href, base);
+			byte[] content = resources.get(uri);
+			if (content != null) {
+				return new StreamSource(new ByteArrayInputStream(content), uri);
+			}
+			if (strict) {
+				throw new TransformerException("Stylesheet bundle doesn't contain " + uri);
+			}
+			return null;
+		};
+
+	}
+
+
+	/**
+	 * @param href uri (possibly relative)
+	 * @param base uri the href is relative to (may be null)
+	 * @return absolute uri
+	 * @throws TransformerException
+	 */
+	private static String resolve(String href, String base) throws TransformerException {
+
+		try {
+			return S3URIResolver.resolveUri(href, base);
+		} catch (URISyntaxException e) {
+			throw new TransformerException(e.getMessage());
+		}
+
+	}
+
+
+	/**
+	 * @param uri absolute uri
+	 * @return content of the resource
+	 * @throws TransformerException
+	 */
+	private static byte[] fetch(String uri) throws TransformerException {
+
+		try {
+			return ResourceCache.get(uri);
+		} catch (IOException e) {
+			throw new TransformerException("Problems retrieving " + uri + ".  " + e.getMessage());
+		}
+
+	}
+
+
+	/**
+	 * @param stylesheet stylesheet
+	 * @param baseUri uri of the stylesheet (may be null)
+	 * @return absolute uris of the documents the stylesheet names with a literal uri
+	 */
+	private static List<String> findDocuments(String stylesheet, String baseUri) {
+
+		List<String> uris = new ArrayList<String>();
+		Matcher matcher = DOCUMENT_CALL.matcher(stylesheet);
+		while (matcher.find()) {
+			try {
+				uris.add(resolve(matcher.group(2), baseUri));
+			} catch (TransformerException e) {
+				log.warn("Not bundling the document " + matcher.group(2) + ".  " + e.getMessage());
+			}
+		}
+		return uris;
+
+	}
+
+
+	/**
+	 * Add a length prefixed value to the digest.
+	 *
+	 * @param digest
+	 * @param value
+	 */
+	private static void update(MessageDigest digest, byte[] value) {
+
+		int length = value.length;
+		digest.update(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length });
+		digest.update(value);
+
+	}
+
+}
@@ -16,6 +16,8 @@
  */
 package com.elsevier.spark_xml_utils.xslt;
 
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+
 /**
  * XSLT Exception
  * 
@@ -25,11 +27,37 @@ package com.elsevier.spark_xml_utils.xslt;
 public class XSLTException extends Exception {
 	
 	private static final long serialVersionUID = 2400267865440323215L;
+	
+	// What went wrong (null if not known)
+	private ErrorCause errorCause = null;
 
 	public XSLTException(String msg) {
 		
 		super(msg);
 		
 	}
+	
+	
+	/**
+	 * Create an exception without a stack trace (or suppressed exceptions), which is
+	 * what the processors throw when processing the content fails.
+	 * 
+	 * @param msg message
+	 * @param errorCause what went wrong
+	 */
+	public XSLTException(String msg, ErrorCause errorCause) {
+		
+		super(msg, null, false, false);
+		this.errorCause = errorCause;
+		
+	}
+	
+	
+	/**
+	 * @return what went wrong (OTHER if not known)
+	 */
+	public ErrorCause getErrorCause() {
+		return errorCause == null ? ErrorCause.OTHER : errorCause;
+	}
 
 }
@@ -20,20 +20,31 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 
-import net.sf.saxon.lib.Feature;
+import net.sf.saxon.Controller;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Destination;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
-import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
-import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
@@ -42,6 +53,20 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.elsevier.spark_xml_utils.common.BatchIterator;
+import com.elsevier.spark_xml_utils.common.ByteBufferOutputStream;
+import com.elsevier.spark_xml_utils.common.CallMetrics;
+import com.elsevier.spark_xml_utils.common.CompiledExecutable;
+import com.elsevier.spark_xml_utils.common.ContentSource;
+import com.elsevier.spark_xml_utils.common.ErrorCause;
+import com.elsevier.spark_xml_utils.common.ErrorPolicy;
+import com.elsevier.spark_xml_utils.common.ErrorReporter;
+import com.elsevier.spark_xml_utils.common.ExecutableCache;
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.common.ProcessingError;
+import com.elsevier.spark_xml_utils.common.RetentionPolicy;
+import com.elsevier.spark_xml_utils.common.SharedConfiguration;
+
 
 /**
  * Class that provides xml transforming capabilities  (via xslt) for xml passed as a String.
@@ -59,11 +84,20 @@ public class XSLTProcessor implements Serializable {
 	// Member variables
 	private HashMap<String,Object> featureMappings = null;
 	private String stylesheet = null;
+	private StylesheetBundle bundle = null;
 	private transient Processor proc  = null;
 	private transient Serializer serializer = null;
 	private transient ByteArrayOutputStream baos = null;
 	private transient XsltTransformer trans = null;
 	private transient DocumentBuilder builder = null;
+	private transient ParameterBinder binder = null;
+	private HashMap<String,Object> typedParams = new HashMap<String,Object>();
+	private transient HashMap<String,XdmNode> nodeParams = null;
+	private RetentionPolicy retentionPolicy = null;
+	private transient CallMetrics metrics = null;
+	private transient DocumentBuilder sourceBuilder = null;
+	private ErrorPolicy errorPolicy = null;
+	private transient ErrorReporter errors = null;
 	
 	
 	/**
@@ -134,6 +168,42 @@ public class XSLTProcessor implements Serializable {
 		return proc;
 		
 	}
+
+
+	/**
+	 * Get an instance of XSLTProcessor for a stylesheet bundle.  The stylesheet is compiled
+	 * from the bundle alone (its imports and includes are never retrieved again), and the
+	 * bundled documents are used for document() calls.
+	 * 
+	 * @param bundle stylesheet with its imports, includes and documents
+	 * @return XSLTProcessor
+	 * @throws XSLTException 
+	 */
+	public static XSLTProcessor getInstance(StylesheetBundle bundle) throws XSLTException {
+			
+		return getInstance(bundle, null);
+		
+	}
+
+
+	/**
+	 * Get an instance of XSLTProcessor for a stylesheet bundle.  The stylesheet is compiled
+	 * from the bundle alone (its imports and includes are never retrieved again), and the
+	 * bundled documents are used for document() calls.
+	 * 
+	 * @param bundle stylesheet with its imports, includes and documents
+	 * @param featureMappings Processor feature mappings
+	 * @return XSLTProcessor
+	 * @throws XSLTException 
+	 */
+	public static XSLTProcessor getInstance(StylesheetBundle bundle, HashMap<String,Object> featureMappings) throws XSLTException {
+			
+		XSLTProcessor proc = new XSLTProcessor(null, featureMappings);
+		proc.bundle = bundle;
+		proc.init();
+		return proc;
+		
+	}
 	
 	
 	/**
@@ -145,27 +215,24 @@ public class XSLTProcessor implements Serializable {
 		
 		try {
 			
-			// Get the processor
-			proc = new Processor(false);
-		
-			// Set any specified configuration properties for the processor
-			if (featureMappings != null) {
-				for (Entry<String, Object> entry : featureMappings.entrySet()) {
-					proc.setConfigurationProperty((Feature)(Feature.byName(entry.getKey())), entry.getValue());
-				}
-			}
+			// Get the compiled stylesheet (compiling it only if this JVM hasn't already done so)
+			CompiledExecutable<XsltExecutable> compiled = bundle == null ? getCompiledStylesheet(stylesheet, featureMappings) : getCompiledStylesheet(bundle, featureMappings);
+			proc = compiled.getProcessor();
+			XsltExecutable exp = compiled.getExecutable();
 			
-			// Get the xslt compiler
-			XsltCompiler xsltCompiler = proc.newXsltCompiler();
-			
-			// Get the document builder (used for params)
+			// Get the document builder and binder (used for params)
 			builder = proc.newDocumentBuilder();
-		
-			// Set the uri resolver (for imported/included stylesheets)
-			xsltCompiler.setURIResolver(new S3URIResolver());
-		
-			// Compile the stylesheet
-			XsltExecutable exp = xsltCompiler.compile(new StreamSource(IOUtils.toInputStream(stylesheet, StandardCharsets.UTF_8.name())));
+			binder = new ParameterBinder(builder, ParameterBinder.DEFAULT_DOCUMENT_CACHE_SIZE);
+			nodeParams = new HashMap<String,XdmNode>();
+			
+			// Get the per call measurements (recorded only while instrumentation is enabled) and
+			// the builder used to time the parse on its own (stripping what the stylesheet strips)
+			metrics = CallMetrics.getInstance("xslt");
+			sourceBuilder = proc.newDocumentBuilder();
+			sourceBuilder.setWhitespaceStrippingPolicy(exp.getWhitespaceStrippingPolicy());
+			
+			// Get the reporter of the errors transforming the content
+			errors = ErrorReporter.getInstance(log, "xslt", null);
 		
 			// Set up the output for the transformation
 			baos = new ByteArrayOutputStream();
@@ -176,20 +243,210 @@ public class XSLTProcessor implements Serializable {
 			serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION,"yes");
 			serializer.setProcessor(proc);
 			trans = exp.load();
+			trans.setErrorListener(SharedConfiguration.getQuietErrorListener());
 			trans.setDestination(serializer);
+			if (bundle != null) {
+				trans.setURIResolver(bundle.getURIResolver(false));
+			}
 	
 		} catch (SaxonApiException e) {
 		
 			log.error("Problems creating an XSLTProcessor.  " + e.getMessage(),e);
 			throw new XSLTException(e.getMessage());
 
-		} catch (IOException e) {
+		}
+		
+	}
+	
+	
+	/**
+	 * Get the compiled stylesheet from the ExecutableCache, creating a processor
+	 * and compiling the stylesheet if this JVM hasn't already done so.
+	 * 
+	 * @param stylesheet stylesheet to compile
+	 * @param featureMappings Processor feature mappings
+	 * @return compiled stylesheet
+	 * @throws SaxonApiException
+	 */
+	static CompiledExecutable<XsltExecutable> getCompiledStylesheet(String stylesheet, HashMap<String,Object> featureMappings) throws SaxonApiException {
+		
+		String key = ExecutableCache.computeKey("xslt", stylesheet, null, featureMappings);
+		return ExecutableCache.get(key, () -> {
 			
-			log.error("Problems creating an XSLTProcessor.  " + e.getMessage(),e);
-			throw new XSLTException(e.getMessage());
+			// Get the processor (sharing the name pool with all other processors)
+			Processor proc = SharedConfiguration.newProcessor(featureMappings);
 			
-		} 
+			// Get the xslt compiler
+			XsltCompiler xsltCompiler = proc.newXsltCompiler();
+		
+			// Set the uri resolver (for imported/included stylesheets)
+			xsltCompiler.setURIResolver(new S3URIResolver());
 		
+			// Compile the stylesheet
+			XsltExecutable exp = xsltCompiler.compile(new StreamSource(IOUtils.toInputStream(stylesheet, StandardCharsets.UTF_8)));
+			return new CompiledExecutable<XsltExecutable>(proc, exp);
+			
+		});
+		
+	}
+	
+	
+	/**
+	 * Get the compiled stylesheet for a bundle from the ExecutableCache, creating a processor
+	 * and compiling the stylesheet (from the bundle alone) if this JVM hasn't already done so.
+	 * 
+	 * @param bundle stylesheet with its imports, includes and documents
+	 * @param featureMappings Processor feature mappings
+	 * @return compiled stylesheet
+	 * @throws SaxonApiException
+	 */
+	static CompiledExecutable<XsltExecutable> getCompiledStylesheet(StylesheetBundle bundle, HashMap<String,Object> featureMappings) throws SaxonApiException {
+		
+		String key = ExecutableCache.computeKey("xslt-bundle", bundle.getKey(), null, featureMappings);
+		return ExecutableCache.get(key, () -> {
+			
+			// Get the processor (sharing the name pool with all other processors)
+			Processor proc = SharedConfiguration.newProcessor(featureMappings);
+			
+			// Get the xslt compiler (resolving imported/included stylesheets from the bundle)
+			XsltCompiler xsltCompiler = proc.newXsltCompiler();
+			xsltCompiler.setURIResolver(bundle.getURIResolver(true));
+		
+			// Compile the stylesheet
+			XsltExecutable exp = xsltCompiler.compile(new StreamSource(new StringReader(bundle.getStylesheet()), bundle.getBaseUri()));
+			return new CompiledExecutable<XsltExecutable>(proc, exp);
+			
+		});
+		
+	}
+	
+	
+	/**
+	 * Set what is kept between calls (the default is RetentionPolicy.DEFAULT).
+	 * 
+	 * @param policy RetentionPolicy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		retentionPolicy = policy;
+	}
+	
+	
+	/**
+	 * @return what is kept between calls
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy == null ? RetentionPolicy.DEFAULT : retentionPolicy;
+	}
+	
+	
+	/**
+	 * Set what a call does when it fails (the default is ErrorPolicy.THROW).
+	 * 
+	 * @param policy ErrorPolicy
+	 */
+	public void setErrorPolicy(ErrorPolicy policy) {
+		errorPolicy = policy;
+	}
+	
+	
+	/**
+	 * @return what a call does when it fails
+	 */
+	public ErrorPolicy getErrorPolicy() {
+		return errorPolicy == null ? ErrorPolicy.THROW : errorPolicy;
+	}
+	
+	
+	/**
+	 * @return number of failed calls by cause
+	 */
+	public Map<ErrorCause,Long> getErrorCounts() {
+		return errors.getCounts();
+	}
+	
+	
+	/**
+	 * Remove and return the errors kept by the ErrorPolicy.COLLECT policy.
+	 * 
+	 * @return errors in the order they happened
+	 */
+	public List<ProcessingError> drainErrors() {
+		return errors.drain();
+	}
+	
+	
+	/**
+	 * Set a stylesheet parameter to a string (xs:string) for every following transformation.
+	 * Unlike the values passed in a HashMap of stylesheet params, the value is not parsed.
+	 * 
+	 * @param name parameter name
+	 * @param value parameter value
+	 */
+	public void setStylesheetParam(String name, String value) {
+		nodeParams.remove(name);
+		typedParams.put(name, value);
+	}
+	
+	
+	/**
+	 * Set a stylesheet parameter to an integer (xs:integer) for every following transformation.
+	 * 
+	 * @param name parameter name
+	 * @param value parameter value
+	 */
+	public void setStylesheetParam(String name, long value) {
+		nodeParams.remove(name);
+		typedParams.put(name, value);
+	}
+	
+	
+	/**
+	 * Set a stylesheet parameter to a number (xs:double) for every following transformation.
+	 * 
+	 * @param name parameter name
+	 * @param value parameter value
+	 */
+	public void setStylesheetParam(String name, double value) {
+		nodeParams.remove(name);
+		typedParams.put(name, value);
+	}
+	
+	
+	/**
+	 * Set a stylesheet parameter to a boolean (xs:boolean) for every following transformation.
+	 * 
+	 * @param name parameter name
+	 * @param value parameter value
+	 */
+	public void setStylesheetParam(String name, boolean value) {
+		nodeParams.remove(name);
+		typedParams.put(name, value);
+	}
+	
+	
+	/**
+	 * Set a stylesheet parameter to an already built node for every following transformation.
+	 * The node must share this library's configuration (for example the node of a
+	 * ParsedDocument) and, unlike the other parameters, is not kept when the XSLTProcessor
+	 * is serialized.
+	 * 
+	 * @param name parameter name
+	 * @param value parameter value
+	 */
+	public void setStylesheetParam(String name, XdmNode value) {
+		typedParams.remove(name);
+		nodeParams.put(name, value);
+	}
+	
+	
+	/**
+	 * Remove every stylesheet parameter (set with setStylesheetParam or passed in a HashMap of
+	 * stylesheet params).
+	 */
+	public void clearStylesheetParams() {
+		typedParams.clear();
+		nodeParams.clear();
+		binder.clear(trans);
 	}
 	
 	
@@ -242,31 +499,402 @@ public class XSLTProcessor implements Serializable {
 	 */
 	public String transform(String content, HashMap<String,String> stylesheetParams) throws XSLTException {
 
-		try {
+		metrics.input(content.length());
+		
+		// Apply transformation (reading the characters in place)
+		return transform(ContentSource.fromCharSequence(content), stylesheetParams);
 
-			// Create streamsource for the content
-			StreamSource contentSource = new StreamSource(IOUtils.toInputStream(content, StandardCharsets.UTF_8.name()));
+	}
+	
+	
+	/**
+	 * Transform the content.  The characters are read in place.
+	 * 
+	 * @param content the xml to be transformed
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	public String transform(CharSequence content) throws XSLTException {
 
-			// Apply transformation
-			return transform(contentSource, stylesheetParams);
+		metrics.input(content.length());
+		
+		// Apply transformation
+		return transform(ContentSource.fromCharSequence(content), new HashMap<String,String>());
 
-		} catch (IOException e) {
+	}
+	
+	
+	/**
+	 * Transform the content.
+	 * 
+	 * @param content the xml to be transformed
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	public String transform(Reader content) throws XSLTException {
+
+		// Apply transformation
+		return transform(ContentSource.fromReader(content), new HashMap<String,String>());
+
+	}
+	
+	
+	/**
+	 * Transform the content.  The bytes are read in place.
+	 * 
+	 * @param content the UTF-8 (or self describing) xml to be transformed
+	 * @param offset start of the xml in the array
+	 * @param length length of the xml
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	public String transform(byte[] content, int offset, int length) throws XSLTException {
+
+		metrics.input(length);
+		
+		// Apply transformation
+		return transform(ContentSource.fromBytes(content, offset, length), new HashMap<String,String>());
+
+	}
+	
+	
+	/**
+	 * Transform the content (from the position to the limit).  The bytes are read in place
+	 * and the position of the buffer is not changed.
+	 * 
+	 * @param content the UTF-8 (or self describing) xml to be transformed
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	public String transform(ByteBuffer content) throws XSLTException {
+
+		metrics.input(content.remaining());
+		
+		// Apply transformation
+		return transform(ContentSource.fromByteBuffer(content), new HashMap<String,String>());
+
+	}
+	
+	
+	/**
+	 * Transform the already parsed content.
+	 * 
+	 * @param content the parsed xml to be transformed
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	public String transform(ParsedDocument content) throws XSLTException {
+
+		// Apply transformation
+		return transform(content.getNode().asSource(), new HashMap<String,String>());
+
+	}
+	
+	
+	/**
+	 * Transform the already parsed content.
+	 * 
+	 * @param content the parsed xml to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params
+	 * @return transformed content
+	 * @throws XSLTException
+	 */
+	public String transform(ParsedDocument content, HashMap<String,String> stylesheetParams) throws XSLTException {
+
+		// Apply transformation
+		return transform(content.getNode().asSource(), stylesheetParams);
+
+	}
+
+
+	/**
+	 * Transform a batch of records (for example a Spark partition in mapPartitions).  Each record
+	 * can be a String (or other CharSequence), byte[], ByteBuffer or ParsedDocument and is keyed
+	 * by its position in the batch.  See transformAllKeyed.
+	 *
+	 * @param records the xml to be transformed
+	 * @return lazy iterator over the transformed content for each record
+	 */
+	public BatchIterator<Long,String> transformAll(Iterator<?> records) {
+
+		return transformAllKeyed(BatchIterator.withPositions(records), new HashMap<String,String>());
+
+	}
+
+
+	/**
+	 * Transform a batch of records (for example a Spark partition in mapPartitions).  Each record
+	 * can be a String (or other CharSequence), byte[], ByteBuffer or ParsedDocument and is keyed
+	 * by its position in the batch.  See transformAllKeyed.
+	 *
+	 * @param records the xml to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params (used for every record)
+	 * @return lazy iterator over the transformed content for each record
+	 */
+	public BatchIterator<Long,String> transformAll(Iterator<?> records, HashMap<String,String> stylesheetParams) {
+
+		return transformAllKeyed(BatchIterator.withPositions(records), stylesheetParams);
+
+	}
+
+
+	/**
+	 * Transform a batch of keyed records.  See transformAllKeyed.
+	 *
+	 * @param records key and content (String, byte[], ByteBuffer or ParsedDocument) of each record
+	 * @return lazy iterator over the transformed content for each record
+	 */
+	public <K> BatchIterator<K,String> transformAllKeyed(Iterator<? extends Entry<K,?>> records) {
+
+		return transformAllKeyed(records, new HashMap<String,String>());
+
+	}
+
+
+	/**
+	 * Transform a batch of keyed records.  The records are read lazily and the next one is parsed
+	 * while the current one is transformed.  A record that can't be parsed or transformed is
+	 * returned as an error result.  The XSLTProcessor must not be used for anything else until
+	 * the batch is exhausted.
+	 *
+	 * @param records key and content (String, byte[], ByteBuffer or ParsedDocument) of each record
+	 * @param stylesheetParams HashMap of stylesheet params (used for every record)
+	 * @return lazy iterator over the transformed content for each record
+	 */
+	public <K> BatchIterator<K,String> transformAllKeyed(Iterator<? extends Entry<K,?>> records, final HashMap<String,String> stylesheetParams) {
+
+		return new BatchIterator<K,String>(records, featureMappings) {
+
+			@Override
+			protected String process(ParsedDocument document) throws XSLTException {
+				return transform(document, stylesheetParams);
+			}
+
+		};
+
+	}
+	
+	
+	/**
+	 * Transform the content and write the result to the OutputStream.  The stream is not closed.
+	 * 
+	 * @param content the xml (for example from ContentSource) to be transformed
+	 * @param out OutputStream for the transformed content
+	 * @throws XSLTException
+	 */
+	public void transform(Source content, OutputStream out) throws XSLTException {
+
+		transform(content, new HashMap<String,String>(), out, null);
+
+	}
+	
+	
+	/**
+	 * Transform the content and write the result to the OutputStream.  The stream is not closed.
+	 * 
+	 * @param content the xml (for example from ContentSource) to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params
+	 * @param out OutputStream for the transformed content
+	 * @throws XSLTException
+	 */
+	public void transform(Source content, HashMap<String,String> stylesheetParams, OutputStream out) throws XSLTException {
+
+		transform(content, stylesheetParams, out, null);
+
+	}
+	
+	
+	/**
+	 * Transform the already parsed content and write the result to the OutputStream.  The stream 
+	 * is not closed.
+	 * 
+	 * @param content the parsed xml to be transformed
+	 * @param out OutputStream for the transformed content
+	 * @throws XSLTException
+	 */
+	public void transform(ParsedDocument content, OutputStream out) throws XSLTException {
+
+		transform(content.getNode().asSource(), new HashMap<String,String>(), out, null);
+
+	}
+	
+	
+	/**
+	 * Transform the content and write the result to the Writer.  The writer is not closed.
+	 * 
+	 * @param content the xml (for example from ContentSource) to be transformed
+	 * @param out Writer for the transformed content
+	 * @throws XSLTException
+	 */
+	public void transform(Source content, Writer out) throws XSLTException {
+
+		transform(content, new HashMap<String,String>(), null, out);
+
+	}
+	
+	
+	/**
+	 * Transform the content and write the result to the Writer.  The writer is not closed.
+	 * 
+	 * @param content the xml (for example from ContentSource) to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params
+	 * @param out Writer for the transformed content
+	 * @throws XSLTException
+	 */
+	public void transform(Source content, HashMap<String,String> stylesheetParams, Writer out) throws XSLTException {
+
+		transform(content, stylesheetParams, null, out);
+
+	}
+	
+	
+	/**
+	 * Transform the already parsed content and write the result to the Writer.  The writer is
+	 * not closed.
+	 * 
+	 * @param content the parsed xml to be transformed
+	 * @param out Writer for the transformed content
+	 * @throws XSLTException
+	 */
+	public void transform(ParsedDocument content, Writer out) throws XSLTException {
+
+		transform(content.getNode().asSource(), new HashMap<String,String>(), null, out);
+
+	}
+	
+	
+	/**
+	 * Transform the content and write the result (UTF-8) to the ByteBuffer, starting at its
+	 * position.  The position is advanced past the result.  A result that doesn't fit is an error.
+	 * 
+	 * @param content the xml (for example from ContentSource) to be transformed
+	 * @param out ByteBuffer (heap or direct) for the transformed content
+	 * @return number of bytes written
+	 * @throws XSLTException
+	 */
+	public int transform(Source content, ByteBuffer out) throws XSLTException {
+
+		ByteBufferOutputStream bbos = new ByteBufferOutputStream(out);
+		transform(content, new HashMap<String,String>(), bbos, null);
+		return bbos.getCount();
+
+	}
+	
+	
+	/**
+	 * Transform the already parsed content and write the result (UTF-8) to the ByteBuffer, starting 
+	 * at its position.  The position is advanced past the result.  A result that doesn't fit is an error.
+	 * 
+	 * @param content the parsed xml to be transformed
+	 * @param out ByteBuffer (heap or direct) for the transformed content
+	 * @return number of bytes written
+	 * @throws XSLTException
+	 */
+	public int transform(ParsedDocument content, ByteBuffer out) throws XSLTException {
+
+		return transform(content.getNode().asSource(), out);
+
+	}
+	
+	
+	/**
+	 * Transform the content and return the result as UTF-8 bytes.
+	 * 
+	 * @param content the xml (for example from ContentSource) to be transformed
+	 * @return transformed content (UTF-8)
+	 * @throws XSLTException
+	 */
+	public byte[] transformToBytes(Source content) throws XSLTException {
+
+		return transformToBytes(content, new HashMap<String,String>());
+
+	}
+	
+	
+	/**
+	 * Transform the content and return the result as UTF-8 bytes.
+	 * 
+	 * @param content the xml (for example from ContentSource) to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params
+	 * @return transformed content (UTF-8)
+	 * @throws XSLTException
+	 */
+	public byte[] transformToBytes(Source content, HashMap<String,String> stylesheetParams) throws XSLTException {
+
+		try {
 			
-			log.error("Problems transforming the content. "  + e.getMessage(),e);
-			throw new XSLTException(e.getMessage());
+			transformToBuffer(content, stylesheetParams);
+			return baos.toByteArray();
 			
-		} 
+		} catch (XSLTException e) {
+			
+			String sentinel = recover(e);
+			return sentinel == null ? null : sentinel.getBytes(StandardCharsets.UTF_8);
+			
+		} finally {
+			
+			release();
+			
+		}
+
+	}
+	
+	
+	/**
+	 * Transform the already parsed content and return the result as UTF-8 bytes.
+	 * 
+	 * @param content the parsed xml to be transformed
+	 * @return transformed content (UTF-8)
+	 * @throws XSLTException
+	 */
+	public byte[] transformToBytes(ParsedDocument content) throws XSLTException {
+
+		return transformToBytes(content.getNode().asSource(), new HashMap<String,String>());
 
 	}
 	
+	
 	/**
 	 * Transform the content.
-	 * @param content the xml to be transformed
+	 * @param content the xml (or an already parsed tree) to be transformed
 	 * @param stylesheetParams HashMap of stylesheet params
 	 * @return transformed content
 	 * @throw XSLTException
 	 */
-	private String transform(StreamSource content, HashMap<String,String> stylesheetParams) throws XSLTException {
+	private String transform(Source content, HashMap<String,String> stylesheetParams) throws XSLTException {
+		
+		try {
+			
+			transformToBuffer(content, stylesheetParams);
+
+			// Return the transformed content (decoded straight from the buffer)
+			return baos.toString(StandardCharsets.UTF_8.name());
+
+		} catch (IOException e) {
+			
+			metrics.failed();
+			return recover(new XSLTException(e.getMessage(), errors.report(e)));
+			
+		} catch (XSLTException e) {
+			
+			return recover(e);
+			
+		} finally {
+			
+			release();
+			
+		}
+
+	}
+	
+	
+	/**
+	 * Transform the content into the buffer.
+	 * @param content the xml (or an already parsed tree) to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params
+	 * @throw XSLTException
+	 */
+	private void transformToBuffer(Source content, HashMap<String,String> stylesheetParams) throws XSLTException {
 		
 		try {
 			
@@ -274,34 +902,146 @@ public class XSLTProcessor implements Serializable {
 			serializer.close();
 			baos.reset();
 			
-			// Set stylesheet parameters (if any were specified)
-			for (Entry<String, String> entry : stylesheetParams.entrySet()) {
-				XdmValue xdmValue = builder.build(new StreamSource(IOUtils.toInputStream(entry.getValue(), StandardCharsets.UTF_8.name())));
-				trans.setParameter(new QName("",entry.getKey()), xdmValue);
-			}
+			// Transform the content
+			apply(content, stylesheetParams);
+			metrics.output(baos.size());
+
+		} catch (SaxonApiException e) {
+			
+			metrics.failed();
+			throw new XSLTException(e.getMessage(), errors.report(e));
 			
+		} 
+
+	}
+	
+	
+	/**
+	 * Transform the content and write the result to the OutputStream or the Writer (whichever
+	 * is not null).
+	 * @param content the xml (or an already parsed tree) to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params
+	 * @param out OutputStream for the transformed content
+	 * @param writer Writer for the transformed content
+	 * @throw XSLTException
+	 */
+	private void transform(Source content, HashMap<String,String> stylesheetParams, OutputStream out, Writer writer) throws XSLTException {
+		
+		try {
 			
-			// Set the content to use for the transformation
-			trans.setSource(content);
+			// Point the serializer at the caller's sink
+			serializer.close();
+			if (writer != null) {
+				serializer.setOutputWriter(metrics.wrap(writer));
+			} else {
+				serializer.setOutputStream(metrics.wrap(out));
+			}
 			
 			// Transform the content
-			trans.transform();
-
-			// Return the transformed content
-			return new String(baos.toByteArray(), StandardCharsets.UTF_8.name());
+			apply(content, stylesheetParams);
 
-		} catch (IOException e) {
+		} catch (SaxonApiException e) {
 			
-			log.error("Problems transforming the content.  " + e.getMessage(),e);
-			throw new XSLTException(e.getMessage());
+			metrics.failed();
+			recover(new XSLTException(e.getMessage(), errors.report(e)));
 			
-		} catch (SaxonApiException e) {
+		} finally {
 			
-			log.error("Problems transforming the content.  " + e.getMessage(),e);
-			throw new XSLTException(e.getMessage());
+			serializer.setOutputStream(baos);
+			release();
 			
-		} 
+		}
 
 	}
+	
+	
+	/**
+	 * Set the stylesheet params and transform the content to the serializer.
+	 * @param content the xml (or an already parsed tree) to be transformed
+	 * @param stylesheetParams HashMap of stylesheet params
+	 * @throws SaxonApiException
+	 */
+	private void apply(Source content, HashMap<String,String> stylesheetParams) throws SaxonApiException {
+		
+		// Set the stylesheet parameters (only those whose values changed since the last call
+		// are passed to the transformer, and values given as xml are parsed once)
+		for (Entry<String, Object> entry : typedParams.entrySet()) {
+			if (!stylesheetParams.containsKey(entry.getKey())) {
+				binder.bind(trans, entry.getKey(), entry.getValue());
+			}
+		}
+		for (Entry<String, XdmNode> entry : nodeParams.entrySet()) {
+			if (!stylesheetParams.containsKey(entry.getKey())) {
+				binder.bind(trans, entry.getKey(), entry.getValue());
+			}
+		}
+		binder.bindDocuments(trans, stylesheetParams);
+		
+		
+		// While instrumenting, parse the content first so the parse is timed on its own
+		long start = metrics.start();
+		if (start != 0 && !(content instanceof NodeInfo)) {
+			content = sourceBuilder.build(content).asSource();
+			start = metrics.parsed(start);
+		}
+		
+		// Set the content to use for the transformation
+		trans.setSource(content);
+		
+		// Transform the content
+		Destination destination = metrics.wrap(serializer);
+		trans.setDestination(destination);
+		trans.transform();
+		metrics.evaluatedAndSerialized(start, destination);
+		
+	}
+	
+	
+	/**
+	 * Apply the error policy to a failed call: throw the exception again, or return what
+	 * the policy returns in place of the result.
+	 * 
+	 * @param e exception of the failed call (already reported)
+	 * @return value to return in place of the result (null unless the policy has a sentinel)
+	 * @throws XSLTException
+	 */
+	private String recover(XSLTException e) throws XSLTException {
+		
+		ErrorPolicy policy = getErrorPolicy();
+		if (!errors.absorb(policy, e.getErrorCause(), e.getMessage())) {
+			throw e;
+		}
+		return policy.getSentinel();
+		
+	}
+	
+	
+	/**
+	 * Apply the retention policy after a call: replace a buffer that has grown too large and
+	 * release the document.  Then record the call's metrics.  Documents loaded with document()
+	 * (lookup tables, bundled resources) are kept in the pool so they aren't parsed again for
+	 * every record; only the document that was transformed is dropped from the pool, and the
+	 * whole pool is cleared along with a buffer that has grown too large.
+	 */
+	private void release() {
+		
+		RetentionPolicy policy = getRetentionPolicy();
+		if (policy.isOversized(baos)) {
+			baos = new ByteArrayOutputStream();
+			serializer.setOutputStream(baos);
+			trans.getUnderlyingController().clearDocumentPool();
+		}
+		if (policy.isReleaseContext()) {
+			Controller controller = trans.getUnderlyingController();
+			Item context = controller.getGlobalContextItem();
+			if (context instanceof NodeInfo) {
+				controller.getDocumentPool().discard(((NodeInfo) context).getTreeInfo());
+			}
+			trans.setInitialContextNode(null);
+			controller.clearGlobalContextItem();
+		}
+		metrics.complete();
+		
+	}
 
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+import com.elsevier.spark_xml_utils.xslt.XSLTProcessor;
+
+public class TestBatchIterator {
+
+	private static String book(String title, int year) {
+		return "<books><book><title>" + title + "</title><year>" + year + "</year></book></books>";
+	}
+
+	private static String stylesheet = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+			+ "<xsl:output method='text'/>"
+			+ "<xsl:template match='/'><xsl:value-of select='upper-case(/books/book/title)'/></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	@Test
+	public void testMixedContent() {
+		try {
+			List<Object> records = Arrays.<Object>asList(
+					book("Alpha", 2005),
+					book("Beta", 2010).getBytes(StandardCharsets.UTF_8),
+					ByteBuffer.wrap(book("Gamma", 2005).getBytes(StandardCharsets.UTF_8)),
+					ParsedDocument.parse(book("Delta", 2005)),
+					"<books><book><year>2005</year>",
+					Integer.valueOf(42));
+
+			XPathProcessor filter = XPathProcessor.getInstance("/books/book[year=2005]");
+			List<BatchResult<Long,Boolean>> filtered = collect(filter.filterAll(records.iterator()));
+			assertEquals(6, filtered.size(), "Should return a result for each record.");
+			assertEquals(Boolean.TRUE, filtered.get(0).getValue(), "Should return true.");
+			assertEquals(Boolean.FALSE, filtered.get(1).getValue(), "Should return false.");
+			assertEquals(Boolean.TRUE, filtered.get(2).getValue(), "Should return true.");
+			assertEquals(Boolean.TRUE, filtered.get(3).getValue(), "Should return true.");
+			assertTrue(filtered.get(4).isError(), "Should fail to parse.");
+			assertTrue(filtered.get(5).isError(), "Should reject the content type.");
+			for (int i = 0; i < filtered.size(); i++) {
+				assertEquals(Long.valueOf(i), filtered.get(i).getKey(), "Should be keyed by position.");
+			}
+
+			XPathProcessor evaluate = XPathProcessor.getInstance("string(/books/book/title)");
+			List<BatchResult<Long,String>> evaluated = collect(evaluate.evaluateAll(records.iterator()));
+			assertEquals("Beta", evaluated.get(1).getValue(), "Should match the title.");
+			assertEquals("Delta", evaluated.get(3).getValue(), "Should match the title.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testKeyedRecords() {
+		try {
+			List<Entry<String,String>> records = new ArrayList<Entry<String,String>>();
+			records.add(new SimpleImmutableEntry<String,String>("a", book("Alpha", 2005)));
+			records.add(new SimpleImmutableEntry<String,String>("b", "not xml"));
+			records.add(new SimpleImmutableEntry<String,String>("c", book("Gamma", 2007)));
+
+			XQueryProcessor xquery = XQueryProcessor.getInstance("string(/books/book/year)");
+			final AtomicReference<BatchStatistics> completed = new AtomicReference<BatchStatistics>();
+			BatchIterator<String,String> results = xquery.evaluateAllKeyed(records.iterator()).onComplete(s -> completed.set(s));
+			List<BatchResult<String,String>> evaluated = collect(results);
+			assertEquals("a", evaluated.get(0).getKey(), "Should keep the key.");
+			assertEquals("2005", evaluated.get(0).getValue(), "Should match the year.");
+			assertEquals("b", evaluated.get(1).getKey(), "Should keep the key.");
+			assertTrue(evaluated.get(1).isError(), "Should fail to parse.");
+			assertEquals("2007", evaluated.get(2).getValue(), "Should match the year.");
+
+			BatchStatistics stats = completed.get();
+			assertTrue(stats != null, "Should report the statistics when exhausted.");
+			assertEquals(3, stats.getRecords(), "Should count the records.");
+			assertEquals(1, stats.getErrors(), "Should count the errors.");
+			assertTrue(stats.getElapsedNanos() > 0, "Should time the batch.");
+
+			XSLTProcessor xslt = XSLTProcessor.getInstance(stylesheet);
+			List<BatchResult<String,String>> transformed = collect(xslt.transformAllKeyed(records.iterator()).setPipelined(false));
+			assertEquals("ALPHA", transformed.get(0).getValue(), "Should match the title.");
+			assertTrue(transformed.get(1).isError(), "Should fail to parse.");
+			assertEquals("GAMMA", transformed.get(2).getValue(), "Should match the title.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testLazyAndPrefiltered() {
+		try {
+			// A partition that is far too large to materialize
+			final int[] read = new int[1];
+			Iterator<String> records = new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return true;
+				}
+				@Override
+				public String next() {
+					read[0]++;
+					return read[0] % 2 == 0 ? book("Even", 2005) : "<other/>";
+				}
+			};
+
+			XPathProcessor xpath = XPathProcessor.getInstance("/books/book[year=2005]");
+			BatchIterator<Long,Boolean> results = xpath.filterAll(records);
+			assertEquals(0, read[0], "Should not read before the first record is requested.");
+			for (int i = 0; i < 10; i++) {
+				BatchResult<Long,Boolean> result = results.next();
+				assertEquals(i % 2 == 1, result.getValue(), "Should match every other record.");
+				assertTrue(read[0] <= i + 2, "Should read at most one record ahead.");
+			}
+			assertEquals(5, xpath.getPrefilterRejectCount(), "Should reject the other records without parsing.");
+			assertEquals(10, results.getStatistics().getRecords(), "Should count the records.");
+			assertFalse(results.getStatistics().getErrors() > 0, "Should not count errors.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testReusedBuffer() {
+		try {
+			// A record reader that reads each record into the same buffer (like a Hadoop
+			// Text), and reads ahead when asked if there is another record
+			final byte[] buffer = new byte[64];
+			Iterator<byte[]> records = new Iterator<byte[]>() {
+				private int read = 0;
+				private boolean ready = false;
+				@Override
+				public boolean hasNext() {
+					if (!ready && read < 50) {
+						Arrays.fill(buffer, (byte) ' ');
+						byte[] content = book("T" + read, 2000 + read).getBytes(StandardCharsets.UTF_8);
+						System.arraycopy(content, 0, buffer, 0, content.length);
+						read++;
+						ready = true;
+					}
+					return ready;
+				}
+				@Override
+				public byte[] next() {
+					hasNext();
+					ready = false;
+					return buffer;
+				}
+			};
+
+			XPathProcessor xpath = XPathProcessor.getInstance("string(/books/book/title)");
+			List<BatchResult<Long,String>> evaluated = collect(xpath.evaluateAll(records));
+			assertEquals(50, evaluated.size(), "Should return a result for each record.");
+			for (int i = 0; i < evaluated.size(); i++) {
+				assertEquals("T" + i, evaluated.get(i).getValue(), "Should parse the record before the buffer is reused.");
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	private static <K,V> List<BatchResult<K,V>> collect(Iterator<BatchResult<K,V>> results) {
+		List<BatchResult<K,V>> list = new ArrayList<BatchResult<K,V>>();
+		while (results.hasNext()) {
+			list.add(results.next());
+		}
+		return list;
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.ColumnBatch;
+import com.elsevier.spark_xml_utils.xpath.ColumnarExtractor;
+import com.elsevier.spark_xml_utils.xpath.ExtractionSpec;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+
+public class TestBinaryDocument {
+
+	private static String doc = "<?xml-stylesheet href='style.xsl'?><!-- corpus -->"
+			+ "<xocs:doc xmlns:xocs='http://www.elsevier.com/xml/xocs/dtd' xmlns='http://www.elsevier.com/xml/ja/dtd'>"
+			+ "<xocs:meta><xocs:eid>1-s2.0-S0006291X96917131</xocs:eid><xocs:cid id='272308' type=\"journal &amp; book\">272308</xocs:cid></xocs:meta>"
+			+ "<article><title>Café 😀 中文</title><plain xmlns=''><p>  spaced  <b>bold</b> text</p></plain><!-- note --><?pi data?></article>"
+			+ "</xocs:doc>";
+
+	@Test
+	public void testRoundTrip() {
+		try {
+			ParsedDocument parsed = ParsedDocument.parse(doc);
+			byte[] encoded = BinaryDocumentWriter.toBytes(ContentSource.fromCharSequence(doc), null);
+			assertTrue(BinaryDocumentReader.isBinary(encoded), "Should recognize the encoding.");
+			assertTrue(BinaryDocumentReader.isBinary(ByteBuffer.wrap(encoded)), "Should recognize the encoding.");
+			assertFalse(BinaryDocumentReader.isBinary(doc.getBytes(StandardCharsets.UTF_8)), "Should not take xml for the encoding.");
+			assertArrayEquals(encoded, BinaryDocumentWriter.toBytes(parsed), "Should encode a tree like the parsed xml.");
+			assertTrue(encoded.length < doc.getBytes(StandardCharsets.UTF_8).length, "Should be compact: " + encoded.length);
+
+			ParsedDocument decoded = BinaryDocumentReader.read(encoded);
+			XPathProcessor all = XPathProcessor.getInstance("/");
+			assertEquals(all.evaluate(parsed), all.evaluate(decoded), "Should decode the same tree.");
+
+			XPathProcessor proc = XPathProcessor.getInstance("string-join((//*:title, //p, //@type, namespace-uri(//plain), namespace-uri(//*:title), (//comment())[2], //processing-instruction('pi')), '|')");
+			assertEquals("Café 😀 中文|  spaced  bold text|journal &amp; book||http://www.elsevier.com/xml/ja/dtd| note |data",
+					proc.evaluate(decoded), "Should keep the text, attributes, namespaces, comments and processing instructions.");
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			BinaryDocumentWriter.write(decoded, out);
+			assertArrayEquals(encoded, out.toByteArray(), "Should encode the decoded tree the same way.");
+			assertEquals(all.evaluate(parsed), all.evaluate(BinaryDocumentReader.read(new ByteArrayInputStream(encoded))), "Should decode a stream.");
+			ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+			direct.put(encoded).flip();
+			assertEquals(all.evaluate(parsed), all.evaluate(BinaryDocumentReader.read(direct)), "Should decode a direct buffer.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDtd() {
+		try {
+			String xml = "<!DOCTYPE books [<!ATTLIST book id ID #IMPLIED refs IDREFS #IMPLIED>"
+					+ "<!NOTATION gif SYSTEM 'image/gif'><!ENTITY cover SYSTEM 'cover.gif' NDATA gif>]>"
+					+ "<books><book id='k' refs='m'/><book id='m' refs='k m'/></books>";
+			ParsedDocument parsed = ParsedDocument.parse(xml);
+			byte[] encoded = BinaryDocumentWriter.toBytes(ContentSource.fromCharSequence(xml), null);
+			assertArrayEquals(encoded, BinaryDocumentWriter.toBytes(parsed), "Should encode a tree like the parsed xml.");
+
+			ParsedDocument decoded = BinaryDocumentReader.read(encoded);
+			XPathProcessor proc = XPathProcessor.getInstance("concat(count(id('k')), ' ', count(idref('m')))");
+			assertEquals("1 2", proc.evaluate(parsed), "Should find the ids in the parsed tree.");
+			assertEquals(proc.evaluate(parsed), proc.evaluate(decoded), "Should keep the ids in the decoded tree.");
+			assertArrayEquals(parsed.getNode().getUnderlyingNode().getTreeInfo().getUnparsedEntity("cover"),
+					decoded.getNode().getUnderlyingNode().getTreeInfo().getUnparsedEntity("cover"), "Should keep the unparsed entity.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testVersion1() {
+		try {
+			// Version 1 is version 2 without entities and attribute flags
+			byte[] encoded = BinaryDocumentWriter.toBytes(ContentSource.fromCharSequence("<a><b>text</b></a>"), null);
+			encoded[4] = 1;
+			assertEquals("text", XPathProcessor.getInstance("string(/a/b)").evaluate(BinaryDocumentReader.read(encoded)), "Should read version 1.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testLargeDocument() {
+		try {
+			StringBuilder xml = new StringBuilder("<books>");
+			for (int i = 0; i < 5000; i++) {
+				xml.append("<book id='").append(i).append("'><title>Title ").append(i).append("</title></book>");
+			}
+			xml.append("</books>");
+			byte[] encoded = BinaryDocumentWriter.toBytes(ContentSource.fromCharSequence(xml), null);
+			ParsedDocument decoded = BinaryDocumentReader.read(encoded);
+			assertEquals("5000 12497500", XPathProcessor.getInstance("concat(count(//book), ' ', sum(//@id/xs:integer(.)))").evaluate(decoded), "Should decode every element.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testMalformed() {
+		try {
+			byte[] encoded = BinaryDocumentWriter.toBytes(ContentSource.fromCharSequence(doc), null);
+			SaxonApiException e = assertThrows(SaxonApiException.class, () -> BinaryDocumentReader.read(Arrays.copyOf(encoded, encoded.length - 10)), "Should fail on a truncated document.");
+			assertEquals(ErrorCause.MALFORMED_CONTENT, ErrorCause.classify(e), "Should fail like malformed xml.");
+			byte[] version = encoded.clone();
+			version[4] = 99;
+			assertThrows(SaxonApiException.class, () -> BinaryDocumentReader.read(version), "Should fail on an unknown version.");
+			assertThrows(SaxonApiException.class, () -> BinaryDocumentReader.read(doc.getBytes(StandardCharsets.UTF_8)), "Should fail on xml.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRecords() {
+		try {
+			byte[] encoded = BinaryDocumentWriter.toBytes(ContentSource.fromCharSequence("<book><title>Harry Potter</title><year>2005</year></book>"), null);
+			ExtractionSpec spec = ExtractionSpec.getInstance().addString("title", "/book/title").addLong("year", "/book/year");
+			ColumnBatch batch = ColumnarExtractor.getInstance(spec).extract(Arrays.asList(encoded, ByteBuffer.wrap(encoded), "<book><year>2006</year></book>").iterator(), 10);
+			assertEquals("Harry Potter", batch.getString(0, 0), "Should decode a byte[] record.");
+			assertEquals(2005, batch.getLong(1, 1), "Should decode a ByteBuffer record.");
+			assertEquals(2006, batch.getLong(1, 2), "Should still parse xml records.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+import com.elsevier.spark_xml_utils.xslt.XSLTProcessor;
+
+public class TestContentSource {
+
+	private static String books = "<books><book><title lang=\"en\">Harry Potter é</title><author>J K. Rowling</author><year>2005</year></book></books>";
+
+	private static String stylesheet = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+			+ "<xsl:output method='text'/>"
+			+ "<xsl:template match='/'><xsl:value-of select='/books/book/title'/></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	@Test
+	public void testInputForms() {
+		try {
+			byte[] xml = books.getBytes(StandardCharsets.UTF_8);
+			byte[] padded = new byte[xml.length + 10];
+			System.arraycopy(xml, 0, padded, 5, xml.length);
+			ByteBuffer heap = ByteBuffer.wrap(padded, 5, xml.length).slice();
+			ByteBuffer direct = ByteBuffer.allocateDirect(xml.length);
+			direct.put(xml);
+			direct.flip();
+			StringBuilder chars = new StringBuilder(books);
+
+			XPathProcessor xpath = XPathProcessor.getInstance("string(/books/book/title)");
+			XPathProcessor filter = XPathProcessor.getInstance("/books/book[year=2005]");
+			XQueryProcessor xquery = XQueryProcessor.getInstance("string(/books/book/title)");
+			XSLTProcessor xslt = XSLTProcessor.getInstance(stylesheet);
+			String expected = "Harry Potter é";
+
+			assertEquals(expected, xpath.evaluate(padded, 5, xml.length), "byte[] slice");
+			assertEquals(expected, xpath.evaluate(heap), "heap ByteBuffer");
+			assertEquals(expected, xpath.evaluate(direct), "direct ByteBuffer");
+			assertEquals(expected, xpath.evaluate(chars), "CharSequence");
+			assertEquals(expected, xpath.evaluate(new StringReader(books)), "Reader");
+			assertEquals(0, direct.position(), "Buffer position should not change.");
+
+			assertEquals(true, filter.filter(padded, 5, xml.length), "byte[] slice");
+			assertEquals(true, filter.filter(heap), "heap ByteBuffer");
+			assertEquals(true, filter.filter(direct), "direct ByteBuffer");
+			assertEquals(true, filter.filter(chars), "CharSequence");
+			assertEquals(true, filter.filter(new StringReader(books)), "Reader");
+			assertEquals(false, filter.filter(padded, 5, 20), "A slice without a year should be rejected by the prefilter.");
+
+			assertEquals(expected, xquery.evaluate(padded, 5, xml.length), "byte[] slice");
+			assertEquals(expected, xquery.evaluate(heap), "heap ByteBuffer");
+			assertEquals(expected, xquery.evaluate(direct), "direct ByteBuffer");
+			assertEquals(expected, xquery.evaluate(chars), "CharSequence");
+			assertEquals(expected, xquery.evaluate(new StringReader(books)), "Reader");
+
+			assertEquals(expected, xslt.transform(padded, 5, xml.length), "byte[] slice");
+			assertEquals(expected, xslt.transform(heap), "heap ByteBuffer");
+			assertEquals(expected, xslt.transform(direct), "direct ByteBuffer");
+			assertEquals(expected, xslt.transform(chars), "CharSequence");
+			assertEquals(expected, xslt.transform(new StringReader(books)), "Reader");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testAllocations() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "Allocation counters are not available.");
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			assumeTrue(threads.isThreadAllocatedMemorySupported(), "Allocation counters are not available.");
+			threads.setThreadAllocatedMemoryEnabled(true);
+
+			StringBuilder sb = new StringBuilder("<books>");
+			for (int i = 0; i < 5000; i++) {
+				sb.append("<book><title lang=\"en\">Harry Potter ").append(i).append("</title><year>2005</year></book>");
+			}
+			sb.append("</books>");
+			String content = sb.toString();
+			byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+			direct.put(bytes);
+			direct.flip();
+
+			XPathProcessor xpath = XPathProcessor.getInstance("count(/books/book)");
+
+			// Bytes arriving as (for example) a Hadoop Text had to become a String, which was then encoded again
+			long legacy = allocated(threads, () -> xpath.evaluate(IOUtils.toInputStream(new String(bytes, StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+			long slice = allocated(threads, () -> xpath.evaluate(bytes, 0, bytes.length));
+			long directBuffer = allocated(threads, () -> xpath.evaluate(direct));
+			long string = allocated(threads, () -> xpath.evaluateString(content));
+			long stringBytes = allocated(threads, () -> xpath.evaluate(IOUtils.toInputStream(content, StandardCharsets.UTF_8)));
+
+			assertTrue(slice + bytes.length < legacy, "A byte[] slice should avoid both copies: " + slice + " vs " + legacy);
+			assertTrue(directBuffer + bytes.length < legacy, "A direct ByteBuffer should avoid both copies: " + directBuffer + " vs " + legacy);
+			assertTrue(string + bytes.length / 2 < stringBytes, "A String should not be encoded: " + string + " vs " + stringBytes);
+
+			// The prefilter scans the characters in place too
+			XPathProcessor prefiltered = XPathProcessor.getInstance("/books/book[year=2005]");
+			XPathProcessor unfiltered = XPathProcessor.getInstance("/books/book[year=2005]");
+			unfiltered.setPrefilterEnabled(false);
+			long scanned = allocated(threads, () -> prefiltered.filterString(content));
+			long parsed = allocated(threads, () -> unfiltered.filterString(content));
+			assertTrue(scanned < parsed + bytes.length / 4, "A prefiltered String should not be encoded: " + scanned + " vs " + parsed);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	/**
+	 * @return fewest bytes allocated by one call (after warming up)
+	 */
+	private static long allocated(com.sun.management.ThreadMXBean threads, Callable<?> call) throws Exception {
+		long id = Thread.currentThread().getId();
+		for (int i = 0; i < 10; i++) {
+			call.call();
+		}
+		long fewest = Long.MAX_VALUE;
+		for (int i = 0; i < 10; i++) {
+			long before = threads.getThreadAllocatedBytes(id);
+			call.call();
+			fewest = Math.min(fewest, threads.getThreadAllocatedBytes(id) - before);
+		}
+		return fewest;
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.StringReader;
+import java.util.HashMap;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+
+public class TestDocumentProjection {
+
+	private static String[] projectedXPath = {
+		"/books/book[year=2005]",
+		"/books/book[year=2005]/title",
+		"/books/book[@id='b2']/title/text()",
+		"count(/books/book)",
+		"count(/books/book/author)",
+		"string(/books/book[2]/title)",
+		"/books/book[title='Harry Potter']/price * 2",
+		"string-join(/books/book/title/@lang, ',')",
+		"/books/book[year > 2004][1]",
+		"/books/book[not(author)]/title",
+		"/books/book/comment()",
+		"sum(/books/book/price)",
+		"/books/book/body/p[1]",
+		"/books/book[year=2005]/title/upper-case(.)",
+		"/books/book/title | /books/book/year",
+		"for $b in /books/book return $b/title",
+		"/books/book[year=2005] ! title",
+		"/b:books/b:book/b:title",
+		"exists(/books/magazine)",
+		"/books/*/title",
+		"/books/book/title[lang('en')]"
+	};
+
+	private static String[] projectedXQuery = {
+		"<r>{/books/book[year=2005]}</r>",
+		"for $b in /books/book where $b/year = 2005 return <t>{$b/title/text()}</t>",
+		"for $b in /books/book order by $b/title return data($b/title)",
+		"let $t := /books/book/title return count($t)",
+		"string-join(/books/book/title, ',')"
+	};
+
+	private static String[] unprojectedXPath = {
+		"//title",
+		"/books/book/title/..",
+		"/books/book/title/following-sibling::year",
+		"/books/book/title/ancestor::*",
+		"/books/book[string() = 'x']",
+		"/books/book/string()",
+		"id('b1')",
+		".",
+		"/",
+		"string(/)",
+		"/books/book[last()]/year"
+	};
+
+	private static String document = "<books xmlns:b=\"urn:books\">"
+			+ "<!-- list -->"
+			+ "<book id=\"b1\"><title lang=\"en\">Harry Potter</title><author>J K. Rowling</author><year>2005</year><price>29.99</price>"
+			+ "<body><p>One</p><p>Two <i>three</i></p></body><!-- first --></book>"
+			+ "<book id=\"b2\"><title lang=\"fr\">Le Petit Prince</title><year>1943</year><price>9.99</price>"
+			+ "<body><p>Four</p></body></book>"
+			+ "<magazine><title>Nature</title></magazine>"
+			+ "<b:book><b:title>Namespaced</b:title></b:book>"
+			+ "<?keep me?>"
+			+ "</books>";
+
+	@Test
+	public void testXPathMatchesFullTree() {
+		try {
+			HashMap<String,String> namespaces = new HashMap<String,String>();
+			namespaces.put("b", "urn:books");
+			for (String expression : projectedXPath) {
+				XPathProcessor full = XPathProcessor.getInstance(expression, namespaces);
+				XPathProcessor projected = XPathProcessor.getInstance(expression, namespaces);
+				projected.setProjectionEnabled(true);
+				assertTrue(projected.isProjecting(), "Should project " + expression);
+				assertFalse(full.isProjecting(), "Should be disabled by default.");
+				assertEquals(full.evaluate(document), projected.evaluate(document), "Should match the full tree for " + expression);
+				assertEquals(full.filter(document), projected.filter(document), "Should match the full tree for " + expression);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testXQueryMatchesFullTree() {
+		try {
+			for (String expression : projectedXQuery) {
+				XQueryProcessor full = XQueryProcessor.getInstance(expression);
+				XQueryProcessor projected = XQueryProcessor.getInstance(expression);
+				projected.setProjectionEnabled(true);
+				assertTrue(projected.isProjecting(), "Should project " + expression);
+				assertEquals(full.evaluate(document), projected.evaluate(document), "Should match the full tree for " + expression);
+			}
+			XQueryProcessor declared = XQueryProcessor.getInstance("declare function local:t($b) { $b/.. }; local:t(/books/book)");
+			declared.setProjectionEnabled(true);
+			assertFalse(declared.isProjecting(), "Should not project a query with a declared function.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testFallback() {
+		try {
+			for (String expression : unprojectedXPath) {
+				XPathProcessor proc = XPathProcessor.getInstance(expression);
+				proc.setProjectionEnabled(true);
+				assertFalse(proc.isProjecting(), "Should not project " + expression);
+				XPathProcessor full = XPathProcessor.getInstance(expression);
+				assertEquals(full.evaluate(document), proc.evaluate(document), "Should use the full tree for " + expression);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testProjectedTree() {
+		try {
+			Processor proc = SharedConfiguration.newProcessor(null);
+			DocumentProjection projection = DocumentProjection.getInstance(
+					proc.newXPathCompiler().compile("/books/book[year=2005]/title").getUnderlyingExpression().getInternalExpression(), null);
+			String tree = projection.build(proc.newDocumentBuilder(), proc.getUnderlyingConfiguration(), new StreamSource(new StringReader(document))).toString().replaceAll(">\\s+<", "><");
+			assertEquals("<books xmlns:b=\"urn:books\">"
+					+ "<book id=\"b1\"><title lang=\"en\">Harry Potter</title><year>2005</year></book>"
+					+ "<book id=\"b2\"><title lang=\"fr\">Le Petit Prince</title><year>1943</year></book>"
+					+ "</books>", tree, "Should keep only the books' titles and years.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testAdjacentText() {
+		try {
+			// Text on either side of a dropped node must stay two text nodes
+			String[] expressions = {
+				"/a/b/text()[1]",
+				"count(/a/b/text())",
+				"/a/b/text() = 'o'",
+				"string-join(/a/b/text(), '|')"
+			};
+			String[] documents = {
+				"<a><b>he<i>ll</i>o</b></a>",
+				"<a><b>he<!-- ll -->o</b></a>",
+				"<a><b>he<?ll?>o</b></a>"
+			};
+			for (String expression : expressions) {
+				XPathProcessor full = XPathProcessor.getInstance(expression);
+				XPathProcessor projected = XPathProcessor.getInstance(expression);
+				projected.setProjectionEnabled(true);
+				assertTrue(projected.isProjecting(), "Should project " + expression);
+				for (String xml : documents) {
+					assertEquals(full.evaluate(xml), projected.evaluate(xml), "Should match the full tree for " + expression + " on " + xml);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
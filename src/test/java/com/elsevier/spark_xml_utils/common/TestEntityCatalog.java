@@ -0,0 +1,105 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+
+public class TestEntityCatalog {
+
+	private static String article = "<?xml version='1.0'?>"
+			+ "<!DOCTYPE article PUBLIC '-//TEST//DTD Article 1.0//EN' 'http://dtd.example.invalid/article.dtd'>"
+			+ "<article><title>&publisher;</title></article>";
+
+	private static String unknown = "<?xml version='1.0'?>"
+			+ "<!DOCTYPE article SYSTEM 'http://dtd.example.invalid/unknown.dtd'>"
+			+ "<article><title>Untitled</title></article>";
+
+	@Test
+	public void testCatalog() {
+		try {
+			Path dir = Files.createTempDirectory("catalog");
+			Files.write(dir.resolve("article.dtd"), "<!ENTITY publisher 'Elsevier'>".getBytes(StandardCharsets.UTF_8));
+			Files.write(dir.resolve("catalog.xml"), ("<?xml version='1.0'?>"
+					+ "<!DOCTYPE catalog PUBLIC '-//OASIS//DTD XML Catalogs V1.1//EN' 'http://www.oasis-open.org/committees/entity/release/1.1/catalog.dtd'>"
+					+ "<catalog xmlns='urn:oasis:names:tc:entity:xmlns:xml:catalog'>"
+					+ "<public publicId='-//TEST//DTD  Article 1.0//EN' uri='article.dtd'/>"
+					+ "</catalog>").getBytes(StandardCharsets.UTF_8));
+			EntityCatalog.addCatalog(dir.resolve("catalog.xml").toUri().toString());
+			assertEquals(dir.resolve("article.dtd"), Paths.get(URI.create(EntityCatalog.lookup("-//TEST//DTD Article 1.0//EN", null))), "Should resolve the uri against the catalog.");
+
+			EntityCatalog.resetCounts();
+			long hits = EntityCatalog.getCacheHitCount();
+			XPathProcessor proc = XPathProcessor.getInstance("/article/title/text()");
+			assertEquals("Elsevier", proc.evaluate(article), "Should expand the entity from the catalog's DTD.");
+			assertEquals("Elsevier", XQueryProcessor.getInstance("string(/article/title)").evaluate(article), "Should expand the entity from the catalog's DTD.");
+			assertEquals(2, EntityCatalog.getCatalogMatchCount(), "Should count the catalog matches.");
+			assertEquals(1, EntityCatalog.getCacheHitCount() - hits, "Should read the DTD once.");
+
+			EntityCatalog.setMode(EntityCatalog.Mode.LOCAL);
+			assertEquals("Untitled", proc.evaluate(unknown), "Should ignore an unknown DTD.");
+			assertEquals(1, EntityCatalog.getIgnoredCount(), "Should count the ignored DTD.");
+
+			EntityCatalog.setMode(EntityCatalog.Mode.FAIL);
+			assertEquals("Elsevier", proc.evaluate(article), "Should still use the catalog.");
+			assertThrows(XPathException.class, () -> proc.evaluate(unknown), "Should fail on an unknown DTD.");
+			assertEquals(1, EntityCatalog.getFailureCount(), "Should count the failure.");
+
+			EntityCatalog.setMode(EntityCatalog.Mode.IGNORE);
+			assertEquals("", proc.evaluate(article), "Should not declare the entity when ignoring the DTD.");
+			assertEquals(6, EntityCatalog.getResolutionCount(), "Should count each resolution.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			EntityCatalog.setMode(EntityCatalog.Mode.FETCH);
+			EntityCatalog.clear();
+		}
+	}
+
+	@Test
+	public void testRewriteSystem() {
+		try {
+			Path dir = Files.createTempDirectory("catalog");
+			Files.write(dir.resolve("article.dtd"), "<!ENTITY publisher 'Elsevier'>".getBytes(StandardCharsets.UTF_8));
+			EntityCatalog.addRewriteSystem("http://dtd.example.invalid/", "file:/nowhere/");
+			EntityCatalog.addRewriteSystem("http://dtd.example.invalid/art", dir.toUri().toString() + "art");
+			EntityCatalog.setMode(EntityCatalog.Mode.FAIL);
+			assertEquals("Elsevier", XPathProcessor.getInstance("string(/article/title)").evaluate(article), "Should use the longest prefix.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			EntityCatalog.setMode(EntityCatalog.Mode.FETCH);
+			EntityCatalog.clear();
+		}
+	}
+
+}
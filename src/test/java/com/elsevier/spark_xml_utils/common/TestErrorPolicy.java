@@ -0,0 +1,141 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.ConcurrentXPathProcessor;
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryException;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+import com.elsevier.spark_xml_utils.xslt.XSLTProcessor;
+
+public class TestErrorPolicy {
+
+	private static String books = "<books><book><title>Harry Potter</title><year>2005</year></book>"
+			+ "<book><title>Learning XML</title><year>2003</year></book></books>";
+
+	@Test
+	public void testThrow() {
+		try {
+			XPathProcessor proc = XPathProcessor.getInstance("/books/book/title");
+			XPathException e = assertThrows(XPathException.class, () -> proc.evaluate("<books>"), "Should throw by default.");
+			assertEquals(ErrorCause.MALFORMED_CONTENT, e.getErrorCause(), "Should classify the error.");
+			assertEquals(0, e.getStackTrace().length, "Should not fill in the stack trace.");
+
+			XQueryProcessor xquery = XQueryProcessor.getInstance("xs:integer(/books/book[1]/title)");
+			XQueryException q = assertThrows(XQueryException.class, () -> xquery.evaluate(books), "Should throw by default.");
+			assertEquals(ErrorCause.EVALUATION, q.getErrorCause(), "Should classify the error.");
+			assertEquals(1L, (long) xquery.getErrorCounts().get(ErrorCause.EVALUATION), "Should count the error.");
+			assertEquals(ErrorCause.OTHER, new XPathException("message").getErrorCause(), "Should not know the cause.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testReturn() {
+		try {
+			XPathProcessor proc = XPathProcessor.getInstance("/books/book/title");
+			proc.setErrorPolicy(ErrorPolicy.RETURN_NULL);
+			assertNull(proc.evaluate("<books>"), "Should return null.");
+			assertNull(proc.evaluateToBytes(ContentSource.fromCharSequence("<books>")), "Should return null.");
+			assertFalse(proc.filter("<books><book><title>"), "Should return FALSE.");
+			ByteBuffer out = ByteBuffer.allocate(16);
+			assertEquals(0, proc.evaluate(ContentSource.fromCharSequence("<books>"), out), "Should write nothing.");
+			assertEquals("<title>Harry Potter</title><title>Learning XML</title>", proc.evaluate(books), "Should still evaluate.");
+
+			proc.setErrorPolicy(ErrorPolicy.returnSentinel("#ERROR"));
+			assertEquals("#ERROR", proc.evaluate("<books>"), "Should return the sentinel.");
+			Map<ErrorCause,Long> counts = proc.getErrorCounts();
+			assertEquals(5L, (long) counts.get(ErrorCause.MALFORMED_CONTENT), "Should count the errors by cause.");
+			assertEquals(0L, (long) counts.get(ErrorCause.EVALUATION), "Should count the errors by cause.");
+
+			XSLTProcessor xslt = XSLTProcessor.getInstance("<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+					+ "<xsl:template match='/'><xsl:message terminate='yes'>stop</xsl:message></xsl:template>"
+					+ "</xsl:stylesheet>");
+			xslt.setErrorPolicy(ErrorPolicy.returnSentinel(""));
+			assertEquals("", xslt.transform(books), "Should return the sentinel.");
+			assertEquals(1L, (long) xslt.getErrorCounts().get(ErrorCause.EVALUATION), "Should count the error.");
+
+			ConcurrentXPathProcessor concurrent = ConcurrentXPathProcessor.getInstance("/books/book/title");
+			concurrent.setErrorPolicy(ErrorPolicy.RETURN_NULL);
+			assertNull(concurrent.evaluate("<books>"), "Should return null.");
+			assertFalse(concurrent.filter("<books><book><title>"), "Should return FALSE.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testCollect() {
+		try {
+			XQueryProcessor proc = XQueryProcessor.getInstance("for $book in /books/book return string($book/title)");
+			proc.setErrorPolicy(ErrorPolicy.collect(2));
+			assertNull(proc.evaluate("<books>"), "Should return null.");
+			assertNull(proc.evaluate("<books><book>"), "Should return null.");
+			assertNull(proc.evaluate("<books></book>"), "Should return null.");
+			assertEquals("Harry Potter Learning XML", proc.evaluate(books), "Should still evaluate.");
+
+			List<ProcessingError> errors = proc.drainErrors();
+			assertEquals(2, errors.size(), "Should keep at most the maximum.");
+			assertEquals(ErrorCause.MALFORMED_CONTENT, errors.get(0).getCause(), "Should keep the cause.");
+			assertEquals("xquery", errors.get(0).getProcessorType(), "Should keep the kind of processor.");
+			assertEquals(0, proc.drainErrors().size(), "Should be drained.");
+			assertEquals(3L, (long) proc.getErrorCounts().get(ErrorCause.MALFORMED_CONTENT), "Should count every error.");
+
+			assertNull(proc.evaluate("<books>"), "Should return null.");
+			assertEquals(1, proc.drainErrors().size(), "Should keep errors again once drained.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testLogLimit() {
+		try {
+			ErrorReporter.setLogLimit(1, 60000);
+			XPathProcessor proc = XPathProcessor.getInstance("/books/book/title");
+			proc.setErrorPolicy(ErrorPolicy.RETURN_NULL);
+			for (int i = 0; i < 100; i++) {
+				assertNull(proc.evaluate("<books>"), "Should return null.");
+			}
+			assertEquals(100L, (long) proc.getErrorCounts().get(ErrorCause.MALFORMED_CONTENT), "Should count the errors that weren't logged.");
+			assertThrows(IllegalArgumentException.class, () -> ErrorReporter.setLogLimit(1, 0), "Should reject an empty interval.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			ErrorReporter.setLogLimit(10, 60000);
+		}
+	}
+
+}
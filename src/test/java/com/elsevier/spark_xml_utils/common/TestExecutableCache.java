@@ -0,0 +1,108 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+
+public class TestExecutableCache {
+
+	@Test
+	public void testGetInstanceReusesExecutable() {
+		try {
+			String expression = "/name[.='cache-" + System.nanoTime() + "']";
+			long misses = ExecutableCache.getMissCount();
+			long hits = ExecutableCache.getHitCount();
+			XPathProcessor proc1 = XPathProcessor.getInstance(expression);
+			XPathProcessor proc2 = XPathProcessor.getInstance(expression);
+			assertEquals(misses + 1, ExecutableCache.getMissCount(), "Should compile once.");
+			assertTrue(ExecutableCache.getHitCount() > hits, "Second instance should be a hit.");
+			assertEquals(false, proc1.filterString("<name>john</name>"), "Should return false.");
+			assertEquals(false, proc2.filterString("<name>john</name>"), "Should return false.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDeserializationReusesExecutable() {
+		try {
+			String expression = "for $n in /name return upper-case($n)";
+			XQueryProcessor proc = XQueryProcessor.getInstance(expression + " (: " + System.nanoTime() + " :)");
+			long misses = ExecutableCache.getMissCount();
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(baos);
+			oos.writeObject(proc);
+			oos.close();
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+			XQueryProcessor copy = (XQueryProcessor) ois.readObject();
+
+			assertEquals(misses, ExecutableCache.getMissCount(), "Should not recompile on deserialization.");
+			assertEquals("JOHN", copy.evaluateString("<name>john</name>"), "Should match JOHN.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testKeyIncludesMappings() {
+		HashMap<String,String> ns1 = new HashMap<String,String>();
+		ns1.put("a", "namespace1");
+		HashMap<String,String> ns2 = new HashMap<String,String>();
+		ns2.put("a", "namespace2");
+		assertEquals(ExecutableCache.computeKey("xpath", "/a:name", ns1, null), ExecutableCache.computeKey("xpath", "/a:name", new HashMap<String,String>(ns1), null), "Same mappings should give the same key.");
+		assertNotEquals(ExecutableCache.computeKey("xpath", "/a:name", ns1, null), ExecutableCache.computeKey("xpath", "/a:name", ns2, null), "Different mappings should give different keys.");
+		assertNotEquals(ExecutableCache.computeKey("xpath", "/a:name", null, null), ExecutableCache.computeKey("xquery", "/a:name", null, null), "Different kinds should give different keys.");
+	}
+
+	@Test
+	public void testLruEviction() {
+		try {
+			ConcurrentLruCache<String,String> cache = new ConcurrentLruCache<String,String>(2);
+			cache.get("a", () -> "A");
+			cache.get("b", () -> "B");
+			cache.get("a", () -> "A");
+			cache.get("c", () -> "C");
+			assertEquals(2, cache.size(), "Should hold two entries.");
+			assertEquals(1, cache.getEvictionCount(), "Should evict one entry.");
+			assertEquals(null, cache.getIfPresent("b"), "Least recently used entry should be evicted.");
+			assertEquals("A", cache.getIfPresent("a"), "Recently used entry should be kept.");
+			assertEquals(3, cache.getMissCount(), "Should count three loads.");
+			assertEquals(1, cache.getHitCount(), "Should count one hit.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
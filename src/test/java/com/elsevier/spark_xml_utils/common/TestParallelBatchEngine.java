@@ -0,0 +1,124 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+
+public class TestParallelBatchEngine {
+
+	private static List<Entry<Integer,byte[]>> records(int count) {
+		List<Entry<Integer,byte[]>> records = new ArrayList<Entry<Integer,byte[]>>();
+		for (int i = 0; i < count; i++) {
+			StringBuilder xml = new StringBuilder("<books>");
+			// Sizes vary so the largest documents are spread through the input
+			for (int j = 0; j < (i * 7) % 13 + 1; j++) {
+				xml.append("<book><title>Title ").append(i).append("</title><year>").append(2000 + i % 10).append("</year></book>");
+			}
+			xml.append("</books>");
+			records.add(new SimpleImmutableEntry<Integer,byte[]>(i, xml.toString().getBytes(StandardCharsets.UTF_8)));
+		}
+		return records;
+	}
+
+	@Test
+	public void testPreserveOrder() {
+		try {
+			ParallelBatchEngine<XPathProcessor> engine = ParallelBatchEngine.getInstance(4, () -> XPathProcessor.getInstance("count(/books/book)"));
+			engine.setPreserveOrder(true);
+			List<Entry<Integer,byte[]>> records = records(200);
+			records.set(17, new SimpleImmutableEntry<Integer,byte[]>(17, "<books>".getBytes(StandardCharsets.UTF_8)));
+
+			final List<BatchResult<Integer,String>> results = new ArrayList<BatchResult<Integer,String>>();
+			ParallelBatchReport report = engine.run(records, (proc, content) -> proc.evaluate(content, 0, content.length), r -> results.add(r));
+			assertEquals(200, results.size(), "Should return a result for each document.");
+			for (int i = 0; i < results.size(); i++) {
+				assertEquals(Integer.valueOf(i), results.get(i).getKey(), "Should be in input order.");
+				if (i != 17) {
+					assertEquals(Integer.toString((i * 7) % 13 + 1), results.get(i).getValue(), "Should count the books.");
+				}
+			}
+			assertTrue(results.get(17).isError(), "Should fail to parse.");
+			assertEquals(1, report.getErrors(), "Should count the error.");
+			assertEquals(200, report.getDocuments(), "Should count the documents.");
+			assertTrue(report.getBytes() > 0 && report.getMegabytesPerSecond() > 0, "Should measure the throughput.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testLargestFirst() {
+		try {
+			ParallelBatchEngine<XPathProcessor> engine = ParallelBatchEngine.getInstance(1, () -> XPathProcessor.getInstance("/books/book[year=2005]"));
+			List<Entry<Integer,byte[]>> records = records(50);
+			final List<Integer> sizes = new ArrayList<Integer>();
+			engine.run(records, (proc, content) -> { sizes.add(content.length); return proc.filter(content, 0, content.length); }, r -> { });
+			List<Integer> sorted = new ArrayList<Integer>(sizes);
+			Collections.sort(sorted, Collections.reverseOrder());
+			assertEquals(sorted, sizes, "Should process the largest documents first.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testFilesAndScaling() {
+		try {
+			Path dir = Files.createTempDirectory("batch");
+			List<Path> files = new ArrayList<Path>();
+			for (Entry<Integer,byte[]> record : records(40)) {
+				files.add(Files.write(dir.resolve(record.getKey() + ".xml"), record.getValue()));
+			}
+
+			ParallelBatchEngine<XPathProcessor> engine = ParallelBatchEngine.getInstance(3, () -> XPathProcessor.getInstance("/books/book[year=2005]"));
+			final List<Path> matched = new ArrayList<Path>();
+			engine.runFiles(files, (proc, content) -> proc.filter(content, 0, content.length), r -> { if (r.getValue()) matched.add(r.getKey()); });
+			assertEquals(4, matched.size(), "Should match the books from 2005.");
+
+			List<ParallelBatchReport> reports = engine.measureFileScaling(files, (proc, content) -> proc.filter(content, 0, content.length));
+			assertEquals(3, reports.size(), "Should run with 1, 2 and 3 threads.");
+			assertEquals(1, reports.get(0).getThreads(), "Should start with one thread.");
+			assertEquals(3, reports.get(2).getThreads(), "Should end with every thread.");
+
+			for (Path file : files) {
+				Files.delete(file);
+			}
+			Files.delete(dir);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.HashMap;
+
+import net.sf.saxon.lib.FeatureKeys;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+import com.elsevier.spark_xml_utils.xslt.XSLTProcessor;
+
+public class TestParsedDocument {
+
+	private static String books = "<books><book><title lang=\"en\">Harry Potter</title><author>J K. Rowling</author><year>2005</year><price>29.99</price></book></books>";
+
+	private static String stylesheet = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+			+ "<xsl:output method='text'/>"
+			+ "<xsl:param name='label' select='()'/>"
+			+ "<xsl:template match='/'><xsl:value-of select='$label'/><xsl:value-of select='/books/book/title'/></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	@Test
+	public void testParseOnceUseEverywhere() {
+		try {
+			ParsedDocument doc = ParsedDocument.parse(books);
+
+			XPathProcessor xpath = XPathProcessor.getInstance("/books/book[year=2005]");
+			assertEquals(true, xpath.filter(doc), "Should return true.");
+			XPathProcessor xpathEval = XPathProcessor.getInstance("string(/books/book/author)");
+			assertEquals("J K. Rowling", xpathEval.evaluate(doc), "Should match the author.");
+
+			XQueryProcessor xquery = XQueryProcessor.getInstance("for $t in /books/book/title return upper-case($t)");
+			assertEquals("HARRY POTTER", xquery.evaluate(doc), "Should match the upper case title.");
+
+			XSLTProcessor xslt = XSLTProcessor.getInstance(stylesheet);
+			assertEquals("Harry Potter", xslt.transform(doc), "Should match the title.");
+			HashMap<String,String> params = new HashMap<String,String>();
+			params.put("label", "<l>Title: </l>");
+			assertEquals("Title: Harry Potter", xslt.transform(doc, params), "Should match the labelled title.");
+
+			// The same document again (the tree is not consumed)
+			assertEquals(true, xpath.filter(doc), "Should return true.");
+			assertEquals("HARRY POTTER", xquery.evaluate(doc), "Should match the upper case title.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testParseWithFeatureMappings() {
+		try {
+			HashMap<String,Object> featureMap = new HashMap<String,Object>();
+			featureMap.put(FeatureKeys.ENTITY_RESOLVER_CLASS, "com.elsevier.spark_xml_utils.common.IgnoreDoctype");
+			ParsedDocument doc = ParsedDocument.parse("<?xml version=\"1.0\" encoding=\"UTF-8\"?><!DOCTYPE books SYSTEM \"sample.dtd\">" + books, featureMap);
+
+			// Processors created with different feature mappings can still use the tree
+			XPathProcessor xpath = XPathProcessor.getInstance("/books/book[price > 20]");
+			assertEquals(true, xpath.filter(doc), "Should return true.");
+			XQueryProcessor xquery = XQueryProcessor.getInstance("string(/books/book/title/@lang)", null, featureMap);
+			assertEquals("en", xquery.evaluate(doc), "Should match en.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testParseCharacters() {
+		try {
+			// A String is parsed as characters, like the processors do (the declared encoding doesn't apply)
+			String xml = "<?xml version='1.0' encoding='ISO-8859-1'?><a>café</a>";
+			XPathProcessor xpath = XPathProcessor.getInstance("string(/a)");
+			assertEquals(xpath.evaluate(xml), xpath.evaluate(ParsedDocument.parse(xml)), "Should parse a String like the processors.");
+			assertEquals("café", xpath.evaluate(ParsedDocument.parse(xml)), "Should keep the characters.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import net.sf.saxon.lib.FeatureKeys;
+
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+
+public class TestParserPool {
+
+	private static String books = "<books><book><title>Harry Potter</title></book><book><title>Learning XML</title></book></books>";
+
+	@Test
+	public void testReuse() {
+		try {
+			ParserPool.clear();
+			ParserPool.resetCounts();
+			XPathProcessor first = XPathProcessor.getInstance("count(/books/book)");
+			XPathProcessor second = XPathProcessor.getInstance("string(/books/book[1]/title)");
+			for (int i = 0; i < 10; i++) {
+				assertEquals("2", first.evaluate(books), "Should evaluate with a pooled reader.");
+				assertEquals("Harry Potter", second.evaluate(books), "Should evaluate with a pooled reader.");
+			}
+			assertEquals(1, ParserPool.getCreatedCount(), "Should share one reader between the processors.");
+			assertEquals(19, ParserPool.getReuseCount(), "Should reuse the reader.");
+			assertThrows(XPathException.class, () -> first.evaluate("<books>"), "Should fail on malformed content.");
+			assertEquals("2", first.evaluate(books), "Should parse with the reader after a failure.");
+
+			XMLReader reader = ParserPool.borrow();
+			ParserPool.release(reader);
+			assertSame(reader, ParserPool.borrow(), "Should reuse the released reader.");
+			ParserPool.release(reader);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSettings() {
+		try {
+			ParserPool.setFactoryClass("com.sun.org.apache.xerces.internal.jaxp.SAXParserFactoryImpl");
+			ParserPool.setProperty(ParserPool.MAX_ELEMENT_DEPTH, "3");
+			ParserPool.setProperty("http://example.com/unknown", "ignored");
+			XPathProcessor proc = XPathProcessor.getInstance("count(//title)");
+			assertEquals("2", proc.evaluate(books), "Should parse with the selected parser.");
+			assertThrows(XPathException.class, () -> proc.evaluate("<a><b><c><d/></c></b></a>"), "Should apply the limit.");
+
+			ParserPool.setMaximumSize(0);
+			ParserPool.resetCounts();
+			assertEquals("2", proc.evaluate(books), "Should parse without pooling.");
+			assertEquals("2", proc.evaluate(books), "Should parse without pooling.");
+			assertEquals(2, ParserPool.getCreatedCount(), "Should create a reader for each parse.");
+			assertTrue(ParserPool.size() == 0, "Should keep no reader.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			ParserPool.setProperty(ParserPool.MAX_ELEMENT_DEPTH, null);
+			ParserPool.setProperty("http://example.com/unknown", null);
+			ParserPool.setFactoryClass(null);
+			ParserPool.setMaximumSize(ParserPool.DEFAULT_MAXIMUM_SIZE);
+		}
+	}
+
+	@Test
+	public void testSourceParserClass() {
+		try {
+			HashMap<String,Object> featureMap = new HashMap<String,Object>();
+			featureMap.put(FeatureKeys.SOURCE_PARSER_CLASS, CountingParser.class.getName());
+			XPathProcessor proc = XPathProcessor.getInstance("count(/books/book)", null, featureMap);
+			CountingParser.parses.set(0);
+			ParserPool.resetCounts();
+			assertEquals("2", proc.evaluate(books), "Should parse with the configured parser.");
+			assertEquals("2", proc.evaluate(books), "Should parse with the configured parser.");
+			assertEquals(2, CountingParser.parses.get(), "Should use the configured parser class.");
+			assertEquals(0, ParserPool.getCreatedCount() + ParserPool.getReuseCount(), "Should not use the pool.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testExternalDtd() {
+		File dtd = null;
+		try {
+			// A DTD the entity resolver doesn't supply is read with the parser's defaults
+			dtd = File.createTempFile("books", ".dtd");
+			Files.write(dtd.toPath(), "<!ENTITY title 'Harry Potter'>".getBytes(StandardCharsets.UTF_8));
+			String xml = "<!DOCTYPE books SYSTEM '" + dtd.toURI() + "'><books><book><title>&title;</title></book></books>";
+			HashMap<String,Object> featureMap = new HashMap<String,Object>();
+			featureMap.put(FeatureKeys.ENTITY_RESOLVER_CLASS, NoResolver.class.getName());
+			XPathProcessor proc = XPathProcessor.getInstance("string(/books/book/title)", null, featureMap);
+			assertEquals("Harry Potter", proc.evaluate(xml), "Should expand the entity from the DTD.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			if (dtd != null) {
+				dtd.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testReleaseRestoresFeatures() {
+		try {
+			ParserPool.clear();
+			XMLReader reader = ParserPool.borrow();
+			reader.setFeature("http://xml.org/sax/features/validation", true);
+			reader.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+			reader.setFeature("http://apache.org/xml/features/xinclude", true);
+			ParserPool.release(reader);
+			XMLReader reused = ParserPool.borrow();
+			assertSame(reader, reused, "Should reuse the released reader.");
+			assertFalse(reused.getFeature("http://xml.org/sax/features/validation"), "Should restore validation.");
+			assertFalse(reused.getFeature("http://xml.org/sax/features/namespace-prefixes"), "Should restore namespace-prefixes.");
+			assertFalse(reused.getFeature("http://apache.org/xml/features/xinclude"), "Should restore xinclude.");
+			ParserPool.release(reused);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testReleaseAfterSettingsChange() {
+		try {
+			// A reader borrowed before a change must not go back into the pool
+			ParserPool.setProperty(ParserPool.MAX_ELEMENT_DEPTH, "3");
+			XMLReader limited = ParserPool.borrow();
+			ParserPool.setProperty(ParserPool.MAX_ELEMENT_DEPTH, null);
+			ParserPool.release(limited);
+			assertEquals(0, ParserPool.size(), "Should drop the reader with the removed property.");
+			XMLReader reader = ParserPool.borrow();
+			assertNotSame(limited, reader, "Should create a reader without the property.");
+			assertEquals("1", XPathProcessor.getInstance("count(//d)").evaluate("<a><b><c><d/></c></b></a>"), "Should parse without the limit.");
+
+			ParserPool.setFactoryClass("com.sun.org.apache.xerces.internal.jaxp.SAXParserFactoryImpl");
+			ParserPool.release(reader);
+			assertEquals(0, ParserPool.size(), "Should drop the reader from the previous parser implementation.");
+			reader = ParserPool.borrow();
+			ParserPool.release(reader);
+			assertSame(reader, ParserPool.borrow(), "Should pool the readers of the current implementation.");
+			ParserPool.release(reader);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			ParserPool.setProperty(ParserPool.MAX_ELEMENT_DEPTH, null);
+			ParserPool.setFactoryClass(null);
+		}
+	}
+
+	/**
+	 * Entity resolver that leaves every entity to the parser.
+	 */
+	public static class NoResolver implements EntityResolver {
+
+		@Override
+		public InputSource resolveEntity(String publicId, String systemId) {
+			return null;
+		}
+
+	}
+
+	/**
+	 * Parser named by SOURCE_PARSER_CLASS, counting its parses.
+	 */
+	public static class CountingParser extends XMLFilterImpl {
+
+		private static final AtomicInteger parses = new AtomicInteger();
+
+		public CountingParser() throws Exception {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			setParent(factory.newSAXParser().getXMLReader());
+		}
+
+		@Override
+		public void parse(InputSource input) throws IOException, SAXException {
+			parses.incrementAndGet();
+			super.parse(input);
+		}
+
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+import com.elsevier.spark_xml_utils.xslt.ConcurrentXSLTProcessor;
+import com.elsevier.spark_xml_utils.xslt.XSLTProcessor;
+
+public class TestProcessorMetrics {
+
+	private static String books = "<books><book><title>Harry Potter</title><year>2005</year></book>"
+			+ "<book><title>Learning XML</title><year>2003</year></book></books>";
+
+	@Test
+	public void testHistogram() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(50), "Should be 0 when empty.");
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(1000, histogram.getCount(), "Should count the values.");
+		assertEquals(1000000, histogram.getMax(), "Should keep the largest value.");
+		long p50 = histogram.getPercentile(50);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(p50 >= 500000 && p50 <= 500000 * 1.13, "Should be close to the median: " + p50);
+		assertTrue(p99 >= 990000 && p99 <= 1000000, "Should be close to the 99th percentile: " + p99);
+		histogram.reset();
+		assertEquals(0, histogram.getCount(), "Should be cleared.");
+	}
+
+	@Test
+	public void testStages() {
+		List<String> calls = new ArrayList<String>();
+		MetricsListener listener = call -> calls.add(call.getProcessorType() + ":" + call.getResultItems() + ":" + call.isFailed());
+		try {
+			ProcessorMetrics.setInstrumenting(true);
+			ProcessorMetrics.addListener(listener);
+
+			ProcessorMetrics xpath = ProcessorMetrics.get("xpath");
+			xpath.reset();
+			XPathProcessor xpathProc = XPathProcessor.getInstance("/books/book/title");
+			String result = xpathProc.evaluate(books);
+			assertEquals(1, xpath.getCalls(), "Should count the call.");
+			assertEquals(books.length(), xpath.getInputBytes(), "Should count the content.");
+			assertEquals(result.getBytes(StandardCharsets.UTF_8).length, xpath.getOutputBytes(), "Should count the result.");
+			assertEquals(2, xpath.getResultItems(), "Should count the items.");
+			assertTrue(xpath.getParseNanos() > 0 && xpath.getEvaluateNanos() > 0 && xpath.getSerializeNanos() > 0, "Should time each stage.");
+			assertEquals(1, xpath.getHistogram(ProcessorMetrics.Stage.PARSE).getCount(), "Should record the parse.");
+
+			xpathProc.filter(ParsedDocument.parse(books));
+			assertEquals(1, xpath.getHistogram(ProcessorMetrics.Stage.PARSE).getCount(), "Should not parse a ParsedDocument.");
+			assertEquals(2, xpath.getHistogram(ProcessorMetrics.Stage.EVALUATE).getCount(), "Should record the evaluation.");
+			assertThrows(XPathException.class, () -> xpathProc.evaluate("<books>"), "Should fail on malformed content.");
+			assertEquals(1, xpath.getErrors(), "Should count the error.");
+
+			ProcessorMetrics xquery = ProcessorMetrics.get("xquery");
+			xquery.reset();
+			XQueryProcessor xqueryProc = XQueryProcessor.getInstance("for $book in /books/book return <title>{string($book/title)}</title>");
+			StringWriter writer = new StringWriter();
+			xqueryProc.evaluate(ContentSource.fromCharSequence(books), writer);
+			assertEquals(1, xquery.getCalls(), "Should count the call.");
+			assertEquals(2, xquery.getResultItems(), "Should count the items.");
+			assertEquals(writer.toString().length(), xquery.getOutputBytes(), "Should count the characters written.");
+			assertTrue(xquery.getParseNanos() > 0 && xquery.getEvaluateNanos() > 0 && xquery.getSerializeNanos() > 0, "Should time each stage.");
+
+			String stylesheet = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+					+ "<xsl:strip-space elements='*'/>"
+					+ "<xsl:template match='/'><count><xsl:value-of select='count(//text())'/></count></xsl:template>"
+					+ "</xsl:stylesheet>";
+			String spaced = "<books>\n  <book>\n    <title>Harry Potter</title>\n  </book>\n</books>";
+			ProcessorMetrics xslt = ProcessorMetrics.get("xslt");
+			xslt.reset();
+			XSLTProcessor xsltProc = XSLTProcessor.getInstance(stylesheet);
+			assertEquals("<count>1</count>", xsltProc.transform(spaced), "Should strip space when timing the parse.");
+			assertEquals("<count>1</count>", ConcurrentXSLTProcessor.getInstance(stylesheet).transform(spaced), "Should strip space when timing the parse.");
+			assertEquals(2, xslt.getCalls(), "Should count the calls.");
+			assertEquals(2, xslt.getHistogram(ProcessorMetrics.Stage.PARSE).getCount(), "Should time the parse.");
+
+			ObjectName name = new ObjectName(ProcessorMetrics.JMX_DOMAIN + ":type=ProcessorMetrics,name=\"xslt\"");
+			assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Calls"), "Should be visible through JMX.");
+
+			assertEquals("xpath:2:false", calls.get(0), "Should tell the listener.");
+			assertEquals("xpath:0:true", calls.get(2), "Should tell the listener about the error.");
+			assertEquals(6, calls.size(), "Should tell the listener about each call.");
+
+			ProcessorMetrics.setInstrumenting(false);
+			assertEquals("<count>1</count>", xsltProc.transform(spaced), "Should transform while not instrumenting.");
+			assertEquals(2, xslt.getCalls(), "Should not count while not instrumenting.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			ProcessorMetrics.setInstrumenting(false);
+			ProcessorMetrics.removeListener(listener);
+		}
+	}
+
+}
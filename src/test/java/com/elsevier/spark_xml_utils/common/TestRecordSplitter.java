@@ -0,0 +1,248 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.ColumnBatch;
+import com.elsevier.spark_xml_utils.xpath.ColumnarExtractor;
+import com.elsevier.spark_xml_utils.xpath.ExtractionSpec;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+
+public class TestRecordSplitter {
+
+	private static String head = "<?xml version='1.0' encoding='UTF-8'?>\n<!DOCTYPE records [<!ELEMENT records ANY>]>\n"
+			+ "<records xmlns='http://example.com/records' xmlns:dc='http://purl.org/dc/elements/1.1/'><!-- <record>not a record</record> -->\n";
+
+	private static String tail = "</records>\n";
+
+	private static String records = "<record id='1' note='a > b'><dc:title>One</dc:title><![CDATA[</record>]]></record>\n"
+			+ "<record id='2'><record id='nested'/><dc:title>Two</dc:title></record>\n"
+			+ "<?pi <record>?><record id='3'/>\n"
+			+ "<record id='4' xmlns:dc='http://example.com/other'><dc:title>Four</dc:title></record>\n"
+			+ "<recordset/><record\n id='5'><dc:title>Café</dc:title></record>";
+
+	private static List<RecordSplitter.Record> toList(Iterator<RecordSplitter.Record> iterator) {
+		List<RecordSplitter.Record> list = new ArrayList<RecordSplitter.Record>();
+		while (iterator.hasNext()) {
+			list.add(iterator.next());
+		}
+		return list;
+	}
+
+	private static String text(RecordSplitter.Record record) {
+		ByteBuffer content = record.getContent();
+		byte[] bytes = new byte[content.remaining()];
+		content.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testSplitFile() {
+		try {
+			Path file = Files.createTempFile("records", ".xml");
+			try {
+				Files.write(file, (head + records + tail).getBytes(StandardCharsets.UTF_8));
+				List<RecordSplitter.Record> split = toList(RecordSplitter.getInstance("record").split(file));
+				assertEquals(5, split.size(), "Should find each record (and skip comments, CDATA, processing instructions and nested records).");
+				assertEquals("<record id='3'/>", text(split.get(2)), "Should slice the record.");
+				assertEquals((head + records).indexOf("<record id='2'>"), split.get(1).getOffset(), "Should give the offset of the record.");
+				assertEquals(2, split.get(0).getNamespaces().size(), "Should carry the namespaces of the wrapper.");
+				assertEquals(Collections.singleton(""), split.get(3).getNamespaces().keySet(), "Should not repeat a namespace the record declares.");
+
+				XPathProcessor proc = XPathProcessor.getInstance("string-join((/*:record/@id, /*:record/*:title, namespace-uri(/*), namespace-uri(/*/*:title[1])), '|')");
+				String[] expected = { "1|One|http://example.com/records|http://purl.org/dc/elements/1.1/",
+						"2|Two|http://example.com/records|http://purl.org/dc/elements/1.1/",
+						"3|http://example.com/records|",
+						"4|Four|http://example.com/records|http://example.com/other",
+						"5|Café|http://example.com/records|http://purl.org/dc/elements/1.1/" };
+				for (int i = 0; i < split.size(); i++) {
+					assertEquals(expected[i], proc.evaluate(ParsedDocument.parse(split.get(i).toSource(), null)), "Should parse the record with its namespaces.");
+				}
+
+				// Any window size gives the same records
+				for (int window = 1; window < 80; window += 7) {
+					List<RecordSplitter.Record> windowed = toList(RecordSplitter.getInstance("record").setWindowSize(window).split(file));
+					assertEquals(5, windowed.size(), "Should find each record across windows of " + window + " bytes.");
+					for (int i = 0; i < split.size(); i++) {
+						assertEquals(split.get(i).getOffset(), windowed.get(i).getOffset(), "Should find the same records across windows.");
+					}
+				}
+			} finally {
+				Files.delete(file);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRanges() {
+		try {
+			StringBuilder xml = new StringBuilder(head);
+			for (int i = 0; i < 2000; i++) {
+				xml.append("<record id='").append(i).append("'><dc:title>");
+				for (int k = 0; k < i % 13; k++) {
+					xml.append("Title ");
+				}
+				xml.append("</dc:title></record>\n");
+			}
+			xml.append(tail);
+			Path file = Files.createTempFile("records", ".xml");
+			try {
+				Files.write(file, xml.toString().getBytes(StandardCharsets.UTF_8));
+				RecordSplitter splitter = RecordSplitter.getInstance("record").setWindowSize(4096);
+				List<Long> offsets = new ArrayList<Long>();
+				for (RecordSplitter.Record record : toList(splitter.split(file))) {
+					offsets.add(record.getOffset());
+				}
+				assertEquals(2000, offsets.size(), "Should find each record.");
+
+				for (int count : new int[] { 2, 3, 7, 50 }) {
+					List<Long> parallel = new ArrayList<Long>();
+					for (RecordSplitter.Range range : RecordSplitter.getRanges(file, count)) {
+						for (RecordSplitter.Record record : toList(splitter.split(file, range))) {
+							assertTrue(record.getOffset() >= range.getStart() && record.getOffset() < range.getEnd(), "Should start in the range.");
+							parallel.add(record.getOffset());
+						}
+					}
+					assertEquals(offsets, parallel, "Should return each record from exactly one of " + count + " ranges.");
+				}
+
+				// Records can be given to the processors like any other content
+				ExtractionSpec spec = ExtractionSpec.getInstance().addLong("id", "/*:record/@id");
+				ColumnBatch batch = ColumnarExtractor.getInstance(spec).extract(splitter.split(file, RecordSplitter.getRanges(file, 4).get(3)), 1000);
+				assertEquals(1999, batch.getLong(0, batch.getRowCount() - 1), "Should extract from the records.");
+			} finally {
+				Files.delete(file);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRangesWithNesting() {
+		try {
+			StringBuilder xml = new StringBuilder(head);
+			for (int i = 0; i < 20; i++) {
+				xml.append("<record id='").append(i).append("'><record id='nested'><dc:title>Title</dc:title></record></record>\n");
+			}
+			xml.append(tail);
+			Path file = Files.createTempFile("records", ".xml");
+			try {
+				Files.write(file, xml.toString().getBytes(StandardCharsets.UTF_8));
+				RecordSplitter splitter = RecordSplitter.getInstance("record");
+				assertEquals(20, toList(splitter.split(file)).size(), "Should allow nesting when splitting the whole file.");
+				assertEquals(20, toList(splitter.split(file, RecordSplitter.getRanges(file, 1).get(0))).size(), "Should allow nesting in a range covering the file.");
+
+				for (int count : new int[] { 2, 3, 13, 50 }) {
+					List<RecordSplitter.Record> parallel = new ArrayList<RecordSplitter.Record>();
+					int failed = 0;
+					for (RecordSplitter.Range range : RecordSplitter.getRanges(file, count)) {
+						try {
+							parallel.addAll(toList(splitter.split(file, range)));
+						} catch (UncheckedIOException e) {
+							failed++;
+						}
+					}
+					assertTrue(failed > 0, "Should fail a split of " + count + " ranges rather than return " + parallel.size() + " records.");
+				}
+			} finally {
+				Files.delete(file);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSplitStream() {
+		try {
+			StringBuilder xml = new StringBuilder(head);
+			for (int i = 0; i < 300; i++) {
+				xml.append(records);
+			}
+			xml.append(tail);
+			byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+			// Read a few bytes at a time to split records across reads
+			InputStream trickle = new FilterInputStream(new ByteArrayInputStream(bytes)) {
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return super.read(b, off, Math.min(len, 7));
+				}
+			};
+			List<RecordSplitter.Record> split = toList(RecordSplitter.getInstance("record").split(trickle));
+			assertEquals(1500, split.size(), "Should find each record.");
+			assertEquals("<record id='3'/>", text(split.get(1497)), "Should copy the record.");
+			assertEquals(xml.indexOf("<record id='3'/>"), split.get(2).getOffset(), "Should give the offset in the stream.");
+			assertEquals(2, split.get(1499).getNamespaces().size(), "Should carry the namespaces of the wrapper.");
+
+			List<RecordSplitter.Record> whole = toList(RecordSplitter.getInstance("record").split(new ByteArrayInputStream(bytes)));
+			assertEquals(1500, whole.size(), "Should find each record.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testErrors() {
+		try {
+			byte[] big = (head + records + tail).getBytes(StandardCharsets.UTF_8);
+			Iterator<RecordSplitter.Record> tooLarge = RecordSplitter.getInstance("record").setMaximumRecordSize(40).split(new ByteArrayInputStream(big));
+			assertThrows(UncheckedIOException.class, () -> toList(tooLarge), "Should fail on a record larger than the maximum.");
+
+			byte[] truncated = (head + "<record id='1'><dc:title>One").getBytes(StandardCharsets.UTF_8);
+			Path file = Files.createTempFile("records", ".xml");
+			try {
+				Files.write(file, truncated);
+				Iterator<RecordSplitter.Record> unterminated = RecordSplitter.getInstance("record").split(file);
+				assertThrows(UncheckedIOException.class, () -> unterminated.hasNext(), "Should fail on an unterminated record.");
+			} finally {
+				Files.delete(file);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
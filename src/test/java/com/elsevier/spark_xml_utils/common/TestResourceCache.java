@@ -0,0 +1,217 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xslt.XSLTProcessor;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestResourceCache {
+
+	private static HttpServer server = null;
+	private static String baseUrl = null;
+	private static Map<String,String> resources = new HashMap<String,String>();
+	private static Map<String,AtomicInteger> requests = new ConcurrentHashMap<String,AtomicInteger>();
+
+	@BeforeAll
+	public static void setUp() throws IOException {
+		resources.put("/slow.xml", "<slow/>");
+		resources.put("/a.xml", "<a/>");
+		resources.put("/b.xml", "<b/>");
+		resources.put("/c.xml", "<c/>");
+		resources.put("/mirrored.xml", "<mirrored/>");
+		resources.put("/xsl/common.xsl", "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+				+ "<xsl:include href='inner.xsl'/>"
+				+ "<xsl:template match='/'><xsl:value-of select='upper-case(/books/book/title)'/><xsl:call-template name='inner'/></xsl:template>"
+				+ "</xsl:stylesheet>");
+		resources.put("/xsl/inner.xsl", "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+				+ "<xsl:template name='inner'>!</xsl:template>"
+				+ "</xsl:stylesheet>");
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			String path = exchange.getRequestURI().getPath();
+			requests.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+			if (path.equals("/slow.xml")) {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			String body = resources.get(path);
+			byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(body == null ? 404 : 200, body == null ? -1 : bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		});
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort();
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		server.stop(0);
+	}
+
+	private static int requestCount(String path) {
+		AtomicInteger count = requests.get(path);
+		return count == null ? 0 : count.get();
+	}
+
+	@Test
+	public void testSingleFetch() {
+		try {
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 8; i++) {
+				futures.add(executor.submit(() -> ResourceCache.get(baseUrl + "/slow.xml")));
+			}
+			for (Future<byte[]> future : futures) {
+				assertEquals("<slow/>", new String(future.get(), StandardCharsets.UTF_8), "Should return the content.");
+			}
+			executor.shutdown();
+			assertEquals("<slow/>", new String(ResourceCache.get(baseUrl + "/slow.xml"), StandardCharsets.UTF_8), "Should return the cached content.");
+			assertEquals(1, requestCount("/slow.xml"), "Should retrieve the resource once.");
+
+			assertThrows(IOException.class, () -> ResourceCache.get(baseUrl + "/missing.xml"), "Should fail on a 404.");
+			assertThrows(IOException.class, () -> ResourceCache.get("relative.xml"), "Should fail without a fetcher.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testEvictionAndMirror() {
+		int maximumSize = ResourceCache.getMaximumSize();
+		Path mirror = null;
+		try {
+			ResourceCache.setMaximumSize(2);
+			long evictions = ResourceCache.getEvictionCount();
+			ResourceCache.get(baseUrl + "/a.xml");
+			ResourceCache.get(baseUrl + "/b.xml");
+			ResourceCache.get(baseUrl + "/c.xml");
+			assertTrue(ResourceCache.size() <= 2, "Should stay within the maximum size.");
+			assertTrue(ResourceCache.getEvictionCount() > evictions, "Should evict the least recently used resource.");
+
+			mirror = Files.createTempDirectory("mirror");
+			ResourceCache.setMirrorDirectory(mirror);
+			ResourceCache.get(baseUrl + "/mirrored.xml");
+			ResourceCache.clear();
+			assertEquals("<mirrored/>", new String(ResourceCache.get(baseUrl + "/mirrored.xml"), StandardCharsets.UTF_8), "Should read the mirror.");
+			assertEquals(1, requestCount("/mirrored.xml"), "Should retrieve the resource once.");
+			assertEquals(1, Files.list(mirror).count(), "Should mirror only the remote resource retrieved.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			ResourceCache.setMaximumSize(maximumSize);
+			ResourceCache.setMirrorDirectory(null);
+		}
+	}
+
+	@Test
+	public void testLocalFetchers() {
+		ResourceFetcher fetcher = new ResourceFetcher() {
+			@Override
+			public boolean accepts(URI uri) {
+				return "test".equals(uri.getScheme());
+			}
+			@Override
+			public boolean isRemote() {
+				return false;
+			}
+			@Override
+			public byte[] fetch(URI uri) {
+				return uri.getSchemeSpecificPart().getBytes(StandardCharsets.UTF_8);
+			}
+		};
+		try {
+			Path file = Files.createTempFile("resource", ".xml");
+			Files.write(file, "<file/>".getBytes(StandardCharsets.UTF_8));
+			assertEquals("<file/>", new String(ResourceCache.get(file.toUri().toString()), StandardCharsets.UTF_8), "Should read the file.");
+			Files.delete(file);
+
+			byte[] expected = IOUtils.toByteArray(ResourceCache.class.getResourceAsStream("ResourceCache.class"));
+			assertArrayEquals(expected, ResourceCache.get("classpath:/com/elsevier/spark_xml_utils/common/ResourceCache.class"), "Should read the class path.");
+
+			String jarUri = IOUtils.class.getResource("IOUtils.class").toString();
+			assertTrue(jarUri.startsWith("jar:"), "Should be in a jar.");
+			assertArrayEquals(IOUtils.toByteArray(IOUtils.class.getResourceAsStream("IOUtils.class")), ResourceCache.get(jarUri), "Should read the jar.");
+
+			ResourceCache.registerFetcher(fetcher);
+			assertEquals("value", new String(ResourceCache.get("test:value"), StandardCharsets.UTF_8), "Should use the registered fetcher.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			ResourceCache.unregisterFetcher(fetcher);
+		}
+	}
+
+	@Test
+	public void testStylesheetImports() {
+		try {
+			String importing = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+					+ "<xsl:import href='" + baseUrl + "/xsl/common.xsl'/>"
+					+ "<xsl:output method='text'/>"
+					+ "</xsl:stylesheet>";
+			String other = importing.replace("<xsl:output method='text'/>", "<xsl:output method='text' indent='no'/>");
+			for (String stylesheet : new String[] { importing, other }) {
+				XSLTProcessor proc = XSLTProcessor.getInstance(stylesheet);
+				proc.setOutputMethod("text");
+				assertEquals("HARRY POTTER!", proc.transform("<books><book><title>Harry Potter</title></book></books>"), "Should apply the imported stylesheet.");
+			}
+			assertEquals(1, requestCount("/xsl/common.xsl"), "Should retrieve the imported stylesheet once.");
+			assertEquals(1, requestCount("/xsl/inner.xsl"), "Should resolve the relative include once.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
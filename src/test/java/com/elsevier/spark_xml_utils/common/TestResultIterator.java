@@ -0,0 +1,102 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+
+public class TestResultIterator {
+
+	private static String books = "<books><book><title>Harry Potter</title></book><book><title>Learning XML</title></book>"
+			+ "<book><title>XQuery Kick Start</title></book></books>";
+
+	private static List<String> drain(ResultIterator results) {
+		List<String> items = new ArrayList<String>();
+		while (results.hasNext()) {
+			items.add(results.next());
+		}
+		return items;
+	}
+
+	@Test
+	public void testXPath() {
+		try {
+			XPathProcessor proc = XPathProcessor.getInstance("/books/book/title");
+			List<String> items = drain(proc.iterate(books));
+			assertEquals(3, items.size(), "Should return each item.");
+			assertEquals("<title>Harry Potter</title>", items.get(0), "Should serialize each item.");
+
+			ResultIterator limited = proc.iterate(ParsedDocument.parse(books), 2);
+			assertEquals(2, drain(limited).size(), "Should stop at the maximum.");
+			assertEquals(2, limited.getCount(), "Should count the items.");
+			assertEquals("<title>Harry Potter</title><title>Learning XML</title><title>XQuery Kick Start</title>", proc.evaluate(books), "Should evaluate after iterating.");
+
+			XPathProcessor huge = XPathProcessor.getInstance("(1 to 1000000000 * count(/books)) ! string(.)");
+			assertEquals(3, drain(huge.iterate(books, 3)).size(), "Should not evaluate the rest of the sequence.");
+
+			XPathProcessor failing = XPathProcessor.getInstance("(1 to 5) ! (if (. = 3) then error() else .)");
+			assertEquals(2, drain(failing.iterate(books, 2)).size(), "Should not reach the error.");
+			ResultIterator results = failing.iterate(books);
+			assertEquals("1", results.next(), "Should return the first item.");
+			assertEquals("2", results.next(), "Should return the second item.");
+			ResultIterator.IterationException e = assertThrows(ResultIterator.IterationException.class, () -> results.hasNext(), "Should fail on the third item.");
+			assertTrue(e.getCause() instanceof XPathException, "Should carry the processor's exception.");
+			assertFalse(results.hasNext(), "Should end after the error.");
+
+			failing.setErrorPolicy(ErrorPolicy.COLLECT);
+			assertEquals(2, drain(failing.iterate(books)).size(), "Should end the iteration under the error policy.");
+			assertEquals(1, failing.drainErrors().size(), "Should collect the error.");
+			assertFalse(failing.iterate("<books>").hasNext(), "Should return no items for malformed content.");
+
+			ResultIterator closed = proc.iterate(books);
+			assertTrue(closed.hasNext(), "Should have items.");
+			closed.close();
+			assertFalse(closed.hasNext(), "Should stop when closed.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testXQuery() {
+		try {
+			XQueryProcessor proc = XQueryProcessor.getInstance("for $title in /books/book/title return <name>{string($title)}</name>");
+			List<String> items = drain(proc.iterate(books, 2));
+			assertEquals(2, items.size(), "Should stop at the maximum.");
+			assertEquals("<name>Learning XML</name>", items.get(1), "Should serialize each item.");
+			assertEquals(3, drain(proc.iterate(ParsedDocument.parse(books))).size(), "Should return each item.");
+			assertEquals("<name>Harry Potter</name><name>Learning XML</name><name>XQuery Kick Start</name>", proc.evaluate(books), "Should evaluate after iterating.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
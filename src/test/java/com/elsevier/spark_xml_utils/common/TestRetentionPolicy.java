@@ -0,0 +1,240 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.saxon.s9api.ExtensionFunction;
+import net.sf.saxon.s9api.ItemType;
+import net.sf.saxon.s9api.OccurrenceIndicator;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SequenceType;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathMultiProcessor;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.ConcurrentXQueryProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+import com.elsevier.spark_xml_utils.xslt.XSLTProcessor;
+
+public class TestRetentionPolicy {
+
+	private static String books = "<books><book><title lang=\"en\">Harry Potter é</title><year>2005</year></book></books>";
+
+	private static String stylesheet = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+			+ "<xsl:template match='/'><t><xsl:value-of select='/books/book/title'/></t></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	@Test
+	public void testOutputSinks() {
+		try {
+			String expected = "<title lang=\"en\">Harry Potter é</title>";
+			byte[] expectedBytes = expected.getBytes(StandardCharsets.UTF_8);
+			ParsedDocument doc = ParsedDocument.parse(books);
+
+			XPathProcessor xpath = XPathProcessor.getInstance("/books/book/title");
+			XQueryProcessor xquery = XQueryProcessor.getInstance("/books/book/title");
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			xpath.evaluate(ContentSource.fromCharSequence(books), out);
+			assertEquals(expected, out.toString(StandardCharsets.UTF_8.name()), "XPath to OutputStream");
+			StringWriter writer = new StringWriter();
+			xpath.evaluate(doc, writer);
+			assertEquals(expected, writer.toString(), "XPath to Writer");
+			ByteBuffer direct = ByteBuffer.allocateDirect(100);
+			direct.put((byte) 'x');
+			assertEquals(expectedBytes.length, xpath.evaluate(doc, direct), "XPath to ByteBuffer");
+			assertEquals(1 + expectedBytes.length, direct.position(), "Position should be advanced.");
+			assertArrayEquals(expectedBytes, xpath.evaluateToBytes(ContentSource.fromCharSequence(books)), "XPath to bytes");
+			assertEquals(expected, xpath.evaluate(books), "Buffer should be restored after writing to a sink.");
+
+			out.reset();
+			xquery.evaluate(doc, out);
+			assertEquals(expected, out.toString(StandardCharsets.UTF_8.name()), "XQuery to OutputStream");
+			writer = new StringWriter();
+			xquery.evaluate(ContentSource.fromCharSequence(books), writer);
+			assertEquals(expected, writer.toString(), "XQuery to Writer");
+			ByteBuffer heap = ByteBuffer.allocate(100);
+			assertEquals(expectedBytes.length, xquery.evaluate(ContentSource.fromCharSequence(books), heap), "XQuery to ByteBuffer");
+			assertArrayEquals(expectedBytes, xquery.evaluateToBytes(doc), "XQuery to bytes");
+			assertEquals(expected, xquery.evaluate(books), "Buffer should be restored after writing to a sink.");
+
+			XSLTProcessor xslt = XSLTProcessor.getInstance(stylesheet);
+			String expectedXslt = "<t>Harry Potter é</t>";
+			out.reset();
+			xslt.transform(ContentSource.fromCharSequence(books), out);
+			assertEquals(expectedXslt, out.toString(StandardCharsets.UTF_8.name()), "XSLT to OutputStream");
+			writer = new StringWriter();
+			xslt.transform(doc, writer);
+			assertEquals(expectedXslt, writer.toString(), "XSLT to Writer");
+			assertArrayEquals(expectedXslt.getBytes(StandardCharsets.UTF_8), xslt.transformToBytes(doc), "XSLT to bytes");
+			assertEquals(expectedXslt, xslt.transform(books), "Buffer should be restored after writing to a sink.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testByteBufferTooSmall() {
+		try {
+			XPathProcessor xpath = XPathProcessor.getInstance("/books/book/title");
+			try {
+				xpath.evaluate(ContentSource.fromCharSequence(books), ByteBuffer.allocate(5));
+				fail("Should not fit.");
+			} catch (XPathException e) {
+				assertNotNull(e.getMessage(), "Should report the error.");
+			}
+			assertEquals("<title lang=\"en\">Harry Potter é</title>", xpath.evaluate(books), "Should still evaluate.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testReleaseContext() {
+		try {
+			XPathProcessor xpath = XPathProcessor.getInstance("/books/book/title");
+			XQueryProcessor xquery = XQueryProcessor.getInstance("/books/book/title");
+			XSLTProcessor xslt = XSLTProcessor.getInstance(stylesheet);
+
+			assertTrue(isReleased(xpath::evaluate), "XPath should release the document.");
+			assertTrue(isReleased(xquery::evaluate), "XQuery should release the document.");
+			assertTrue(isReleased(xslt::transform), "XSLT should release the document.");
+
+			xpath.setRetentionPolicy(RetentionPolicy.RETAIN_ALL);
+			assertEquals(false, isReleased(xpath::evaluate), "XPath should keep the document.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testReleasePooledContext() {
+		try {
+			Map<String,String> expressions = new LinkedHashMap<String,String>();
+			expressions.put("title", "/books/book/title");
+			expressions.put("lang", "string(/books/book/title/@lang)");
+			XPathMultiProcessor multi = XPathMultiProcessor.getInstance(expressions);
+			assertTrue(isReleased(multi::evaluate), "XPathMultiProcessor should release the document.");
+			multi.setRetentionPolicy(RetentionPolicy.RETAIN_ALL);
+			assertEquals(false, isReleased(multi::evaluate), "XPathMultiProcessor should keep the document.");
+
+			// The evaluator goes back to the pool without the document it was given
+			ConcurrentXQueryProcessor xquery = ConcurrentXQueryProcessor.getInstance("declare namespace t='urn:test'; t:capture(/)",
+					null, null, Collections.<ExtensionFunction>singleton(new Capture()));
+			xquery.evaluate(books);
+			assertTrue(isReleased(Capture.captured), "ConcurrentXQueryProcessor should release the document.");
+			xquery.setRetentionPolicy(RetentionPolicy.RETAIN_ALL);
+			xquery.evaluate(books);
+			assertEquals(false, isReleased(Capture.captured), "ConcurrentXQueryProcessor should keep the document.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testPolicy() {
+		assertEquals(RetentionPolicy.DEFAULT_MAXIMUM_BUFFER_SIZE, RetentionPolicy.DEFAULT.getMaximumBufferSize());
+		RetentionPolicy policy = RetentionPolicy.getInstance(4, false);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		baos.write(1);
+		assertEquals(false, policy.isOversized(baos), "Should keep a small buffer.");
+		baos.write(new byte[10], 0, 10);
+		assertEquals(true, policy.isOversized(baos), "Should drop a large buffer.");
+		assertNull(null);
+	}
+
+	private interface Call {
+		Object apply(ParsedDocument doc) throws Exception;
+	}
+
+	/**
+	 * Keeps a weak reference to the document it is called with.
+	 */
+	private static class Capture implements ExtensionFunction {
+
+		private static WeakReference<Object> captured = null;
+
+		@Override
+		public QName getName() {
+			return new QName("urn:test", "capture");
+		}
+
+		@Override
+		public SequenceType getResultType() {
+			return SequenceType.makeSequenceType(ItemType.ANY_ITEM, OccurrenceIndicator.ZERO);
+		}
+
+		@Override
+		public SequenceType[] getArgumentTypes() {
+			return new SequenceType[] { SequenceType.makeSequenceType(ItemType.ANY_NODE, OccurrenceIndicator.ONE) };
+		}
+
+		@Override
+		public XdmValue call(XdmValue[] arguments) {
+			captured = new WeakReference<Object>(((XdmNode) arguments[0]).getUnderlyingNode().getTreeInfo());
+			return XdmEmptySequence.getInstance();
+		}
+
+	}
+
+	/**
+	 * @return true if the document can be garbage collected after the call
+	 */
+	private static boolean isReleased(Call call) throws Exception {
+		ParsedDocument doc = ParsedDocument.parse(books);
+		call.apply(doc);
+		WeakReference<Object> ref = new WeakReference<Object>(doc.getNode().getUnderlyingNode().getTreeInfo());
+		doc = null;
+		return isReleased(ref);
+	}
+
+	/**
+	 * @return true if the referenced document is garbage collected
+	 */
+	private static boolean isReleased(WeakReference<Object> ref) throws Exception {
+		for (int i = 0; i < 20 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		return ref.get() == null;
+	}
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+
+import com.elsevier.spark_xml_utils.xpath.XPathException;
+import com.elsevier.spark_xml_utils.xpath.XPathProcessor;
+import com.elsevier.spark_xml_utils.xquery.XQueryProcessor;
+
+public class TestTypedResults {
+
+	private static String books = "<books><book id='b1'><title>Harry Potter</title><year>2005</year><price>29.99</price></book>"
+			+ "<book id='b2'><title>Learning XML</title><year>2003</year><price>39.95</price></book></books>";
+
+	@Test
+	public void testXPath() {
+		try {
+			assertEquals(Arrays.asList("b1", "b2"), XPathProcessor.getInstance("/books/book/@id").evaluateToStrings(books), "Should return the identifiers.");
+			assertEquals(Collections.emptyList(), XPathProcessor.getInstance("/books/magazine").evaluateToStrings(books), "Should return no strings.");
+			assertEquals(Arrays.asList("1", "2", "3"), XPathProcessor.getInstance("[1, [2, 3]]").evaluateToStrings(books), "Should flatten arrays.");
+			assertEquals(2L, (long) XPathProcessor.getInstance("count(/books/book)").evaluateToLong(books), "Should return the count.");
+			assertEquals(2005L, (long) XPathProcessor.getInstance("/books/book[1]/year").evaluateToLong(books), "Should convert the node.");
+			assertNull(XPathProcessor.getInstance("/books/book[3]/year").evaluateToLong(books), "Should return null when empty.");
+			assertEquals(69.94, XPathProcessor.getInstance("sum(/books/book/price)").evaluateToDouble(books), 0.0001, "Should return the sum.");
+			assertEquals(true, XPathProcessor.getInstance("/books/book[year > 2004]").evaluateToBoolean(books), "Should return the effective boolean value.");
+			assertEquals(false, XPathProcessor.getInstance("/books/book[year > 2010]").evaluateToBoolean(books), "Should return the effective boolean value.");
+			assertEquals(true, XPathProcessor.getInstance("/books/book[1]/title").evaluateToBoolean(ParsedDocument.parse(books)), "Should evaluate a ParsedDocument.");
+
+			XPathProcessor proc = XPathProcessor.getInstance("/books/book/year");
+			XPathException e = assertThrows(XPathException.class, () -> proc.evaluateToLong(books), "Should fail on more than one item.");
+			assertEquals(ErrorCause.EVALUATION, e.getErrorCause(), "Should be an evaluation error.");
+			assertThrows(XPathException.class, () -> XPathProcessor.getInstance("/books/book[1]/title").evaluateToDouble(books), "Should fail on a string that isn't a number.");
+			proc.setErrorPolicy(ErrorPolicy.RETURN_NULL);
+			assertNull(proc.evaluateToLong(books), "Should return null under the error policy.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testWholeNumbers() {
+		try {
+			assertEquals(42L, (long) XPathProcessor.getInstance("xs:double('42')").evaluateToLong(books), "Should convert a whole double.");
+			assertEquals(-5L, (long) XPathProcessor.getInstance("-5.0").evaluateToLong(books), "Should convert a whole decimal.");
+			assertThrows(XPathException.class, () -> XPathProcessor.getInstance("3.7").evaluateToLong(books), "Should not truncate a fraction.");
+			assertThrows(XPathException.class, () -> XPathProcessor.getInstance("xs:double('NaN')").evaluateToLong(books), "Should reject NaN.");
+			assertThrows(XPathException.class, () -> XPathProcessor.getInstance("1e30").evaluateToLong(books), "Should reject a number too large for a long.");
+			assertThrows(XPathException.class, () -> XPathProcessor.getInstance("'99999999999999999999'").evaluateToLong(books), "Should reject a string too large for a long.");
+
+			assertEquals("FORG0001", code(new XdmAtomicValue(3.7)), "Should reject a fraction.");
+			assertEquals("FOCA0002", code(new XdmAtomicValue(Double.NaN)), "Should reject NaN.");
+			assertEquals("FOCA0002", code(new XdmAtomicValue(Double.POSITIVE_INFINITY)), "Should reject infinity.");
+			assertEquals("FOAR0002", code(new XdmAtomicValue(1e30)), "Should reject a double too large for a long.");
+			assertEquals("FOAR0002", code(new XdmAtomicValue(0x1p63)), "Should reject 2^63.");
+			assertEquals("FOAR0002", code(new XdmAtomicValue(new BigDecimal("99999999999999999999"))), "Should reject a decimal too large for a long.");
+			assertEquals(Long.MIN_VALUE, (long) TypedResults.toLong(new XdmAtomicValue(-0x1p63)), "Should convert -2^63.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	private static String code(XdmAtomicValue value) {
+		SaxonApiException e = assertThrows(SaxonApiException.class, () -> TypedResults.toLong(value));
+		return e.getErrorCode().getLocalName();
+	}
+
+	@Test
+	public void testMap() {
+		try {
+			XPathProcessor proc = XPathProcessor.getInstance("map { 'count' : count(/books/book), 'titles' : array { /books/book/title/string() }, "
+					+ "'first' : map { 'id' : string(/books/book[1]/@id), 'published' : xs:date('2005-07-16') }, 'none' : () }");
+			Map<String,Object> map = proc.evaluateToMap(books);
+			assertEquals(2L, map.get("count"), "Should convert the integer.");
+			assertEquals(Arrays.asList("Harry Potter", "Learning XML"), map.get("titles"), "Should convert the array.");
+			@SuppressWarnings("unchecked")
+			Map<String,Object> first = (Map<String,Object>) map.get("first");
+			assertEquals("b1", first.get("id"), "Should convert the nested map.");
+			assertEquals(LocalDate.of(2005, 7, 16), first.get("published"), "Should convert the date.");
+			assertNull(map.get("none"), "Should convert the empty sequence.");
+			assertThrows(XPathException.class, () -> XPathProcessor.getInstance("/books").evaluateToMap(books), "Should fail when the result isn't a map.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testXQuery() {
+		try {
+			XQueryProcessor proc = XQueryProcessor.getInstance("for $book in /books/book order by $book/year return string($book/title)");
+			assertEquals(Arrays.asList("Learning XML", "Harry Potter"), proc.evaluateToStrings(books), "Should return the titles.");
+			assertEquals(Arrays.asList("Learning XML", "Harry Potter"), proc.evaluateToStrings(ParsedDocument.parse(books)), "Should evaluate a ParsedDocument.");
+			assertEquals(4008L, (long) XQueryProcessor.getInstance("sum(/books/book/year)").evaluateToLong(books), "Should return the sum.");
+			assertEquals(39.95, XQueryProcessor.getInstance("max(/books/book/price)").evaluateToDouble(books), 0.0001, "Should return the maximum.");
+			assertEquals(false, XQueryProcessor.getInstance("exists(/books/magazine)").evaluateToBoolean(books), "Should return the boolean.");
+			Map<String,Object> map = XQueryProcessor.getInstance("declare namespace map = 'http://www.w3.org/2005/xpath-functions/map'; map:merge(for $book in /books/book return map { string($book/@id) : number($book/price) })").evaluateToMap(books);
+			assertEquals(39.95, (Double) map.get("b2"), 0.0001, "Should convert the double.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.common.ErrorPolicy;
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+
+public class TestColumnarExtractor {
+
+	private static ExtractionSpec spec() {
+		return ExtractionSpec.getInstance()
+				.addString("title", "/book/title")
+				.addLong("year", "/book/year")
+				.addDouble("price", "/book/price")
+				.addBoolean("ebook", "/book/@ebook = 'yes'")
+				.addLong("pages", "count(/book/page)");
+	}
+
+	@Test
+	public void testExtract() {
+		try {
+			List<Object> records = Arrays.asList(
+					"<book ebook='yes'><title>Harry Potter</title><year> 2005 </year><price>29.99</price><page/><page/></book>",
+					"<book><title>Café 😀</title><year>-9223372036854775808</year></book>".getBytes(StandardCharsets.UTF_8),
+					null,
+					ParsedDocument.parse("<book><title/><price>1e3</price></book>"));
+			ColumnarExtractor extractor = ColumnarExtractor.getInstance(spec());
+			ColumnBatch batch = extractor.extract(records.iterator(), 10);
+
+			assertEquals(4, batch.getRowCount(), "Should have a row per record.");
+			assertEquals("Harry Potter", batch.getString(0, 0), "Should extract the string.");
+			assertEquals("Café 😀", batch.getString(0, 1), "Should encode the string as UTF-8.");
+			assertEquals("", batch.getString(0, 3), "Should keep an empty string.");
+			assertNull(batch.getString(0, 2), "Should be null for a null record.");
+			int[] offsets = batch.getStringOffsets(0);
+			assertEquals(12, offsets[1], "Should give the end of each string.");
+			assertEquals(offsets[2], offsets[3], "Should have no bytes for a null cell.");
+
+			assertEquals(2005, batch.getLong(1, 0), "Should convert the trimmed string value.");
+			assertEquals(Long.MIN_VALUE, batch.getLongs(1)[1], "Should convert the smallest long.");
+			assertTrue(batch.isNull(1, 3), "Should be null for an empty result.");
+			assertEquals(29.99, batch.getDouble(2, 0), "Should convert the double.");
+			assertTrue(batch.isNull(2, 1), "Should be null for an empty result.");
+			assertEquals(1000, batch.getDouble(2, 3), "Should convert the double.");
+			assertTrue(batch.getBoolean(3, 0), "Should use the effective boolean value.");
+			assertFalse(batch.getBoolean(3, 1), "Should use the effective boolean value.");
+			assertFalse(batch.isNull(3, 1), "Should not be null.");
+			assertEquals(2, batch.getLong(4, 0), "Should take a number as it is.");
+			assertEquals(0x0BL, batch.getValidity(0)[0], "Should mark the valid cells.");
+			assertEquals(0, batch.getFailedCount(), "Should have no failures.");
+
+			assertThrows(IllegalArgumentException.class, () -> batch.getDoubles(0), "Should check the type of the column.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testErrors() {
+		try {
+			List<String> records = Arrays.asList(
+					"<book><title>One</title><year>2001</year></book>",
+					"<book><title>Two</title><year>unknown</year></book>",
+					"<book>",
+					"<book><title>Four</title><title>Again</title></book>",
+					"<book><title>Five</title><year>99999999999999999999</year></book>");
+			ColumnarExtractor extractor = ColumnarExtractor.getInstance(spec());
+			assertThrows(XPathException.class, () -> extractor.extract(records.iterator(), 10), "Should throw by default.");
+
+			extractor.setErrorPolicy(ErrorPolicy.COLLECT);
+			extractor.drainErrors();
+			ColumnBatch batch = extractor.extract(records.iterator(), 10);
+			assertEquals(5, batch.getRowCount(), "Should keep the failed rows.");
+			assertEquals(4, batch.getFailedCount(), "Should count the failed rows.");
+			assertFalse(batch.isFailed(0), "Should not fail a good row.");
+			assertEquals("One", batch.getString(0, 0), "Should extract the good row.");
+			for (int row = 1; row < 5; row++) {
+				assertTrue(batch.isFailed(row), "Should mark the failed row.");
+				assertTrue(batch.isNull(0, row), "Should drop the values of the failed row.");
+			}
+			assertEquals(batch.getStringOffsets(0)[1], batch.getStringOffsets(0)[5], "Should drop the bytes of the failed rows.");
+			assertEquals(4, extractor.drainErrors().size(), "Should collect the errors.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testWholeNumbers() {
+		try {
+			List<String> records = Arrays.asList("<a>42</a>", "<a>3.7</a>", "<a>NaN</a>", "<a>1e30</a>");
+			ExtractionSpec spec = ExtractionSpec.getInstance()
+					.addLong("number", "number(/a)")
+					.addLong("double", "xs:double(/a)");
+			ColumnarExtractor extractor = ColumnarExtractor.getInstance(spec);
+			extractor.setErrorPolicy(ErrorPolicy.COLLECT);
+			ColumnBatch batch = extractor.extract(records.iterator(), 10);
+			assertEquals(4, batch.getRowCount(), "Should keep every row.");
+			assertFalse(batch.isFailed(0), "Should convert a whole number.");
+			assertEquals(42L, batch.getLong(0, 0), "Should convert a whole number.");
+			assertEquals(42L, batch.getLong(1, 0), "Should convert a whole number.");
+			assertTrue(batch.isFailed(1), "Should not truncate a fraction.");
+			assertTrue(batch.isFailed(2), "Should reject NaN.");
+			assertTrue(batch.isFailed(3), "Should reject a number too large for a long.");
+			assertEquals(3, extractor.drainErrors().size(), "Should collect the errors.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testBatches() {
+		try {
+			String[] records = new String[10];
+			for (int i = 0; i < records.length; i++) {
+				records[i] = "<book><title>Title " + i + "</title><year>" + (2000 + i) + "</year></book>";
+			}
+			ColumnarExtractor extractor = ColumnarExtractor.getInstance(spec());
+
+			// Serialize and restore the extractor (as Spark does)
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			new ObjectOutputStream(baos).writeObject(extractor);
+			ColumnarExtractor restored = (ColumnarExtractor) new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject();
+
+			Iterator<ColumnBatch> batches = restored.extractBatches(Arrays.asList(records).iterator(), 4);
+			int[] sizes = new int[3];
+			int b = 0;
+			long sum = 0;
+			while (batches.hasNext()) {
+				ColumnBatch batch = batches.next();
+				sizes[b++] = batch.getRowCount();
+				for (int row = 0; row < batch.getRowCount(); row++) {
+					sum += batch.getLong(1, row);
+				}
+			}
+			assertEquals("[4, 4, 2]", Arrays.toString(sizes), "Should split the records into batches.");
+			assertEquals(20045, sum, "Should extract every row.");
+
+			// Reuse a batch
+			ColumnBatch batch = restored.newBatch(3);
+			Iterator<String> iterator = Arrays.asList(records).iterator();
+			assertEquals(3, restored.fill(batch, iterator), "Should fill the batch.");
+			assertEquals(3, restored.fill(batch, iterator), "Should fill the batch again.");
+			assertEquals("Title 3", batch.getString(0, 0), "Should start again at the first row.");
+			assertEquals(0, batch.getStringOffsets(0)[0], "Should start again at the first byte.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.common.EvaluatorPool;
+
+public class TestConcurrentXPathProcessor {
+
+	@Test
+	public void testFilterAndEvaluate() {
+		try {
+			ConcurrentXPathProcessor proc = ConcurrentXPathProcessor.getInstance("/name[.='john']");
+			assertEquals(true, proc.filterString("<name>john</name>"), "Should return true.");
+			assertEquals(false, proc.filterString("<name>joe</name>"), "Should return false.");
+			assertEquals("<name>john</name>", proc.evaluateString("<name>john</name>"), "Should match <name>john</name>.");
+			assertEquals("", proc.evaluateString("<name>joe</name>"), "Should match nothing.");
+		} catch (XPathException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSharedAcrossThreads() {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final ConcurrentXPathProcessor proc = ConcurrentXPathProcessor.getInstance("/doc/id/text()");
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 2000; i++) {
+				final String id = Integer.toString(i);
+				results.add(executor.submit(() -> id.equals(proc.evaluateString("<doc><id>" + id + "</id></doc>"))));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get(), "Each thread should see its own result.");
+			}
+			EvaluatorPool<?> pool = proc.getEvaluatorPool();
+			assertEquals(2000, pool.getBorrowCount(), "Should borrow once per call.");
+			assertEquals(0, pool.getInUseCount(), "All evaluators should be returned.");
+			assertTrue(pool.getCreationCount() <= 2000, "Evaluators should be reused.");
+			assertTrue(pool.getIdleCount() <= pool.getCapacity(), "Pool should stay bounded.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class TestXPathMultiProcessor {
+
+	private static String doc = "<xocs:doc xmlns:xocs='http://www.elsevier.com/xml/xocs/dtd' xmlns:ce='http://www.elsevier.com/xml/common/dtd'>"
+			+ "<xocs:meta><xocs:eid>1-s2.0-S0006291X96917131</xocs:eid><xocs:doi>10.1006/bbrc.1996.1713</xocs:doi><xocs:cid>272308</xocs:cid></xocs:meta>"
+			+ "<xocs:serial-item><ce:author><ce:surname>Brodie</ce:surname></ce:author><ce:author><ce:surname>Manning</ce:surname></ce:author>"
+			+ "<ce:section><ce:author><ce:surname>Nested</ce:surname></ce:author></ce:section></xocs:serial-item>"
+			+ "</xocs:doc>";
+
+	private static HashMap<String,String> namespaces() {
+		HashMap<String,String> pfxUriMap = new HashMap<String,String>();
+		pfxUriMap.put("xocs", "http://www.elsevier.com/xml/xocs/dtd");
+		pfxUriMap.put("ce", "http://www.elsevier.com/xml/common/dtd");
+		return pfxUriMap;
+	}
+
+	@Test
+	public void testEvaluateMatchesXPathProcessor() {
+		try {
+			LinkedHashMap<String,String> expressions = new LinkedHashMap<String,String>();
+			expressions.put("eid", "/xocs:doc/xocs:meta/xocs:eid/text()");
+			expressions.put("doi", "/xocs:doc/xocs:meta/xocs:doi/text()");
+			expressions.put("meta", "/xocs:doc/xocs:meta");
+			expressions.put("cid", "number(/xocs:doc/xocs:meta/xocs:cid)");
+			expressions.put("surnames", "/xocs:doc/xocs:serial-item//ce:surname/text()");
+			expressions.put("first", "/xocs:doc/xocs:serial-item/ce:author[1]/ce:surname/text()");
+			expressions.put("eid2", "/xocs:doc/xocs:meta/xocs:eid/text()");
+			XPathMultiProcessor multi = XPathMultiProcessor.getInstance(expressions, namespaces());
+
+			Map<String,String> results = multi.evaluate(doc);
+			assertEquals(Arrays.asList("eid", "doi", "meta", "cid", "surnames", "first", "eid2"), Arrays.asList(results.keySet().toArray()), "Results should keep the given order.");
+			for (Map.Entry<String,String> entry : expressions.entrySet()) {
+				XPathProcessor single = XPathProcessor.getInstance(entry.getValue(), namespaces());
+				assertEquals(single.evaluate(doc), results.get(entry.getKey()), "Should match XPathProcessor for " + entry.getKey());
+			}
+			assertEquals("BrodieManningNested", results.get("surnames"), "Should match all surnames.");
+			assertArrayEquals(results.values().toArray(new String[0]), multi.evaluateToArray(doc), "Positional results should match.");
+
+			// eid2 duplicates eid, eid and doi reuse the value of meta, and surnames and first share
+			// the serial-item prefix: 5 distinct expressions (other than meta) + 2 prefixes
+			assertEquals(7, multi.getEvaluationCount(), "Shared work should be evaluated once.");
+		} catch (XPathException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSplitSteps() {
+		assertEquals(Arrays.asList("", "a", "b[@c='/x y']", "d"), XPathMultiProcessor.splitSteps("/a/b[@c='/x y']/d"), "Should split at top level slashes.");
+		assertEquals(Arrays.asList("", "a", "", "b"), XPathMultiProcessor.splitSteps("/a//b"), "Should keep '//' as an empty step.");
+		assertNull(XPathMultiProcessor.splitSteps("/a/b | /a/c"), "Unions are not single paths.");
+		assertNull(XPathMultiProcessor.splitSteps("count(/a/b)"), "Function calls are not single paths.");
+		assertNull(XPathMultiProcessor.splitSteps("//a/b"), "Paths starting with '//' are not split.");
+		assertNull(XPathMultiProcessor.splitSteps("/a/b=1"), "Comparisons are not single paths.");
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xpath;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XPathExecutable;
+
+import org.junit.jupiter.api.Test;
+
+public class TestXPathPrefilter {
+
+	private static String[] expressions = {
+		"/books/book",
+		"/books/book[year=2005]",
+		"/books/book[title='Harry Potter']",
+		"//title[contains(.,'Potter')]",
+		"//title[starts-with(.,'Harry')]",
+		"//title[ends-with(.,'Potter')]",
+		"/books/book/title/@lang='en'",
+		"//title[@lang=('en','fr')]",
+		"/books/book[title eq 'Harry Potter']",
+		"/books/magazine or //price",
+		"/books/magazine and //price",
+		"/books/magazine | /books/book",
+		"not(/books/magazine)",
+		"count(//book) > 0",
+		"//*:title[. = 'HarryPotter']",
+		"//comment() = 'Potter'",
+		"//title[. = 'Harry & Potter']",
+		"/books/book[1]"
+	};
+
+	private static String[] documents = {
+		"<books><book><title lang=\"en\">Harry Potter</title><author>J K. Rowling</author><year>2005</year><price>29.99</price></book></books>",
+		"<books><book><title lang=\"fr\">Harry<!-- split --> Potter</title><year>2005</year></book></books>",
+		"<books><book><title>Harry<b/>Potter</title></book></books>",
+		"<books><book><title>Har<i a=\"1\">ry Pot</i>ter</title></book></books>",
+		"<books><book><title><![CDATA[Harry]]>Potter</title></book></books>",
+		"<books><book><title>Harry &amp; Potter</title></book></books>",
+		"<books><book><title>Harry&#32;Potter</title></book></books>",
+		"<books><book><title lang=\"&#101;n\">Harry&#x20;Potter</title></book></books>",
+		"<books><!--Potter--><magazine/></books>",
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- books --><books><book><title>Harry\r\nPotter</title></book></books>",
+		"<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><books><book><title>Harry Potter</title></book></books>",
+		"<b:books xmlns:b=\"urn:b\"><b:book><b:title>Harry Potter</b:title></b:book></b:books>",
+		"<magazines><magazine><title>Vogue</title></magazine></magazines>",
+		"<books><book year=\"2005\"><title>Other</title></book></books>",
+		"<books>é<book><title>Harry Potter é</title></book></books>"
+	};
+
+	@Test
+	public void testSameResultsAsFullEvaluation() {
+		try {
+			for (String expression : expressions) {
+				XPathProcessor prefiltered = XPathProcessor.getInstance(expression);
+				XPathProcessor full = XPathProcessor.getInstance(expression);
+				full.setPrefilterEnabled(false);
+				for (String document : documents) {
+					boolean expected = full.filterString(document);
+					assertEquals(expected, prefiltered.filterString(document), expression + " on " + document);
+					assertEquals(expected, prefiltered.filterStream(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8))), expression + " on " + document);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testRejectsWithoutParsing() {
+		try {
+			XPathProcessor proc = XPathProcessor.getInstance("/books/book[title='Harry Potter']");
+			// Not well formed, but missing the required names so never parsed
+			assertEquals(false, proc.filterString("<magazines><magazine>"), "Should return false.");
+			assertEquals(false, proc.filterString("<books><book><title>Vogue</title></book></books>"), "Should return false.");
+			assertEquals(2, proc.getPrefilterRejectCount(), "Should reject both without parsing.");
+			assertEquals(true, proc.filterString("<books><book><title>Harry Potter</title></book></books>"), "Should return true.");
+			assertEquals(2, proc.getPrefilterRejectCount(), "Should not reject a match.");
+
+			ConcurrentXPathProcessor concurrent = ConcurrentXPathProcessor.getInstance("//book");
+			assertEquals(false, concurrent.filterString("<magazines><magazine/></magazines>"), "Should return false.");
+			assertEquals(1, concurrent.getPrefilterRejectCount(), "Should reject without parsing.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testTextSplitByInlineElement() {
+		try {
+			XPathProcessor proc = XPathProcessor.getInstance("/p[contains(.,'Harry')]");
+			assertEquals(true, proc.filterString("<p>Har<i a=\"1\">ry</i></p>"), "Should find text split by an element with attributes.");
+			assertEquals(true, proc.filterString("<p>Ha<i a='x'/>r<b c=\"y\">ry</b></p>"), "Should find text split by several elements.");
+			assertEquals(false, proc.filterString("<p>Har<i a=\"ry\">x</i></p>"), "Should not join text with an attribute value.");
+			assertEquals(1, proc.getPrefilterRejectCount(), "Should only reject the document without the text.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testCharacters() {
+		try {
+			// Characters are scanned and parsed as characters, whatever encoding is declared
+			String latin = "<?xml version='1.0' encoding='ISO-8859-1'?><a>café</a>";
+			String[] filters = { "/a[. = 'café']", "/a[contains(., 'é')]", "/a[. = 'cafe']", "/a[. = 'caf😀']" };
+			String[] contents = { latin, "<!-- é --><a>café</a>", "<a>caf😀</a>", "<a x='café'/>", "<a><![CDATA[café]]></a>" };
+			for (String expression : filters) {
+				XPathProcessor prefiltered = XPathProcessor.getInstance(expression);
+				XPathProcessor full = XPathProcessor.getInstance(expression);
+				full.setPrefilterEnabled(false);
+				ConcurrentXPathProcessor concurrent = ConcurrentXPathProcessor.getInstance(expression);
+				for (String content : contents) {
+					boolean expected = full.filterString(content);
+					assertEquals(expected, prefiltered.filterString(content), expression + " on " + content);
+					assertEquals(expected, prefiltered.filter(new StringBuilder(content)), expression + " on " + content);
+					assertEquals(expected, concurrent.filterString(content), expression + " on " + content);
+				}
+			}
+			assertEquals(true, XPathProcessor.getInstance("/a[. = 'café']").filterString(latin), "Should read the characters.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDoctypeFallsBack() {
+		try {
+			HashMap<String,Object> featureMap = new HashMap<String,Object>();
+			featureMap.put(net.sf.saxon.lib.FeatureKeys.ENTITY_RESOLVER_CLASS, "com.elsevier.spark_xml_utils.common.IgnoreDoctype");
+			XPathProcessor proc = XPathProcessor.getInstance("/books/book[title='Harry Potter']", null, featureMap);
+			assertEquals(true, proc.filterString("<!DOCTYPE books [<!ENTITY hp \"Harry Potter\">]><books><book><title>&hp;</title></book></books>"), "Should return true.");
+			assertEquals(0, proc.getPrefilterRejectCount(), "Should not scan content with a DOCTYPE.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testTokens() {
+		try {
+			assertEquals(Arrays.asList("books", "book", "title", "Harry", "Potter"), Arrays.asList(tokens("/books/book[title='Harry Potter']")));
+			assertEquals(Arrays.asList("book", "year"), Arrays.asList(tokens("//book[year=2005]")));
+			assertEquals(Arrays.asList("magazine", "price"), Arrays.asList(tokens("/magazine or //price")));
+			assertNull(prefilter("not(//magazine)"), "Nothing is required.");
+			assertNull(prefilter("count(//book) > 0"), "Nothing is required.");
+			assertNull(prefilter("/*/*"), "Nothing is required.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	private static XPathPrefilter prefilter(String expression) throws Exception {
+		XPathExecutable exp = new Processor(false).newXPathCompiler().compile(expression);
+		return XPathPrefilter.getInstance(exp, null);
+	}
+
+	private static String[] tokens(String expression) throws Exception {
+		XPathPrefilter prefilter = prefilter(expression);
+		assertNotNull(prefilter, "Tokens are required.");
+		return prefilter.getTokens();
+	}
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xslt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.HashMap;
+
+import org.junit.jupiter.api.Test;
+
+public class TestConcurrentXSLTProcessor {
+
+	private static String stylesheet = "<?xml version='1.0' encoding='UTF-8'?>"
+			+ "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+			+ "<xsl:output method='xml' encoding='utf-8' indent='no'/>"
+			+ "<xsl:param name='givenName' select='()'/>"
+			+ "<xsl:template match='/'>"
+			+ "<name><xsl:value-of select='$givenName//text()'/></name>"
+			+ "</xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	@Test
+	public void testParametersDoNotLeak() {
+		try {
+			ConcurrentXSLTProcessor proc = ConcurrentXSLTProcessor.getInstance(stylesheet);
+			HashMap<String,String> stylesheetParams = new HashMap<String,String>();
+			stylesheetParams.put("givenName", "<a>Darin</a>");
+			assertEquals("<name>Darin</name>", proc.transform("<stuff/>", stylesheetParams), "Use stylesheet params");
+			assertEquals("<name/>", proc.transform("<stuff/>"), "Params from the previous call should not be used");
+		} catch (XSLTException e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c)2015 Elsevier, Inc.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.elsevier.spark_xml_utils.xslt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.elsevier.spark_xml_utils.common.ResourceCache;
+import com.elsevier.spark_xml_utils.common.ResourceFetcher;
+
+public class TestStylesheetBundle {
+
+	private static Map<String,String> resources = new HashMap<String,String>();
+	static {
+		resources.put("test://styles/main.xsl", "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+				+ "<xsl:import href='lib/common.xsl'/>"
+				+ "<xsl:output method='text'/>"
+				+ "<xsl:template match='/'>"
+				+ "<xsl:value-of select=\"upper-case(/books/book/title), document('data/lookup.xml')/codes/code[@id='1']\" separator=' '/>"
+				+ "<xsl:if test='false()'><xsl:value-of select=\"doc('data/missing.xml')\"/></xsl:if>"
+				+ "<xsl:call-template name='inner'/>"
+				+ "</xsl:template>"
+				+ "</xsl:stylesheet>");
+		resources.put("test://styles/lib/common.xsl", "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+				+ "<xsl:include href='inner.xsl'/>"
+				+ "</xsl:stylesheet>");
+		resources.put("test://styles/lib/inner.xsl", "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+				+ "<xsl:template name='inner'>!</xsl:template>"
+				+ "</xsl:stylesheet>");
+		resources.put("test://styles/data/lookup.xml", "<codes><code id='1'>fiction</code></codes>");
+	}
+
+	private static ResourceFetcher fetcher = new ResourceFetcher() {
+		@Override
+		public boolean accepts(URI uri) {
+			return "test".equals(uri.getScheme());
+		}
+		@Override
+		public boolean isRemote() {
+			return true;
+		}
+		@Override
+		public byte[] fetch(URI uri) throws FileNotFoundException {
+			String content = resources.get(uri.toString());
+			if (content == null) {
+				throw new FileNotFoundException(uri.toString());
+			}
+			return content.getBytes(StandardCharsets.UTF_8);
+		}
+	};
+
+	private static String book = "<books><book><title>Harry Potter</title></book></books>";
+
+	@Test
+	public void testBundle() {
+		StylesheetBundle bundle = null;
+		try {
+			ResourceCache.registerFetcher(fetcher);
+			bundle = StylesheetBundle.buildFromUri("test://styles/main.xsl");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			ResourceCache.unregisterFetcher(fetcher);
+			ResourceCache.clear();
+		}
+
+		try {
+			assertEquals(new HashSet<String>(Arrays.asList("test://styles/lib/common.xsl", "test://styles/lib/inner.xsl", "test://styles/data/lookup.xml")),
+					bundle.getResourceUris(), "Should hold the imports, includes and documents.");
+
+			// Nothing can be retrieved any more, so the stylesheet is compiled from the bundle alone
+			String stylesheet = bundle.getStylesheet();
+			assertThrows(XSLTException.class, () -> XSLTProcessor.getInstance(stylesheet), "Should not resolve the imports without the bundle.");
+			XSLTProcessor proc = XSLTProcessor.getInstance(bundle);
+			proc.setOutputMethod("text");
+			assertEquals("HARRY POTTER fiction!", proc.transform(book), "Should use the bundled imports and documents.");
+
+			// Serialized with the processor (as Spark does)
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			new ObjectOutputStream(baos).writeObject(proc);
+			XSLTProcessor restored = (XSLTProcessor) new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject();
+			restored.setOutputMethod("text");
+			assertEquals("HARRY POTTER fiction!", restored.transform(book), "Should transform after deserialization.");
+
+			ConcurrentXSLTProcessor concurrent = ConcurrentXSLTProcessor.getInstance(bundle);
+			concurrent.setOutputMethod("text");
+			assertEquals("HARRY POTTER fiction!", concurrent.transform(book), "Should use the bundle concurrently.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testZip() {
+		try {
+			ResourceCache.registerFetcher(fetcher);
+			StylesheetBundle bundle = StylesheetBundle.build(resources.get("test://styles/main.xsl"), "test://styles/main.xsl");
+			ByteArrayOutputStream zip = new ByteArrayOutputStream();
+			bundle.writeTo(zip);
+			StylesheetBundle read = StylesheetBundle.readFrom(new ByteArrayInputStream(zip.toByteArray()));
+			assertEquals(bundle.getKey(), read.getKey(), "Should read back the same bundle.");
+			assertEquals(bundle.getBaseUri(), read.getBaseUri(), "Should read back the base uri.");
+			assertEquals(new String(bundle.getResource("test://styles/lib/inner.xsl"), StandardCharsets.UTF_8),
+					new String(read.getResource("test://styles/lib/inner.xsl"), StandardCharsets.UTF_8), "Should read back each resource.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			ResourceCache.unregisterFetcher(fetcher);
+		}
+	}
+
+}
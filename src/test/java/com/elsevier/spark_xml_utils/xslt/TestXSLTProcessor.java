@@ -19,15 +19,22 @@ package com.elsevier.spark_xml_utils.xslt;
 import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.fail;
 
 import net.sf.saxon.lib.FeatureKeys;
 
+import com.elsevier.spark_xml_utils.common.ParsedDocument;
+import com.elsevier.spark_xml_utils.common.RetentionPolicy;
+
 public class TestXSLTProcessor {
 
 	private static String stylesheet1 = "<?xml version='1.0' encoding='UTF-8'?>"
@@ -67,6 +74,19 @@ public class TestXSLTProcessor {
             + "</xsl:template>"
 			+ "</xsl:stylesheet>";
 	
+	private static String stylesheet4 = "<?xml version='1.0' encoding='UTF-8'?>"
+			+ "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' xmlns:xs='http://www.w3.org/2001/XMLSchema' version='2.0'>"
+			+ "<xsl:output method='text'/>"
+			+ "<xsl:param name='label' as='xs:string' select=\"'none'\"/>"
+			+ "<xsl:param name='count' as='xs:integer' select='0'/>"
+			+ "<xsl:param name='ratio' as='xs:double' select='0'/>"
+			+ "<xsl:param name='flag' as='xs:boolean' select='false()'/>"
+			+ "<xsl:param name='doc' select='()'/>"
+			+ "<xsl:template match='/'>"
+			+ "<xsl:value-of select='$label, $count + 1, $ratio * 2, not($flag), $doc//text(), generate-id($doc)' separator='|'/>"
+			+ "</xsl:template>"
+			+ "</xsl:stylesheet>";
+	
 	
 	@Test
 	public void testTransform1() {
@@ -138,4 +158,80 @@ public class TestXSLTProcessor {
 	}
 
 
+	@Test
+	public void testTypedParams() {
+		
+		try {
+
+			XSLTProcessor proc = XSLTProcessor.getInstance(stylesheet4);
+			proc.setOutputMethod("text");
+			proc.setStylesheetParam("label", "<not parsed>");
+			proc.setStylesheetParam("count", 41L);
+			proc.setStylesheetParam("ratio", 1.25);
+			proc.setStylesheetParam("flag", true);
+			String[] first = proc.transform("<stuff/>").split("\\|");
+			assertEquals("<not parsed>", first[0], "Should bind a string without parsing it.");
+			assertEquals("42", first[1], "Should bind an integer.");
+			assertEquals("2.5", first[2], "Should bind a double.");
+			assertEquals("false", first[3], "Should bind a boolean.");
+			
+			// A parameter given as xml is parsed once (the same document is bound again)
+			HashMap<String,String> stylesheetParams = new HashMap<String,String>();
+			stylesheetParams.put("doc", "<a>text</a>");
+			String[] second = proc.transform("<stuff/>", stylesheetParams).split("\\|");
+			String[] third = proc.transform("<other/>", new HashMap<String,String>(stylesheetParams)).split("\\|");
+			assertEquals("text", second[4], "Should bind the parsed xml.");
+			assertEquals(second[5], third[5], "Should reuse the parsed xml.");
+			
+			// A typed parameter and an XdmNode built by the same processor
+			proc.setStylesheetParam("label", "changed");
+			proc.setStylesheetParam("doc", ParsedDocument.parse("<b>node</b>").getNode());
+			String[] fourth = proc.transform("<stuff/>").split("\\|");
+			assertEquals("changed", fourth[0], "Should rebind a changed value.");
+			assertEquals("node", fourth[4], "Should bind the node.");
+			
+			proc.clearStylesheetParams();
+			assertEquals("none|1|0|true|", proc.transform("<stuff/>"), "Should use the defaults once cleared.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		}
+
+	}
+
+
+	@Test
+	public void testDocumentPoolRetained() {
+		
+		File lookup = null;
+		try {
+			lookup = File.createTempFile("lookup", ".xml");
+			Files.write(lookup.toPath(), "<codes><code>a</code></codes>".getBytes(StandardCharsets.UTF_8));
+			String stylesheet = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>"
+					+ "<xsl:output method='text'/>"
+					+ "<xsl:template match='/'>"
+					+ "<xsl:value-of select=\"generate-id(document('" + lookup.toURI() + "'))\"/>"
+					+ "</xsl:template>"
+					+ "</xsl:stylesheet>";
+			
+			// Under the default policy the document loaded by document() is parsed once
+			XSLTProcessor proc = XSLTProcessor.getInstance(stylesheet);
+			String first = proc.transform("<a/>");
+			assertEquals(first, proc.transform("<b/>"), "Should reuse the pooled document.");
+			
+			// The pool is cleared along with a buffer that has grown too large
+			proc.setRetentionPolicy(RetentionPolicy.getInstance(0, true));
+			String second = proc.transform("<a/>");
+			assertNotEquals(second, proc.transform("<b/>"), "Should parse the document again once the pool is cleared.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail(e.getMessage());
+		} finally {
+			if (lookup != null) {
+				lookup.delete();
+			}
+		}
+		
+	}
+
 }